@@ -17,9 +17,14 @@
 package com.android.phone;
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.net.Uri;
 import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.util.Log;
+import android.util.LruCache;
 
 
 /**
@@ -41,8 +46,11 @@ public class BitmapUtils {
     // BackgroundUtils.java in the Music2 code (which itself was based on
     // code from the old Cooliris android Gallery app.)
     //
-    // TODO: possibly consider caching previously-generated blurred bitmaps;
-    // see getAdaptedBitmap() and mAdaptedBitmapCache in the music app code.
+    // createBlurredBitmap() no longer uses gaussianBlur() itself: it
+    // approximates the same kernel with two sliding window box passes per
+    // direction, works in preallocated buffers, and caches its results by
+    // contact (see getBlurredBitmap().)  gaussianBlur() is kept as the
+    // reference implementation.
     //
 
     private static final int RED_MASK = 0xff0000;
@@ -51,6 +59,51 @@ public class BitmapUtils {
     private static final int GREEN_MASK_SHIFT = 8;
     private static final int BLUE_MASK = 0x0000ff;
 
+    /** Size of the blurred bitmaps; a power of 2, as the blur wraps around */
+    private static final int BLUR_SIZE = 128;
+
+    /** Radius of each box pass; two passes give a 9 tap triangle kernel */
+    private static final int BOX_RADIUS = 2;
+
+    /** Upper bound for the memory held by the blurred photo cache */
+    private static final int BLUR_CACHE_BYTES = 1024 * 1024;
+
+    /**
+     * Blurred bitmaps by contact, least recently used first.  Each entry
+     * remembers a checksum of the pixels it was made from, so a contact
+     * whose photo changed is blurred again instead of showing a stale
+     * result.
+     */
+    private static final LruCache<String, BlurredPhoto> sBlurCache =
+            new LruCache<String, BlurredPhoto>(BLUR_CACHE_BYTES) {
+                @Override
+                protected int sizeOf(String key, BlurredPhoto value) {
+                    return value.bitmap.getByteCount();
+                }
+            };
+
+    private static class BlurredPhoto {
+        final int checksum;
+        final Bitmap bitmap;
+
+        BlurredPhoto(int checksum, Bitmap bitmap) {
+            this.checksum = checksum;
+            this.bitmap = bitmap;
+        }
+    }
+
+    // Work buffers for createBlurredBitmap(), guarded by sBlurLock.
+    private static final Object sBlurLock = new Object();
+    private static Bitmap sScaledBitmap;
+    private static Canvas sScaledCanvas;
+    private static final Paint sScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private static final Rect sScaledRect = new Rect(0, 0, BLUR_SIZE, BLUR_SIZE);
+    private static final int[] sPixels = new int[BLUR_SIZE * BLUR_SIZE];
+    private static final int[] sTmpPixels = new int[BLUR_SIZE * BLUR_SIZE];
+
+    private static int sCacheHits;
+    private static int sCacheMisses;
+
     /**
      * Creates a blurred version of the given Bitmap.
      *
@@ -58,29 +111,145 @@ public class BitmapUtils {
      *               thumbnail.
      */
     public static Bitmap createBlurredBitmap(Bitmap bitmap) {
-        if (DBG) log("createBlurredBitmap()...");
+        return getBlurredBitmap(0, null, bitmap);
+    }
+
+    /**
+     * Returns a blurred version of the given contact photo, reusing an
+     * earlier result for the same contact if the photo didn't change.
+     *
+     * @param contactId id of the contact the photo belongs to
+     * @param contactUri uri of the contact; if null, the result
+     *                 is not cached
+     * @param bitmap the input bitmap, presumably a 96x96 pixel contact
+     *               thumbnail.  It is not modified or recycled.
+     */
+    public static Bitmap getBlurredBitmap(long contactId, Uri contactUri, Bitmap bitmap) {
+        if (DBG) log("getBlurredBitmap(" + contactId + ", " + contactUri + ")...");
         long startTime = SystemClock.uptimeMillis();
         if (bitmap == null) {
-            Log.w(TAG, "createBlurredBitmap: null bitmap");
+            Log.w(TAG, "getBlurredBitmap: null bitmap");
             return null;
         }
 
         if (DBG) log("- input bitmap: " + bitmap.getWidth() + " x " + bitmap.getHeight());
 
-        // The bitmap we pass to gaussianBlur() needs to have a width
-        // that's a power of 2, so scale up to 128x128.
-        final int scaledSize = 128;
-        bitmap = Bitmap.createScaledBitmap(bitmap,
-                                           scaledSize, scaledSize,
-                                           true /* filter */);
-        if (DBG) log("- after resize: " + bitmap.getWidth() + " x " + bitmap.getHeight());
+        final String key = (contactUri != null) ? contactUri.toString() + '#' + contactId : null;
+        Bitmap result;
+        synchronized (sBlurLock) {
+            // The blur needs a width that's a power of 2, so scale up to
+            // 128x128, into a bitmap that is kept around for the next call.
+            if (sScaledBitmap == null) {
+                sScaledBitmap = Bitmap.createBitmap(BLUR_SIZE, BLUR_SIZE,
+                        Bitmap.Config.ARGB_8888);
+                sScaledCanvas = new Canvas(sScaledBitmap);
+            }
+            sScaledBitmap.eraseColor(0);
+            sScaledCanvas.drawBitmap(bitmap, null, sScaledRect, sScalePaint);
+            sScaledBitmap.getPixels(sPixels, 0, BLUR_SIZE, 0, 0, BLUR_SIZE, BLUR_SIZE);
 
-        bitmap = gaussianBlur(bitmap);
-        if (DBG) log("- after blur: " + bitmap.getWidth() + " x " + bitmap.getHeight());
+            final int checksum = checksum(sPixels);
+            BlurredPhoto cached = (key != null) ? sBlurCache.get(key) : null;
+            if (cached != null && cached.checksum == checksum) {
+                sCacheHits++;
+                result = cached.bitmap;
+            } else {
+                sCacheMisses++;
+                boxBlur(sPixels, sTmpPixels, BLUR_SIZE, BLUR_SIZE);
+                result = Bitmap.createBitmap(sPixels, BLUR_SIZE, BLUR_SIZE,
+                        Bitmap.Config.ARGB_8888);
+                if (key != null) {
+                    sBlurCache.put(key, new BlurredPhoto(checksum, result));
+                }
+            }
+        }
 
         long endTime = SystemClock.uptimeMillis();
-        if (DBG) log("createBlurredBitmap() done (elapsed = " + (endTime - startTime) + " msec)");
-        return bitmap;
+        if (DBG) log("getBlurredBitmap() done (elapsed = " + (endTime - startTime) + " msec, "
+                + sCacheHits + " hits, " + sCacheMisses + " misses)");
+        return result;
+    }
+
+    /** Drops every cached blurred photo. */
+    public static void clearBlurCache() {
+        sBlurCache.evictAll();
+    }
+
+    /** Number of getBlurredBitmap() calls served from / not served from the cache. */
+    static int getBlurCacheHits() {
+        synchronized (sBlurLock) {
+            return sCacheHits;
+        }
+    }
+
+    static int getBlurCacheMisses() {
+        synchronized (sBlurLock) {
+            return sCacheMisses;
+        }
+    }
+
+    private static int checksum(int[] pixels) {
+        int hash = 1;
+        for (int i = 0; i < pixels.length; i++) {
+            hash = 31 * hash + pixels[i];
+        }
+        return hash;
+    }
+
+    /**
+     * Blurs the pixels in place, approximating gaussianBlur()'s 9 tap
+     * kernel with a 5 wide box applied twice in each direction.  Each box
+     * pass costs the same regardless of its radius, since it slides a
+     * running sum along the row instead of summing every tap.
+     *
+     * @param pixels ARGB pixels; the alpha channel is discarded
+     * @param tmp work buffer of the same size
+     * @param width must be a power of 2
+     * @param height must be a power of 2
+     */
+    static void boxBlur(int[] pixels, int[] tmp, int width, int height) {
+        // Like gaussianBlurFilter(), each pass transposes its output, so
+        // every other pass works on the columns.
+        boxBlurFilter(pixels, tmp, width, height);
+        boxBlurFilter(tmp, pixels, height, width);
+        boxBlurFilter(pixels, tmp, width, height);
+        boxBlurFilter(tmp, pixels, height, width);
+    }
+
+    private static void boxBlurFilter(int[] in, int[] out, int width, int height) {
+        final int RADIUS = BOX_RADIUS;
+        // Divide by the 5 pixel window with a multiply and shift
+        final int SCALE = (1 << 16) / (2 * RADIUS + 1) + 1;
+        final int widthMask = width - 1; // width must be a power of two.
+        int inPos = 0;
+        for (int y = 0; y < height; ++y) {
+            int red = 0;
+            int green = 0;
+            int blue = 0;
+            for (int i = -RADIUS; i <= RADIUS; ++i) {
+                int argb = in[inPos + (widthMask & i)];
+                red += (argb & RED_MASK) >> RED_MASK_SHIFT;
+                green += (argb & GREEN_MASK) >> GREEN_MASK_SHIFT;
+                blue += argb & BLUE_MASK;
+            }
+            int outPos = y;
+            for (int x = 0; x < width; ++x) {
+                out[outPos] = 0xff000000 | (((red * SCALE) >> 16) << RED_MASK_SHIFT)
+                        | (((green * SCALE) >> 16) << GREEN_MASK_SHIFT)
+                        | ((blue * SCALE) >> 16);
+                outPos += height;
+
+                // Slide the window one pixel to the right.
+                int leaving = in[inPos + (widthMask & (x - RADIUS))];
+                int entering = in[inPos + (widthMask & (x + RADIUS + 1))];
+                red += ((entering & RED_MASK) >> RED_MASK_SHIFT)
+                        - ((leaving & RED_MASK) >> RED_MASK_SHIFT);
+                green += ((entering & GREEN_MASK) >> GREEN_MASK_SHIFT)
+                        - ((leaving & GREEN_MASK) >> GREEN_MASK_SHIFT);
+                blue += (entering & BLUE_MASK) - (leaving & BLUE_MASK);
+            }
+            inPos += width;
+        }
     }
 
     /**
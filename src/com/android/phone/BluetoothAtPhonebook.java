@@ -16,23 +16,26 @@
 
 package com.android.phone;
 
-import com.android.internal.telephony.GsmAlphabet;
-
 import android.bluetooth.AtCommandHandler;
 import android.bluetooth.AtCommandResult;
 import android.bluetooth.AtParser;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.HeadsetBase;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
-import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
@@ -67,11 +70,37 @@ public class BluetoothAtPhonebook {
     private static final String MISSED_CALL_WHERE = Calls.TYPE + "=" + Calls.MISSED_TYPE;
     private static final String VISIBLE_PHONEBOOK_WHERE = Phone.IN_VISIBLE_GROUP + "=1";
 
-    private class PhonebookResult {
-        public Cursor  cursor; // result set of last query
-        public int     numberColumn;
-        public int     typeColumn;
-        public int     nameColumn;
+    /** Delay to coalesce bursts of provider change notifications. */
+    private static final int REFRESH_DELAY_MS = 500;
+
+    /** AT+CPBR reads spanning more entries than this are streamed. */
+    private static final int CPBR_STREAM_THRESHOLD = 16;
+
+    /** Upper bound, in characters, of one streamed +CPBR write. */
+    private static final int CPBR_CHUNK_SIZE = 512;
+
+    private static final int EVENT_REFRESH_CALL_LOG = 1;
+    private static final int EVENT_REFRESH_CONTACTS = 2;
+
+    /**
+     * Immutable, preformatted snapshot of one phonebook. AT+CPBS and
+     * AT+CPBR only slice these arrays, so no provider I/O happens on the
+     * AT handler thread once the snapshot is built.
+     */
+    private static class PhonebookResult {
+        public final String[] numbers; // separators stripped, at most 30 chars
+        public final String[] names;   // trimmed to 28 chars, plus "/<type>" for ME
+        public final int[]    toas;    // type of address, from the raw number
+
+        PhonebookResult(int size) {
+            numbers = new String[size];
+            names = new String[size];
+            toas = new int[size];
+        }
+
+        public int size() {
+            return numbers.length;
+        }
     };
 
     private final Context mContext;
@@ -79,6 +108,9 @@ public class BluetoothAtPhonebook {
 
     private String mCurrentPhonebook;
     private String mCharacterSet = "UTF-8";
+    private final BluetoothPhonebookEncoder mEncoder = new BluetoothPhonebookEncoder();
+    // Reused for every +CPBR line or streamed chunk
+    private final StringBuilder mCpbrBuffer = new StringBuilder(CPBR_CHUNK_SIZE + 128);
 
     private int mCpbrIndex1, mCpbrIndex2;
     private boolean mCheckingAccessPermission;
@@ -90,22 +122,115 @@ public class BluetoothAtPhonebook {
         "com.android.settings.bluetooth.BluetoothPermissionRequest";
     private static final String BLUETOOTH_ADMIN_PERM = android.Manifest.permission.BLUETOOTH_ADMIN;
 
+    // Current snapshot per phonebook; a null value means not built yet.
     private final HashMap<String, PhonebookResult> mPhonebooks =
             new HashMap<String, PhonebookResult>(4);
 
+    private final Handler mRefreshHandler;
+    private final ContentObserver mCallLogObserver;
+    private final ContentObserver mContactsObserver;
+    private boolean mObserving;
+
     public BluetoothAtPhonebook(Context context, BluetoothHandsfree handsfree) {
         mContext = context;
         mHandsfree = handsfree;
-        mPhonebooks.put("DC", new PhonebookResult());  // dialled calls
-        mPhonebooks.put("RC", new PhonebookResult());  // received calls
-        mPhonebooks.put("MC", new PhonebookResult());  // missed calls
-        mPhonebooks.put("ME", new PhonebookResult());  // mobile phonebook
+        mPhonebooks.put("DC", null);  // dialled calls
+        mPhonebooks.put("RC", null);  // received calls
+        mPhonebooks.put("MC", null);  // missed calls
+        mPhonebooks.put("ME", null);  // mobile phonebook
 
         mCurrentPhonebook = "ME";  // default to mobile phonebook
 
         mCpbrIndex1 = mCpbrIndex2 = -1;
         mCheckingAccessPermission = false;
         mAccessRejected = false;
+
+        HandlerThread thread = new HandlerThread("BluetoothAtPhonebook");
+        thread.start();
+        mRefreshHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case EVENT_REFRESH_CONTACTS:
+                        refreshPhonebook("ME");
+                        // fall through: call log names come from contacts
+                    case EVENT_REFRESH_CALL_LOG:
+                        refreshPhonebook("DC");
+                        refreshPhonebook("RC");
+                        refreshPhonebook("MC");
+                        break;
+                }
+            }
+        };
+        mCallLogObserver = new ContentObserver(mRefreshHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                scheduleRefresh(EVENT_REFRESH_CALL_LOG);
+            }
+        };
+        mContactsObserver = new ContentObserver(mRefreshHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                scheduleRefresh(EVENT_REFRESH_CONTACTS);
+            }
+        };
+    }
+
+    /**
+     * Called when a headset connects. Prebuilds all phonebook snapshots in
+     * the background and keeps them current until the headset disconnects.
+     */
+    /* package */ synchronized void onHeadsetConnected() {
+        if (!mObserving) {
+            ContentResolver resolver = mContext.getContentResolver();
+            resolver.registerContentObserver(Calls.CONTENT_URI, true, mCallLogObserver);
+            resolver.registerContentObserver(Phone.CONTENT_URI, true, mContactsObserver);
+            mObserving = true;
+        }
+        mRefreshHandler.removeMessages(EVENT_REFRESH_CALL_LOG);
+        mRefreshHandler.removeMessages(EVENT_REFRESH_CONTACTS);
+        mRefreshHandler.sendEmptyMessage(EVENT_REFRESH_CONTACTS);
+    }
+
+    /** Called when the headset disconnects; drops observers and snapshots. */
+    /* package */ synchronized void onHeadsetDisconnected() {
+        if (mObserving) {
+            ContentResolver resolver = mContext.getContentResolver();
+            resolver.unregisterContentObserver(mCallLogObserver);
+            resolver.unregisterContentObserver(mContactsObserver);
+            mObserving = false;
+        }
+        mRefreshHandler.removeMessages(EVENT_REFRESH_CALL_LOG);
+        mRefreshHandler.removeMessages(EVENT_REFRESH_CONTACTS);
+        for (String pb : mPhonebooks.keySet()) {
+            mPhonebooks.put(pb, null);
+        }
+    }
+
+    private void scheduleRefresh(int what) {
+        if (mRefreshHandler.hasMessages(EVENT_REFRESH_CONTACTS)) {
+            // A contacts refresh rebuilds the call logs as well
+            return;
+        }
+        if (what == EVENT_REFRESH_CONTACTS) {
+            mRefreshHandler.removeMessages(EVENT_REFRESH_CALL_LOG);
+        } else if (mRefreshHandler.hasMessages(EVENT_REFRESH_CALL_LOG)) {
+            return;
+        }
+        mRefreshHandler.sendEmptyMessageDelayed(what, REFRESH_DELAY_MS);
+    }
+
+    /** Rebuilds one snapshot off the AT handler thread and publishes it. */
+    private void refreshPhonebook(String pb) {
+        synchronized (this) {
+            if (!mObserving) return;
+        }
+        PhonebookResult pbr = queryPhonebook(pb);
+        synchronized (this) {
+            if (mObserving && pbr != null) {
+                mPhonebooks.put(pb, pbr);
+            }
+        }
     }
 
     /** Returns the last dialled number, or null if no numbers have been called */
@@ -145,6 +270,7 @@ public class BluetoothAtPhonebook {
                 if (characterSet.equals("GSM") || characterSet.equals("IRA") ||
                     characterSet.equals("UTF-8") || characterSet.equals("UTF8")) {
                     mCharacterSet = characterSet;
+                    mEncoder.setCharacterSet(characterSet);
                     return new AtCommandResult(AtCommandResult.OK);
                 } else {
                     return mHandsfree.reportCmeError(BluetoothCmeError.OPERATION_NOT_SUPPORTED);
@@ -165,11 +291,11 @@ public class BluetoothAtPhonebook {
                     return new AtCommandResult("+CPBS: \"SM\",0," + getMaxPhoneBookSize(0));
                 }
 
-                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true);
+                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook);
                 if (pbr == null) {
                     return mHandsfree.reportCmeError(BluetoothCmeError.OPERATION_NOT_ALLOWED);
                 }
-                int size = pbr.cursor.getCount();
+                int size = pbr.size();
                 return new AtCommandResult("+CPBS: \"" + mCurrentPhonebook + "\"," +
                         size + "," + getMaxPhoneBookSize(size));
             }
@@ -182,7 +308,9 @@ public class BluetoothAtPhonebook {
                 String pb = ((String)args[0]).trim();
                 while (pb.endsWith("\"")) pb = pb.substring(0, pb.length() - 1);
                 while (pb.startsWith("\"")) pb = pb.substring(1, pb.length());
-                if (getPhonebookResult(pb, false) == null && !"SM".equals(pb)) {
+                // Usually served from the snapshot; queries the phonebook
+                // if it isn't built yet, and fails if that query fails.
+                if (!"SM".equals(pb) && getPhonebookResult(pb) == null) {
                     if (DBG) log("Dont know phonebook: '" + pb + "'");
                     return mHandsfree.reportCmeError(BluetoothCmeError.OPERATION_NOT_SUPPORTED);
                 }
@@ -252,11 +380,11 @@ public class BluetoothAtPhonebook {
                 if ("SM".equals(mCurrentPhonebook)) {
                     size = 0;
                 } else {
-                    PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, false);
+                    PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook);
                     if (pbr == null) {
                         return mHandsfree.reportCmeError(BluetoothCmeError.OPERATION_NOT_ALLOWED);
                     }
-                    size = pbr.cursor.getCount();
+                    size = pbr.size();
                 }
 
                 if (size == 0) {
@@ -290,39 +418,50 @@ public class BluetoothAtPhonebook {
                 }
 
                 AtCommandResult cpbrResult = processCpbrCommand();
-                headset.sendURC(cpbrResult.toString());
+                synchronized (mHandsfree.getHeadsetWriteLock()) {
+                    headset.sendURC(cpbrResult.toString());
+                }
             } else {
                 mAccessRejected = true;
-                headset.sendURC("ERROR");
+                synchronized (mHandsfree.getHeadsetWriteLock()) {
+                    headset.sendURC("ERROR");
+                }
             }
         }
         mCpbrIndex1 = mCpbrIndex2 = -1;
         mCheckingAccessPermission = false;
     }
 
-    /** Get the most recent result for the given phone book,
-     *  with the cursor ready to go.
-     *  If force then re-query that phonebook
-     *  Returns null if the cursor is not ready
+    /** Get the current snapshot of the given phone book.
+     *  The snapshot is normally prebuilt in the background and kept up to
+     *  date by the content observers; if it is not ready yet, build it now.
+     *  Returns null if the phonebook is unknown or cannot be queried.
      */
-    private synchronized PhonebookResult getPhonebookResult(String pb, boolean force) {
+    private PhonebookResult getPhonebookResult(String pb) {
         if (pb == null) {
             return null;
         }
-        PhonebookResult pbr = mPhonebooks.get(pb);
-        if (pbr == null) {
-            pbr = new PhonebookResult();
-        }
-        if (force || pbr.cursor == null) {
-            if (!queryPhonebook(pb, pbr)) {
+        synchronized (this) {
+            if (!mPhonebooks.containsKey(pb)) {
                 return null;
             }
+            PhonebookResult pbr = mPhonebooks.get(pb);
+            if (pbr != null) {
+                return pbr;
+            }
         }
 
+        PhonebookResult pbr = queryPhonebook(pb);
+        synchronized (this) {
+            if (pbr != null && mObserving && mPhonebooks.get(pb) == null) {
+                mPhonebooks.put(pb, pbr);
+            }
+        }
         return pbr;
     }
 
-    private synchronized boolean queryPhonebook(String pb, PhonebookResult pbr) {
+    /** Queries the given phonebook and formats every entry into a snapshot. */
+    private PhonebookResult queryPhonebook(String pb) {
         String where;
         boolean ancillaryPhonebook = true;
 
@@ -336,38 +475,92 @@ public class BluetoothAtPhonebook {
         } else if (pb.equals("MC")) {
             where = MISSED_CALL_WHERE;
         } else {
-            return false;
-        }
-
-        if (pbr.cursor != null) {
-            pbr.cursor.close();
-            pbr.cursor = null;
+            return null;
         }
 
+        long start = SystemClock.elapsedRealtime();
+        ContentResolver resolver = mContext.getContentResolver();
+        Cursor cursor;
         if (ancillaryPhonebook) {
-            pbr.cursor = mContext.getContentResolver().query(
-                    Calls.CONTENT_URI, CALLS_PROJECTION, where, null,
+            cursor = resolver.query(Calls.CONTENT_URI, CALLS_PROJECTION, where, null,
                     Calls.DEFAULT_SORT_ORDER + " LIMIT " + MAX_PHONEBOOK_SIZE);
-            if (pbr.cursor == null) return false;
-
-            pbr.numberColumn = pbr.cursor.getColumnIndexOrThrow(Calls.NUMBER);
-            pbr.typeColumn = -1;
-            pbr.nameColumn = -1;
         } else {
-            pbr.cursor = mContext.getContentResolver().query(Phone.CONTENT_URI, PHONES_PROJECTION,
-                    where, null, Phone.NUMBER + " LIMIT " + MAX_PHONEBOOK_SIZE);
-            if (pbr.cursor == null) return false;
+            cursor = resolver.query(Phone.CONTENT_URI, PHONES_PROJECTION, where, null,
+                    Phone.NUMBER + " LIMIT " + MAX_PHONEBOOK_SIZE);
+        }
+        if (cursor == null) return null;
 
-            pbr.numberColumn = pbr.cursor.getColumnIndex(Phone.NUMBER);
-            pbr.typeColumn = pbr.cursor.getColumnIndex(Phone.TYPE);
-            pbr.nameColumn = pbr.cursor.getColumnIndex(Phone.DISPLAY_NAME);
+        PhonebookResult pbr;
+        try {
+            pbr = new PhonebookResult(cursor.getCount());
+            StringBuilder buffer = new StringBuilder(64);
+            if (ancillaryPhonebook) {
+                int numberColumn = cursor.getColumnIndexOrThrow(Calls.NUMBER);
+                ArrayList<String> numbers = new ArrayList<String>(pbr.size());
+                while (cursor.moveToNext()) {
+                    numbers.add(cursor.getString(numberColumn));
+                }
+                // Caller id for the call log phonebooks is resolved for the
+                // whole phonebook at once, rather than with one PhoneLookup
+                // query per row.
+                HashMap<String, BluetoothCallerIdResolver.CallerId> callerIds =
+                        BluetoothCallerIdResolver.resolve(resolver, numbers);
+                for (int i = 0; i < pbr.size() && i < numbers.size(); i++) {
+                    String number = numbers.get(i);
+                    BluetoothCallerIdResolver.CallerId callerId =
+                            callerIds.get(BluetoothCallerIdResolver.normalize(number));
+                    String name = (callerId != null) ? callerId.name : null;
+                    if (DBG && name == null) log("Caller ID lookup failed for " + number);
+                    setEntry(pbr, i, buffer, number, name, null);
+                }
+            } else {
+                int numberColumn = cursor.getColumnIndex(Phone.NUMBER);
+                int typeColumn = cursor.getColumnIndex(Phone.TYPE);
+                int nameColumn = cursor.getColumnIndex(Phone.DISPLAY_NAME);
+                for (int i = 0; i < pbr.size() && cursor.moveToNext(); i++) {
+                    setEntry(pbr, i, buffer, cursor.getString(numberColumn),
+                            cursor.getString(nameColumn),
+                            getPhoneType(cursor.getInt(typeColumn)));
+                }
+            }
+        } finally {
+            cursor.close();
         }
-        Log.i(TAG, "Refreshed phonebook " + pb + " with " + pbr.cursor.getCount() + " results");
-        return true;
+        Log.i(TAG, "Refreshed phonebook " + pb + " with " + pbr.size() + " results in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+        return pbr;
+    }
+
+    /**
+     * Formats one phonebook entry the way it is reported in +CPBR, using
+     * buffer as scratch space.
+     */
+    private void setEntry(PhonebookResult pbr, int i, StringBuilder buffer, String number,
+            String name, String typeSuffix) {
+        if (number == null) number = "";
+        pbr.toas[i] = PhoneNumberUtils.toaFromString(number);
+
+        buffer.setLength(0);
+        BluetoothPhonebookEncoder.appendNumber(buffer, number);
+        if (buffer.length() == 2 && buffer.charAt(0) == '-' && buffer.charAt(1) == '1') {
+            // unknown numbers are stored as -1 in our database
+            pbr.numbers[i] = "";
+            pbr.names[i] = mContext.getString(R.string.unknown);
+            return;
+        }
+        pbr.numbers[i] = buffer.toString();
+
+        buffer.setLength(0);
+        BluetoothPhonebookEncoder.appendName(buffer, name);
+        if (typeSuffix != null) {
+            buffer.append('/').append(typeSuffix);
+        }
+        pbr.names[i] = buffer.toString();
     }
 
     synchronized void resetAtState() {
         mCharacterSet = "UTF-8";
+        mEncoder.setCharacterSet(mCharacterSet);
         mCpbrIndex1 = mCpbrIndex2 = -1;
         mCheckingAccessPermission = false;
     }
@@ -403,7 +596,7 @@ public class BluetoothAtPhonebook {
         }
 
         // Check phonebook
-        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, false);
+        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook);
         if (pbr == null) {
             return mHandsfree.reportCmeError(BluetoothCmeError.OPERATION_NOT_ALLOWED);
         }
@@ -412,78 +605,76 @@ public class BluetoothAtPhonebook {
         // Send OK instead of ERROR if these checks fail.
         // When we send error, certain kits like BMW disconnect the
         // Handsfree connection.
-        if (pbr.cursor.getCount() == 0 || mCpbrIndex1 <= 0 || mCpbrIndex2 < mCpbrIndex1  ||
-            mCpbrIndex2 > pbr.cursor.getCount() || mCpbrIndex1 > pbr.cursor.getCount()) {
+        int size = pbr.size();
+        if (size == 0 || mCpbrIndex1 <= 0 || mCpbrIndex2 < mCpbrIndex1  ||
+            mCpbrIndex2 > size || mCpbrIndex1 > size) {
             return new AtCommandResult(AtCommandResult.OK);
         }
 
+        // Small reads are answered in one result. Large ones are streamed
+        // to the headset in bounded chunks as they are formatted, so the
+        // first entries go out right away and the whole response is never
+        // held in memory.
+        HeadsetBase headset = mHandsfree.getHeadset();
+        if (headset != null && mCpbrIndex2 - mCpbrIndex1 >= CPBR_STREAM_THRESHOLD) {
+            return streamCpbrEntries(headset, pbr);
+        }
+
         // Process
         AtCommandResult result = new AtCommandResult(AtCommandResult.OK);
-        int errorDetected = -1; // no error
-        pbr.cursor.moveToPosition(mCpbrIndex1 - 1);
+        StringBuilder line = mCpbrBuffer;
         for (int index = mCpbrIndex1; index <= mCpbrIndex2; index++) {
-            String number = pbr.cursor.getString(pbr.numberColumn);
-            String name = null;
-            int type = -1;
-            if (pbr.nameColumn == -1) {
-                // try caller id lookup
-                // TODO: This code is horribly inefficient. I saw it
-                // take 7 seconds to process 100 missed calls.
-                Cursor c = mContext.getContentResolver().
-                    query(Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, number),
-                          new String[] {PhoneLookup.DISPLAY_NAME, PhoneLookup.TYPE},
-                          null, null, null);
-                if (c != null) {
-                    if (c.moveToFirst()) {
-                        name = c.getString(0);
-                        type = c.getInt(1);
-                    }
-                    c.close();
-                }
-                if (DBG && name == null) log("Caller ID lookup failed for " + number);
-
-            } else {
-                name = pbr.cursor.getString(pbr.nameColumn);
-            }
-            if (name == null) name = "";
-            name = name.trim();
-            if (name.length() > 28) name = name.substring(0, 28);
-
-            if (pbr.typeColumn != -1) {
-                type = pbr.cursor.getInt(pbr.typeColumn);
-                name = name + "/" + getPhoneType(type);
-            }
-
-            if (number == null) number = "";
-            int regionType = PhoneNumberUtils.toaFromString(number);
-
-            number = number.trim();
-            number = PhoneNumberUtils.stripSeparators(number);
-            if (number.length() > 30) number = number.substring(0, 30);
-            if (number.equals("-1")) {
-                // unknown numbers are stored as -1 in our database
-                number = "";
-                name = mContext.getString(R.string.unknown);
-            }
+            line.setLength(0);
+            appendCpbrEntry(line, pbr, index);
+            result.addResponse(line.toString());
+        }
+        return result;
+    }
 
-            // TODO(): Handle IRA commands. It's basically
-            // a 7 bit ASCII character set.
-            if (!name.equals("") && mCharacterSet.equals("GSM")) {
-                byte[] nameByte = GsmAlphabet.stringToGsm8BitPacked(name);
-                if (nameByte == null) {
-                    name = mContext.getString(R.string.unknown);
-                } else {
-                    name = new String(nameByte);
+    /**
+     * Writes the current CPBR window directly to the headset, at most
+     * CPBR_CHUNK_SIZE characters per write, followed by the final OK.
+     * HeadsetBase.sendURC() blocks while the RFCOMM socket is full, which
+     * throttles formatting to the speed of the link. The headset write
+     * lock is held throughout, so that no unsolicited result code (RING,
+     * +CIEV, ...) is sent in the middle of the response.
+     * Returns the result left for the parser to send: nothing, or ERROR
+     * if a write failed.
+     */
+    private AtCommandResult streamCpbrEntries(HeadsetBase headset, PhonebookResult pbr) {
+        long start = SystemClock.elapsedRealtime();
+        StringBuilder chunk = mCpbrBuffer;
+        chunk.setLength(0);
+        synchronized (mHandsfree.getHeadsetWriteLock()) {
+            for (int index = mCpbrIndex1; index <= mCpbrIndex2; index++) {
+                if (chunk.length() > 0) {
+                    // same separator AtCommandResult uses between responses
+                    chunk.append("\r\n\r\n");
+                }
+                appendCpbrEntry(chunk, pbr, index);
+                if (index == mCpbrIndex2) {
+                    chunk.append("\r\n\r\n").append(AtCommandResult.OK_STRING);
+                }
+                if (chunk.length() >= CPBR_CHUNK_SIZE || index == mCpbrIndex2) {
+                    if (!headset.sendURC(chunk.toString())) {
+                        Log.w(TAG, "CPBR stream aborted at index " + index);
+                        return new AtCommandResult(AtCommandResult.ERROR);
+                    }
+                    chunk.setLength(0);
                 }
-            }
-
-            result.addResponse("+CPBR: " + index + ",\"" + number + "\"," +
-                               regionType + ",\"" + name + "\"");
-            if (!pbr.cursor.moveToNext()) {
-                break;
             }
         }
-        return result;
+        if (DBG) {
+            log("Streamed CPBR " + mCpbrIndex1 + "-" + mCpbrIndex2 + " in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+        return new AtCommandResult(AtCommandResult.UNSOLICITED);  // all sent
+    }
+
+    /** Appends the +CPBR response line for one entry of the phonebook. */
+    private void appendCpbrEntry(StringBuilder sb, PhonebookResult pbr, int index) {
+        mEncoder.appendCpbrEntry(sb, index, pbr.numbers[index - 1], pbr.toas[index - 1],
+                pbr.names[index - 1]);
     }
 
     // Check if the remote device has premission to read our phone book
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Batched caller-id lookup for the call log phonebooks (DC, RC, MC) served
+ * over AT+CPBR, also used to name the missed calls found at startup (see
+ * NotificationMgr.resolveNames()).
+ *
+ * Instead of running one PhoneLookup query per call log row, all numbers
+ * of the requested window are normalized up front and resolved with one
+ * contacts phone query per MAX_NUMBERS_PER_QUERY distinct numbers, whose
+ * selection only lets the phones equal to one of them through.  The rows
+ * returned are bucketed by their caller-id min-match key and confirmed
+ * with {@link PhoneNumberUtils#compare}, which is the same loose matching
+ * the PhoneLookup filter uses.
+ */
+class BluetoothCallerIdResolver {
+    private static final String TAG = "BluetoothCallerIdResolver";
+    private static final boolean DBG = false;
+
+    /**
+     * Numbers per contacts query.  Each one adds a PHONE_NUMBERS_EQUAL()
+     * term to the selection, so this stays well below SQLite's limits on
+     * arguments (999) and expression depth (1000), and keeps the cost of
+     * each unindexed scan of the phones bounded.
+     */
+    static final int MAX_NUMBERS_PER_QUERY = 100;
+
+    private static final String[] PHONES_PROJECTION = new String[] {
+        Phone.NUMBER, Phone.DISPLAY_NAME, Phone.TYPE
+    };
+
+    /** Caller-id information for one resolved number. */
+    static class CallerId {
+        final String name;
+        final int type;
+
+        CallerId(String name, int type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    private BluetoothCallerIdResolver() {
+    }
+
+    /**
+     * Returns the key used for the resolved map: the number with all
+     * separators stripped, or null if the number cannot be looked up.
+     */
+    static String normalize(String number) {
+        if (number == null) return null;
+        number = PhoneNumberUtils.stripSeparators(number.trim());
+        if (TextUtils.isEmpty(number) || number.equals("-1")) {
+            // unknown numbers are stored as -1 in the call log
+            return null;
+        }
+        return number;
+    }
+
+    /**
+     * Resolves all of the given numbers, MAX_NUMBERS_PER_QUERY per contacts query.
+     *
+     * @param numbers raw numbers as stored in the call log; duplicates,
+     *        nulls and unknown numbers are allowed
+     * @return map from {@link #normalize normalized} number to caller id.
+     *         Numbers without a matching contact have no entry.
+     */
+    static HashMap<String, CallerId> resolve(ContentResolver resolver,
+            Collection<String> numbers) {
+        HashMap<String, CallerId> result = new HashMap<String, CallerId>();
+
+        // Bucket the wanted numbers by min-match key, so each contact row
+        // costs one hash lookup.
+        HashMap<String, ArrayList<String>> wanted = new HashMap<String, ArrayList<String>>();
+        ArrayList<String> distinct = new ArrayList<String>();
+        for (String number : numbers) {
+            String normalized = normalize(number);
+            if (normalized == null) continue;
+            String key = PhoneNumberUtils.toCallerIDMinMatch(normalized);
+            ArrayList<String> bucket = wanted.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<String>(1);
+                wanted.put(key, bucket);
+            }
+            if (!bucket.contains(normalized)) {
+                bucket.add(normalized);
+                distinct.add(normalized);
+            }
+        }
+        if (wanted.isEmpty()) {
+            return result;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < distinct.size(); i += MAX_NUMBERS_PER_QUERY) {
+            int end = Math.min(i + MAX_NUMBERS_PER_QUERY, distinct.size());
+            String[] args = distinct.subList(i, end).toArray(new String[end - i]);
+            Cursor c = resolver.query(Phone.CONTENT_URI, PHONES_PROJECTION,
+                    buildSelection(args.length), args, null);
+            if (c != null) {
+                matchPhones(c, wanted, result);
+            }
+        }
+
+        if (DBG) {
+            log("Resolved " + result.size() + " numbers in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+        return result;
+    }
+
+    /**
+     * Selects the phones equal to one of the given number of arguments,
+     * with the same loose comparison as the PhoneLookup filter.
+     */
+    static String buildSelection(int count) {
+        StringBuilder selection = new StringBuilder(count * 36);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) selection.append(" OR ");
+            selection.append("PHONE_NUMBERS_EQUAL(").append(Phone.NUMBER).append(", ?)");
+        }
+        return selection.toString();
+    }
+
+    // Adds the caller id of each row to the result, for the wanted numbers
+    // it matches; closes the cursor.
+    private static void matchPhones(Cursor c, HashMap<String, ArrayList<String>> wanted,
+            HashMap<String, CallerId> result) {
+        try {
+            while (c.moveToNext()) {
+                String contactNumber = c.getString(0);
+                if (contactNumber == null) continue;
+                ArrayList<String> bucket =
+                        wanted.get(PhoneNumberUtils.toCallerIDMinMatch(contactNumber));
+                if (bucket == null) continue;
+                for (int i = 0; i < bucket.size(); i++) {
+                    String normalized = bucket.get(i);
+                    if (!result.containsKey(normalized)
+                            && PhoneNumberUtils.compare(normalized, contactNumber)) {
+                        result.put(normalized, new CallerId(c.getString(1), c.getInt(2)));
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void log(String msg) {
+        Log.d(TAG, msg);
+    }
+}
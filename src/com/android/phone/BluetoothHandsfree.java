@@ -44,6 +44,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.ServiceState;
@@ -58,7 +59,10 @@ import com.android.internal.telephony.CallManager;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.concurrent.Future;
 
 /**
  * Bluetooth headset manager for the Phone app.
@@ -75,6 +79,11 @@ public class BluetoothHandsfree {
     private static final String PROP_VERSION_KEY = "ro.bluetooth.hfp.ver";
     private static final String PROP_VERSION_1_6 = "1.6";
 
+    // Window in ms over which service, signal, roam and battery +CIEV
+    // updates are coalesced
+    private static final String PROP_CIEV_COALESCE_MS = "persist.bt.hfp.ciev_coalesce_ms";
+    private static final int DEFAULT_CIEV_COALESCE_MS = 1000;
+
     private static final int mVersion;
 
     public static final int TYPE_UNKNOWN           = 0;
@@ -103,9 +112,15 @@ public class BluetoothHandsfree {
     private boolean mAudioPossible;
     private BluetoothSocket mConnectedSco;
 
-    private IncomingScoAcceptThread mIncomingScoThread = null;
-    private ScoSocketConnectThread mConnectScoThread = null;
-    private SignalScoCloseThread mSignalScoCloseThread = null;
+    private IncomingScoAcceptTask mIncomingScoTask = null;
+    private ScoSocketConnectTask mConnectScoTask = null;
+    private SignalScoCloseTask mSignalScoCloseTask = null;
+    private final BluetoothScoExecutor mScoExecutor = new BluetoothScoExecutor();
+    private final Object mHeadsetWriteLock = new Object();
+    // elapsedRealtime() of the pending audioOn() request, 0 if none
+    private long mScoRequestTime;
+    // elapsedRealtime() of the failed WBS connect being retried as NB, 0 if none
+    private long mFallbackStartTime;
 
     private AudioManager mAudioManager;
     private PowerManager mPowerManager;
@@ -132,6 +147,16 @@ public class BluetoothHandsfree {
     private boolean mCmee = false;  // Extended Error reporting
     private long[] mClccTimestamps; // Timestamps associated with each clcc index
     private boolean[] mClccUsed;     // Is this clcc index in use
+    // Last +CLCC entries. Reused until mClccGeneration moves on, which
+    // happens on every precise call state change, or, on CDMA, until the
+    // CdmaPhoneCallState changes, which a merge does without a precise call
+    // state change.
+    private String[] mClccEntries;
+    private boolean mClccEntriesCdma;
+    private CdmaPhoneCallState.PhoneCallState mClccEntriesCdmaState;
+    private CdmaPhoneCallState.PhoneCallState mClccEntriesCdmaPrevState;
+    private int mClccEntriesGeneration;
+    private volatile int mClccGeneration;
     private boolean mWaitingForCallStart;
     private boolean mWaitingForVoiceRecognition;
     // do not connect audio until service connection is established
@@ -313,16 +338,17 @@ public class BluetoothHandsfree {
     }
 
     /**
-     * A thread that runs in the background waiting for a Sco Server Socket to
+     * A task that runs in the background waiting for a Sco Server Socket to
      * accept a connection. Even after a connection has been accepted, the Sco Server
      * continues to listen for new connections.
      */
-    private class IncomingScoAcceptThread extends Thread{
+    private class IncomingScoAcceptTask implements Runnable {
         private final BluetoothServerSocket mIncomingServerSocket;
         private BluetoothSocket mIncomingSco;
-        private boolean stopped = false;
+        private volatile boolean stopped = false;
+        private Future<?> mFuture;
 
-        public IncomingScoAcceptThread() {
+        public IncomingScoAcceptTask() {
             BluetoothServerSocket serverSocket = null;
             try {
                 serverSocket = BluetoothAdapter.listenUsingScoOn();
@@ -333,6 +359,10 @@ public class BluetoothHandsfree {
             mIncomingServerSocket = serverSocket;
         }
 
+        void start() {
+            mFuture = mScoExecutor.submit(this);
+        }
+
         @Override
         public void run() {
             while (!stopped) {
@@ -350,7 +380,7 @@ public class BluetoothHandsfree {
 
         private void connectSco() {
             synchronized (BluetoothHandsfree.this) {
-                if (!Thread.currentThread().interrupted() &&
+                if (!stopped &&
                     isHeadsetConnected() &&
                     (mAudioPossible || allowAudioAnytime()) &&
                     mConnectedSco == null) {
@@ -359,12 +389,7 @@ public class BluetoothHandsfree {
                     mAudioManager.setBluetoothScoOn(true);
                     setAudioState(BluetoothHeadset.STATE_AUDIO_CONNECTED,
                         mHeadset.getRemoteDevice());
-
-                    if (mSignalScoCloseThread == null) {
-                        mSignalScoCloseThread = new SignalScoCloseThread();
-                        mSignalScoCloseThread.setName("SignalScoCloseThread");
-                        mSignalScoCloseThread.start();
-                    }
+                    onScoAudioConnected(false);
                 } else {
                     Log.i(TAG, "Rejecting incoming SCO connection");
                     try {
@@ -372,33 +397,41 @@ public class BluetoothHandsfree {
                     }catch (IOException e) {
                         Log.e(TAG, "Error when closing incoming Sco socket");
                     }
-                    mIncomingSco = null;
                 }
+                mIncomingSco = null;
             }
         }
 
         // must be called with BluetoothHandsfree locked
         void shutdown() {
-            try {
-                mIncomingServerSocket.close();
-            } catch (IOException e) {
-                Log.w(TAG, "Error when closing server socket");
-            }
             stopped = true;
-            interrupt();
+            if (mIncomingServerSocket != null) {
+                try {
+                    mIncomingServerSocket.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error when closing server socket");
+                }
+            }
+            if (mFuture != null) {
+                mFuture.cancel(true);
+            }
         }
     }
 
     /**
-     * A thread that runs in the background waiting for a Sco Socket to
-     * connect.Once the socket is connected, this thread shall be
-     * shutdown.
+     * A task that runs in the background waiting for a Sco Socket to
+     * connect. Once the socket is connected, the task is done.
      */
-    private class ScoSocketConnectThread extends Thread{
-        private BluetoothSocket mOutgoingSco;
+    private class ScoSocketConnectTask implements Runnable {
+        private final BluetoothDevice mDevice;
+        private volatile BluetoothSocket mOutgoingSco;
+        private volatile long mStartTime;
         private boolean mIsWbs;
+        private boolean mCancelled;
+        private Future<?> mFuture;
 
-        public ScoSocketConnectThread(BluetoothDevice device, boolean wbs) {
+        public ScoSocketConnectTask(BluetoothDevice device, boolean wbs) {
+            mDevice = device;
             try {
                 mIsWbs = wbs;
                 if (wbs) {
@@ -408,14 +441,25 @@ public class BluetoothHandsfree {
                 }
             } catch (IOException e) {
                 Log.w(TAG, "Could not create BluetoothSocket");
-                failedScoConnect();
             }
         }
 
+        void start() {
+            // The connect latency includes the wait behind earlier SCO
+            // work for the headset
+            mStartTime = SystemClock.elapsedRealtime();
+            mFuture = mScoExecutor.submitSerial(mDevice, this);
+        }
+
         @Override
         public void run() {
+            if (mOutgoingSco == null) {
+                failedScoConnect();
+                return;
+            }
             try {
                 mOutgoingSco.connect();
+                mScoExecutor.mConnectLatency.addSince(mStartTime);
             }catch (IOException connectException) {
                 Log.e(TAG, "BluetoothSocket could not connect");
                 mOutgoingSco = null;
@@ -429,7 +473,7 @@ public class BluetoothHandsfree {
 
         private void connectSco() {
             synchronized (BluetoothHandsfree.this) {
-                if (!Thread.currentThread().interrupted() &&
+                if (!isCancelled() &&
                     isHeadsetConnected() && mConnectedSco == null) {
                     if (VDBG) log("Routing audio for outgoing SCO conection");
                     mConnectedSco = mOutgoingSco;
@@ -437,12 +481,7 @@ public class BluetoothHandsfree {
 
                     setAudioState(BluetoothHeadset.STATE_AUDIO_CONNECTED,
                       mHeadset.getRemoteDevice());
-
-                    if (mSignalScoCloseThread == null) {
-                        mSignalScoCloseThread = new SignalScoCloseThread();
-                        mSignalScoCloseThread.setName("SignalScoCloseThread");
-                        mSignalScoCloseThread.start();
-                    }
+                    onScoAudioConnected(mIsWbs);
                 } else {
                     if (VDBG) log("Rejecting new connected outgoing SCO socket");
                     try {
@@ -464,30 +503,46 @@ public class BluetoothHandsfree {
             msg.obj = mHeadset.getRemoteDevice();
             mHandler.sendMessageDelayed(msg, 2000);
 
-            // Sync with interrupt() statement of shutdown method
-            // This prevents resetting of a valid mConnectScoThread.
-            // If this thread has been interrupted, it has been shutdown and
-            // mConnectScoThread is/will be reset by the outer class.
-            // We do not want to do it here since mConnectScoThread could be
+            // This prevents resetting of a valid mConnectScoTask.
+            // If this task has been cancelled, it has been shutdown and
+            // mConnectScoTask is/will be reset by the outer class.
+            // We do not want to do it here since mConnectScoTask could be
             // assigned with a new object.
-            synchronized (ScoSocketConnectThread.this) {
-                if (!isInterrupted()) {
-                    resetConnectScoThread();
-                }
+            if (!isCancelled()) {
+                resetConnectScoTask(this);
             }
-            if (mIsWbs) {
+            // A connect aborted by shutdown() is not a failed WBS connect
+            if (mIsWbs && !isCancelled() && !Thread.currentThread().isInterrupted()) {
+                mFallbackStartTime = SystemClock.elapsedRealtime();
                 fallbackNb();
             }
         }
 
+        private synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
         // must be called with BluetoothHandsfree locked
         void shutdown() {
             closeConnectedSco();
 
-            // sync with isInterrupted() check in failedScoConnect method
+            // sync with isCancelled() check in failedScoConnect method
             // see explanation there
-            synchronized (ScoSocketConnectThread.this) {
-                interrupt();
+            synchronized (ScoSocketConnectTask.this) {
+                mCancelled = true;
+            }
+            // Abort a connect() still in progress, so it does not hold on
+            // to an executor thread until the socket times out
+            BluetoothSocket outgoingSco = mOutgoingSco;
+            if (outgoingSco != null) {
+                try {
+                    outgoingSco.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error when closing Sco socket");
+                }
+            }
+            if (mFuture != null) {
+                mFuture.cancel(true);
             }
         }
     }
@@ -495,37 +550,57 @@ public class BluetoothHandsfree {
     /*
      * Signals when a Sco connection has been closed
      */
-    private class SignalScoCloseThread extends Thread{
-        private boolean stopped = false;
+    private class SignalScoCloseTask implements Runnable {
+        private volatile boolean stopped = false;
+        private Future<?> mFuture;
+
+        void start() {
+            mFuture = mScoExecutor.submit(this);
+        }
 
         @Override
         public void run() {
+            try {
+                waitForClose();
+            } finally {
+                synchronized (BluetoothHandsfree.this) {
+                    if (mSignalScoCloseTask == this) {
+                        mSignalScoCloseTask = null;
+                    }
+                }
+            }
+        }
+
+        private void waitForClose() {
             while (!stopped) {
                 BluetoothSocket connectedSco = null;
                 synchronized (BluetoothHandsfree.this) {
                     connectedSco = mConnectedSco;
                 }
-                if (connectedSco != null) {
-                    byte b[] = new byte[1];
-                    InputStream inStream = null;
+                if (connectedSco == null) {
+                    break;
+                }
+                byte b[] = new byte[1];
+                InputStream inStream = null;
+                try {
+                    inStream = connectedSco.getInputStream();
+                } catch (IOException e) {}
+
+                if (inStream != null) {
                     try {
-                        inStream = connectedSco.getInputStream();
-                    } catch (IOException e) {}
-
-                    if (inStream != null) {
-                        try {
-                            // inStream.read is a blocking call that won't ever
-                            // return anything, but will throw an exception if the
-                            // connection is closed
-                            int ret = inStream.read(b, 0, 1);
-                        }catch (IOException connectException) {
-                            // call a message to close this thread and turn off audio
-                            // we can't call audioOff directly because then
-                            // the thread would try to close itself
+                        // inStream.read is a blocking call that won't ever
+                        // return anything, but will throw an exception if the
+                        // connection is closed
+                        int ret = inStream.read(b, 0, 1);
+                    }catch (IOException connectException) {
+                        // call a message to close this task and turn off audio
+                        // we can't call audioOff directly because then
+                        // the task would try to close itself
+                        if (!stopped) {
                             Message msg = Message.obtain(mHandler, SCO_CLOSED);
                             mHandler.sendMessage(msg);
-                            break;
                         }
+                        break;
                     }
                 }
             }
@@ -535,37 +610,54 @@ public class BluetoothHandsfree {
         void shutdown() {
             stopped = true;
             closeConnectedSco();
-            interrupt();
+            if (mFuture != null) {
+                mFuture.cancel(true);
+            }
         }
     }
 
-    private void connectScoThread(boolean wbs){
-        // Sync with setting mConnectScoThread to null to assure the validity of
+    // must be called with BluetoothHandsfree locked
+    private void onScoAudioConnected(boolean wbs) {
+        mScoExecutor.mFirstAudioLatency.addSince(mScoRequestTime);
+        mScoRequestTime = 0;
+        if (!wbs && mFallbackStartTime != 0) {
+            mScoExecutor.mFallbackLatency.addSince(mFallbackStartTime);
+        }
+        mFallbackStartTime = 0;
+
+        if (mSignalScoCloseTask == null) {
+            mSignalScoCloseTask = new SignalScoCloseTask();
+            mSignalScoCloseTask.start();
+        }
+    }
+
+    private void connectScoTask(boolean wbs){
+        // Sync with setting mConnectScoTask to null to assure the validity of
         // the condition
-        synchronized (ScoSocketConnectThread.class) {
+        synchronized (ScoSocketConnectTask.class) {
             if (mConnectedSco != null) {
                 if (DBG) log("SCO audio is already connected");
                 return;
             }
 
-            if (mConnectScoThread == null) {
+            if (mConnectScoTask == null) {
                 BluetoothDevice device = mHeadset.getRemoteDevice();
                 if (getAudioState(device) == BluetoothHeadset.STATE_AUDIO_DISCONNECTED) {
                     setAudioState(BluetoothHeadset.STATE_AUDIO_CONNECTING, device);
                 }
 
-                mConnectScoThread = new ScoSocketConnectThread(mHeadset.getRemoteDevice(), wbs);
-                mConnectScoThread.setName("HandsfreeScoSocketConnectThread");
-
-                mConnectScoThread.start();
+                mConnectScoTask = new ScoSocketConnectTask(mHeadset.getRemoteDevice(), wbs);
+                mConnectScoTask.start();
             }
         }
     }
 
-    private void resetConnectScoThread() {
-        // Sync with if (mConnectScoThread == null) check
-        synchronized (ScoSocketConnectThread.class) {
-            mConnectScoThread = null;
+    private void resetConnectScoTask(ScoSocketConnectTask task) {
+        // Sync with if (mConnectScoTask == null) check
+        synchronized (ScoSocketConnectTask.class) {
+            if (task == null || mConnectScoTask == task) {
+                mConnectScoTask = null;
+            }
         }
     }
 
@@ -600,10 +692,9 @@ public class BluetoothHandsfree {
          * immediately when we don't want it.
          */
 
-        if (mIncomingScoThread == null) {
-            mIncomingScoThread = new IncomingScoAcceptThread();
-            mIncomingScoThread.setName("incomingScoAcceptThread");
-            mIncomingScoThread.start();
+        if (mIncomingScoTask == null) {
+            mIncomingScoTask = new IncomingScoAcceptTask();
+            mIncomingScoTask.start();
         }
     }
 
@@ -611,9 +702,9 @@ public class BluetoothHandsfree {
         // Close off the SCO sockets
         audioOff();
 
-        if (mIncomingScoThread != null) {
-            mIncomingScoThread.shutdown();
-            mIncomingScoThread = null;
+        if (mIncomingScoTask != null) {
+            mIncomingScoTask.shutdown();
+            mIncomingScoTask = null;
         }
     }
 
@@ -638,6 +729,7 @@ public class BluetoothHandsfree {
 
         headset.startEventThread();
         configAudioParameters();
+        mPhonebook.onHeadsetConnected();
 
         if (inDebug()) {
             startDebug();
@@ -674,6 +766,7 @@ public class BluetoothHandsfree {
         mHeadsetType = TYPE_UNKNOWN;
         stopDebug();
         resetAtState();
+        mPhonebook.onHeadsetDisconnected();
     }
 
     /* package */ synchronized void resetAtState() {
@@ -686,6 +779,7 @@ public class BluetoothHandsfree {
         for (int i = 0; i < GSM_MAX_CONNECTIONS; i++) {
             mClccUsed[i] = false;
         }
+        invalidateClccCache();
         mRemoteBrsf = 0;
         mPhonebook.resetAtState();
     }
@@ -762,6 +856,23 @@ public class BluetoothHandsfree {
         private static final int PRECISE_CALL_STATE_CHANGED = 2;
         private static final int RING = 3;
         private static final int PHONE_CDMA_CALL_WAITING = 4;
+        private static final int FLUSH_INDICATORS = 5;
+
+        // Indicators whose +CIEV updates are coalesced. Call, callsetup and
+        // callheld are never delayed.
+        private static final int PENDING_SERVICE = 1 << 1;
+        private static final int PENDING_SIGNAL = 1 << 5;
+        private static final int PENDING_ROAM = 1 << 6;
+        private static final int PENDING_BATTCHG = 1 << 7;
+        private static final int PENDING_CREG = 1 << 0;  // +CREG, not a +CIEV
+
+        // Indicator changes arriving within this window are merged into one
+        // URC set carrying the latest values; 0 sends every change at once.
+        private final int mCoalesceWindowMs =
+                SystemProperties.getInt(PROP_CIEV_COALESCE_MS, DEFAULT_CIEV_COALESCE_MS);
+        private int mPendingIndicators;
+        private int mUrcSent;       // coalesced indicator updates sent
+        private int mUrcSuppressed; // updates dropped because a newer value replaced them
 
         private Handler mStateChangeHandler = new Handler() {
             @Override
@@ -785,10 +896,67 @@ public class BluetoothHandsfree {
                     }
                     handlePreciseCallStateChange(sendUpdate(), connection);
                     break;
+                case FLUSH_INDICATORS:
+                    flushIndicators();
+                    break;
                 }
             }
         };
 
+        /** Queue a coalesced indicator update; see mCoalesceWindowMs */
+        private synchronized void queueIndicator(int indicator) {
+            if ((mPendingIndicators & indicator) != 0) {
+                // An update for this indicator is already waiting; only
+                // the newest value will be sent.
+                mUrcSuppressed++;
+                return;
+            }
+            mPendingIndicators |= indicator;
+            if (mCoalesceWindowMs <= 0) {
+                flushIndicators();
+            } else if (!mStateChangeHandler.hasMessages(FLUSH_INDICATORS)) {
+                mStateChangeHandler.sendEmptyMessageDelayed(FLUSH_INDICATORS,
+                        mCoalesceWindowMs);
+            }
+        }
+
+        /** Send one URC set with the current value of every pending indicator */
+        private synchronized void flushIndicators() {
+            int pending = mPendingIndicators;
+            mPendingIndicators = 0;
+            if (pending == 0) {
+                return;
+            }
+            if (!sendUpdate()) {
+                mUrcSuppressed += Integer.bitCount(pending);
+                return;
+            }
+
+            AtCommandResult result = new AtCommandResult(AtCommandResult.UNSOLICITED);
+            if ((pending & PENDING_SERVICE) != 0 && mIIEnabled[1]) {
+                result.addResponse("+CIEV: 1," + mService);
+            }
+            if ((pending & PENDING_SIGNAL) != 0 && mIIEnabled[5]) {
+                result.addResponse("+CIEV: 5," + mSignal);
+            }
+            if ((pending & PENDING_ROAM) != 0 && mIIEnabled[6]) {
+                result.addResponse("+CIEV: 6," + mRoam);
+            }
+            if ((pending & PENDING_BATTCHG) != 0 && mIIEnabled[7]) {
+                result.addResponse("+CIEV: 7," + mBattchg);
+            }
+            if ((pending & PENDING_CREG) != 0) {
+                result.addResponse(toCregString());
+            }
+            mUrcSent += Integer.bitCount(pending);
+            sendURC(result.toString());
+        }
+
+        private synchronized void dump(PrintWriter pw) {
+            pw.println("  CIEV coalesce window: " + mCoalesceWindowMs + " ms");
+            pw.println("  CIEV updates sent: " + mUrcSent + ", suppressed: " + mUrcSuppressed);
+        }
+
         private BluetoothPhoneState() {
             // init members
             // TODO May consider to repalce the default phone's state and signal
@@ -1027,7 +1195,7 @@ public class BluetoothHandsfree {
                         if (mPendingScoForA2dp) {
                             mHandler.removeMessages(MESSAGE_CHECK_PENDING_SCO);
                             if (DBG) log("A2DP suspended, completing SCO");
-                            connectScoThread(CODEC_MSBC == mRemoteCodec);
+                            connectScoTask(CODEC_MSBC == mRemoteCodec);
                             mPendingScoForA2dp = false;
                          }
                      }
@@ -1045,7 +1213,7 @@ public class BluetoothHandsfree {
             if (mBattchg != batteryLevel) {
                 mBattchg = batteryLevel;
                 if (sendUpdate() && mIIEnabled[7]) {
-                    sendURC("+CIEV: 7," + mBattchg);
+                    queueIndicator(PENDING_BATTCHG);
                 }
             }
         }
@@ -1066,7 +1234,7 @@ public class BluetoothHandsfree {
                 if (signal != mSignal) {
                     mSignal = signal;
                     if (sendUpdate() && mIIEnabled[5]) {
-                        sendURC("+CIEV: 5," + mSignal);
+                        queueIndicator(PENDING_SIGNAL);
                     }
                 }
             } else {
@@ -1078,10 +1246,8 @@ public class BluetoothHandsfree {
             int service;
             int roam;
             int stat;
-            AtCommandResult result = new AtCommandResult(AtCommandResult.UNSOLICITED);
 
             if (state == null) {
-                sendURC(result.toString()); // send nothing
                 return;
             }
             service = state.getState() == ServiceState.STATE_IN_SERVICE ? 1 : 0;
@@ -1096,27 +1262,26 @@ public class BluetoothHandsfree {
             if (service != mService) {
                 mService = service;
                 if (sendUpdate && mIIEnabled[1]) {
-                    result.addResponse("+CIEV: 1," + mService);
+                    queueIndicator(PENDING_SERVICE);
                 }
             }
             if (roam != mRoam) {
                 mRoam = roam;
                 if (sendUpdate && mIIEnabled[6]) {
-                    result.addResponse("+CIEV: 6," + mRoam);
+                    queueIndicator(PENDING_ROAM);
                 }
             }
             if (stat != mStat) {
                 mStat = stat;
                 if (sendUpdate) {
-                    result.addResponse(toCregString());
+                    queueIndicator(PENDING_CREG);
                 }
             }
-
-            sendURC(result.toString());
         }
 
         private synchronized void handlePreciseCallStateChange(boolean sendUpdate,
                 Connection connection) {
+            invalidateClccCache();
             int call = 0;
             int callsetup = 0;
             int callheld = 0;
@@ -1540,7 +1705,7 @@ public class BluetoothHandsfree {
                     if (mPendingScoForA2dp) {
                         Log.w(TAG, "Timeout suspending A2DP for SCO (mA2dpState = " +
                                 mA2dpState + "). Starting SCO anyway");
-                        connectScoThread(CODEC_MSBC == mRemoteCodec);
+                        connectScoTask(CODEC_MSBC == mRemoteCodec);
                         mPendingScoForA2dp = false;
                     }
                 }
@@ -1548,7 +1713,7 @@ public class BluetoothHandsfree {
             case CODEC_CONNECTION_SETUP_COMPLETED:
                 if (mPendingScoForWbs) {
                     try {
-                        connectScoThread(mLocalCodec == CODEC_MSBC);
+                        connectScoTask(mLocalCodec == CODEC_MSBC);
                         mPendingScoForWbs = false;
                     } catch (Exception e) {
                         fallbackNb();
@@ -1565,7 +1730,24 @@ public class BluetoothHandsfree {
         }
     }
 
+    /**
+     * Falls back to narrow band after a failed wide band connect.  Queued
+     * behind the SCO work of the headset, so that it can't change the codec
+     * in the middle of a connect.
+     */
     void fallbackNb() {
+        HeadsetBase headset = mHeadset;
+        if (headset == null) return;
+        mScoExecutor.submitSerial(headset.getRemoteDevice(), new Runnable() {
+            public void run() {
+                synchronized (BluetoothHandsfree.this) {
+                    doFallbackNb();
+                }
+            }
+        });
+    }
+
+    private void doFallbackNb() {
         if ((0x0 != (mLocalBrsf & BRSF_AG_CODEC_NEGOTIATION)) &&
             (0x0 != (mRemoteBrsf & BRSF_HF_CODEC_NEGOTIATION)) &&
             mRemoteCodec == CODEC_MSBC) {
@@ -1648,6 +1830,7 @@ public class BluetoothHandsfree {
         if (VDBG) Log.d(TAG, "updateBtHandsfreeAfterRadioTechnologyChange...");
 
         mBluetoothPhoneState.updateBtPhoneStateAfterRadioTechnologyChange();
+        invalidateClccCache();
     }
 
     /** Request to establish SCO (audio) connection to bluetooth
@@ -1676,6 +1859,10 @@ public class BluetoothHandsfree {
             return false;
         }
 
+        if (mScoRequestTime == 0) {
+            mScoRequestTime = SystemClock.elapsedRealtime();
+        }
+
         if (mPendingScoForA2dp) {
             if (DBG) log("audioOn(): SCO already pending for A2DP");
             return true;
@@ -1720,7 +1907,7 @@ public class BluetoothHandsfree {
         }
 
         if (!mPendingScoForA2dp && !mPendingScoForWbs) {
-            connectScoThread(CODEC_MSBC == mRemoteCodec);
+            connectScoTask(CODEC_MSBC == mRemoteCodec);
         }
 
         return true;
@@ -1762,17 +1949,20 @@ public class BluetoothHandsfree {
         mPendingScoForA2dp = false;
         mPendingScoForWbs = false;
 
-        if (mSignalScoCloseThread != null) {
-            mSignalScoCloseThread.shutdown();
-            mSignalScoCloseThread = null;
+        mScoRequestTime = 0;
+        mFallbackStartTime = 0;
+
+        if (mSignalScoCloseTask != null) {
+            mSignalScoCloseTask.shutdown();
+            mSignalScoCloseTask = null;
         }
 
-        // Sync with setting mConnectScoThread to null to assure the validity of
+        // Sync with setting mConnectScoTask to null to assure the validity of
         // the condition
-        synchronized (ScoSocketConnectThread.class) {
-            if (mConnectScoThread != null) {
-                mConnectScoThread.shutdown();
-                resetConnectScoThread();
+        synchronized (ScoSocketConnectTask.class) {
+            if (mConnectScoTask != null) {
+                mConnectScoTask.shutdown();
+                resetConnectScoTask(null);
             }
         }
 
@@ -1794,10 +1984,22 @@ public class BluetoothHandsfree {
 
     private void sendURC(String urc) {
         if (isHeadsetConnected()) {
-            mHeadset.sendURC(urc);
+            synchronized (mHeadsetWriteLock) {
+                mHeadset.sendURC(urc);
+            }
         }
     }
 
+    /**
+     * Held while writing to the headset outside of the AT parser.  A
+     * response written in several parts holds it across all of them, so no
+     * unsolicited result code lands in between.  Never take the
+     * BluetoothHandsfree lock while holding this one.
+     */
+    /* package */ Object getHeadsetWriteLock() {
+        return mHeadsetWriteLock;
+    }
+
     /** helper to redial last dialled number */
     private AtCommandResult redial() {
         String number = mPhonebook.getLastDialledNumber();
@@ -1832,6 +2034,50 @@ public class BluetoothHandsfree {
      *  The complexity arises from the fact that we need to maintain the same
      *  CLCC index even as a call moves between states. */
     private synchronized AtCommandResult gsmGetClccResult() {
+        return getCachedClccResult(false);
+    }
+
+    /** Build the +CLCC result for CDMA */
+    private synchronized AtCommandResult cdmaGetClccResult() {
+        return getCachedClccResult(true);
+    }
+
+    /** Drop the cached +CLCC entries; call on any change of the call state */
+    private void invalidateClccCache() {
+        mClccGeneration++;
+    }
+
+    /** Returns the +CLCC result, rebuilding the entries only when the
+     *  call state changed since they were last built. Kits poll AT+CLCC
+     *  several times a second, while calls change far less often. */
+    private synchronized AtCommandResult getCachedClccResult(boolean cdma) {
+        int generation = mClccGeneration;
+        CdmaPhoneCallState.PhoneCallState cdmaState = null;
+        CdmaPhoneCallState.PhoneCallState cdmaPrevState = null;
+        if (cdma) {
+            CdmaPhoneCallState cdmaPhoneCallState = PhoneApp.getInstance().cdmaPhoneCallState;
+            cdmaState = cdmaPhoneCallState.getCurrentCallState();
+            cdmaPrevState = cdmaPhoneCallState.getPreviousCallState();
+        }
+        if (mClccEntries == null || mClccEntriesGeneration != generation
+                || mClccEntriesCdma != cdma || mClccEntriesCdmaState != cdmaState
+                || mClccEntriesCdmaPrevState != cdmaPrevState) {
+            mClccEntries = cdma ? cdmaBuildClccEntries() : gsmBuildClccEntries();
+            mClccEntriesCdma = cdma;
+            mClccEntriesCdmaState = cdmaState;
+            mClccEntriesCdmaPrevState = cdmaPrevState;
+            mClccEntriesGeneration = generation;
+        }
+
+        AtCommandResult result = new AtCommandResult(AtCommandResult.OK);
+        for (String entry : mClccEntries) {
+            result.addResponse(entry);
+        }
+        return result;
+    }
+
+    /** Build the +CLCC entries for GSM */
+    private String[] gsmBuildClccEntries() {
         // Collect all known connections
         Connection[] clccConnections = new Connection[GSM_MAX_CONNECTIONS];  // indexed by CLCC index
         LinkedList<Connection> newConnections = new LinkedList<Connection>();
@@ -1897,17 +2143,17 @@ public class BluetoothHandsfree {
         }
 
         // Build CLCC
-        AtCommandResult result = new AtCommandResult(AtCommandResult.OK);
+        ArrayList<String> entries = new ArrayList<String>(GSM_MAX_CONNECTIONS);
         for (int i = 0; i < clccConnections.length; i++) {
             if (mClccUsed[i]) {
                 String clccEntry = connectionToClccEntry(i, clccConnections[i]);
                 if (clccEntry != null) {
-                    result.addResponse(clccEntry);
+                    entries.add(clccEntry);
                 }
             }
         }
 
-        return result;
+        return entries.toArray(new String[entries.size()]);
     }
 
     /** Convert a Connection object into a single +CLCC result */
@@ -1957,10 +2203,10 @@ public class BluetoothHandsfree {
         return result;
     }
 
-    /** Build the +CLCC result for CDMA
+    /** Build the +CLCC entries for CDMA
      *  The complexity arises from the fact that we need to maintain the same
      *  CLCC index even as a call moves between states. */
-    private synchronized AtCommandResult cdmaGetClccResult() {
+    private String[] cdmaBuildClccEntries() {
         // In CDMA at one time a user can have only two live/active connections
         Connection[] clccConnections = new Connection[CDMA_MAX_CONNECTIONS];// indexed by CLCC index
         Call foregroundCall = mCM.getActiveFgCall();
@@ -2003,15 +2249,15 @@ public class BluetoothHandsfree {
         }
 
         // Build CLCC
-        AtCommandResult result = new AtCommandResult(AtCommandResult.OK);
+        ArrayList<String> entries = new ArrayList<String>(CDMA_MAX_CONNECTIONS);
         for (int i = 0; (i < clccConnections.length) && (clccConnections[i] != null); i++) {
             String clccEntry = cdmaConnectionToClccEntry(i, clccConnections[i]);
             if (clccEntry != null) {
-                result.addResponse(clccEntry);
+                entries.add(clccEntry);
             }
         }
 
-        return result;
+        return entries.toArray(new String[entries.size()]);
     }
 
     /** Convert a Connection object into a single +CLCC result for CDMA phones */
@@ -3409,10 +3655,15 @@ public class BluetoothHandsfree {
         if (VDBG) log("cdmaSetSecondCallState: Toggling mCdmaIsSecondCallActive");
         mCdmaIsSecondCallActive = !mCdmaIsSecondCallActive;
         mCdmaCallsSwapped = true;
+        invalidateClccCache();
     }
 
     public void cdmaSetSecondCallState(boolean state) {
         if (VDBG) log("cdmaSetSecondCallState: Setting mCdmaIsSecondCallActive to " + state);
+        if (mCdmaIsSecondCallActive != state) {
+            // CDMA +CLCC reports the active/held state from this flag
+            invalidateClccCache();
+        }
         mCdmaIsSecondCallActive = state;
 
         if (!mCdmaIsSecondCallActive) {
@@ -3420,6 +3671,14 @@ public class BluetoothHandsfree {
         }
     }
 
+    /** Dump handsfree statistics, for dumpsys of BluetoothHeadsetService */
+    /* package */ void dump(PrintWriter pw) {
+        pw.println("BluetoothHandsfree:");
+        pw.println("  headset type: " + typeToString(mHeadsetType));
+        mBluetoothPhoneState.dump(pw);
+        mScoExecutor.dump(pw);
+    }
+
     private static void log(String msg) {
         Log.d(TAG, msg);
     }
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import com.android.internal.telephony.GsmAlphabet;
+
+import android.telephony.PhoneNumberUtils;
+import android.util.SparseIntArray;
+
+/**
+ * Formats phonebook entries for AT+CPBR into a caller supplied buffer,
+ * without allocating per entry.
+ *
+ * Trimming, separator stripping and truncation happen while copying, and
+ * names are encoded for the character set selected with AT+CSCS:
+ *   "UTF-8" - copied unchanged
+ *   "GSM"   - GSM 03.38 default alphabet, one char per septet, extension
+ *             table characters escaped; same output as
+ *             new String(GsmAlphabet.stringToGsm8BitPacked(name))
+ *   "IRA"   - 7 bit ASCII, anything else becomes '?'
+ */
+class BluetoothPhonebookEncoder {
+    /** Maximum length of a name as reported in +CPBR */
+    static final int MAX_NAME_LENGTH = 28;
+    /** Maximum length of a number as reported in +CPBR */
+    static final int MAX_NUMBER_LENGTH = 30;
+
+    private static final int CHARSET_UTF8 = 0;
+    private static final int CHARSET_GSM = 1;
+    private static final int CHARSET_IRA = 2;
+
+    private static final char GSM_ESCAPE = (char) GsmAlphabet.GSM_EXTENDED_ESCAPE;
+    private static final char GSM_SPACE = ' ';
+
+    // Reverse GSM tables, char -> septet. Built once; lookups don't allocate.
+    private static volatile SparseIntArray sCharToGsm;
+    private static volatile SparseIntArray sCharToGsmExtended;
+
+    private int mCharset = CHARSET_UTF8;
+
+    /** Selects the character set by its AT+CSCS name. */
+    void setCharacterSet(String characterSet) {
+        if ("GSM".equals(characterSet)) {
+            mCharset = CHARSET_GSM;
+            initGsmTables();
+        } else if ("IRA".equals(characterSet)) {
+            mCharset = CHARSET_IRA;
+        } else {
+            mCharset = CHARSET_UTF8;
+        }
+    }
+
+    /**
+     * Appends the number with surrounding whitespace trimmed, separators
+     * stripped and at most MAX_NUMBER_LENGTH characters kept.
+     */
+    static void appendNumber(StringBuilder out, CharSequence number) {
+        if (number == null) return;
+        int end = trimEnd(number);
+        int kept = 0;
+        for (int i = trimStart(number, end); i < end && kept < MAX_NUMBER_LENGTH; i++) {
+            char c = number.charAt(i);
+            if (PhoneNumberUtils.isNonSeparator(c)) {
+                out.append(c);
+                kept++;
+            }
+        }
+    }
+
+    /**
+     * Appends the name with surrounding whitespace trimmed and at most
+     * MAX_NAME_LENGTH characters kept, without character set encoding.
+     */
+    static void appendName(StringBuilder out, CharSequence name) {
+        if (name == null) return;
+        int end = trimEnd(name);
+        int start = trimStart(name, end);
+        out.append(name, start, Math.min(end, start + MAX_NAME_LENGTH));
+    }
+
+    /** Appends the text encoded for the selected character set. */
+    void appendEncoded(StringBuilder out, CharSequence text) {
+        int length = text.length();
+        switch (mCharset) {
+            case CHARSET_GSM:
+                for (int i = 0; i < length; i++) {
+                    char c = text.charAt(i);
+                    int septet = sCharToGsm.get(c, -1);
+                    if (septet >= 0) {
+                        out.append((char) septet);
+                        continue;
+                    }
+                    septet = sCharToGsmExtended.get(c, -1);
+                    if (septet >= 0) {
+                        out.append(GSM_ESCAPE).append((char) septet);
+                    } else {
+                        out.append(GSM_SPACE);
+                    }
+                }
+                break;
+            case CHARSET_IRA:
+                for (int i = 0; i < length; i++) {
+                    char c = text.charAt(i);
+                    out.append(c < 0x80 ? c : '?');
+                }
+                break;
+            default:
+                out.append(text);
+                break;
+        }
+    }
+
+    /**
+     * Appends one complete +CPBR response line, with the (already
+     * formatted) name encoded for the selected character set.
+     */
+    void appendCpbrEntry(StringBuilder out, int index, String number, int toa, String name) {
+        out.append("+CPBR: ").append(index).append(",\"").append(number)
+                .append("\",").append(toa).append(",\"");
+        appendEncoded(out, name);
+        out.append('"');
+    }
+
+    private static int trimEnd(CharSequence s) {
+        int end = s.length();
+        while (end > 0 && s.charAt(end - 1) <= ' ') end--;
+        return end;
+    }
+
+    private static int trimStart(CharSequence s, int end) {
+        int start = 0;
+        while (start < end && s.charAt(start) <= ' ') start++;
+        return start;
+    }
+
+    private static synchronized void initGsmTables() {
+        if (sCharToGsm != null) return;
+        SparseIntArray basic = new SparseIntArray(128);
+        SparseIntArray extended = new SparseIntArray(16);
+        for (int septet = 0; septet < 128; septet++) {
+            if (septet == GsmAlphabet.GSM_EXTENDED_ESCAPE) continue;
+            char c = GsmAlphabet.gsmToChar(septet);
+            if (basic.get(c, -1) < 0) {
+                basic.put(c, septet);
+            }
+        }
+        for (int septet = 0; septet < 128; septet++) {
+            if (septet == GsmAlphabet.GSM_EXTENDED_ESCAPE) continue;
+            char e = GsmAlphabet.gsmExtendedToChar(septet);
+            // unmapped extension septets decode to their basic character,
+            // skip those so only the real extension table is used
+            if (basic.get(e, -1) < 0 && extended.get(e, -1) < 0) {
+                extended.put(e, septet);
+            }
+        }
+        sCharToGsmExtended = extended;
+        sCharToGsm = basic;
+    }
+}
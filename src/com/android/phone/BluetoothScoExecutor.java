@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long lived executor for the blocking SCO socket work of
+ * BluetoothHandsfree: accepting incoming SCO, connecting outgoing SCO and
+ * waiting for a connected SCO socket to close.
+ *
+ * Each of those blocks in a socket call, so the executor keeps its
+ * threads alive instead of creating and tearing down a thread per
+ * connection. The accept loop and the close watcher, which block for as
+ * long as they run, get threads of their own through {@link #submit}.
+ * The work on the SCO link of one headset (outgoing connects, the narrow
+ * band fallback) goes through {@link #submitSerial}, so it runs in
+ * submission order and never overlaps. Neither pool queues work: when all
+ * of its threads are blocked, say in connects still being aborted, it
+ * starts another one. Latencies of SCO setup are recorded in histograms
+ * and reported through {@link #dump}.
+ */
+class BluetoothScoExecutor {
+    // Threads kept alive: the accept loop and the close watcher, and one
+    // for the connects
+    private static final int WAIT_THREADS = 2;
+    private static final int CONNECT_THREADS = 1;
+
+    // How long an extra thread is kept once idle
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mWaitExecutor;
+    private final ThreadPoolExecutor mConnectExecutor;
+
+    // Serial lanes by device address; guarded by this
+    private final HashMap<String, SerialExecutor> mSerialExecutors =
+            new HashMap<String, SerialExecutor>();
+
+    /**
+     * Runs its tasks one at a time on the pool threads, in the order they
+     * were submitted.
+     */
+    private class SerialExecutor implements Executor {
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+        private Runnable mActive;
+
+        public synchronized void execute(final Runnable task) {
+            mTasks.offer(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if (mActive == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            mActive = mTasks.poll();
+            if (mActive != null) {
+                mConnectExecutor.execute(mActive);
+            }
+        }
+
+        synchronized int getQueued() {
+            return mTasks.size();
+        }
+    }
+
+    /** Outgoing SCO connect queued until the socket is connected */
+    final LatencyHistogram mConnectLatency = new LatencyHistogram("connect");
+    /** audioOn() until audio is routed over SCO, incoming or outgoing */
+    final LatencyHistogram mFirstAudioLatency = new LatencyHistogram("first audio");
+    /** Failed WBS connect until narrow band SCO audio is connected */
+    final LatencyHistogram mFallbackLatency = new LatencyHistogram("wbs->nb fallback");
+
+    BluetoothScoExecutor() {
+        mWaitExecutor = newPool(WAIT_THREADS, "BluetoothScoWait-");
+        mConnectExecutor = newPool(CONNECT_THREADS, "BluetoothScoConnect-");
+    }
+
+    /**
+     * Pool that keeps coreThreads alive and hands every task to a thread
+     * right away, starting a new one if needed.
+     */
+    private static ThreadPoolExecutor newPool(int coreThreads, final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(coreThreads, Integer.MAX_VALUE,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    public Thread newThread(final Runnable r) {
+                        Thread t = new Thread(new Runnable() {
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                                r.run();
+                            }
+                        }, name + mCount.incrementAndGet());
+                        return t;
+                    }
+                });
+        executor.prestartAllCoreThreads();
+        return executor;
+    }
+
+    /**
+     * Run a task that waits on a socket for as long as it runs, on a
+     * thread of its own. Cancel the returned future to interrupt it.
+     */
+    Future<?> submit(Runnable task) {
+        return mWaitExecutor.submit(task);
+    }
+
+    /**
+     * Queue a task after the ones already submitted for the device.
+     * Cancel the returned future to interrupt it, or to skip it if it
+     * hasn't started yet.
+     */
+    Future<?> submitSerial(BluetoothDevice device, Runnable task) {
+        SerialExecutor serial;
+        synchronized (this) {
+            serial = mSerialExecutors.get(device.getAddress());
+            if (serial == null) {
+                serial = new SerialExecutor();
+                mSerialExecutors.put(device.getAddress(), serial);
+            }
+        }
+        FutureTask<Void> future = new FutureTask<Void>(task, null);
+        serial.execute(future);
+        return future;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  SCO executor: waiting=" + mWaitExecutor.getActiveCount()
+                + " connecting=" + mConnectExecutor.getActiveCount()
+                + " threads=" + (mWaitExecutor.getPoolSize() + mConnectExecutor.getPoolSize())
+                + " largest=" + mConnectExecutor.getLargestPoolSize()
+                + " completed=" + mConnectExecutor.getCompletedTaskCount());
+        synchronized (this) {
+            for (Map.Entry<String, SerialExecutor> entry : mSerialExecutors.entrySet()) {
+                pw.println("  " + entry.getKey() + ": queued="
+                        + entry.getValue().getQueued());
+            }
+        }
+        mConnectLatency.dump(pw);
+        mFirstAudioLatency.dump(pw);
+        mFallbackLatency.dump(pw);
+    }
+
+    /**
+     * Fixed bucket latency histogram. Buckets double from 16 ms, the last
+     * one collects everything above 8 s.
+     */
+    static class LatencyHistogram {
+        private static final int FIRST_BUCKET_MS = 16;
+        private static final int BUCKETS = 11;
+
+        private final String mName;
+        private final int[] mCounts = new int[BUCKETS];
+        private int mSamples;
+        private long mTotalMs;
+        private long mMaxMs;
+
+        LatencyHistogram(String name) {
+            mName = name;
+        }
+
+        /** Record the time elapsed since startMs, an elapsedRealtime() stamp */
+        void addSince(long startMs) {
+            if (startMs <= 0) return;
+            add(SystemClock.elapsedRealtime() - startMs);
+        }
+
+        synchronized void add(long ms) {
+            int bucket = 0;
+            long limit = FIRST_BUCKET_MS;
+            while (bucket < BUCKETS - 1 && ms >= limit) {
+                bucket++;
+                limit <<= 1;
+            }
+            mCounts[bucket]++;
+            mSamples++;
+            mTotalMs += ms;
+            if (ms > mMaxMs) mMaxMs = ms;
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("  ").append(mName).append(": n=").append(mSamples);
+            if (mSamples > 0) {
+                sb.append(" avg=").append(mTotalMs / mSamples).append("ms max=")
+                        .append(mMaxMs).append("ms");
+                long limit = FIRST_BUCKET_MS;
+                for (int i = 0; i < BUCKETS; i++) {
+                    if (mCounts[i] > 0) {
+                        sb.append(i < BUCKETS - 1 ? " <" : " >=")
+                                .append(i < BUCKETS - 1 ? limit : limit >> 1)
+                                .append("ms:").append(mCounts[i]);
+                    }
+                    limit <<= 1;
+                }
+            }
+            pw.println(sb.toString());
+        }
+    }
+}
@@ -19,6 +19,8 @@ public class CLIRListPreference extends ListPreference {
     private final boolean DBG = (PhoneApp.DBG_LEVEL >= 2);
 
     private MyHandler mHandler = new MyHandler();
+    private SsStateCache mCache;
+    private boolean mShowingCached;
     Phone phone;
     TimeConsumingPreferenceListener tcpListener;
 
@@ -49,17 +51,37 @@ public class CLIRListPreference extends ListPreference {
         if (DBG)
             Log.d(LOG_TAG, "CLIRListPreference init, subscription :" + subscription);
         phone = PhoneApp.getInstance().getPhone(subscription);
+        mCache = SsStateCache.getInstance(subscription);
 
         tcpListener = listener;
         if (!skipReading) {
             phone.getOutgoingCallerIdDisplay(mHandler.obtainMessage(MyHandler.MESSAGE_GET_CLIR,
                     MyHandler.MESSAGE_GET_CLIR, MyHandler.MESSAGE_GET_CLIR));
-            if (tcpListener != null) {
+            // No busy dialog when refreshing a state already shown
+            if (tcpListener != null && !mShowingCached) {
                 tcpListener.onStarted(this, true);
             }
         }
     }
 
+    /**
+     * Shows the CLIR state cached for the subscription, if any.
+     *
+     * @return true if it is recent enough that init() doesn't need to
+     *     read it from the network
+     */
+    boolean initFromCache(TimeConsumingPreferenceListener listener, int subscription) {
+        phone = PhoneApp.getInstance().getPhone(subscription);
+        mCache = SsStateCache.getInstance(subscription);
+        tcpListener = listener;
+
+        int[] cachedArray = (int[]) mCache.get(phone, SsStateCache.KEY_CLIR);
+        if (cachedArray == null) return false;
+        mShowingCached = true;
+        handleGetCLIRResult(cachedArray);
+        return mCache.isFresh(SsStateCache.KEY_CLIR);
+    }
+
     void handleGetCLIRResult(int tmpClirArray[]) {
         clirArray = tmpClirArray;
         final boolean enabled = tmpClirArray[1] == 1 || tmpClirArray[1] == 3 || tmpClirArray[1] == 4;
@@ -127,6 +149,8 @@ public class CLIRListPreference extends ListPreference {
         private void handleGetCLIRResponse(Message msg) {
             AsyncResult ar = (AsyncResult) msg.obj;
 
+            mShowingCached = false;
+            mCache.remove(SsStateCache.KEY_CLIR);
             if (msg.arg2 == MESSAGE_SET_CLIR) {
                 tcpListener.onFinished(CLIRListPreference.this, false);
             } else {
@@ -146,6 +170,7 @@ public class CLIRListPreference extends ListPreference {
                     if (DBG) Log.d(LOG_TAG, "handleGetCLIRResponse: CLIR successfully queried, clirArray[0]="
                             + clirArray[0] + ", clirArray[1]=" + clirArray[1]);
                     handleGetCLIRResult(clirArray);
+                    mCache.put(phone, SsStateCache.KEY_CLIR, clirArray);
                 }
             }
         }
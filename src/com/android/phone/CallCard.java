@@ -1122,6 +1122,7 @@ public class CallCard extends FrameLayout
         mName.setVisibility(View.VISIBLE);
 
         // Update mPhoto
+        mPhoto.setContact((info != null) ? info.person_id : 0, personUri);
         // if the temporary flag is set, we know we'll be getting another call after
         // the CallerInfo has been correctly updated.  So, we can skip the image
         // loading until then.
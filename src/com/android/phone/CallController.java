@@ -183,6 +183,7 @@ public class CallController extends Handler {
      */
     public void placeCall(Intent intent) {
         log("placeCall()...  intent = " + intent);
+        CallLatencyRecorder.getOutgoingInstance().record(CallLatencyRecorder.STAGE_PLACE_CALL);
         if (VDBG) log("                extras = " + intent.getExtras());
 
         final InCallUiState inCallUiState = mApp.inCallUiState;
@@ -389,9 +390,10 @@ public class CallController extends Handler {
         // (This is just a sanity-check; this policy *should* really be
         // enforced in OutgoingCallBroadcaster.onCreate(), which is the
         // main entry point for the CALL and CALL_* intents.)
-        boolean isEmergencyNumber = PhoneNumberUtils.isLocalEmergencyNumber(number, mApp.mContext);
+        boolean isEmergencyNumber =
+                EmergencyNumberMatcher.isLocalEmergencyNumber(number, mApp.mContext);
         boolean isPotentialEmergencyNumber =
-                PhoneNumberUtils.isPotentialLocalEmergencyNumber(number, mApp.mContext);
+                EmergencyNumberMatcher.isPotentialLocalEmergencyNumber(number, mApp.mContext);
         boolean isEmergencyIntent = Intent.ACTION_CALL_EMERGENCY.equals(intent.getAction());
 
         if (isPotentialEmergencyNumber && !isEmergencyIntent) {
@@ -326,6 +326,11 @@ public class CallFeaturesSetting extends PreferenceActivity
      */
     CallForwardInfo[] mForwardingReadResults = null;
 
+    /**
+     * The reads of the forwarding settings, sent through the SS scheduler
+     */
+    private SsQueryScheduler.Batch mForwardingQueries;
+
     /**
      * Result of forwarding number change.
      * Keys are reasons (eg. unconditional forwarding).
@@ -412,6 +417,12 @@ public class CallFeaturesSetting extends PreferenceActivity
         mForeground = false;
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mForwardingQueries != null) mForwardingQueries.cancel();
+        super.onDestroy();
+    }
+
     /**
      * We have to pull current settings from the network for all kinds of
      * voicemail providers so we can tell whether we have to update them,
@@ -811,10 +822,21 @@ public class CallFeaturesSetting extends PreferenceActivity
                 mPreviousVMProviderKey.equals(DEFAULT_VM_PROVIDER_KEY);
             if (DBG) log("Reading current forwarding settings");
             mForwardingReadResults = new CallForwardInfo[FORWARDING_SETTINGS_REASONS.length];
+            final SsQueryScheduler.Batch queries =
+                    SsQueryScheduler.getInstance(this, mPhone.getSubscription()).newBatch(LOG_TAG);
+            mForwardingQueries = queries;
             for (int i = 0; i < FORWARDING_SETTINGS_REASONS.length; i++) {
                 mForwardingReadResults[i] = null;
-                mPhone.getCallForwardingOption(FORWARDING_SETTINGS_REASONS[i],
-                        mGetOptionComplete.obtainMessage(EVENT_FORWARDING_GET_COMPLETED, i, 0));
+                final int index = i;
+                // The answer comes back with the batch that sent it, which
+                // a later read may have replaced in mForwardingQueries.
+                queries.submit(new Runnable() {
+                    public void run() {
+                        mPhone.getCallForwardingOption(FORWARDING_SETTINGS_REASONS[index],
+                                mGetOptionComplete.obtainMessage(
+                                        EVENT_FORWARDING_GET_COMPLETED, index, 0, queries));
+                    }
+                });
             }
             showDialogIfForeground(VOICEMAIL_FWD_READING_DIALOG);
         } else {
@@ -836,6 +858,11 @@ public class CallFeaturesSetting extends PreferenceActivity
 
     void handleForwardingSettingsReadResult(AsyncResult ar, int idx) {
         if (DBG) Log.d(LOG_TAG, "handleForwardingSettingsReadResult: " + idx);
+        SsQueryScheduler.Batch queries = null;
+        if (ar.userObj instanceof SsQueryScheduler.Batch) {
+            queries = (SsQueryScheduler.Batch) ar.userObj;
+            queries.onQueryDone();
+        }
         Throwable error = null;
         if (ar.exception != null) {
             if (DBG) Log.d(LOG_TAG, "FwdRead: ar.exception=" +
@@ -848,8 +875,10 @@ public class CallFeaturesSetting extends PreferenceActivity
             error = (Throwable)ar.userObj;
         }
 
-        // We may have already gotten an error and decided to ignore the other results.
-        if (mForwardingReadResults == null) {
+        // We may have already gotten an error and decided to ignore the other results,
+        // or started reading again since this one was sent.
+        if (mForwardingReadResults == null
+                || (queries != null && queries != mForwardingQueries)) {
             if (DBG) Log.d(LOG_TAG, "ignoring fwd reading result: " + idx);
             return;
         }
@@ -858,6 +887,7 @@ public class CallFeaturesSetting extends PreferenceActivity
         if (error != null) {
             if (DBG) Log.d(LOG_TAG, "Error discovered for fwd read : " + idx);
             mForwardingReadResults = null;
+            if (queries != null) queries.cancel();
             dismissDialogSafely(VOICEMAIL_FWD_READING_DIALOG);
             showVMDialog(MSG_FW_GET_EXCEPTION);
             return;
@@ -940,9 +970,11 @@ public class CallFeaturesSetting extends PreferenceActivity
         return result;
     }
 
+    // Called before changing the forwarding settings.
     private void resetForwardingChangeState() {
         mForwardingChangeResults = new HashMap<Integer, AsyncResult>();
         mExpectedChangeResultReasons = new HashSet<Integer>();
+        SsStateCache.invalidateCallForwarding(mPhone.getSubscription());
     }
 
     // Called after we are done saving the previous forwarding settings if
@@ -27,6 +27,8 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
     private int mButtonClicked;
     private int mServiceClass;
     private MyHandler mHandler = new MyHandler();
+    private SsStateCache mCache;
+    private boolean mShowingCached;
     int reason;
     Phone phone;
     CallForwardInfo callForwardInfo;
@@ -57,6 +59,7 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
         // getting selected subscription
         if (DBG) Log.d(LOG_TAG, "Getting CallForwardEditPreference subscription =" + subscription);
         phone = PhoneApp.getInstance().getPhone(subscription);
+        mCache = SsStateCache.getInstance(subscription);
 
         tcpListener = listener;
         if (!skipReading) {
@@ -65,12 +68,37 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
                             // unused in this case
                             CommandsInterface.CF_ACTION_DISABLE,
                             MyHandler.MESSAGE_GET_CF, null));
-            if (tcpListener != null) {
+            // No busy dialog when refreshing a state already shown
+            if (tcpListener != null && !mShowingCached) {
                 tcpListener.onStarted(this, true);
             }
         }
     }
 
+    /**
+     * Shows the call forwarding state cached for the subscription and
+     * this reason, if any.
+     *
+     * @return true if it is recent enough that init() doesn't need to
+     *     read it from the network
+     */
+    boolean initFromCache(TimeConsumingPreferenceListener listener, int subscription) {
+        phone = PhoneApp.getInstance().getPhone(subscription);
+        mCache = SsStateCache.getInstance(subscription);
+        tcpListener = listener;
+
+        CallForwardInfo cfInfoArray[] = (CallForwardInfo[]) mCache.get(phone, reason);
+        if (cfInfoArray == null) return false;
+        mShowingCached = true;
+        for (CallForwardInfo info : cfInfoArray) {
+            if ((mServiceClass & info.serviceClass) != 0) {
+                handleCallForwardResult(info);
+            }
+        }
+        updateSummaryText();
+        return mCache.isFresh(reason);
+    }
+
     @Override
     public void onClick(DialogInterface dialog, int which) {
         super.onClick(dialog, which);
@@ -170,6 +198,8 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
         private void handleGetCFResponse(Message msg) {
             if (DBG) Log.d(LOG_TAG, "handleGetCFResponse: done");
 
+            mShowingCached = false;
+            mCache.remove(reason);
             if (msg.arg2 == MESSAGE_SET_CF) {
                 tcpListener.onFinished(CallForwardEditPreference.this, false);
             } else {
@@ -193,6 +223,7 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
                     setEnabled(false);
                     tcpListener.onError(CallForwardEditPreference.this, RESPONSE_ERROR);
                 } else {
+                    mCache.put(phone, reason, cfInfoArray);
                     for (int i = 0, length = cfInfoArray.length; i < length; i++) {
                         if (DBG) Log.d(LOG_TAG, "handleGetCFResponse, cfInfoArray[" + i + "]="
                                 + cfInfoArray[i]);
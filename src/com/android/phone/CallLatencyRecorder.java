@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Always-on timeline of how long incoming calls take to be presented,
+ * and of the hops outgoing calls take to get to placeCall().
+ *
+ * Each incoming call gets a call id in onNewRingingConnection(); the
+ * later stages (caller-id done, ring, showIncomingCall(), InCallScreen
+ * created and resumed, first frame drawn) are recorded against it, each
+ * once per call.  Events go into a ring buffer of preallocated slots
+ * holding primitives only, so recording doesn't allocate.
+ *
+ * The outgoing instance works the same way, from the CALL intent in
+ * OutgoingCallBroadcaster to CallController.placeCall().
+ *
+ * dump() prints, for each stage, percentiles of the time since the
+ * first stage over the calls still in the buffer.
+ */
+class CallLatencyRecorder {
+    static final int STAGE_NEW_RINGING = 0;
+    static final int STAGE_CALLER_INFO = 1;
+    static final int STAGE_RING = 2;
+    static final int STAGE_SHOW_INCOMING = 3;
+    static final int STAGE_SCREEN_CREATE = 4;
+    static final int STAGE_SCREEN_RESUME = 5;
+    static final int STAGE_FIRST_FRAME = 6;
+
+    private static final String[] STAGE_NAMES = {
+        "ringing connection", "caller-id", "ring", "showIncomingCall",
+        "InCallScreen.onCreate", "InCallScreen.onResume", "first frame",
+    };
+
+    // Stages of the outgoing instance
+    static final int STAGE_CALL_INTENT = 0;
+    static final int STAGE_BROADCAST_DONE = 1;
+    static final int STAGE_ROUTED = 2;
+    static final int STAGE_SIP_OPTION_HANDLER = 3;
+    static final int STAGE_PLACE_CALL = 4;
+
+    private static final String[] OUTGOING_STAGE_NAMES = {
+        "CALL intent", "NEW_OUTGOING_CALL done", "routed", "SipCallOptionHandler.onCreate",
+        "placeCall",
+    };
+
+    /** Room for the stages of the last 64 or so calls */
+    static final int CAPACITY = 512;
+
+    private static final int FIRST_STAGE = 0;
+
+    /** Later stages are ignored, so an outgoing call's UI isn't counted */
+    static final long MAX_CALL_MILLIS = 30000;
+
+    private static final CallLatencyRecorder sInstance = new CallLatencyRecorder(CAPACITY);
+    private static final CallLatencyRecorder sOutgoingInstance = new CallLatencyRecorder(
+            "Outgoing call latency, ms since the CALL intent:", OUTGOING_STAGE_NAMES, CAPACITY);
+
+    private final String mTitle;
+    private final String[] mStageNames;
+    private final int[] mCallIds;
+    private final int[] mStages;
+    private final long[] mTimes;
+    private int mNext;
+    private int mCount;
+
+    private int mCallId;
+    private long mCallStart;
+    private int mRecordedStages;
+
+    static CallLatencyRecorder getInstance() {
+        return sInstance;
+    }
+
+    /** The timeline of outgoing calls, see the STAGE_CALL_INTENT stages. */
+    static CallLatencyRecorder getOutgoingInstance() {
+        return sOutgoingInstance;
+    }
+
+    CallLatencyRecorder(int capacity) {
+        this("Incoming call latency, ms since the ringing connection:", STAGE_NAMES, capacity);
+    }
+
+    CallLatencyRecorder(String title, String[] stageNames, int capacity) {
+        mTitle = title;
+        mStageNames = stageNames;
+        mCallIds = new int[capacity];
+        mStages = new int[capacity];
+        mTimes = new long[capacity];
+    }
+
+    /** Starts the timeline of a new call. */
+    void startCall() {
+        startCall(SystemClock.uptimeMillis());
+    }
+
+    /** Records a stage of the current call, unless already recorded. */
+    void record(int stage) {
+        record(stage, SystemClock.uptimeMillis());
+    }
+
+    synchronized void startCall(long time) {
+        mCallId++;
+        mCallStart = time;
+        mRecordedStages = 0;
+        record(FIRST_STAGE, time);
+    }
+
+    synchronized void record(int stage, long time) {
+        if (mCallId == 0 || (mRecordedStages & (1 << stage)) != 0) return;
+        if (time - mCallStart > MAX_CALL_MILLIS) return;
+        mRecordedStages |= 1 << stage;
+        mCallIds[mNext] = mCallId;
+        mStages[mNext] = stage;
+        mTimes[mNext] = time;
+        mNext = (mNext + 1) % mCallIds.length;
+        if (mCount < mCallIds.length) mCount++;
+    }
+
+    /**
+     * Milliseconds from the first stage to the stage, sorted, for
+     * each call in the buffer that got to the stage.
+     */
+    synchronized long[] getStageMillis(int stage) {
+        long[] millis = new long[mCount];
+        int n = 0;
+        int first = (mNext - mCount + mCallIds.length) % mCallIds.length;
+        for (int i = 0; i < mCount; i++) {
+            int slot = (first + i) % mCallIds.length;
+            if (mStages[slot] != stage) continue;
+            long start = findStart(mCallIds[slot], first, i);
+            if (start >= 0) millis[n++] = mTimes[slot] - start;
+        }
+        millis = Arrays.copyOf(millis, n);
+        Arrays.sort(millis);
+        return millis;
+    }
+
+    /** Percentile p (0-100) of sorted values, or -1 if there are none. */
+    static long percentile(long[] sorted, int p) {
+        if (sorted.length == 0) return -1;
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(mTitle);
+        for (int stage = FIRST_STAGE + 1; stage < mStageNames.length; stage++) {
+            long[] millis = getStageMillis(stage);
+            pw.println("  " + mStageNames[stage] + ": n=" + millis.length
+                    + " p50=" + percentile(millis, 50)
+                    + " p90=" + percentile(millis, 90)
+                    + " p99=" + percentile(millis, 99)
+                    + " max=" + percentile(millis, 100));
+        }
+    }
+
+    // Time of the call's first stage among the first count events
+    // from first, or -1 if it was overwritten already.
+    private long findStart(int callId, int first, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            int slot = (first + i) % mCallIds.length;
+            if (mCallIds[slot] == callId && mStages[slot] == FIRST_STAGE) {
+                return mTimes[slot];
+            }
+        }
+        return -1;
+    }
+}
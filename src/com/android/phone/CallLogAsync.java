@@ -16,7 +16,6 @@
 
 package com.android.phone;
 import android.content.Context;
-import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Looper;
 import android.provider.CallLog.Calls;
@@ -26,7 +25,8 @@ import com.android.internal.telephony.CallerInfo;
 /**
  * Class to access the call logs database asynchronously since
  * database ops can take a long time depending on the system's load.
- * It uses AsyncTask which has its own thread pool.
+ * Calls are added through the CallLogWriter, which batches them; other
+ * queries use AsyncTask which has its own thread pool.
  *
  * <pre class="prettyprint">
  * Typical usage:
@@ -127,9 +127,9 @@ public class CallLogAsync {
     /**
      * Non blocking version of CallLog.addCall(...)
      */
-    public AsyncTask addCall(AddCallArgs args) {
+    public void addCall(AddCallArgs args) {
         assertUiThread();
-        return new AddCallTask().execute(args);
+        CallLogWriter.getInstance().add(args);
     }
 
     /** Interface to retrieve the last dialed number asynchronously. */
@@ -147,38 +147,6 @@ public class CallLogAsync {
         return new GetLastOutgoingCallTask(args.callback).execute(args);
     }
 
-    /**
-     * AsyncTask to save calls in the DB.
-     */
-    private class AddCallTask extends AsyncTask<AddCallArgs, Void, Uri[]> {
-        @Override
-        protected Uri[] doInBackground(AddCallArgs... callList) {
-            int count = callList.length;
-            Uri[] result = new Uri[count];
-            for (int i = 0; i < count; i++) {
-                AddCallArgs c = callList[i];
-
-                // May block.
-                result[i] = Calls.addCall(
-                    c.ci, c.context, c.number, c.presentation,
-                    c.callType, c.timestamp, c.durationInSec);
-            }
-            return result;
-        }
-
-        // Perform a simple sanity check to make sure the call was
-        // written in the database. Typically there is only one result
-        // per call so it is easy to identify which one failed.
-        @Override
-        protected void onPostExecute(Uri[] result) {
-            for (Uri uri : result) {
-                if (uri == null) {
-                    Log.e(TAG, "Failed to write call to the log.");
-                }
-            }
-        }
-    }
-
     /**
      * AsyncTask to get the last outgoing call from the DB.
      */
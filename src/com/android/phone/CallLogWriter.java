@@ -0,0 +1,548 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.provider.CallLog;
+import android.provider.CallLog.Calls;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.DataUsageFeedback;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.internal.telephony.CallerInfo;
+import com.android.internal.telephony.Connection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Single writer of the call log.
+ *
+ * CallLogAsync.addCall() hands the calls to log to this class instead of
+ * starting an AsyncTask per call.  A writer thread journals each call to
+ * a small file right away, then commits everything pending in one
+ * applyBatch(), BATCH_DELAY_MS later or as soon as MAX_BATCH calls are
+ * pending.  So a conference teardown or a CDMA call waiting burst is one
+ * transaction, and a call that was disconnected just before the process
+ * died is still logged: the journal is replayed at the next start.
+ *
+ * Like Calls.addCall(), a commit also updates the contacts usage stats
+ * and trims the call log to MAX_CALL_LOG_SIZE entries.
+ *
+ * If a commit fails, its calls go back to the head of the pending ones
+ * and are committed again after retryDelay(), with everything added
+ * meanwhile.  The journal is only emptied once every call in it has been
+ * committed.
+ */
+class CallLogWriter {
+    private static final String LOG_TAG = "CallLogWriter";
+    private static final boolean DBG =
+            (PhoneApp.DBG_LEVEL >= 1) && (SystemProperties.getInt("ro.debuggable", 0) == 1);
+
+    /** How long to wait for more calls to commit with the first one */
+    static final long BATCH_DELAY_MS = 250;
+
+    /** Pending calls that are committed without waiting any longer */
+    static final int MAX_BATCH = 32;
+
+    /** Same limit as Calls.addCall() */
+    private static final int MAX_CALL_LOG_SIZE = 500;
+
+    /** Longest wait before committing again after failed commits */
+    static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+
+    private static final String JOURNAL_NAME = "call_log_journal";
+    private static final int JOURNAL_MAGIC = 0x434c4a31;
+
+    private static final int EVENT_JOURNAL = 1;
+    private static final int EVENT_COMMIT = 2;
+    private static final int EVENT_REPLAY = 3;
+
+    private static CallLogWriter sInstance;
+
+    private final Context mContext;
+    private final File mJournal;
+    private final Handler mHandler;
+
+    // Calls handed to add() that the writer thread hasn't journaled yet,
+    // and the journaled ones waiting to be committed; guarded by this.
+    private final ArrayList<Entry> mIncoming = new ArrayList<Entry>();
+    private final ArrayList<Entry> mPending = new ArrayList<Entry>();
+
+    private int mMaxDepth;
+    private int mCommits;
+    private int mCommitted;
+    private int mFailed;
+    // Commits failed in a row; only touched on the writer thread.
+    private int mFailures;
+    private int mReplayed;
+    private long mCommitMillis;
+    private long mMaxCommitMillis;
+    private long mMaxWaitMillis;
+
+    /** A call to log, and when it was handed to the writer */
+    static class Entry {
+        final CallerInfo ci;
+        final String number;
+        final int presentation;
+        final int callType;
+        final long timestamp;
+        final int durationInSec;
+        long addTime;
+
+        Entry(CallerInfo ci, String number, int presentation, int callType,
+                long timestamp, int durationInSec) {
+            this.ci = ci;
+            this.number = number;
+            this.presentation = presentation;
+            this.callType = callType;
+            this.timestamp = timestamp;
+            this.durationInSec = durationInSec;
+        }
+    }
+
+    /**
+     * Initialize the singleton CallLogWriter instance, which also replays
+     * the journal left by the previous process, if any.  This is only done
+     * once, at startup, from PhoneApp.onCreate().
+     */
+    static CallLogWriter init(Context context) {
+        synchronized (CallLogWriter.class) {
+            if (sInstance == null) {
+                sInstance = new CallLogWriter(context,
+                        new File(context.getFilesDir(), JOURNAL_NAME));
+            } else {
+                Log.wtf(LOG_TAG, "init() called multiple times!  sInstance = " + sInstance);
+            }
+            return sInstance;
+        }
+    }
+
+    /** The singleton, or null if it hasn't been initialized. */
+    static CallLogWriter getInstance() {
+        return sInstance;
+    }
+
+    /** Package-private so tests can use their own journal. */
+    CallLogWriter(Context context, File journal) {
+        mContext = context;
+        mJournal = journal;
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case EVENT_JOURNAL:
+                        journal();
+                        break;
+                    case EVENT_COMMIT:
+                        commit();
+                        break;
+                    case EVENT_REPLAY:
+                        replay();
+                        break;
+                }
+            }
+        };
+        mHandler.sendEmptyMessage(EVENT_REPLAY);
+    }
+
+    /** Queues a call to be logged.  Doesn't block. */
+    void add(CallLogAsync.AddCallArgs args) {
+        Entry entry = new Entry(args.ci, args.number, args.presentation, args.callType,
+                args.timestamp, args.durationInSec);
+        synchronized (this) {
+            entry.addTime = SystemClock.elapsedRealtime();
+            mIncoming.add(entry);
+            int depth = mIncoming.size() + mPending.size();
+            if (depth > mMaxDepth) mMaxDepth = depth;
+            if (DBG) Log.d(LOG_TAG, "add: " + depth + " calls pending");
+        }
+        mHandler.sendEmptyMessage(EVENT_JOURNAL);
+    }
+
+    /** Number of calls waiting to be committed. */
+    synchronized int getQueueDepth() {
+        return mIncoming.size() + mPending.size();
+    }
+
+    synchronized int getCommits() {
+        return mCommits;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("CallLogWriter: depth=" + (mIncoming.size() + mPending.size())
+                + " maxDepth=" + mMaxDepth + " commits=" + mCommits
+                + " committed=" + mCommitted + " failed=" + mFailed
+                + " replayed=" + mReplayed);
+        pw.println("  commit: avg=" + ((mCommits > 0) ? mCommitMillis / mCommits : 0) + "ms"
+                + " max=" + mMaxCommitMillis + "ms;"
+                + " disconnect to commit max=" + mMaxWaitMillis + "ms");
+    }
+
+    // Runs on the writer thread: journals the new calls and schedules the
+    // commit.
+    private void journal() {
+        ArrayList<Entry> entries;
+        synchronized (this) {
+            if (mIncoming.isEmpty()) return;
+            entries = new ArrayList<Entry>(mIncoming);
+            mIncoming.clear();
+        }
+        try {
+            appendJournal(mJournal, entries);
+        } catch (IOException e) {
+            // Still log the calls, just not crash-safe.
+            Log.w(LOG_TAG, "Couldn't journal " + entries.size() + " calls", e);
+        }
+        int pending;
+        synchronized (this) {
+            mPending.addAll(entries);
+            pending = mPending.size();
+        }
+        if (mFailures > 0) {
+            // Already waiting to retry a failed commit, which takes these too
+            return;
+        }
+        if (pending >= MAX_BATCH) {
+            mHandler.removeMessages(EVENT_COMMIT);
+            mHandler.sendEmptyMessage(EVENT_COMMIT);
+        } else if (!mHandler.hasMessages(EVENT_COMMIT)) {
+            mHandler.sendEmptyMessageDelayed(EVENT_COMMIT, BATCH_DELAY_MS);
+        }
+    }
+
+    // Runs on the writer thread: commits everything journaled, then
+    // empties the journal.  After a failure the calls are kept pending,
+    // and journaled, for the next attempt.
+    private void commit() {
+        journal();
+        ArrayList<Entry> entries;
+        synchronized (this) {
+            if (mPending.isEmpty()) return;
+            entries = new ArrayList<Entry>(mPending);
+            mPending.clear();
+        }
+        mHandler.removeMessages(EVENT_COMMIT);
+
+        long start = SystemClock.elapsedRealtime();
+        boolean ok = insert(entries);
+        long end = SystemClock.elapsedRealtime();
+        if (ok) {
+            // Every call journaled so far was in this batch
+            mJournal.delete();
+            mFailures = 0;
+        } else {
+            // The provider may have applied part of the batch
+            ArrayList<Entry> missing = new ArrayList<Entry>(entries.size());
+            for (Entry entry : entries) {
+                if (!isLogged(entry)) missing.add(entry);
+            }
+            synchronized (this) {
+                mPending.addAll(0, missing);
+            }
+            if (missing.isEmpty()) {
+                mJournal.delete();
+                mFailures = 0;
+            } else {
+                long delay = retryDelay(++mFailures);
+                Log.w(LOG_TAG, "Retrying " + missing.size() + " calls in " + delay + " ms");
+                mHandler.sendEmptyMessageDelayed(EVENT_COMMIT, delay);
+            }
+        }
+
+        synchronized (this) {
+            mCommits++;
+            if (ok) {
+                mCommitted += entries.size();
+            } else {
+                mFailed += entries.size();
+            }
+            long millis = end - start;
+            mCommitMillis += millis;
+            if (millis > mMaxCommitMillis) mMaxCommitMillis = millis;
+            for (Entry entry : entries) {
+                if (entry.addTime > 0 && end - entry.addTime > mMaxWaitMillis) {
+                    mMaxWaitMillis = end - entry.addTime;
+                }
+            }
+        }
+        if (DBG) Log.d(LOG_TAG, "committed " + entries.size() + " calls in " + (end - start)
+                + " ms");
+    }
+
+    // Runs on the writer thread: logs the calls journaled by a process
+    // that died before committing them.
+    private void replay() {
+        ArrayList<Entry> entries = readJournal(mJournal);
+        if (entries.isEmpty()) {
+            mJournal.delete();
+            return;
+        }
+        // The commit may have gone through before the journal was deleted
+        ArrayList<Entry> missing = new ArrayList<Entry>();
+        for (Entry entry : entries) {
+            if (!isLogged(entry)) missing.add(entry);
+        }
+        Log.i(LOG_TAG, "journal had " + entries.size() + " calls, " + missing.size()
+                + " not in the call log yet");
+        if (missing.isEmpty()) {
+            mJournal.delete();
+            return;
+        }
+        synchronized (this) {
+            mReplayed += missing.size();
+            mPending.addAll(0, missing);
+        }
+        commit();
+    }
+
+    /** How long to wait before committing again after the given number of failures. */
+    static long retryDelay(int failures) {
+        long delay = BATCH_DELAY_MS << Math.min(failures, 16);
+        return Math.min(delay, MAX_RETRY_DELAY_MS);
+    }
+
+    /** Inserts the calls in one batch.  Returns false if the batch failed. */
+    private boolean insert(ArrayList<Entry> entries) {
+        ContentResolver resolver = mContext.getContentResolver();
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(entries.size());
+        for (Entry entry : entries) {
+            ops.add(ContentProviderOperation.newInsert(Calls.CONTENT_URI)
+                    .withValues(toValues(entry)).build());
+        }
+        try {
+            resolver.applyBatch(CallLog.AUTHORITY, ops);
+        } catch (RemoteException e) {
+            Log.e(LOG_TAG, "Failed to write " + entries.size() + " calls to the log.", e);
+            return false;
+        } catch (OperationApplicationException e) {
+            Log.e(LOG_TAG, "Failed to write " + entries.size() + " calls to the log.", e);
+            return false;
+        }
+
+        for (Entry entry : entries) {
+            updateDataUsage(resolver, entry);
+        }
+        resolver.delete(Calls.CONTENT_URI, "_id IN (SELECT _id FROM calls ORDER BY "
+                + Calls.DEFAULT_SORT_ORDER + " LIMIT -1 OFFSET " + MAX_CALL_LOG_SIZE + ")",
+                null);
+        return true;
+    }
+
+    private boolean isLogged(Entry entry) {
+        Cursor cursor = mContext.getContentResolver().query(Calls.CONTENT_URI,
+                new String[] { Calls._ID },
+                Calls.NUMBER + "=? AND " + Calls.DATE + "=? AND " + Calls.TYPE + "=?",
+                new String[] { logNumber(entry), String.valueOf(entry.timestamp),
+                        String.valueOf(entry.callType) },
+                null);
+        if (cursor == null) return false;
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** The number as Calls.addCall() logs it. */
+    static String logNumber(Entry entry) {
+        if (entry.presentation == Connection.PRESENTATION_RESTRICTED) {
+            return CallerInfo.PRIVATE_NUMBER;
+        } else if (entry.presentation == Connection.PRESENTATION_PAYPHONE) {
+            return CallerInfo.PAYPHONE_NUMBER;
+        } else if (TextUtils.isEmpty(entry.number)
+                || entry.presentation == Connection.PRESENTATION_UNKNOWN) {
+            return CallerInfo.UNKNOWN_NUMBER;
+        }
+        return entry.number;
+    }
+
+    /** Whether the caller's number and name must stay out of the call log. */
+    private static boolean isWithheld(Entry entry) {
+        return entry.presentation == Connection.PRESENTATION_RESTRICTED
+                || entry.presentation == Connection.PRESENTATION_PAYPHONE
+                || entry.presentation == Connection.PRESENTATION_UNKNOWN
+                || TextUtils.isEmpty(entry.number);
+    }
+
+    /** The call log row for the call, as Calls.addCall() writes it. */
+    static ContentValues toValues(Entry entry) {
+        ContentValues values = new ContentValues(8);
+        values.put(Calls.NUMBER, logNumber(entry));
+        values.put(Calls.TYPE, Integer.valueOf(entry.callType));
+        values.put(Calls.DATE, Long.valueOf(entry.timestamp));
+        values.put(Calls.DURATION, Long.valueOf(entry.durationInSec));
+        values.put(Calls.NEW, Integer.valueOf(1));
+        if (entry.callType == Calls.MISSED_TYPE) {
+            values.put(Calls.IS_READ, Integer.valueOf(0));
+        }
+        if (entry.ci != null) {
+            values.put(Calls.CACHED_NAME, isWithheld(entry) ? "" : entry.ci.name);
+            values.put(Calls.CACHED_NUMBER_TYPE, entry.ci.numberType);
+            values.put(Calls.CACHED_NUMBER_LABEL, entry.ci.numberLabel);
+        }
+        return values;
+    }
+
+    // Tells the contacts provider the contact's number was called, like
+    // Calls.addCall() does.
+    private static void updateDataUsage(ContentResolver resolver, Entry entry) {
+        CallerInfo ci = entry.ci;
+        if (ci == null || ci.person_id <= 0) return;
+        Cursor cursor;
+        if (ci.normalizedNumber != null) {
+            cursor = resolver.query(Phone.CONTENT_URI, new String[] { Phone._ID },
+                    Phone.CONTACT_ID + " =? AND " + Phone.NORMALIZED_NUMBER + " =?",
+                    new String[] { String.valueOf(ci.person_id), ci.normalizedNumber },
+                    null);
+        } else {
+            String number = (ci.phoneNumber != null) ? ci.phoneNumber : logNumber(entry);
+            cursor = resolver.query(Phone.CONTENT_URI, new String[] { Phone._ID },
+                    Phone.CONTACT_ID + " =? AND " + Phone.NUMBER + " =?",
+                    new String[] { String.valueOf(ci.person_id), number },
+                    null);
+        }
+        if (cursor == null) return;
+        try {
+            if (cursor.moveToFirst()) {
+                Uri feedbackUri = DataUsageFeedback.FEEDBACK_URI.buildUpon()
+                        .appendPath(cursor.getString(0))
+                        .appendQueryParameter(DataUsageFeedback.USAGE_TYPE,
+                                DataUsageFeedback.USAGE_TYPE_CALL)
+                        .build();
+                resolver.update(feedbackUri, new ContentValues(), null, null);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Appends the calls to the journal and syncs it.  Each call is one
+     * record; a record cut short by a crash is ignored when reading.
+     */
+    static void appendJournal(File journal, ArrayList<Entry> entries) throws IOException {
+        boolean created = !journal.exists() || journal.length() == 0;
+        FileOutputStream fos = new FileOutputStream(journal, true);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            if (created) out.writeInt(JOURNAL_MAGIC);
+            for (Entry entry : entries) {
+                writeString(out, entry.number);
+                out.writeInt(entry.presentation);
+                out.writeInt(entry.callType);
+                out.writeLong(entry.timestamp);
+                out.writeInt(entry.durationInSec);
+                CallerInfo ci = entry.ci;
+                out.writeBoolean(ci != null);
+                if (ci != null) {
+                    writeString(out, ci.name);
+                    out.writeInt(ci.numberType);
+                    writeString(out, ci.numberLabel);
+                    out.writeLong(ci.person_id);
+                    writeString(out, ci.normalizedNumber);
+                    writeString(out, ci.phoneNumber);
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+    }
+
+    /** Reads the complete records of the journal, if there is one. */
+    static ArrayList<Entry> readJournal(File journal) {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        if (!journal.exists()) return entries;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+            if (in.readInt() != JOURNAL_MAGIC) {
+                Log.w(LOG_TAG, "Ignoring journal with bad magic");
+                return entries;
+            }
+            while (true) {
+                String number = readString(in);
+                int presentation = in.readInt();
+                int callType = in.readInt();
+                long timestamp = in.readLong();
+                int durationInSec = in.readInt();
+                CallerInfo ci = null;
+                if (in.readBoolean()) {
+                    ci = new CallerInfo();
+                    ci.name = readString(in);
+                    ci.numberType = in.readInt();
+                    ci.numberLabel = readString(in);
+                    ci.person_id = in.readLong();
+                    ci.normalizedNumber = readString(in);
+                    ci.phoneNumber = readString(in);
+                }
+                entries.add(new Entry(ci, number, presentation, callType, timestamp,
+                        durationInSec));
+            }
+        } catch (EOFException e) {
+            // end of the journal, or a record cut short
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Couldn't read journal", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
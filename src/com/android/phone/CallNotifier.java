@@ -184,6 +184,9 @@ public class CallNotifier extends Handler
     // Call waiting tone player
     private InCallTonePlayer mCallWaitingTonePlayer;
 
+    // Plays the InCallTonePlayer tones
+    private final ToneEngine mToneEngine;
+
     // Cached AudioManager
     private AudioManager mAudioManager;
 
@@ -209,6 +212,7 @@ public class CallNotifier extends Handler
         mApplication = app;
         mCM = app.mCM;
         mCallLog = callLog;
+        mToneEngine = ToneEngine.init();
 
         mAudioManager = (AudioManager) mApplication.mContext.getSystemService(Context.AUDIO_SERVICE);
 
@@ -610,6 +614,8 @@ public class CallNotifier extends Handler
             return;
         }
 
+        CallLatencyRecorder.getInstance().startCall();
+
         // set phone mode to RINGING if there is no active or held call.
         if (!mCM.hasActiveFgCall() &&
             !mCM.hasActiveBgCall()) {
@@ -769,14 +775,10 @@ public class CallNotifier extends Handler
      * Helper method to manage the start of incoming call queries
      */
     private void startIncomingCallQuery(Connection c) {
-        // TODO: cache the custom ringer object so that subsequent
-        // calls will not need to do this query work.  We can keep
-        // the MRU ringtones in memory.  We'll still need to hit
-        // the database to get the callerinfo to act as a key,
-        // but at least we can save the time required for the
-        // Media player setup.  The only issue with this is that
-        // we may need to keep an eye on the resources the Media
-        // player uses to keep these ringtones around.
+        // The Ringer keeps the last ringtone prepared for a while (see
+        // RingtoneCache), so once the callerinfo gives us the ringtone uri,
+        // the Media player setup may already be done.  Repeat callers are
+        // resolved synchronously from the CallerInfoCache.
 
         // make sure we're in a state where we can be ready to
         // query a ringtone uri.
@@ -842,6 +844,7 @@ public class CallNotifier extends Handler
      * default ringtone.)
      */
     private void onCustomRingQueryComplete() {
+        CallLatencyRecorder.getInstance().record(CallLatencyRecorder.STAGE_CALLER_INFO);
         boolean isQueryExecutionTimeExpired = false;
         synchronized (mCallerInfoQueryStateGuard) {
             if (mCallerInfoQueryState == CALLERINFO_QUERYING) {
@@ -916,6 +919,7 @@ public class CallNotifier extends Handler
      */
     private void showIncomingCall() {
         log("showIncomingCall()...  phone state = " + mCM.getState());
+        CallLatencyRecorder.getInstance().record(CallLatencyRecorder.STAGE_SHOW_INCOMING);
 
         // Before bringing up the "incoming call" UI, force any system
         // dialogs (like "recent tasks" or the power dialog) to close first.
@@ -1009,6 +1013,14 @@ public class CallNotifier extends Handler
         // proximity sensor).
         mApplication.updatePhoneState(state);
 
+        // Keep the ToneGenerators while the phone is in use, so the tone
+        // at the end of the call starts right away.
+        mToneEngine.setKeepWarm(state != Phone.State.IDLE);
+        if (state == Phone.State.OFFHOOK) {
+            mToneEngine.prewarm(AudioManager.STREAM_VOICE_CALL,
+                    InCallTonePlayer.TONE_RELATIVE_VOLUME_HIPRI);
+        }
+
         if (state == Phone.State.OFFHOOK) {
             // stop call waiting tone if needed when answering
             if (mCallWaitingTonePlayer != null) {
@@ -1059,7 +1071,7 @@ public class CallNotifier extends Handler
 
         if (fgPhone.getPhoneType() == Phone.PHONE_TYPE_CDMA) {
             Connection c = fgPhone.getForegroundCall().getLatestConnection();
-            if ((c != null) && (PhoneNumberUtils.isLocalEmergencyNumber(c.getAddress(),
+            if ((c != null) && (EmergencyNumberMatcher.isLocalEmergencyNumber(c.getAddress(),
                                                                         mApplication.mContext))) {
                 if (VDBG) log("onPhoneStateChanged: it is an emergency call.");
                 Call.State callState = fgPhone.getForegroundCall().getState();
@@ -1375,7 +1387,7 @@ public class CallNotifier extends Handler
             final Connection.DisconnectCause cause = c.getDisconnectCause();
             final Phone phone = c.getCall().getPhone();
             final boolean isEmergencyNumber =
-                    PhoneNumberUtils.isLocalEmergencyNumber(number, mApplication.mContext);
+                    EmergencyNumberMatcher.isLocalEmergencyNumber(number, mApplication.mContext);
             // Set the "type" to be displayed in the call log (see constants in CallLog.Calls)
             final int callLogType;
             if (c.isIncoming()) {
@@ -1547,6 +1559,7 @@ public class CallNotifier extends Handler
 
     protected void onCfiChanged(boolean visible) {
         if (VDBG) log("onCfiChanged(): " + visible);
+        SsStateCache.invalidateCallForwarding(mApplication.phone.getSubscription());
         mApplication.notificationMgr.updateCfi(visible);
     }
 
@@ -1610,7 +1623,8 @@ public class CallNotifier extends Handler
      *
      * To use, just instantiate a new InCallTonePlayer
      * (passing in the TONE_* constant for the tone you want)
-     * and start() it.
+     * and start() it.  The tone is played by the ToneEngine, which plays
+     * one tone at a time, by priority.
      *
      * When we're done playing the tone, if the phone is idle at that
      * point, we'll reset the audio routing and speaker state.
@@ -1621,9 +1635,9 @@ public class CallNotifier extends Handler
      * defer the resetAudioStateAfterDisconnect() call until the tone
      * finishes playing.)
      */
-    private class InCallTonePlayer extends Thread {
-        private int mToneId;
-        private int mState;
+    private class InCallTonePlayer implements Runnable {
+        private final int mToneId;
+        private ToneEngine.Request mRequest;
         // The possible tones we can play.
         public static final int TONE_NONE = 0;
         public static final int TONE_CALL_WAITING = 1;
@@ -1646,29 +1660,18 @@ public class CallNotifier extends Handler
         private static final int TONE_RELATIVE_VOLUME_HIPRI = 80;
         private static final int TONE_RELATIVE_VOLUME_LOPRI = 50;
 
-        // Buffer time (in msec) to add on to tone timeout value.
-        // Needed mainly when the timeout value for a tone is the
-        // exact duration of the tone itself.
-        private static final int TONE_TIMEOUT_BUFFER = 20;
-
-        // The tone state
-        private static final int TONE_OFF = 0;
-        private static final int TONE_ON = 1;
-        private static final int TONE_STOPPED = 2;
-
         InCallTonePlayer(int toneId) {
-            super();
             mToneId = toneId;
-            mState = TONE_OFF;
         }
 
-        @Override
-        public void run() {
-            log("InCallTonePlayer.run(toneId = " + mToneId + ")...");
+        /** Hands the tone to the ToneEngine, unless it shouldn't be played now. */
+        public void start() {
+            log("InCallTonePlayer.start(toneId = " + mToneId + ")...");
 
             int toneType = 0;  // passed to ToneGenerator.startTone()
             int toneVolume;  // passed to the ToneGenerator constructor
             int toneLengthMillis;
+            int priority = ToneEngine.PRIORITY_CALL_END;
             int phoneType = mCM.getFgPhone().getPhoneType();
 
             switch (mToneId) {
@@ -1676,7 +1679,8 @@ public class CallNotifier extends Handler
                     toneType = ToneGenerator.TONE_SUP_CALL_WAITING;
                     toneVolume = TONE_RELATIVE_VOLUME_HIPRI;
                     // Call waiting tone is stopped by stopTone() method
-                    toneLengthMillis = Integer.MAX_VALUE - TONE_TIMEOUT_BUFFER;
+                    toneLengthMillis = ToneEngine.UNTIL_STOPPED;
+                    priority = ToneEngine.PRIORITY_CALL_PROGRESS;
                     break;
                 case TONE_BUSY:
                     if (phoneType == Phone.PHONE_TYPE_CDMA) {
@@ -1705,6 +1709,7 @@ public class CallNotifier extends Handler
                     toneType = ToneGenerator.TONE_PROP_ACK;
                     toneVolume = TONE_RELATIVE_VOLUME_HIPRI;
                     toneLengthMillis = 1000;
+                    priority = ToneEngine.PRIORITY_INFO;
                     break;
                 case TONE_CALL_ENDED:
                     toneType = ToneGenerator.TONE_PROP_PROMPT;
@@ -1727,6 +1732,7 @@ public class CallNotifier extends Handler
                     toneType = ToneGenerator.TONE_CDMA_ALERT_NETWORK_LITE;
                     toneVolume = TONE_RELATIVE_VOLUME_HIPRI;
                     toneLengthMillis = 5000;
+                    priority = ToneEngine.PRIORITY_INFO;
                     break;
                 case TONE_REORDER:
                     toneType = ToneGenerator.TONE_CDMA_REORDER;
@@ -1748,12 +1754,14 @@ public class CallNotifier extends Handler
                     toneType = ToneGenerator.TONE_CDMA_ALERT_AUTOREDIAL_LITE;
                     toneVolume = TONE_RELATIVE_VOLUME_LOPRI;
                     toneLengthMillis = 5000;
+                    priority = ToneEngine.PRIORITY_INFO;
                     break;
                 case TONE_RING_BACK:
                     toneType = ToneGenerator.TONE_SUP_RINGTONE;
                     toneVolume = TONE_RELATIVE_VOLUME_HIPRI;
                     // Call ring back tone is stopped by stopTone() method
-                    toneLengthMillis = Integer.MAX_VALUE - TONE_TIMEOUT_BUFFER;
+                    toneLengthMillis = ToneEngine.UNTIL_STOPPED;
+                    priority = ToneEngine.PRIORITY_CALL_PROGRESS;
                     break;
                 case TONE_UNOBTAINABLE_NUMBER:
                     toneType = ToneGenerator.TONE_SUP_ERROR;
@@ -1764,25 +1772,6 @@ public class CallNotifier extends Handler
                     throw new IllegalArgumentException("Bad toneId: " + mToneId);
             }
 
-            // If the mToneGenerator creation fails, just continue without it.  It is
-            // a local audio signal, and is not as important.
-            ToneGenerator toneGenerator;
-            try {
-                int stream;
-                if (mBluetoothHandsfree != null) {
-                    stream = mBluetoothHandsfree.isAudioOn() ? AudioManager.STREAM_BLUETOOTH_SCO:
-                        AudioManager.STREAM_VOICE_CALL;
-                } else {
-                    stream = AudioManager.STREAM_VOICE_CALL;
-                }
-                toneGenerator = new ToneGenerator(stream, toneVolume);
-                // if (DBG) log("- created toneGenerator: " + toneGenerator);
-            } catch (RuntimeException e) {
-                Log.w(LOG_TAG,
-                      "InCallTonePlayer: Exception caught while creating ToneGenerator: " + e);
-                toneGenerator = null;
-            }
-
             // Using the ToneGenerator (with the CALL_WAITING / BUSY /
             // CONGESTION tones at least), the ToneGenerator itself knows
             // the right pattern of tones to play; we do NOT need to
@@ -1797,88 +1786,83 @@ public class CallNotifier extends Handler
             // ToneGenerator to say "stop at the next silent part of the
             // pattern", or simply "play the pattern N times and then
             // stop."
-            boolean needToStopTone = true;
             boolean okToPlayTone = false;
 
-            if (toneGenerator != null) {
-                int ringerMode = mAudioManager.getRingerMode();
-                if (phoneType == Phone.PHONE_TYPE_CDMA) {
-                    if (toneType == ToneGenerator.TONE_CDMA_ALERT_CALL_GUARD) {
-                        if ((ringerMode != AudioManager.RINGER_MODE_SILENT) &&
-                                (ringerMode != AudioManager.RINGER_MODE_VIBRATE)) {
-                            if (DBG) log("- InCallTonePlayer: start playing call tone=" + toneType);
-                            okToPlayTone = true;
-                            needToStopTone = false;
-                        }
-                    } else if ((toneType == ToneGenerator.TONE_CDMA_NETWORK_BUSY_ONE_SHOT) ||
-                            (toneType == ToneGenerator.TONE_CDMA_REORDER) ||
-                            (toneType == ToneGenerator.TONE_CDMA_ABBR_REORDER) ||
-                            (toneType == ToneGenerator.TONE_CDMA_ABBR_INTERCEPT) ||
-                            (toneType == ToneGenerator.TONE_CDMA_CALLDROP_LITE)) {
-                        if (ringerMode != AudioManager.RINGER_MODE_SILENT) {
-                            if (DBG) log("InCallTonePlayer:playing call fail tone:" + toneType);
-                            okToPlayTone = true;
-                            needToStopTone = false;
-                        }
-                    } else if ((toneType == ToneGenerator.TONE_CDMA_ALERT_AUTOREDIAL_LITE) ||
-                               (toneType == ToneGenerator.TONE_CDMA_ALERT_NETWORK_LITE)) {
-                        if ((ringerMode != AudioManager.RINGER_MODE_SILENT) &&
-                                (ringerMode != AudioManager.RINGER_MODE_VIBRATE)) {
-                            if (DBG) log("InCallTonePlayer:playing tone for toneType=" + toneType);
-                            okToPlayTone = true;
-                            needToStopTone = false;
-                        }
-                    } else { // For the rest of the tones, always OK to play.
+            int ringerMode = mAudioManager.getRingerMode();
+            if (phoneType == Phone.PHONE_TYPE_CDMA) {
+                if (toneType == ToneGenerator.TONE_CDMA_ALERT_CALL_GUARD) {
+                    if ((ringerMode != AudioManager.RINGER_MODE_SILENT) &&
+                            (ringerMode != AudioManager.RINGER_MODE_VIBRATE)) {
+                        if (DBG) log("- InCallTonePlayer: start playing call tone=" + toneType);
+                        okToPlayTone = true;
+                    }
+                } else if ((toneType == ToneGenerator.TONE_CDMA_NETWORK_BUSY_ONE_SHOT) ||
+                        (toneType == ToneGenerator.TONE_CDMA_REORDER) ||
+                        (toneType == ToneGenerator.TONE_CDMA_ABBR_REORDER) ||
+                        (toneType == ToneGenerator.TONE_CDMA_ABBR_INTERCEPT) ||
+                        (toneType == ToneGenerator.TONE_CDMA_CALLDROP_LITE)) {
+                    if (ringerMode != AudioManager.RINGER_MODE_SILENT) {
+                        if (DBG) log("InCallTonePlayer:playing call fail tone:" + toneType);
+                        okToPlayTone = true;
+                    }
+                } else if ((toneType == ToneGenerator.TONE_CDMA_ALERT_AUTOREDIAL_LITE) ||
+                           (toneType == ToneGenerator.TONE_CDMA_ALERT_NETWORK_LITE)) {
+                    if ((ringerMode != AudioManager.RINGER_MODE_SILENT) &&
+                            (ringerMode != AudioManager.RINGER_MODE_VIBRATE)) {
+                        if (DBG) log("InCallTonePlayer:playing tone for toneType=" + toneType);
                         okToPlayTone = true;
                     }
-                } else {  // Not "CDMA"
+                } else { // For the rest of the tones, always OK to play.
                     okToPlayTone = true;
                 }
+            } else {  // Not "CDMA"
+                okToPlayTone = true;
+            }
 
-                synchronized (this) {
-                    if (okToPlayTone && mState != TONE_STOPPED) {
-                        mState = TONE_ON;
-                        toneGenerator.startTone(toneType);
-                        try {
-                            wait(toneLengthMillis + TONE_TIMEOUT_BUFFER);
-                        } catch  (InterruptedException e) {
-                            Log.w(LOG_TAG,
-                                  "InCallTonePlayer stopped: " + e);
-                        }
-                        if (needToStopTone) {
-                            toneGenerator.stopTone();
-                        }
-                    }
-                    // if (DBG) log("- InCallTonePlayer: done playing.");
-                    toneGenerator.release();
-                    mState = TONE_OFF;
-                }
+            if (!okToPlayTone) {
+                // Nothing to play, but still do the cleanup below.
+                post(this);
+                return;
             }
 
-            // Finally, do the same cleanup we otherwise would have done
-            // in onDisconnect().
-            //
-            // (But watch out: do NOT do this if the phone is in use,
-            // since some of our tones get played *during* a call (like
-            // CALL_WAITING and BATTERY_LOW) and we definitely *don't*
-            // want to reset the audio mode / speaker / bluetooth after
-            // playing those!
-            // This call is really here for use with tones that get played
-            // *after* a call disconnects, like "busy" or "congestion" or
-            // "call ended", where the phone has already become idle but
-            // we need to defer the resetAudioStateAfterDisconnect() call
-            // till the tone finishes playing.)
+            int stream;
+            if (mBluetoothHandsfree != null) {
+                stream = mBluetoothHandsfree.isAudioOn() ? AudioManager.STREAM_BLUETOOTH_SCO:
+                    AudioManager.STREAM_VOICE_CALL;
+            } else {
+                stream = AudioManager.STREAM_VOICE_CALL;
+            }
+            mRequest = new ToneEngine.Request(toneType, stream, toneVolume, priority,
+                    toneLengthMillis, CallNotifier.this, this);
+            mToneEngine.play(mRequest);
+        }
+
+        /**
+         * Runs on the main thread once the tone has played (or was stopped).
+         *
+         * Finally, do the same cleanup we otherwise would have done
+         * in onDisconnect().
+         *
+         * (But watch out: do NOT do this if the phone is in use,
+         * since some of our tones get played *during* a call (like
+         * CALL_WAITING and BATTERY_LOW) and we definitely *don't*
+         * want to reset the audio mode / speaker / bluetooth after
+         * playing those!
+         * This call is really here for use with tones that get played
+         * *after* a call disconnects, like "busy" or "congestion" or
+         * "call ended", where the phone has already become idle but
+         * we need to defer the resetAudioStateAfterDisconnect() call
+         * till the tone finishes playing.)
+         */
+        public void run() {
             if (mCM.getState() == Phone.State.IDLE) {
                 resetAudioStateAfterDisconnect();
             }
         }
 
         public void stopTone() {
-            synchronized (this) {
-                if (mState == TONE_ON) {
-                    notify();
-                }
-                mState = TONE_STOPPED;
+            if (mRequest != null) {
+                mToneEngine.stop(mRequest);
             }
         }
     }
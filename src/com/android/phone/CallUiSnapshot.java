@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.text.TextUtils;
+
+import com.android.internal.telephony.Call;
+import com.android.internal.telephony.CallManager;
+import com.android.internal.telephony.Connection;
+import com.android.internal.telephony.Phone;
+import com.android.phone.InCallUiState.InCallScreenMode;
+import com.android.phone.InCallUiState.ProgressIndicationType;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Immutable copy of everything the in-call UI is drawn from, taken by
+ * InCallScreen.updateScreen().
+ *
+ * Comparing the snapshot with the one the screen was last drawn from
+ * (see {@link #diff}) tells which widgets need updating, so a burst of
+ * phone state changes (like during a merge or a swap) doesn't redo the
+ * layout of widgets whose inputs didn't change.
+ */
+class CallUiSnapshot {
+    // Widgets updated by InCallScreen.updateScreen()
+    static final int UPDATE_TOUCH_UI = 1 << 0;
+    static final int UPDATE_CALL_CARD = 1 << 1;
+    static final int UPDATE_DIALPAD = 1 << 2;
+    static final int UPDATE_PROVIDER_OVERLAY = 1 << 3;
+    static final int UPDATE_PROGRESS = 1 << 4;
+    /** The "wait" prompt, and taking down the dialogs on an incoming call */
+    static final int UPDATE_DIALOGS = 1 << 5;
+    static final int UPDATE_MANAGE_CONFERENCE = 1 << 6;
+    static final int UPDATE_ALL = (1 << 7) - 1;
+
+    private static final String[] UPDATE_NAMES = {
+        "touchUi", "callCard", "dialpad", "providerOverlay", "progress", "dialogs",
+        "manageConference"
+    };
+
+    // Audio state shown by the in-call touch UI
+    static final int AUDIO_SPEAKER = 1 << 0;
+    static final int AUDIO_MUTE = 1 << 1;
+    static final int AUDIO_BLUETOOTH = 1 << 2;
+
+    /** The state of one Call and of its connections. */
+    static final class CallInfo {
+        static final CallInfo IDLE = new CallInfo(Call.State.IDLE, new Connection[0],
+                new Call.State[0], new Connection.PostDialState[0], new String[0]);
+
+        final Call.State state;
+        // Compared by identity: a new connection is a new caller to show
+        private final Connection[] mConnections;
+        private final Call.State[] mConnectionStates;
+        private final Connection.PostDialState[] mPostDialStates;
+        private final String[] mAddresses;
+
+        CallInfo(Call.State state, Connection[] connections, Call.State[] connectionStates,
+                Connection.PostDialState[] postDialStates, String[] addresses) {
+            this.state = state;
+            mConnections = connections;
+            mConnectionStates = connectionStates;
+            mPostDialStates = postDialStates;
+            mAddresses = addresses;
+        }
+
+        static CallInfo of(Call call) {
+            if (call == null) return IDLE;
+            List<Connection> list = call.getConnections();
+            int n = (list != null) ? list.size() : 0;
+            Connection[] connections = new Connection[n];
+            Call.State[] states = new Call.State[n];
+            Connection.PostDialState[] postDialStates = new Connection.PostDialState[n];
+            String[] addresses = new String[n];
+            for (int i = 0; i < n; i++) {
+                Connection c = list.get(i);
+                connections[i] = c;
+                if (c != null) {
+                    states[i] = c.getState();
+                    postDialStates[i] = c.getPostDialState();
+                    addresses[i] = c.getAddress();
+                }
+            }
+            return new CallInfo(call.getState(), connections, states, postDialStates, addresses);
+        }
+
+        int getConnectionCount() {
+            return mConnections.length;
+        }
+
+        /** Same call state, and the same connections in the same state. */
+        boolean sameAs(CallInfo other) {
+            if (state != other.state || mConnections.length != other.mConnections.length) {
+                return false;
+            }
+            for (int i = 0; i < mConnections.length; i++) {
+                if (mConnections[i] != other.mConnections[i]
+                        || mConnectionStates[i] != other.mConnectionStates[i]
+                        || !TextUtils.equals(mAddresses[i], other.mAddresses[i])) {
+                    return false;
+                }
+            }
+            return samePostDialStates(other);
+        }
+
+        boolean samePostDialStates(CallInfo other) {
+            if (mPostDialStates.length != other.mPostDialStates.length) return false;
+            for (int i = 0; i < mPostDialStates.length; i++) {
+                if (mPostDialStates[i] != other.mPostDialStates[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    final Phone.State phoneState;
+    final int fgPhoneType;
+    final InCallScreenMode inCallScreenMode;
+    /** The CDMA call state, or null if there is none */
+    final CdmaPhoneCallState.PhoneCallState cdmaCallState;
+    final CallInfo fgCall;
+    final CallInfo bgCall;
+    final CallInfo ringingCall;
+    final ProgressIndicationType progressIndication;
+    final boolean providerOverlayVisible;
+    final String providerAddress;
+    final boolean dialpadOpened;
+    final int audioState;
+
+    CallUiSnapshot(Phone.State phoneState, int fgPhoneType, InCallScreenMode inCallScreenMode,
+            CdmaPhoneCallState.PhoneCallState cdmaCallState,
+            CallInfo fgCall, CallInfo bgCall, CallInfo ringingCall,
+            ProgressIndicationType progressIndication, boolean providerOverlayVisible,
+            String providerAddress, boolean dialpadOpened, int audioState) {
+        this.phoneState = phoneState;
+        this.fgPhoneType = fgPhoneType;
+        this.inCallScreenMode = inCallScreenMode;
+        this.cdmaCallState = cdmaCallState;
+        this.fgCall = fgCall;
+        this.bgCall = bgCall;
+        this.ringingCall = ringingCall;
+        this.progressIndication = progressIndication;
+        this.providerOverlayVisible = providerOverlayVisible;
+        this.providerAddress = providerAddress;
+        this.dialpadOpened = dialpadOpened;
+        this.audioState = audioState;
+    }
+
+    /**
+     * Takes a snapshot of the current state of the calls and of the
+     * in-call UI.  Must be called on the UI thread.
+     */
+    static CallUiSnapshot capture(CallManager cm, PhoneApp app, boolean dialpadOpened,
+            int audioState) {
+        InCallUiState inCallUiState = app.inCallUiState;
+        return new CallUiSnapshot(cm.getState(),
+                cm.getFgPhone().getPhoneType(),
+                inCallUiState.inCallScreenMode,
+                (app.cdmaPhoneCallState != null)
+                        ? app.cdmaPhoneCallState.getCurrentCallState() : null,
+                CallInfo.of(cm.getActiveFgCall()),
+                CallInfo.of(cm.getFirstActiveBgCall()),
+                CallInfo.of(cm.getFirstActiveRingingCall()),
+                inCallUiState.getProgressIndication(),
+                inCallUiState.providerOverlayVisible,
+                inCallUiState.providerAddress,
+                dialpadOpened,
+                audioState);
+    }
+
+    /**
+     * @return the UPDATE_* flags of the widgets whose inputs differ
+     *     between the previous snapshot and this one; UPDATE_ALL if
+     *     there is no previous snapshot.
+     */
+    int diff(CallUiSnapshot previous) {
+        if (previous == null) return UPDATE_ALL;
+
+        boolean callsChanged = !fgCall.sameAs(previous.fgCall)
+                || !bgCall.sameAs(previous.bgCall)
+                || !ringingCall.sameAs(previous.ringingCall);
+        boolean phoneChanged = (phoneState != previous.phoneState)
+                || (fgPhoneType != previous.fgPhoneType)
+                || (cdmaCallState != previous.cdmaCallState);
+        boolean modeChanged = (inCallScreenMode != previous.inCallScreenMode);
+
+        int updates = 0;
+        if (callsChanged || phoneChanged || modeChanged) {
+            updates |= UPDATE_TOUCH_UI | UPDATE_CALL_CARD;
+        }
+        if ((dialpadOpened != previous.dialpadOpened) || (audioState != previous.audioState)) {
+            updates |= UPDATE_TOUCH_UI;
+        }
+        if ((phoneState != previous.phoneState) || (dialpadOpened != previous.dialpadOpened)
+                || modeChanged) {
+            updates |= UPDATE_DIALPAD;
+        }
+        if ((providerOverlayVisible != previous.providerOverlayVisible)
+                || !TextUtils.equals(providerAddress, previous.providerAddress)) {
+            updates |= UPDATE_PROVIDER_OVERLAY;
+        }
+        if ((ringingCall.state != previous.ringingCall.state)
+                || (progressIndication != previous.progressIndication)) {
+            updates |= UPDATE_PROGRESS;
+        }
+        if ((ringingCall.state != previous.ringingCall.state)
+                || !fgCall.sameAs(previous.fgCall) || phoneChanged) {
+            updates |= UPDATE_DIALOGS;
+        }
+        if (!fgCall.sameAs(previous.fgCall) || modeChanged) {
+            updates |= UPDATE_MANAGE_CONFERENCE;
+        }
+        return updates;
+    }
+
+    private static final Stats sStats = new Stats();
+
+    static Stats getStats() {
+        return sStats;
+    }
+
+    /** Counters and timings of the in-call screen updates. */
+    static class Stats {
+        private int mFullUpdates;
+        private int mDiffUpdates;
+        private int mSkippedUpdates;
+        private final int[] mSkippedWidgets = new int[UPDATE_NAMES.length];
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        /**
+         * @param full  whether all the widgets had to be updated
+         * @param updated  the UPDATE_* flags of the widgets that were updated
+         * @param nanos  time spent in updateScreen()
+         */
+        synchronized void record(boolean full, int updated, long nanos) {
+            if (full) {
+                mFullUpdates++;
+            } else if (updated == 0) {
+                mSkippedUpdates++;
+            } else {
+                mDiffUpdates++;
+            }
+            if (!full) {
+                for (int i = 0; i < mSkippedWidgets.length; i++) {
+                    if ((updated & (1 << i)) == 0) mSkippedWidgets[i]++;
+                }
+            }
+            mTotalNanos += nanos;
+            if (nanos > mMaxNanos) mMaxNanos = nanos;
+        }
+
+        synchronized int getSkippedUpdates() {
+            return mSkippedUpdates;
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            int updates = mFullUpdates + mDiffUpdates + mSkippedUpdates;
+            pw.println("InCallScreen updates: full=" + mFullUpdates + " diff=" + mDiffUpdates
+                    + " skipped=" + mSkippedUpdates);
+            pw.println("  time: avg=" + ((updates > 0) ? mTotalNanos / updates / 1000 : 0)
+                    + "us max=" + (mMaxNanos / 1000) + "us");
+            StringBuilder sb = new StringBuilder("  widget updates skipped:");
+            for (int i = 0; i < mSkippedWidgets.length; i++) {
+                sb.append(' ').append(UPDATE_NAMES[i]).append('=').append(mSkippedWidgets[i]);
+            }
+            pw.println(sb.toString());
+        }
+    }
+}
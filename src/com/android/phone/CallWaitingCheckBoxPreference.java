@@ -20,6 +20,8 @@ public class CallWaitingCheckBoxPreference extends CheckBoxPreference {
     private final boolean DBG = (PhoneApp.DBG_LEVEL >= 2);
 
     private final MyHandler mHandler = new MyHandler();
+    private SsStateCache mCache;
+    private boolean mShowingCached;
     Phone phone;
     TimeConsumingPreferenceListener tcpListener;
 
@@ -41,18 +43,50 @@ public class CallWaitingCheckBoxPreference extends CheckBoxPreference {
         if (DBG)
             Log.d(LOG_TAG, "CallWaitingCheckBoxPreference init, subscription :" + subscription);
         phone = PhoneApp.getInstance().getPhone(subscription);
+        mCache = SsStateCache.getInstance(subscription);
 
         tcpListener = listener;
 
         if (!skipReading) {
             phone.getCallWaiting(mHandler.obtainMessage(MyHandler.MESSAGE_GET_CALL_WAITING,
                     MyHandler.MESSAGE_GET_CALL_WAITING, MyHandler.MESSAGE_GET_CALL_WAITING));
-            if (tcpListener != null) {
+            // No busy dialog when refreshing a state already shown
+            if (tcpListener != null && !mShowingCached) {
                 tcpListener.onStarted(this, true);
             }
         }
     }
 
+    /**
+     * Shows the call waiting state cached for the subscription, if any.
+     *
+     * @return true if it is recent enough that init() doesn't need to
+     *     read it from the network
+     */
+    boolean initFromCache(TimeConsumingPreferenceListener listener, int subscription) {
+        phone = PhoneApp.getInstance().getPhone(subscription);
+        mCache = SsStateCache.getInstance(subscription);
+        tcpListener = listener;
+
+        int[] cwArray = (int[]) mCache.get(phone, SsStateCache.KEY_CALL_WAITING);
+        if (cwArray == null) return false;
+        mShowingCached = true;
+        handleGetCallWaitingResult(cwArray);
+        return mCache.isFresh(SsStateCache.KEY_CALL_WAITING);
+    }
+
+    private void handleGetCallWaitingResult(int[] cwArray) {
+        // If cwArray[0] is = 1, then cwArray[1] must follow,
+        // with the TS 27.007 service class bit vector of services
+        // for which call waiting is enabled.
+        try {
+            setChecked(((cwArray[0] == 1) && ((cwArray[1] & 0x01) == 0x01)));
+        } catch (ArrayIndexOutOfBoundsException e) {
+            Log.e(LOG_TAG, "handleGetCallWaitingResponse: improper result: err ="
+                    + e.getMessage());
+        }
+    }
+
     @Override
     protected void onClick() {
         super.onClick();
@@ -83,6 +117,8 @@ public class CallWaitingCheckBoxPreference extends CheckBoxPreference {
         private void handleGetCallWaitingResponse(Message msg) {
             AsyncResult ar = (AsyncResult) msg.obj;
 
+            mShowingCached = false;
+            mCache.remove(SsStateCache.KEY_CALL_WAITING);
             if (tcpListener != null) {
                 if (msg.arg2 == MESSAGE_SET_CALL_WAITING) {
                     tcpListener.onFinished(CallWaitingCheckBoxPreference.this, false);
@@ -104,15 +140,8 @@ public class CallWaitingCheckBoxPreference extends CheckBoxPreference {
             } else {
                 if (DBG) Log.d(LOG_TAG, "handleGetCallWaitingResponse: CW state successfully queried.");
                 int[] cwArray = (int[])ar.result;
-                // If cwArray[0] is = 1, then cwArray[1] must follow,
-                // with the TS 27.007 service class bit vector of services
-                // for which call waiting is enabled.
-                try {
-                    setChecked(((cwArray[0] == 1) && ((cwArray[1] & 0x01) == 0x01)));
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    Log.e(LOG_TAG, "handleGetCallWaitingResponse: improper result: err ="
-                            + e.getMessage());
-                }
+                handleGetCallWaitingResult(cwArray);
+                mCache.put(phone, SsStateCache.KEY_CALL_WAITING, cwArray);
             }
         }
 
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.internal.telephony.CallerInfo;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of CallerInfo for numbers that matched a contact.
+ *
+ * PhoneUtils.startGetCallerInfo() checks this cache before starting a
+ * CallerInfoAsyncQuery, so a repeat caller is resolved synchronously (the
+ * returned CallerInfoToken is final) and CallNotifier can pick the custom
+ * ringtone without waiting for the query.  Since CallNotifier, CallCard
+ * and NotificationMgr all go through startGetCallerInfo(), they share it.
+ *
+ * Entries are only ever handed out as copies.  A change to the contacts
+ * provider schedules a refill on the cache's own thread, REFILL_DELAY_MS
+ * after the last change of a burst: the cached numbers are looked up again
+ * into a new map, which replaces the old one once complete.  Until then
+ * the old entries are still served.  At startup the cache is prewarmed
+ * with the most recent call log numbers and the starred contacts.
+ */
+class CallerInfoCache {
+    private static final String LOG_TAG = "CallerInfoCache";
+    private static final boolean DBG =
+            (PhoneApp.DBG_LEVEL >= 1) && (SystemProperties.getInt("ro.debuggable", 0) == 1);
+
+    private static final int MAX_ENTRIES = 64;
+
+    /** How many recent callers and starred contacts to prewarm, each */
+    private static final int PREWARM_LIMIT = 20;
+
+    /** Delay before refilling after a contacts change, to let bursts settle */
+    private static final long REFILL_DELAY_MS = 2000;
+
+    private static final int EVENT_REFILL = 1;
+
+    private static CallerInfoCache sInstance;
+
+    private final Context mContext;
+    // Runs the refills, one at a time
+    private final Handler mRefillHandler;
+
+    // Access ordered, so the eldest entry is the least recently used one.
+    private final LinkedHashMap<String, CallerInfo> mEntries =
+            new LinkedHashMap<String, CallerInfo>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CallerInfo> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    // Bumped whenever the contacts change, so results of lookups that
+    // started before that are not put back.
+    private int mGeneration;
+
+    // Numbers put since the last contacts change, which the refill in
+    // progress doesn't need to replace.
+    private final LinkedHashSet<String> mFreshKeys = new LinkedHashSet<String>();
+
+    private int mHits;
+    private int mMisses;
+    private int mInvalidations;
+    private int mQueries;
+    private long mQueryMillis;
+    private long mMaxQueryMillis;
+
+    /**
+     * Initialize the singleton CallerInfoCache instance and start watching
+     * the contacts provider.  This is only done once, at startup, from
+     * PhoneApp.onCreate().
+     */
+    static CallerInfoCache init(Context context, Handler handler) {
+        synchronized (CallerInfoCache.class) {
+            if (sInstance == null) {
+                sInstance = new CallerInfoCache(context, handler);
+            } else {
+                Log.wtf(LOG_TAG, "init() called multiple times!  sInstance = " + sInstance);
+            }
+            return sInstance;
+        }
+    }
+
+    /** The singleton, or null if it hasn't been initialized. */
+    static CallerInfoCache getInstance() {
+        return sInstance;
+    }
+
+    private CallerInfoCache(Context context, Handler handler) {
+        mContext = context;
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mRefillHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == EVENT_REFILL) refill();
+            }
+        };
+        context.getContentResolver().registerContentObserver(
+                ContactsContract.AUTHORITY_URI, true, new ContentObserver(handler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+    }
+
+    /** The key entries are stored under, or null if the number can't be cached. */
+    static String key(String number) {
+        if (TextUtils.isEmpty(number)) return null;
+        String key = PhoneNumberUtils.stripSeparators(number);
+        return TextUtils.isEmpty(key) ? null : key;
+    }
+
+    /**
+     * Returns a copy of the cached CallerInfo for the number, or null.
+     * Counts a hit or a miss.
+     */
+    synchronized CallerInfo get(String number) {
+        String key = key(number);
+        CallerInfo ci = (key != null) ? mEntries.get(key) : null;
+        if (ci == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return copy(ci);
+    }
+
+    /**
+     * Remembers the result of a query for the number.  Only numbers that
+     * matched a contact are cached.
+     */
+    synchronized void put(String number, CallerInfo ci) {
+        put(number, ci, mGeneration);
+    }
+
+    private synchronized void put(String number, CallerInfo ci, int generation) {
+        String key = key(number);
+        if (key == null || generation != mGeneration || !isCacheable(ci)) return;
+        mEntries.put(key, copy(ci));
+        mFreshKeys.add(key);
+    }
+
+    private static boolean isCacheable(CallerInfo ci) {
+        return ci != null && ci.contactExists && !ci.isEmergencyNumber()
+                && !ci.isVoiceMailNumber();
+    }
+
+    /** Records how long a caller-id query that missed the cache took. */
+    synchronized void addQueryTime(long millis) {
+        mQueries++;
+        mQueryMillis += millis;
+        if (millis > mMaxQueryMillis) mMaxQueryMillis = millis;
+    }
+
+    /**
+     * Called when the contacts change.  The entries are looked up again
+     * REFILL_DELAY_MS after the last of a burst of changes; meanwhile they
+     * are still served.
+     */
+    synchronized void invalidate() {
+        if (DBG) Log.d(LOG_TAG, "invalidate: " + mEntries.size() + " entries to refill");
+        mGeneration++;
+        mInvalidations++;
+        mFreshKeys.clear();
+        mRefillHandler.removeMessages(EVENT_REFILL);
+        mRefillHandler.sendEmptyMessageDelayed(EVENT_REFILL, REFILL_DELAY_MS);
+    }
+
+    /** Drops every entry right away.  For tests. */
+    synchronized void clear() {
+        mEntries.clear();
+        mFreshKeys.clear();
+        mGeneration++;
+    }
+
+    // Runs on the refill thread: looks the cached numbers up again into a
+    // new map, and swaps it in unless the contacts changed meanwhile, in
+    // which case the next refill takes over.
+    private void refill() {
+        ArrayList<String> numbers;
+        int generation;
+        synchronized (this) {
+            if (mEntries.isEmpty()) return;
+            numbers = new ArrayList<String>(mEntries.keySet());
+            generation = mGeneration;
+        }
+        long start = SystemClock.elapsedRealtime();
+        LinkedHashMap<String, CallerInfo> refilled = new LinkedHashMap<String, CallerInfo>();
+        for (String number : numbers) {
+            synchronized (this) {
+                if (generation != mGeneration) return;
+            }
+            CallerInfo ci = CallerInfo.getCallerInfo(mContext, number);
+            if (isCacheable(ci)) refilled.put(number, copy(ci));
+        }
+        synchronized (this) {
+            if (generation != mGeneration) return;
+            // Keep what was put since the change, in recency order
+            for (String key : mFreshKeys) {
+                CallerInfo ci = mEntries.get(key);
+                if (ci != null) refilled.put(key, ci);
+            }
+            mEntries.clear();
+            mEntries.putAll(refilled);
+        }
+        if (DBG) Log.d(LOG_TAG, "refilled " + numbers.size() + " numbers in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    /**
+     * Looks up the most recent callers and the starred contacts and caches
+     * them.  Runs queries on the calling thread; call from a background
+     * thread.
+     */
+    void prewarm() {
+        int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        LinkedHashSet<String> numbers = new LinkedHashSet<String>();
+        Cursor cursor = mContext.getContentResolver().query(Calls.CONTENT_URI,
+                new String[] { Calls.NUMBER }, null, null, Calls.DEFAULT_SORT_ORDER);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext() && numbers.size() < PREWARM_LIMIT) {
+                    String number = cursor.getString(0);
+                    if (key(number) != null) numbers.add(number);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        int recent = numbers.size();
+        cursor = mContext.getContentResolver().query(Phone.CONTENT_URI,
+                new String[] { Phone.NUMBER }, Phone.STARRED + "=1", null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext() && numbers.size() < recent + PREWARM_LIMIT) {
+                    String number = cursor.getString(0);
+                    if (key(number) != null) numbers.add(number);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        lookup(numbers, generation);
+    }
+
+    /**
+     * Queries and caches the numbers that aren't cached yet.  Stops if
+     * the cache is invalidated meanwhile; the next refill takes over.
+     */
+    private void lookup(Iterable<String> numbers, int generation) {
+        long start = SystemClock.elapsedRealtime();
+        int count = 0;
+        for (String number : numbers) {
+            synchronized (this) {
+                if (generation != mGeneration) return;
+                if (mEntries.containsKey(key(number))) continue;
+            }
+            put(number, CallerInfo.getCallerInfo(mContext, number), generation);
+            count++;
+        }
+        if (DBG) Log.d(LOG_TAG, "looked up " + count + " numbers in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("CallerInfoCache: entries=" + mEntries.size() + "/" + MAX_ENTRIES
+                + " hits=" + mHits + " misses=" + mMisses
+                + " invalidations=" + mInvalidations);
+        pw.println("  caller-id queries: n=" + mQueries
+                + " avg=" + ((mQueries > 0) ? mQueryMillis / mQueries : 0) + "ms"
+                + " max=" + mMaxQueryMillis + "ms");
+    }
+
+    synchronized int getHits() {
+        return mHits;
+    }
+
+    synchronized int getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Copies the fields of a query result.  The photo is left to be
+     * loaded again, like for a CallerInfo fresh out of a query.
+     */
+    private static CallerInfo copy(CallerInfo ci) {
+        CallerInfo copy = new CallerInfo();
+        copy.name = ci.name;
+        copy.phoneNumber = ci.phoneNumber;
+        copy.normalizedNumber = ci.normalizedNumber;
+        copy.geoDescription = ci.geoDescription;
+        copy.cnapName = ci.cnapName;
+        copy.numberPresentation = ci.numberPresentation;
+        copy.namePresentation = ci.namePresentation;
+        copy.contactExists = ci.contactExists;
+        copy.phoneLabel = ci.phoneLabel;
+        copy.numberType = ci.numberType;
+        copy.numberLabel = ci.numberLabel;
+        copy.photoResource = ci.photoResource;
+        copy.person_id = ci.person_id;
+        copy.needUpdate = ci.needUpdate;
+        copy.contactRefUri = ci.contactRefUri;
+        copy.contactRingtoneUri = ci.contactRingtoneUri;
+        copy.shouldSendToVoicemail = ci.shouldSendToVoicemail;
+        return copy;
+    }
+}
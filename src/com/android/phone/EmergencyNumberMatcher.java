@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.location.Country;
+import android.location.CountryDetector;
+import android.location.CountryListener;
+import android.os.Looper;
+import android.os.SystemProperties;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.internal.telephony.TelephonyIntents;
+
+import java.io.PrintWriter;
+
+/**
+ * Answers PhoneNumberUtils.isLocalEmergencyNumber() and
+ * isPotentialLocalEmergencyNumber() for the phone app, from a trie of
+ * the ECC list compiled ahead of time.
+ *
+ * PhoneNumberUtils reads the ril.ecclist (or ro.ril.ecclist) property,
+ * splits it and detects the current country on each call; here that is
+ * only done when the SIM state, the service state or the country change,
+ * and a lookup doesn't allocate.  When neither property is set the
+ * framework's own list is used, by calling PhoneNumberUtils.
+ */
+class EmergencyNumberMatcher {
+    private static final String LOG_TAG = "EmergencyNumberMatcher";
+
+    /**
+     * The ECC list, compiled: each node has a child per dialable
+     * character (see PhoneNumberUtils.isDialable()).
+     */
+    static final class Trie {
+        private static final int RADIX = 14;
+
+        private int[] mChildren = new int[RADIX * 8];
+        private boolean[] mTerminal = new boolean[8];
+        private int mNodes = 1;
+
+        /** @param eccList  comma-separated emergency numbers */
+        Trie(String eccList) {
+            for (String number : eccList.split(",")) {
+                add(number);
+            }
+        }
+
+        private void add(String number) {
+            int node = 0;
+            for (int i = 0; i < number.length(); i++) {
+                int symbol = symbol(number.charAt(i));
+                // The network portion of a number has dialable characters
+                // only, so this one can never match.
+                if (symbol < 0) return;
+                int child = mChildren[node * RADIX + symbol];
+                if (child == 0) {
+                    child = newNode();
+                    mChildren[node * RADIX + symbol] = child;
+                }
+                node = child;
+            }
+            mTerminal[node] = true;
+        }
+
+        private int newNode() {
+            if (mNodes == mTerminal.length) {
+                int[] children = new int[mChildren.length * 2];
+                System.arraycopy(mChildren, 0, children, 0, mChildren.length);
+                mChildren = children;
+                boolean[] terminal = new boolean[mTerminal.length * 2];
+                System.arraycopy(mTerminal, 0, terminal, 0, mTerminal.length);
+                mTerminal = terminal;
+            }
+            return mNodes++;
+        }
+
+        /**
+         * Same result as comparing the network portion of the number
+         * (see PhoneNumberUtils.extractNetworkPortionAlt()) with each
+         * number of the list, without building it.
+         *
+         * @param prefix  true to match numbers starting with an emergency
+         *     number, false for an exact match
+         */
+        boolean matches(String number, boolean prefix) {
+            if (number == null) return false;
+            // SIP addresses are never emergency numbers
+            if (number.indexOf('@') >= 0 || number.indexOf("%40") >= 0) return false;
+
+            int node = 0;
+            boolean haveSeenPlus = false;
+            for (int i = 0; i < number.length(); i++) {
+                if (prefix && mTerminal[node]) return true;
+                char c = number.charAt(i);
+                if (c == '+') {
+                    if (haveSeenPlus) continue;
+                    haveSeenPlus = true;
+                }
+                int symbol = symbol(c);
+                if (symbol < 0) {
+                    if (c == PhoneNumberUtils.PAUSE || c == PhoneNumberUtils.WAIT) break;
+                    continue;
+                }
+                node = mChildren[node * RADIX + symbol];
+                if (node == 0) return false;
+            }
+            return mTerminal[node];
+        }
+
+        private static int symbol(char c) {
+            if (c >= '0' && c <= '9') return c - '0';
+            switch (c) {
+                case '*': return 10;
+                case '#': return 11;
+                case '+': return 12;
+                case PhoneNumberUtils.WILD: return 13;
+                default: return -1;
+            }
+        }
+    }
+
+    private static EmergencyNumberMatcher sInstance;
+
+    private final Context mContext;
+
+    // Replaced as a whole on the main thread, read from any thread
+    private volatile String mEccList;
+    private volatile Trie mTrie;
+    private volatile boolean mExactOnly;
+    private String mCountryIso;
+
+    // Guarded by this
+    private int mRebuilds;
+
+    /**
+     * Initialize the singleton EmergencyNumberMatcher instance.
+     * This is only done once, at startup, from PhoneApp.onCreate().
+     */
+    static EmergencyNumberMatcher init(Context context) {
+        synchronized (EmergencyNumberMatcher.class) {
+            if (sInstance == null) {
+                sInstance = new EmergencyNumberMatcher(context);
+            } else {
+                Log.wtf(LOG_TAG, "init() called multiple times!  sInstance = " + sInstance);
+            }
+            return sInstance;
+        }
+    }
+
+    /** The singleton, or null if it hasn't been initialized. */
+    static EmergencyNumberMatcher getInstance() {
+        return sInstance;
+    }
+
+    /** Same as PhoneNumberUtils.isLocalEmergencyNumber(). */
+    static boolean isLocalEmergencyNumber(String number, Context context) {
+        EmergencyNumberMatcher matcher = sInstance;
+        return (matcher != null) ? matcher.isEmergencyNumber(number, false)
+                : PhoneNumberUtils.isLocalEmergencyNumber(number, context);
+    }
+
+    /** Same as PhoneNumberUtils.isPotentialLocalEmergencyNumber(). */
+    static boolean isPotentialLocalEmergencyNumber(String number, Context context) {
+        EmergencyNumberMatcher matcher = sInstance;
+        return (matcher != null) ? matcher.isEmergencyNumber(number, true)
+                : PhoneNumberUtils.isPotentialLocalEmergencyNumber(number, context);
+    }
+
+    private EmergencyNumberMatcher(Context context) {
+        mContext = context.getApplicationContext();
+        mCountryIso = detectCountryIso();
+        rebuild();
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(TelephonyIntents.ACTION_SIM_STATE_CHANGED);
+        filter.addAction(TelephonyIntents.ACTION_SERVICE_STATE_CHANGED);
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // The RIL updates ril.ecclist from the SIM, and from the
+                // network once registered.
+                rebuild();
+            }
+        }, filter);
+
+        CountryDetector detector =
+                (CountryDetector) mContext.getSystemService(Context.COUNTRY_DETECTOR);
+        if (detector != null) {
+            detector.addCountryListener(new CountryListener() {
+                public void onCountryDetected(Country country) {
+                    mCountryIso = country.getCountryIso();
+                    rebuild();
+                }
+            }, Looper.getMainLooper());
+        }
+    }
+
+    /**
+     * @param prefix  true for isPotentialLocalEmergencyNumber(), which
+     *     also matches numbers starting with an emergency number
+     */
+    boolean isEmergencyNumber(String number, boolean prefix) {
+        Trie trie = mTrie;
+        if (trie == null) {
+            return prefix ? PhoneNumberUtils.isPotentialLocalEmergencyNumber(number, mContext)
+                    : PhoneNumberUtils.isLocalEmergencyNumber(number, mContext);
+        }
+        // It is not possible to append additional digits to an emergency
+        // number to dial the number in Brazil - it won't connect.
+        return trie.matches(number, prefix && !mExactOnly);
+    }
+
+    /**
+     * Recompiles the ECC list if it changed.  Called on the main thread.
+     */
+    private void rebuild() {
+        // Check the read-write ecclist property first, then the read-only
+        // one since old RILs only use this.
+        String eccList = SystemProperties.get("ril.ecclist");
+        if (TextUtils.isEmpty(eccList)) {
+            eccList = SystemProperties.get("ro.ril.ecclist");
+        }
+        mExactOnly = "BR".equalsIgnoreCase(mCountryIso);
+        if (TextUtils.equals(eccList, mEccList)) return;
+        mTrie = TextUtils.isEmpty(eccList) ? null : new Trie(eccList);
+        mEccList = eccList;
+        synchronized (this) {
+            mRebuilds++;
+        }
+        Log.d(LOG_TAG, "ECC list: " + eccList);
+    }
+
+    private String detectCountryIso() {
+        CountryDetector detector =
+                (CountryDetector) mContext.getSystemService(Context.COUNTRY_DETECTOR);
+        if (detector != null) {
+            Country country = detector.detectCountry();
+            if (country != null) return country.getCountryIso();
+        }
+        return mContext.getResources().getConfiguration().locale.getCountry();
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("EmergencyNumberMatcher: eccList=" + mEccList + " country=" + mCountryIso
+                + " rebuilds=" + mRebuilds + (mTrie == null ? " (framework list)" : ""));
+    }
+}
@@ -24,7 +24,7 @@ public class GsmUmtsAdditionalCallOptions extends
     private CallWaitingCheckBoxPreference mCWButton;
 
     private ArrayList<Preference> mPreferences = new ArrayList<Preference> ();
-    private int mInitIndex= 0;
+    private SsQueryScheduler.Batch mQueries;
     private int mSubscription = 0;
 
     @Override
@@ -42,12 +42,19 @@ public class GsmUmtsAdditionalCallOptions extends
         mPreferences.add(mCLIRButton);
         mPreferences.add(mCWButton);
 
+        mQueries = SsQueryScheduler.getInstance(this, mSubscription).newBatch(LOG_TAG);
         if (icicle == null) {
             if (DBG) Log.d(LOG_TAG, "start to init ");
-            mCLIRButton.init(this, false, mSubscription);
+            submitCLIRQuery();
+            if (!mCWButton.initFromCache(this, mSubscription)) {
+                mQueries.submit(new Runnable() {
+                    public void run() {
+                        mCWButton.init(GsmUmtsAdditionalCallOptions.this, false, mSubscription);
+                    }
+                });
+            }
         } else {
             if (DBG) Log.d(LOG_TAG, "restore stored states");
-            mInitIndex = mPreferences.size();
             mCLIRButton.init(this, true, mSubscription);
             mCWButton.init(this, true, mSubscription);
             int[] clirArray = icicle.getIntArray(mCLIRButton.getKey());
@@ -56,7 +63,7 @@ public class GsmUmtsAdditionalCallOptions extends
                         + clirArray[0] + ", clirArray[1]=" + clirArray[1]);
                 mCLIRButton.handleGetCLIRResult(clirArray);
             } else {
-                mCLIRButton.init(this, false, mSubscription);
+                submitCLIRQuery();
             }
         }
 
@@ -76,15 +83,27 @@ public class GsmUmtsAdditionalCallOptions extends
         }
     }
 
+    private void submitCLIRQuery() {
+        // Recently read states are just shown from the cache
+        if (mCLIRButton.initFromCache(this, mSubscription)) return;
+        mQueries.submit(new Runnable() {
+            public void run() {
+                mCLIRButton.init(GsmUmtsAdditionalCallOptions.this, false, mSubscription);
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        mQueries.cancel();
+        super.onDestroy();
+    }
+
     @Override
     public void onFinished(Preference preference, boolean reading) {
-        if (mInitIndex < mPreferences.size()-1 && !isFinishing()) {
-            mInitIndex++;
-            Preference pref = mPreferences.get(mInitIndex);
-            if (pref instanceof CallWaitingCheckBoxPreference) {
-                ((CallWaitingCheckBoxPreference) pref).init(this, false, mSubscription);
-            }
-        }
+        // Only the initial queries report reading == true; the re-reads
+        // after a change don't go through the scheduler.
+        if (reading) mQueries.onQueryDone();
         super.onFinished(preference, reading);
     }
 
@@ -39,7 +39,7 @@ public class GsmUmtsCallForwardOptions extends TimeConsumingPreferenceActivity {
 
     private final ArrayList<CallForwardEditPreference> mPreferences =
             new ArrayList<CallForwardEditPreference> ();
-    private int mInitIndex= 0;
+    private SsQueryScheduler.Batch mQueries;
 
     private boolean mFirstResume;
     private Bundle mIcicle;
@@ -92,10 +92,19 @@ public class GsmUmtsCallForwardOptions extends TimeConsumingPreferenceActivity {
         if (mFirstResume) {
             if (mIcicle == null) {
                 if (DBG) Log.d(LOG_TAG, "start to init ");
-                mPreferences.get(mInitIndex).init(this, false, mSubscription);
+                // The reasons are independent, so they're queried side by
+                // side as far as the modem allows.  Recently read ones are
+                // just shown from the cache.
+                mQueries = SsQueryScheduler.getInstance(this, mSubscription).newBatch(LOG_TAG);
+                for (final CallForwardEditPreference pref : mPreferences) {
+                    if (pref.initFromCache(this, mSubscription)) continue;
+                    mQueries.submit(new Runnable() {
+                        public void run() {
+                            pref.init(GsmUmtsCallForwardOptions.this, false, mSubscription);
+                        }
+                    });
+                }
             } else {
-                mInitIndex = mPreferences.size();
-
                 for (CallForwardEditPreference pref : mPreferences) {
                     Bundle bundle = mIcicle.getParcelable(pref.getKey());
                     pref.setToggled(bundle.getBoolean(KEY_TOGGLE));
@@ -126,12 +135,17 @@ public class GsmUmtsCallForwardOptions extends TimeConsumingPreferenceActivity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mQueries != null) mQueries.cancel();
+        super.onDestroy();
+    }
+
     @Override
     public void onFinished(Preference preference, boolean reading) {
-        if (mInitIndex < mPreferences.size()-1 && !isFinishing()) {
-            mInitIndex++;
-            mPreferences.get(mInitIndex).init(this, false, mSubscription);
-        }
+        // Only the initial queries report reading == true; the re-reads
+        // after a change don't go through the scheduler.
+        if (reading && mQueries != null) mQueries.onQueryDone();
 
         super.onFinished(preference, reading);
     }
@@ -72,6 +72,10 @@ public class InCallContactPhoto extends ImageView {
     private Drawable mPreviousImageDrawable;
     private ImageView mInsetImageView;
 
+    // Contact whose photo is shown, used to cache the blurred version.
+    private long mContactId;
+    private Uri mContactUri;
+
     public InCallContactPhoto(Context context) {
         super(context);
     }
@@ -88,6 +92,16 @@ public class InCallContactPhoto extends ImageView {
         mInsetImageView = imageView;
     }
 
+    /**
+     * Sets the contact whose photo will be passed to setImageDrawable(),
+     * so the blurred version can be reused the next time that contact's
+     * photo is shown.  A null uri disables caching.
+     */
+    public void setContact(long contactId, Uri contactUri) {
+        mContactId = contactId;
+        mContactUri = contactUri;
+    }
+
     @Override
     public void setImageResource(int resId) {
         if (DBG) log("setImageResource(" + resId + ")...");
@@ -159,7 +173,8 @@ public class InCallContactPhoto extends ImageView {
                     // Ok, we have a valid bitmap *and* it's lo-res.
                     // Do the blur + inset effect.
                     if (DBG) log("- got a lo-res bitmap; blurring...");
-                    Bitmap blurredBitmap = BitmapUtils.createBlurredBitmap(inputBitmap);
+                    Bitmap blurredBitmap = BitmapUtils.getBlurredBitmap(mContactId, mContactUri,
+                            inputBitmap);
                     if (VDBG) log("- blurredBitmap: " + blurredBitmap);
                     if (VDBG) log("  - dimensions: " + blurredBitmap.getWidth()
                                   + " x " + blurredBitmap.getHeight());
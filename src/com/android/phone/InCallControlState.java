@@ -16,7 +16,6 @@
 
 package com.android.phone;
 
-import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
 import com.android.internal.telephony.Call;
@@ -151,7 +150,7 @@ public class InCallControlState {
         Connection c = fgCall.getLatestConnection();
         boolean isEmergencyCall = false;
         if (c != null) isEmergencyCall =
-                PhoneNumberUtils.isLocalEmergencyNumber(c.getAddress(),
+                EmergencyNumberMatcher.isLocalEmergencyNumber(c.getAddress(),
                                                         fgCall.getPhone().getContext());
         boolean isECM = PhoneUtils.isPhoneInEcm(fgCall.getPhone());
         if (isEmergencyCall || isECM) {  // disable "Mute" item
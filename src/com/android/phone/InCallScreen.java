@@ -53,6 +53,7 @@ import android.view.KeyEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewStub;
+import android.view.ViewTreeObserver;
 import android.view.Window;
 import android.view.WindowManager;
 import android.view.accessibility.AccessibilityEvent;
@@ -249,6 +250,28 @@ public class InCallScreen extends Activity
     private boolean mIsForegroundActivityForProximity = false;
     private PowerManager mPowerManager;
 
+    // What the in-call UI was last drawn from, for the updates posted by
+    // onPhoneStateChanged() that only touch the widgets whose inputs
+    // changed.  Cleared whenever the screen may be out of date.
+    private CallUiSnapshot mLastSnapshot;
+    // Set when someone other than onPhoneStateChanged() posted
+    // REQUEST_UPDATE_SCREEN, possibly for a change the snapshot doesn't
+    // cover.
+    private boolean mFullUpdateRequested;
+
+    // Records the first frame drawn after onResume() on the incoming
+    // call latency timeline.
+    private final ViewTreeObserver.OnPreDrawListener mFirstFrameListener =
+            new ViewTreeObserver.OnPreDrawListener() {
+                public boolean onPreDraw() {
+                    CallLatencyRecorder.getInstance().record(
+                            CallLatencyRecorder.STAGE_FIRST_FRAME);
+                    getWindow().getDecorView().getViewTreeObserver()
+                            .removeOnPreDrawListener(this);
+                    return true;
+                }
+            };
+
     // For use with Pause/Wait dialogs
     private String mPostDialStrAfterPause;
     private boolean mPauseInProgress = false;
@@ -419,7 +442,9 @@ public class InCallScreen extends Activity
                     break;
 
                 case REQUEST_UPDATE_SCREEN:
-                    updateScreen();
+                    boolean fullUpdate = mFullUpdateRequested;
+                    mFullUpdateRequested = false;
+                    updateScreen(fullUpdate);
                     break;
 
                 case PHONE_INCOMING_RING:
@@ -461,6 +486,7 @@ public class InCallScreen extends Activity
     protected void onCreate(Bundle icicle) {
         Log.i(LOG_TAG, "onCreate()...  this = " + this);
         Profiler.callScreenOnCreate();
+        CallLatencyRecorder.getInstance().record(CallLatencyRecorder.STAGE_SCREEN_CREATE);
         super.onCreate(icicle);
 
         // Make sure this is a voice-capable device.
@@ -577,8 +603,13 @@ public class InCallScreen extends Activity
     @Override
     protected void onResume() {
         if (DBG) log("onResume()...");
+        CallLatencyRecorder.getInstance().record(CallLatencyRecorder.STAGE_SCREEN_RESUME);
         super.onResume();
 
+        ViewTreeObserver observer = getWindow().getDecorView().getViewTreeObserver();
+        observer.removeOnPreDrawListener(mFirstFrameListener);
+        observer.addOnPreDrawListener(mFirstFrameListener);
+
         mIsForegroundActivity = true;
         mIsForegroundActivityForProximity = true;
 
@@ -802,6 +833,7 @@ public class InCallScreen extends Activity
             mIsForegroundActivityForProximity = false;
         }
         mIsForegroundActivity = false;
+        mLastSnapshot = null;
 
         // Force a clear of the provider overlay' frame. Since the
         // overlay is removed using a timed message, it is
@@ -1650,9 +1682,10 @@ public class InCallScreen extends Activity
         // We use requestUpdateScreen() here (which posts a handler message)
         // instead of calling updateScreen() directly, which allows us to avoid
         // unnecessary work if multiple onPhoneStateChanged() events come in all
-        // at the same time.
+        // at the same time.  And only the widgets whose inputs changed get
+        // updated then; see updateScreen(boolean).
 
-        requestUpdateScreen();
+        requestCallStateUpdate();
 
         // Make sure we update the poke lock and wake lock when certain
         // phone state changes occur.
@@ -2238,7 +2271,20 @@ public class InCallScreen extends Activity
      * requestUpdateScreen() instead.
      */
     private void updateScreen() {
-        if (DBG) log("updateScreen()...");
+        updateScreen(true);
+    }
+
+    /**
+     * Updates the state of the in-call UI, like updateScreen().
+     *
+     * @param fullUpdate if false, only update the widgets whose inputs
+     *     changed since the in-call UI was last updated (see
+     *     CallUiSnapshot.diff()).  Only safe when the caller knows that
+     *     the state of the calls is all that may have changed.
+     */
+    private void updateScreen(boolean fullUpdate) {
+        if (DBG) log("updateScreen(" + fullUpdate + ")...");
+        final long startNanos = System.nanoTime();
         final InCallScreenMode inCallScreenMode = mApp.inCallUiState.inCallScreenMode;
         if (VDBG) {
             Phone.State state = mCM.getState();
@@ -2256,6 +2302,34 @@ public class InCallScreen extends Activity
             return;
         }
 
+        // The OTA screens aren't drawn from the snapshot; always update
+        // them fully, and the rest of the UI once we're back.
+        final boolean otaMode = (inCallScreenMode == InCallScreenMode.OTA_NORMAL)
+                || (inCallScreenMode == InCallScreenMode.OTA_ENDED);
+        final CallUiSnapshot snapshot = otaMode ? null : CallUiSnapshot.capture(
+                mCM, mApp, isDialerOpened(), getAudioUiState());
+        final boolean full = fullUpdate || otaMode || (mLastSnapshot == null);
+        final int updates = full ? CallUiSnapshot.UPDATE_ALL : snapshot.diff(mLastSnapshot);
+        // Set before updating: the updates below may call back into
+        // updateScreen(), which then owns the newer snapshot.
+        mLastSnapshot = snapshot;
+        if (DBG && !full) {
+            log("- updateScreen: widgets to update = 0x" + Integer.toHexString(updates));
+        }
+
+        try {
+            updateScreenWidgets(inCallScreenMode, updates);
+        } finally {
+            CallUiSnapshot.getStats().record(full, updates, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Does the work of updateScreen().
+     *
+     * @param updates the CallUiSnapshot.UPDATE_* flags of the widgets to update
+     */
+    private void updateScreenWidgets(InCallScreenMode inCallScreenMode, int updates) {
         if (inCallScreenMode == InCallScreenMode.OTA_NORMAL) {
             if (DBG) log("- updateScreen: OTA call state NORMAL...");
             if (mApp.otaUtils != null) {
@@ -2285,7 +2359,9 @@ public class InCallScreen extends Activity
             return;
         } else if (inCallScreenMode == InCallScreenMode.MANAGE_CONFERENCE) {
             if (DBG) log("- updateScreen: manage conference mode (NOT updating in-call UI)...");
-            updateManageConferencePanelIfNecessary();
+            if ((updates & CallUiSnapshot.UPDATE_MANAGE_CONFERENCE) != 0) {
+                updateManageConferencePanelIfNecessary();
+            }
             return;
         } else if (inCallScreenMode == InCallScreenMode.CALL_ENDED) {
             if (DBG) log("- updateScreen: call ended state...");
@@ -2298,11 +2374,24 @@ public class InCallScreen extends Activity
         // Note we update the InCallTouchUi widget before the CallCard,
         // since the CallCard adjusts its size based on how much vertical
         // space the InCallTouchUi widget needs.
-        updateInCallTouchUi();
-        mCallCard.updateState(mCM);
-        updateDialpadVisibility();
-        updateProviderOverlay();
-        updateProgressIndication();
+        if ((updates & CallUiSnapshot.UPDATE_TOUCH_UI) != 0) {
+            updateInCallTouchUi();
+        }
+        if ((updates & CallUiSnapshot.UPDATE_CALL_CARD) != 0) {
+            mCallCard.updateState(mCM);
+        }
+        if ((updates & CallUiSnapshot.UPDATE_DIALPAD) != 0) {
+            updateDialpadVisibility();
+        }
+        if ((updates & CallUiSnapshot.UPDATE_PROVIDER_OVERLAY) != 0) {
+            updateProviderOverlay();
+        }
+        if ((updates & CallUiSnapshot.UPDATE_PROGRESS) != 0) {
+            updateProgressIndication();
+        }
+        if ((updates & CallUiSnapshot.UPDATE_DIALOGS) == 0) {
+            return;
+        }
 
         // Forcibly take down all dialog if an incoming call is ringing.
         if (mCM.hasActiveRingingCall()) {
@@ -4010,10 +4099,34 @@ public class InCallScreen extends Activity
      */
     /* package */ void requestUpdateScreen() {
         if (DBG) log("requestUpdateScreen()...");
+        mFullUpdateRequested = true;
         mHandler.removeMessages(REQUEST_UPDATE_SCREEN);
         mHandler.sendEmptyMessage(REQUEST_UPDATE_SCREEN);
     }
 
+    /**
+     * Like requestUpdateScreen(), but for a change in the state of the
+     * calls only: unless a full update is already pending, only the
+     * widgets whose inputs changed are updated.
+     */
+    private void requestCallStateUpdate() {
+        if (VDBG) log("requestCallStateUpdate()...");
+        mHandler.removeMessages(REQUEST_UPDATE_SCREEN);
+        mHandler.sendEmptyMessage(REQUEST_UPDATE_SCREEN);
+    }
+
+    /**
+     * @return the CallUiSnapshot.AUDIO_* flags of the audio state shown
+     *     by the in-call touch UI.
+     */
+    private int getAudioUiState() {
+        int audioState = 0;
+        if (PhoneUtils.isSpeakerOn(this)) audioState |= CallUiSnapshot.AUDIO_SPEAKER;
+        if (PhoneUtils.getMute()) audioState |= CallUiSnapshot.AUDIO_MUTE;
+        if (isBluetoothAudioConnectedOrPending()) audioState |= CallUiSnapshot.AUDIO_BLUETOOTH;
+        return audioState;
+    }
+
     /**
      * @return true if it's OK to display the in-call touch UI, given the
      * current state of the InCallScreen.
@@ -117,6 +117,7 @@ public class MSimCallNotifier extends CallNotifier {
 
     protected void onCfiChanged(boolean visible, int subscription) {
         if (VDBG) log("onCfiChanged(): " + visible);
+        SsStateCache.invalidateCallForwarding(subscription);
         ((MSimNotificationMgr)mApplication.notificationMgr).updateCfi(visible, subscription);
     }
 
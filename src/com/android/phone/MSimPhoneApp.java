@@ -138,7 +138,8 @@ public class MSimPhoneApp extends PhoneApp {
         if (VDBG) Log.v(LOG_TAG, "onCreate()...");
         Log.d(LOG_TAG, "MSimPhoneApp:"+this);
 
-        ContentResolver resolver = mContext.getContentResolver();
+        final ContentResolver resolver = mContext.getContentResolver();
+        final PhoneStartup startup = PhoneStartup.getInstance();
 
         // Cache the "voice capable" flag.
         // This flag currently comes from a resource (which is
@@ -174,6 +175,7 @@ public class MSimPhoneApp extends PhoneApp {
             // Set Default PhoneApp variables
             setDefaultPhone(mDefaultSubscription);
             mCM.registerPhone(phone);
+            startup.mark("telephony");
 
             // Create the NotificationMgr singleton, which is used to display
             // status bar icons and control other status bar behavior.
@@ -181,6 +183,7 @@ public class MSimPhoneApp extends PhoneApp {
 
             phoneMgr = PhoneInterfaceManager.init(this, phone);
             phoneMgrMSim = MSimPhoneInterfaceManager.init(this, phone);
+            startup.mark("NotificationMgr, PhoneInterfaceManager");
 
             mHandler.sendEmptyMessage(EVENT_START_SIP_SERVICE);
 
@@ -201,8 +204,10 @@ public class MSimPhoneApp extends PhoneApp {
                 // Device is not bluetooth capable
                 mBtHandsfree = null;
             }
+            startup.mark("BluetoothHandsfree");
 
             ringer = Ringer.init(mContext);
+            startup.mark("Ringer");
 
             mReceiver = new MSimPhoneAppBroadcastReceiver();
             mMediaButtonReceiver = new MSimMediaButtonBroadcastReceiver();
@@ -242,13 +247,27 @@ public class MSimPhoneApp extends PhoneApp {
             // ...and also the InCallUiState instance, used by the CallController to
             // keep track of some "persistent state" of the in-call UI.
             inCallUiState = InCallUiState.init(this.mContext);
+            startup.mark("wake locks, CallController");
 
             // Create the CallNotifer singleton, which handles
             // asynchronous events from the telephony layer (like
             // launching the incoming-call UI when an incoming call comes
             // in.)
+            // Cache of resolved caller-ids, checked by startGetCallerInfo()
+            CallerInfoCache.init(mContext, mHandler);
+
+            // Single writer of the call log; replays its journal in the background
+            CallLogWriter.init(mContext);
+
+            // Compiled ECC list for the emergency number checks of the call paths
+            EmergencyNumberMatcher.init(mContext);
+
+            // Lets OutgoingCallBroadcaster skip the SipCallOptionHandler hop
+            OutgoingCallRouter.init(mContext);
+
             notifier = MSimCallNotifier.init(this, phone, ringer, mBtHandsfree, new CallLogAsync());
             XDivertUtility.init(this, phone, (MSimCallNotifier)notifier, mContext);
+            startup.mark("CallNotifier");
 
             // register for ICC status
             for (int i = 0; i < TelephonyManager.getDefault().getPhoneCount(); i++) {
@@ -300,11 +319,14 @@ public class MSimPhoneApp extends PhoneApp {
             mediaButtonIntentFilter.setPriority(1);
             //
             mContext.registerReceiver(mMediaButtonReceiver, mediaButtonIntentFilter);
+            startup.mark("receivers");
 
             //set the default values for the preferences in the phone.
+            // Kept inline: CallNotifier and the settings screens read them
+            // right away, and must see the defaults on first boot.
             PreferenceManager.setDefaultValues(mContext, R.xml.network_setting, false);
-
             PreferenceManager.setDefaultValues(mContext, R.xml.call_feature_setting, false);
+            startup.mark("default preferences");
 
             // Make sure the audio mode (along with some
             // audio-mode-related state of our own) is initialized
@@ -318,8 +340,22 @@ public class MSimPhoneApp extends PhoneApp {
             }
         }
 
+        // Resolve recent and starred callers ahead of their next call
+        final CallerInfoCache callerInfoCache = CallerInfoCache.getInstance();
+        if (callerInfoCache != null) {
+            startup.runInBackground("caller info prewarm", new Runnable() {
+                public void run() {
+                    callerInfoCache.prewarm();
+                }
+            });
+        }
+
         // XXX pre-load the SimProvider so that it's ready
-        resolver.getType(Uri.parse("content://iccmsim/adn"));
+        startup.runInBackground("icc adn", new Runnable() {
+            public void run() {
+                resolver.getType(Uri.parse("content://iccmsim/adn"));
+            }
+        });
 
         // start with the default value to set the mute state.
         mShouldRestoreMuteOnInCallResume = false;
@@ -332,21 +368,35 @@ public class MSimPhoneApp extends PhoneApp {
         // to BP at power up (BP does not need to make the TTY setting persistent storage).
         // This way, there is a single owner (i.e AP) for the TTY setting in the phone.
         if (mTtyEnabled) {
-            mPreferredTtyMode = android.provider.Settings.Secure.getInt(
-                    phone.getContext().getContentResolver(),
-                    android.provider.Settings.Secure.PREFERRED_TTY_MODE,
-                    Phone.TTY_MODE_OFF);
+            startup.runWhenIdle("tty", new Runnable() {
+                public void run() {
+                    int mode = android.provider.Settings.Secure.getInt(
+                            phone.getContext().getContentResolver(),
+                            android.provider.Settings.Secure.PREFERRED_TTY_MODE,
+                            Phone.TTY_MODE_OFF);
+                    if (mode != mPreferredTtyMode) {
+                        mPreferredTtyMode = mode;
+                        // A headset may have been plugged in before this ran
+                        mHandler.sendMessage(
+                                mHandler.obtainMessage(EVENT_TTY_PREFERRED_MODE_CHANGED, 0));
+                    }
+                }
+            });
         }
         // Read HAC settings and configure audio hardware
         if (mContext.getResources().getBoolean(R.bool.hac_enabled)) {
-            int hac = android.provider.Settings.System.getInt(
-                    phone.getContext().getContentResolver(),
-                    android.provider.Settings.System.HEARING_AID, 0);
-            AudioManager audioManager = (AudioManager) mContext
-                    .getSystemService(Context.AUDIO_SERVICE);
-            audioManager.setParameter(CallFeaturesSetting.HAC_KEY, hac != 0 ?
-                                      CallFeaturesSetting.HAC_VAL_ON :
-                                      CallFeaturesSetting.HAC_VAL_OFF);
+            startup.runInBackground("hac", new Runnable() {
+                public void run() {
+                    int hac = android.provider.Settings.System.getInt(
+                            phone.getContext().getContentResolver(),
+                            android.provider.Settings.System.HEARING_AID, 0);
+                    AudioManager audioManager = (AudioManager) mContext
+                            .getSystemService(Context.AUDIO_SERVICE);
+                    audioManager.setParameter(CallFeaturesSetting.HAC_KEY, hac != 0 ?
+                                              CallFeaturesSetting.HAC_VAL_ON :
+                                              CallFeaturesSetting.HAC_VAL_OFF);
+                }
+            });
         }
 
     }
@@ -468,6 +518,8 @@ public class MSimPhoneApp extends PhoneApp {
         if (VDBG) Log.d(LOG_TAG, "onMMIComplete()...");
         MmiCode mmiCode = (MmiCode) r.result;
         Phone localPhone = (Phone) mmiCode.getPhone();
+        // The code may have changed call waiting, CLIR or call forwarding
+        SsStateCache.invalidate(localPhone.getSubscription());
         PhoneUtils.displayMMIComplete(localPhone, getInstance().mContext, mmiCode, null, null);
     }
 
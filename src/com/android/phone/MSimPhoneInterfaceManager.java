@@ -20,13 +20,13 @@ package com.android.phone;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.AsyncResult;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
 import android.os.ServiceManager;
 import android.telephony.NeighboringCellInfo;
@@ -36,7 +36,6 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.internal.telephony.DefaultPhoneNotifier;
-import com.android.internal.telephony.IccCard;
 import com.android.internal.telephony.ITelephonyMSim;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.CallManager;
@@ -44,6 +43,8 @@ import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.telephony.CommandException;
 import com.android.internal.telephony.SubscriptionManager;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -68,6 +69,8 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
     private static final int EVENT_UNSOL_OEM_HOOK_EXT_APP = 9;
     private static final int CMD_SET_DATA_SUBSCRIPTION = 10;
     private static final int EVENT_SET_DATA_SUBSCRIPTION_DONE = 11;
+    private static final int CMD_SUPPLY_PIN = 12;
+    private static final int EVENT_SUPPLY_PIN_DONE = 13;
 
     private static MSimPhoneInterfaceManager sInstance;
 
@@ -75,61 +78,42 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
     Phone mPhone;
     CallManager mCM;
     MainThreadHandler mMainThreadHandler;
-
-    /**
-     * A request object for use with {@link MainThreadHandler}. Requesters should wait() on the
-     * request after sending. The main thread will notify the request when it is complete.
-     */
-    private static final class MainThreadRequest {
-        /** The first argument to use for the request */
-        public Object arg1;
-        /** The second argument to use for the request */
-        public Object arg2;
-        /** The result of the request that is run on the main thread */
-        public Object result;
-
-        public MainThreadRequest(Object arg1, Object arg2) {
-            this.arg1 = arg1;
-            this.arg2 = arg2;
-        }
-    }
+    MainThreadBridge.Channel mBridge;
 
     /**
      * A handler that processes messages on the main thread in the phone process. Since many
      * of the Phone calls are not thread safe this is needed to shuttle the requests from the
      * inbound binder threads to the main thread in the phone process.  The Binder thread
-     * may provide a {@link MainThreadRequest} object in the msg.obj field that they are waiting
-     * on, which will be notified when the operation completes and will contain the result of the
-     * request.
+     * may provide a {@link MainThreadBridge.Request} object in the msg.obj field that they are
+     * waiting on (see {@link MainThreadBridge.Channel#sendRequest}).
      *
-     * <p>If a MainThreadRequest object is provided in the msg.obj field,
-     * note that request.result must be set to something non-null for the calling thread to
-     * unblock.
+     * <p>If a MainThreadBridge.Request object is provided in the msg.obj field,
+     * note that mBridge.complete() must be called with a non-null result for the calling
+     * thread to unblock before its deadline.
      */
     private final class MainThreadHandler extends Handler {
         @Override
         public void handleMessage(Message msg) {
-            MainThreadRequest request;
+            MainThreadBridge.Request request;
             Message onCompleted;
             AsyncResult ar;
             int sub = getDefaultSubscription();
 
+            // Requests whose caller gave up already are dropped
+            if (!mBridge.start(msg)) return;
+
             switch (msg.what) {
                 case CMD_HANDLE_PIN_MMI:
-                    request = (MainThreadRequest) msg.obj;
+                    request = (MainThreadBridge.Request) msg.obj;
                     sub = (Integer) request.arg2;
                     Phone phone = PhoneApp.getInstance().getPhone(sub);
                     Log.i(LOG_TAG,"CMD_HANDLE_PIN_MMI: sub :" + phone.getSubscription());
-                    request.result = Boolean.valueOf(
-                            phone.handlePinMmi((String) request.arg1));
-                    // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    mBridge.complete(request, Boolean.valueOf(
+                            phone.handlePinMmi((String) request.arg1)));
                     break;
 
                 case CMD_HANDLE_NEIGHBORING_CELL:
-                    request = (MainThreadRequest) msg.obj;
+                    request = (MainThreadBridge.Request) msg.obj;
                     onCompleted = obtainMessage(EVENT_NEIGHBORING_CELL_DONE,
                             request);
                     mPhone.getNeighboringCids(onCompleted);
@@ -137,16 +121,12 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
 
                 case EVENT_NEIGHBORING_CELL_DONE:
                     ar = (AsyncResult) msg.obj;
-                    request = (MainThreadRequest) ar.userObj;
+                    request = (MainThreadBridge.Request) ar.userObj;
                     if (ar.exception == null && ar.result != null) {
-                        request.result = ar.result;
+                        mBridge.complete(request, ar.result);
                     } else {
                         // create an empty list to notify the waiting thread
-                        request.result = new ArrayList<NeighboringCellInfo>();
-                    }
-                    // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
+                        mBridge.complete(request, new ArrayList<NeighboringCellInfo>());
                     }
                     break;
 
@@ -159,7 +139,7 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
                     break;
 
                 case CMD_END_CALL:
-                    request = (MainThreadRequest) msg.obj;
+                    request = (MainThreadBridge.Request) msg.obj;
                     boolean hungUp = false;
                     sub = (Integer) request.arg1;
                     log("Ending call on subscription =" + sub);
@@ -176,27 +156,19 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
                         throw new IllegalStateException("Unexpected phone type: " + phoneType);
                     }
                     if (DBG) log("CMD_END_CALL: " + (hungUp ? "hung up!" : "no call to hang up"));
-                    request.result = hungUp;
-                    // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    mBridge.complete(request, hungUp);
                     break;
 
                 case CMD_INVOKE_OEM_RIL_REQUEST:
-                    request = (MainThreadRequest)msg.obj;
+                    request = (MainThreadBridge.Request) msg.obj;
                     onCompleted = obtainMessage(EVENT_INVOKE_OEM_RIL_REQUEST, request);
                     mPhone.invokeOemRilRequestRaw((byte[])request.arg1, onCompleted);
                     break;
 
                 case EVENT_INVOKE_OEM_RIL_REQUEST:
                     ar = (AsyncResult)msg.obj;
-                    request = (MainThreadRequest)ar.userObj;
-                    request.result = ar;
-                    // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    request = (MainThreadBridge.Request) ar.userObj;
+                    mBridge.complete(request, ar);
                     break;
 
                 case EVENT_UNSOL_OEM_HOOK_EXT_APP:
@@ -205,7 +177,7 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
                     break;
 
                 case CMD_SET_DATA_SUBSCRIPTION:
-                    request = (MainThreadRequest) msg.obj;
+                    request = (MainThreadBridge.Request) msg.obj;
                     int subscription = (Integer) request.arg1;
                     onCompleted = obtainMessage(EVENT_SET_DATA_SUBSCRIPTION_DONE, request);
                     SubscriptionManager subManager = SubscriptionManager.getInstance();
@@ -214,17 +186,14 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
                     } else {
                         // need to return false;
                         // Wake up the requesting thread
-                        request.result = false;
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        mBridge.complete(request, false);
                     }
                     break;
 
                 case EVENT_SET_DATA_SUBSCRIPTION_DONE:
                     boolean retStatus = false;
                     ar = (AsyncResult) msg.obj;
-                    request = (MainThreadRequest)ar.userObj;
+                    request = (MainThreadBridge.Request) ar.userObj;
 
                     if (ar.exception == null && ar.result != null) {
                         boolean result = (Boolean)ar.result;
@@ -232,12 +201,22 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
                             retStatus = true;
                         }
                     }
-                    request.result = retStatus;
+                    mBridge.complete(request, retStatus);
+                    break;
 
-                    // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                case CMD_SUPPLY_PIN:
+                    request = (MainThreadBridge.Request) msg.obj;
+                    String[] pukAndPin = (String[]) request.arg1;
+                    onCompleted = obtainMessage(EVENT_SUPPLY_PIN_DONE, request);
+                    PhoneInterfaceManager.supplyPinOrPuk(
+                            getPhone((Integer) request.arg2).getIccCard(),
+                            pukAndPin[0], pukAndPin[1], onCompleted);
+                    break;
+
+                case EVENT_SUPPLY_PIN_DONE:
+                    ar = (AsyncResult) msg.obj;
+                    request = (MainThreadBridge.Request) ar.userObj;
+                    mBridge.complete(request, PhoneInterfaceManager.getSupplyPinResult(ar));
                     break;
 
                 default:
@@ -249,29 +228,13 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
 
     /**
      * Posts the specified command to be executed on the main thread,
-     * waits for the request to complete, and returns the result.
+     * waits for the request to complete, and returns the result; or
+     * failResult if it can't complete in time.
+     * @see MainThreadBridge.Channel#sendRequest
      * @see sendRequestAsync
      */
-    private Object sendRequest(int command, Object arg1, Object arg2) {
-        if (Looper.myLooper() == mMainThreadHandler.getLooper()) {
-            throw new RuntimeException("This method will deadlock if called from the main thread.");
-        }
-
-        MainThreadRequest request = new MainThreadRequest(arg1, arg2);
-        Message msg = mMainThreadHandler.obtainMessage(command, request);
-        msg.sendToTarget();
-
-        // Wait for the request to complete
-        synchronized (request) {
-            while (request.result == null) {
-                try {
-                    request.wait();
-                } catch (InterruptedException e) {
-                    // Do nothing, go back and wait until the request is complete
-                }
-            }
-        }
-        return request.result;
+    private Object sendRequest(int command, Object arg1, Object arg2, Object failResult) {
+        return mBridge.sendRequest(command, arg1, arg2, failResult);
     }
 
     public void broadcastUnsolOemHookIntent(byte[] payload) {
@@ -312,6 +275,18 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
         mPhone = phone;
         mCM = PhoneApp.getInstance().mCM;
         mMainThreadHandler = new MainThreadHandler();
+        mBridge = app.mainThreadBridge.newChannel(LOG_TAG, mMainThreadHandler);
+        // A lost hang-up or MMI would be noticed by the user, and the SIM
+        // may have counted a PIN attempt already, so those are waited for.
+        // Deadlines otherwise: a RIL request.  Switching the data
+        // subscription deactivates and activates data calls, which takes
+        // longer.
+        mBridge.addReliableCommand(CMD_END_CALL, "endCall");
+        mBridge.addReliableCommand(CMD_HANDLE_PIN_MMI, "handlePinMmi");
+        mBridge.addReliableCommand(CMD_SUPPLY_PIN, "supplyPin");
+        mBridge.addCommand(CMD_HANDLE_NEIGHBORING_CELL, "getNeighboringCellInfo", 5000);
+        mBridge.addCommand(CMD_INVOKE_OEM_RIL_REQUEST, "sendOemRilRequestRaw", 10000);
+        mBridge.addCommand(CMD_SET_DATA_SUBSCRIPTION, "setPreferredDataSubscription", 60000);
         Log.d(LOG_TAG, " Registering for UNSOL OEM HOOK Responses to deliver external apps");
         mPhone.setOnUnsolOemHookExtApp(mMainThreadHandler, EVENT_UNSOL_OEM_HOOK_EXT_APP, null);
         publish();
@@ -323,6 +298,18 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
         ServiceManager.addService("phone_msim", this);
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (mApp.mContext.checkCallingOrSelfPermission(android.Manifest.permission.DUMP)
+                != PackageManager.PERMISSION_GRANTED) {
+            pw.println("Permission Denial: can't dump Phone from pid="
+                    + Binder.getCallingPid()
+                    + ", uid=" + Binder.getCallingUid());
+            return;
+        }
+        mApp.mainThreadBridge.dump(pw);
+    }
+
     // returns phone associated with the subscription.
     // getPhone(0) returns default phone in single SIM mode.
     private Phone getPhone(int subscription) {
@@ -426,7 +413,7 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
      */
     public boolean endCall(int subscription) {
         enforceCallPermission();
-        return (Boolean) sendRequest(CMD_END_CALL, subscription, null);
+        return (Boolean) sendRequest(CMD_END_CALL, subscription, null, Boolean.FALSE);
     }
 
     public void answerRingingCall(int subscription) {
@@ -528,9 +515,8 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
 
     public int supplyPinReportResult(String pin, int subscription) {
         enforceModifyPermission();
-        final UnlockSim checkSimPin = new UnlockSim(getPhone(subscription).getIccCard());
-        checkSimPin.start();
-        return checkSimPin.unlockSim(null, pin);
+        return (Integer) sendRequest(CMD_SUPPLY_PIN, new String[] { null, pin }, subscription,
+                Phone.PIN_GENERAL_FAILURE);
     }
 
     public boolean supplyPuk(String puk, String pin, int subscription) {
@@ -540,103 +526,8 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
 
     public int supplyPukReportResult(String puk, String pin, int subscription) {
         enforceModifyPermission();
-        final UnlockSim checkSimPuk = new UnlockSim(getPhone(subscription).getIccCard());
-        checkSimPuk.start();
-        return checkSimPuk.unlockSim(puk, pin);
-    }
-
-    /**
-     * Helper thread to turn async call to {@link SimCard#supplyPin} into
-     * a synchronous one.
-     */
-    private static class UnlockSim extends Thread {
-
-        private final IccCard mSimCard;
-
-        private boolean mDone = false;
-        private int mResult = Phone.PIN_RESULT_SUCCESS;
-
-        // For replies from SimCard interface
-        private Handler mHandler;
-
-        // For async handler to identify request type
-        private static final int SUPPLY_PIN_COMPLETE = 100;
-
-        public UnlockSim(IccCard simCard) {
-            mSimCard = simCard;
-        }
-
-        @Override
-        public void run() {
-            Looper.prepare();
-            synchronized (UnlockSim.this) {
-                mHandler = new Handler() {
-                    @Override
-                    public void handleMessage(Message msg) {
-                        AsyncResult ar = (AsyncResult) msg.obj;
-                        switch (msg.what) {
-                            case SUPPLY_PIN_COMPLETE:
-                                Log.d(LOG_TAG, "SUPPLY_PIN_COMPLETE");
-                                synchronized (UnlockSim.this) {
-                                    if (ar.exception != null) {
-                                        if (ar.exception instanceof CommandException &&
-                                                ((CommandException)(ar.exception)).getCommandError()
-                                                == CommandException.Error.PASSWORD_INCORRECT) {
-                                            mResult = Phone.PIN_PASSWORD_INCORRECT;
-                                        } else {
-                                            mResult = Phone.PIN_GENERAL_FAILURE;
-                                        }
-                                    } else {
-                                        mResult = Phone.PIN_RESULT_SUCCESS;
-                                    }
-                                    mDone = true;
-                                    UnlockSim.this.notifyAll();
-                                }
-                                break;
-                        }
-                    }
-                };
-                UnlockSim.this.notifyAll();
-            }
-            Looper.loop();
-        }
-
-        /*
-         * Use PIN or PUK to unlock SIM card
-         *
-         * If PUK is null, unlock SIM card with PIN
-         *
-         * If PUK is not null, unlock SIM card with PUK and set PIN code
-         */
-        synchronized int unlockSim(String puk, String pin) {
-
-            while (mHandler == null) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-            Message callback = Message.obtain(mHandler, SUPPLY_PIN_COMPLETE);
-
-            if (puk == null) {
-                mSimCard.supplyPin(pin, callback);
-            } else {
-                mSimCard.supplyPuk(puk, pin, callback);
-            }
-
-            while (!mDone) {
-                try {
-                    Log.d(LOG_TAG, "wait for done");
-                    wait();
-                } catch (InterruptedException e) {
-                    // Restore the interrupted status
-                    Thread.currentThread().interrupt();
-                }
-            }
-            Log.d(LOG_TAG, "done");
-            return mResult;
-        }
+        return (Integer) sendRequest(CMD_SUPPLY_PIN, new String[] { puk, pin }, subscription,
+                Phone.PIN_GENERAL_FAILURE);
     }
 
     public void updateServiceLocation(int subscription) {
@@ -695,7 +586,8 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
 
     public boolean handlePinMmi(String dialString, int subscription) {
         enforceModifyPermission();
-        return (Boolean) sendRequest(CMD_HANDLE_PIN_MMI, dialString, subscription);
+        return (Boolean) sendRequest(CMD_HANDLE_PIN_MMI, dialString, subscription,
+                Boolean.FALSE);
     }
 
     public void cancelMissedCallsNotification(int subscription) {
@@ -763,7 +655,7 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
 
         try {
             cells = (ArrayList<NeighboringCellInfo>) sendRequest(
-                    CMD_HANDLE_NEIGHBORING_CELL, null, null);
+                    CMD_HANDLE_NEIGHBORING_CELL, null, null, new ArrayList<NeighboringCellInfo>());
         } catch (RuntimeException e) {
             Log.e(LOG_TAG, "getNeighboringCellInfo " + e);
         }
@@ -835,7 +727,9 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
         // TODO: Check Permissions of the application
 
         try {
-            AsyncResult result = (AsyncResult)sendRequest(CMD_INVOKE_OEM_RIL_REQUEST, request, null);
+            AsyncResult result = (AsyncResult)sendRequest(CMD_INVOKE_OEM_RIL_REQUEST, request, null,
+                    new AsyncResult(null, null,
+                            new CommandException(CommandException.Error.GENERIC_FAILURE)));
             if(result.exception == null) {
                 returnValue = 0;
                 if (result.result != null) {
@@ -1011,7 +905,8 @@ public class MSimPhoneInterfaceManager extends ITelephonyMSim.Stub {
      * Set Data subscription.
      */
     public boolean setPreferredDataSubscription(int subscription) {
-        return (Boolean) sendRequest(CMD_SET_DATA_SUBSCRIPTION, subscription, null);
+        return (Boolean) sendRequest(CMD_SET_DATA_SUBSCRIPTION, subscription, null,
+                Boolean.FALSE);
     }
 
     /**
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Shuttles the requests of the inbound binder threads to the main thread
+ * of the phone process, where the Phone calls have to be made, and waits
+ * for their result.  There is one bridge per process, PhoneApp's; each
+ * binder service (PhoneInterfaceManager, MSimPhoneInterfaceManager) sends
+ * its commands to its own handler through a {@link Channel}.
+ *
+ * Each command has a deadline: when the main thread or the RIL doesn't
+ * answer in time the caller gets the command's failure result, and the
+ * request is dropped if the main thread hasn't started it yet.  At most
+ * MAX_IN_FLIGHT callers of the whole process wait at a time, further
+ * callers fail right away; so a slow RIL can't hold on to every binder
+ * thread of the process.  Commands added with addReliableCommand(), whose
+ * loss the user would notice or which can't be undone, are exempt from
+ * both: they are always sent and waited for.
+ */
+class MainThreadBridge {
+    private static final String LOG_TAG = "MainThreadBridge";
+
+    static final int MAX_IN_FLIGHT = 8;
+
+    /**
+     * A request for the main thread handler, sent as msg.obj of the
+     * command message.  The handler calls {@link Channel#start} before
+     * running it and {@link Channel#complete} with its result.
+     */
+    static final class Request {
+        /** The arguments to use for the request */
+        final Object arg1;
+        final Object arg2;
+
+        private final Command mCommand;
+        private final long mSentTime;
+        private long mStartTime;
+        private Object mResult;
+        private boolean mDone;
+        private boolean mAbandoned;
+
+        private Request(Command command, Object arg1, Object arg2) {
+            mCommand = command;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            mSentTime = SystemClock.uptimeMillis();
+        }
+
+        /** @return the result, or null if the deadline passed first */
+        private synchronized Object await(long deadline) {
+            while (!mDone) {
+                long left = deadline - SystemClock.uptimeMillis();
+                if (left <= 0) {
+                    mAbandoned = true;
+                    return null;
+                }
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    // Do nothing, go back and wait until the deadline
+                }
+            }
+            return mResult;
+        }
+    }
+
+    private static final class Command {
+        final String name;
+        final long timeoutMillis;
+        final boolean reliable;
+        int sent;
+        int rejected;
+        int timedOut;
+        int dropped;
+        int started;
+        int served;
+        long queueMillis;
+        long maxQueueMillis;
+        long serviceMillis;
+        long maxServiceMillis;
+
+        Command(String name, long timeoutMillis, boolean reliable) {
+            this.name = name;
+            this.timeoutMillis = timeoutMillis;
+            this.reliable = reliable;
+        }
+    }
+
+    /**
+     * The commands of one binder service, run by its main thread handler.
+     */
+    final class Channel {
+        private final String mName;
+        private final Handler mHandler;
+
+        // Guarded by MainThreadBridge.this
+        private final SparseArray<Command> mCommands = new SparseArray<Command>();
+
+        private Channel(String name, Handler handler) {
+            mName = name;
+            mHandler = handler;
+        }
+
+        /** Registers a command that can be sent with sendRequest(). */
+        void addCommand(int command, String name, long timeoutMillis) {
+            synchronized (MainThreadBridge.this) {
+                mCommands.put(command, new Command(name, timeoutMillis, false));
+            }
+        }
+
+        /**
+         * Registers a command that is never rejected, dropped or given up
+         * on; its caller waits for the result however long it takes.
+         */
+        void addReliableCommand(int command, String name) {
+            synchronized (MainThreadBridge.this) {
+                mCommands.put(command, new Command(name, 0, true));
+            }
+        }
+
+        /**
+         * Posts the specified command to be executed on the main thread,
+         * waits for the request to complete, and returns the result.
+         *
+         * @param failResult  returned if there are too many requests waiting
+         *     already, or if the request doesn't complete before its deadline
+         */
+        Object sendRequest(int command, Object arg1, Object arg2, Object failResult) {
+            if (Looper.myLooper() == mHandler.getLooper()) {
+                throw new RuntimeException(
+                        "This method will deadlock if called from the main thread.");
+            }
+
+            Command cmd;
+            synchronized (MainThreadBridge.this) {
+                cmd = mCommands.get(command);
+                if (cmd == null) {
+                    throw new IllegalArgumentException("Unknown command: " + command);
+                }
+                if (!cmd.reliable) {
+                    if (mInFlight >= mMaxInFlight) {
+                        cmd.rejected++;
+                        Log.w(LOG_TAG, mName + ": " + mInFlight + " requests in flight, failing "
+                                + cmd.name);
+                        return failResult;
+                    }
+                    mInFlight++;
+                }
+                cmd.sent++;
+            }
+
+            Request request = new Request(cmd, arg1, arg2);
+            mHandler.obtainMessage(command, request).sendToTarget();
+            if (cmd.reliable) return request.await(Long.MAX_VALUE);
+
+            Object result;
+            try {
+                result = request.await(request.mSentTime + cmd.timeoutMillis);
+            } finally {
+                synchronized (MainThreadBridge.this) {
+                    mInFlight--;
+                }
+            }
+            if (result == null) {
+                synchronized (MainThreadBridge.this) {
+                    cmd.timedOut++;
+                }
+                Log.w(LOG_TAG, mName + ": " + cmd.name + " timed out after "
+                        + cmd.timeoutMillis + " ms");
+                return failResult;
+            }
+            return result;
+        }
+
+        /**
+         * Called by the main thread handler before handling a message.
+         *
+         * @return false if msg is a request whose caller has given up
+         *     already, and which should be dropped
+         */
+        boolean start(Message msg) {
+            if (!(msg.obj instanceof Request)) return true;
+            Request request = (Request) msg.obj;
+            long now = SystemClock.uptimeMillis();
+            boolean abandoned;
+            synchronized (request) {
+                abandoned = request.mAbandoned;
+                request.mStartTime = now;
+            }
+            Command cmd = request.mCommand;
+            long queued = now - request.mSentTime;
+            synchronized (MainThreadBridge.this) {
+                if (abandoned) {
+                    cmd.dropped++;
+                } else {
+                    cmd.started++;
+                    cmd.queueMillis += queued;
+                    if (queued > cmd.maxQueueMillis) cmd.maxQueueMillis = queued;
+                }
+            }
+            if (abandoned) {
+                Log.w(LOG_TAG, mName + ": dropping " + cmd.name + ", queued " + queued + " ms");
+            }
+            return !abandoned;
+        }
+
+        /**
+         * Called on the main thread with the result of a request, which
+         * must be non-null; wakes up the requesting thread.
+         */
+        void complete(Request request, Object result) {
+            long service;
+            synchronized (request) {
+                request.mResult = result;
+                request.mDone = true;
+                request.notifyAll();
+                service = SystemClock.uptimeMillis() - request.mStartTime;
+            }
+            Command cmd = request.mCommand;
+            synchronized (MainThreadBridge.this) {
+                cmd.served++;
+                cmd.serviceMillis += service;
+                if (service > cmd.maxServiceMillis) cmd.maxServiceMillis = service;
+            }
+        }
+
+        // Called with the bridge's lock held
+        private void dump(PrintWriter pw) {
+            pw.println("  " + mName + ":");
+            for (int i = 0; i < mCommands.size(); i++) {
+                Command cmd = mCommands.valueAt(i);
+                if (cmd.sent == 0 && cmd.rejected == 0) continue;
+                pw.println("    " + cmd.name + ": sent=" + cmd.sent
+                        + " rejected=" + cmd.rejected + " timedOut=" + cmd.timedOut
+                        + " dropped=" + cmd.dropped
+                        + " queue avg="
+                        + ((cmd.started > 0) ? cmd.queueMillis / cmd.started : 0) + "ms"
+                        + " max=" + cmd.maxQueueMillis + "ms"
+                        + " service avg="
+                        + ((cmd.served > 0) ? cmd.serviceMillis / cmd.served : 0) + "ms"
+                        + " max=" + cmd.maxServiceMillis + "ms");
+            }
+        }
+    }
+
+    private final int mMaxInFlight;
+
+    // Guarded by this
+    private final ArrayList<Channel> mChannels = new ArrayList<Channel>();
+    private int mInFlight;
+
+    MainThreadBridge() {
+        this(MAX_IN_FLIGHT);
+    }
+
+    MainThreadBridge(int maxInFlight) {
+        mMaxInFlight = maxInFlight;
+    }
+
+    /** Creates the channel of a binder service, whose commands the handler runs. */
+    synchronized Channel newChannel(String name, Handler handler) {
+        Channel channel = new Channel(name, handler);
+        mChannels.add(channel);
+        return channel;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("MainThreadBridge requests: inFlight=" + mInFlight + " max=" + mMaxInFlight);
+        for (Channel channel : mChannels) {
+            channel.dump(pw);
+        }
+    }
+}
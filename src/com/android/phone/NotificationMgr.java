@@ -29,6 +29,7 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.media.AudioManager;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.os.SystemProperties;
@@ -50,6 +51,11 @@ import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneBase;
 import com.android.internal.telephony.CallManager;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
 /**
  * NotificationManager-related utility code for the Phone app.
  *
@@ -102,6 +108,14 @@ public class NotificationMgr implements CallerInfoAsyncQuery.OnQueryCompleteList
     // used to track the missed call counter, default to 0.
     private int mNumberMissedCalls = 0;
 
+    // Bumped by each live missed call and each clear, so that the missed
+    // calls rebuilt from the call log at startup can tell if they're
+    // stale; the latest missed call shown, null once cleared.  Guarded
+    // by this.
+    private int mMissedCallGeneration;
+    private int mMissedCallClearGeneration;
+    private NotificationInfo mLatestMissedCall;
+
     // Currently-displayed resource IDs for some status bar icons (or zero
     // if no notification is active):
     private int mInCallResId;
@@ -117,7 +131,6 @@ public class NotificationMgr implements CallerInfoAsyncQuery.OnQueryCompleteList
     // Query used to look up caller-id info for the "call log" notification.
     private QueryHandler mQueryHandler = null;
     private static final int CALL_LOG_TOKEN = -1;
-    private static final int CONTACT_TOKEN = -2;
 
     /**
      * Private constructor (this is a singleton).
@@ -269,8 +282,12 @@ public class NotificationMgr implements CallerInfoAsyncQuery.OnQueryCompleteList
 
         // start the query
         if (DBG) log("- start call log query...");
-        mQueryHandler.startQuery(CALL_LOG_TOKEN, null, Calls.CONTENT_URI,  CALL_LOG_PROJECTION,
-                where.toString(), null, Calls.DEFAULT_SORT_ORDER);
+        int generation;
+        synchronized (this) {
+            generation = mMissedCallGeneration;
+        }
+        mQueryHandler.startQuery(CALL_LOG_TOKEN, generation, Calls.CONTENT_URI,
+                CALL_LOG_PROJECTION, where.toString(), null, Calls.DEFAULT_SORT_ORDER);
 
         // Update (or cancel) the in-call notification
         if (DBG) log("- updating in-call notification at startup...");
@@ -287,91 +304,66 @@ public class NotificationMgr implements CallerInfoAsyncQuery.OnQueryCompleteList
         PhoneLookup.DISPLAY_NAME
     };
 
+    /**
+     * Used to store relevant fields for the Missed Call
+     * notifications.
+     */
+    static class NotificationInfo {
+        public String name;
+        public String number;
+        public String label;
+        public long date;
+    }
+
     /**
      * Class used to run asynchronous queries to re-populate
      * the notifications we care about.
      */
     private class QueryHandler extends AsyncQueryHandler {
 
-        /**
-         * Used to store relevant fields for the Missed Call
-         * notifications.
-         */
-        private class NotificationInfo {
-            public String name;
-            public String number;
-            public String label;
-            public long date;
-        }
-
         public QueryHandler(ContentResolver cr) {
             super(cr);
         }
 
         /**
-         * Handles the query results.  There are really 2 steps to this,
-         * similar to what happens in CallLogActivity.
+         * Handles the query results.  There are really 2 steps to this:
          *  1. Find the list of missed calls
-         *  2. For each call, run a query to retrieve the caller's name.
+         *  2. Resolve all the callers' names at once, on a background
+         *     thread, and post a single notification for all of them.
+         * The cookie is the missed call generation the query started at.
          */
         @Override
         protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
-            // TODO: it would be faster to use a join here, but for the purposes
-            // of this small record set, it should be ok.
-
-            // Note that CursorJoiner is not useable here because the number
-            // comparisons are not strictly equals; the comparisons happen in
-            // the SQL function PHONE_NUMBERS_EQUAL, which is not available for
-            // the CursorJoiner.
-
-            // Executing our own query is also feasible (with a join), but that
-            // will require some work (possibly destabilizing) in Contacts
-            // Provider.
-
-            // At this point, we will execute subqueries on each row just as
-            // CallLogActivity.java does.
             switch (token) {
                 case CALL_LOG_TOKEN:
                     if (DBG) log("call log query complete.");
 
                     // initial call to retrieve the call list.
                     if (cursor != null) {
+                        final ArrayList<NotificationInfo> calls =
+                                new ArrayList<NotificationInfo>(cursor.getCount());
                         while (cursor.moveToNext()) {
-                            // for each call in the call log list, create
-                            // the notification object and query contacts
-                            NotificationInfo n = getNotificationInfo (cursor);
-
-                            if (DBG) log("query contacts for number: " + n.number);
-
-                            mQueryHandler.startQuery(CONTACT_TOKEN, n,
-                                    Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, n.number),
-                                    PHONES_PROJECTION, null, null, PhoneLookup.NUMBER);
+                            calls.add(getNotificationInfo(cursor));
                         }
 
                         if (DBG) log("closing call log cursor.");
                         cursor.close();
-                    }
-                    break;
-                case CONTACT_TOKEN:
-                    if (DBG) log("contact query complete.");
-
-                    // subqueries to get the caller name.
-                    if ((cursor != null) && (cookie != null)){
-                        NotificationInfo n = (NotificationInfo) cookie;
-
-                        if (cursor.moveToFirst()) {
-                            // we have contacts data, get the name.
-                            if (DBG) log("contact :" + n.name + " found for phone: " + n.number);
-                            n.name = cursor.getString(
-                                    cursor.getColumnIndexOrThrow(PhoneLookup.DISPLAY_NAME));
-                        }
-
-                        // send the notification
-                        if (DBG) log("sending notification.");
-                        notifyMissedCall(n.name, n.number, n.label, n.date);
 
-                        if (DBG) log("closing contact cursor.");
-                        cursor.close();
+                        if (!calls.isEmpty()) {
+                            final int generation = (Integer) cookie;
+                            new AsyncTask<Void, Void, Void>() {
+                                @Override
+                                protected Void doInBackground(Void... params) {
+                                    resolveNames(mContext.getContentResolver(), calls);
+                                    return null;
+                                }
+
+                                @Override
+                                protected void onPostExecute(Void result) {
+                                    notifyMissedCalls(calls, generation);
+                                }
+                            }.execute();
+                        }
                     }
                     break;
                 default:
@@ -405,6 +397,49 @@ public class NotificationMgr implements CallerInfoAsyncQuery.OnQueryCompleteList
         }
     }
 
+    /**
+     * Fills in the caller names of the given missed calls.  A single
+     * number is looked up with PhoneLookup; more than that are resolved
+     * together with one pass over the contacts, instead of one query per
+     * call.  Blocks on the contacts provider, so don't call this from the
+     * main thread.
+     */
+    static void resolveNames(ContentResolver resolver, List<NotificationInfo> calls) {
+        HashSet<String> numbers = new HashSet<String>();
+        for (NotificationInfo n : calls) {
+            String number = BluetoothCallerIdResolver.normalize(n.number);
+            if (number != null) numbers.add(number);
+        }
+        if (numbers.isEmpty()) return;
+
+        if (numbers.size() == 1) {
+            String number = numbers.iterator().next();
+            String name = null;
+            Cursor cursor = resolver.query(
+                    Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number)),
+                    PHONES_PROJECTION, null, null, PhoneLookup.NUMBER);
+            if (cursor != null) {
+                if (cursor.moveToFirst()) {
+                    name = cursor.getString(
+                            cursor.getColumnIndexOrThrow(PhoneLookup.DISPLAY_NAME));
+                }
+                cursor.close();
+            }
+            for (NotificationInfo n : calls) {
+                if (number.equals(BluetoothCallerIdResolver.normalize(n.number))) n.name = name;
+            }
+            return;
+        }
+
+        HashMap<String, BluetoothCallerIdResolver.CallerId> names =
+                BluetoothCallerIdResolver.resolve(resolver, numbers);
+        for (NotificationInfo n : calls) {
+            String number = BluetoothCallerIdResolver.normalize(n.number);
+            BluetoothCallerIdResolver.CallerId id = (number != null) ? names.get(number) : null;
+            if (id != null) n.name = id.name;
+        }
+    }
+
     /**
      * Configures a Notification to emit the blinky green message-waiting/
      * missed-call signal.
@@ -422,6 +457,53 @@ public class NotificationMgr implements CallerInfoAsyncQuery.OnQueryCompleteList
      * @param label the label of the number if nameOrNumber is a name, null if it is a number
      */
     void notifyMissedCall(String name, String number, String label, long date) {
+        synchronized (this) {
+            mMissedCallGeneration++;
+        }
+        notifyMissedCalls(1, name, number, label, date);
+    }
+
+    /**
+     * Adds the missed calls found in the call log to the missed call
+     * notification, posting it once for all of them.
+     *
+     * If live missed calls were notified since the call log query
+     * started, the latest of them stays the one shown, and only the
+     * calls older than it are added; if the notification was cleared,
+     * the calls are dropped.
+     *
+     * @param calls the missed calls, latest first
+     * @param generation the missed call generation the query started at
+     */
+    private void notifyMissedCalls(List<NotificationInfo> calls, int generation) {
+        NotificationInfo latest;
+        int count;
+        synchronized (this) {
+            if (generation == mMissedCallGeneration) {
+                latest = calls.get(0);
+                count = calls.size();
+            } else if (mMissedCallClearGeneration > generation || mLatestMissedCall == null) {
+                if (DBG) log("dropping " + calls.size() + " missed calls, cleared since.");
+                return;
+            } else {
+                latest = mLatestMissedCall;
+                count = 0;
+                for (NotificationInfo n : calls) {
+                    if (n.date < latest.date) count++;
+                }
+                if (count == 0) return;
+            }
+        }
+        if (DBG) log("sending notification for " + count + " missed calls.");
+        notifyMissedCalls(count, latest.name, latest.number, latest.label, latest.date);
+    }
+
+    /**
+     * Adds count missed calls to the missed call notification.  name,
+     * number, label and date describe the latest of them.
+     */
+    private void notifyMissedCalls(int count, String name, String number, String label,
+            long date) {
         // When the user clicks this notification, we go to the call log.
         final Intent callLogIntent = PhoneApp.createCallLogIntent();
 
@@ -439,7 +521,15 @@ public class NotificationMgr implements CallerInfoAsyncQuery.OnQueryCompleteList
         String expandedText, callName;
 
         // increment number of missed calls.
-        mNumberMissedCalls++;
+        mNumberMissedCalls += count;
+        NotificationInfo latest = new NotificationInfo();
+        latest.name = name;
+        latest.number = number;
+        latest.label = label;
+        latest.date = date;
+        synchronized (this) {
+            mLatestMissedCall = latest;
+        }
 
         // get the name for the ticker text
         // i.e. "Missed call from <caller name or number>"
@@ -497,6 +587,10 @@ public class NotificationMgr implements CallerInfoAsyncQuery.OnQueryCompleteList
         Log.w(LOG_TAG, "updateInCallNotification: null connection, can't set exp view line 1.");
         // reset the number of missed calls to 0.
         mNumberMissedCalls = 0;
+        synchronized (this) {
+            mMissedCallClearGeneration = ++mMissedCallGeneration;
+            mLatestMissedCall = null;
+        }
         mNotificationManager.cancel(MISSED_CALL_NOTIFICATION);
     }
 
@@ -49,6 +49,8 @@ import static com.android.internal.telephony.MSimConstants.SUBSCRIPTION_KEY;
  * {@link OutgoingCallReceiver}, which passes the (possibly modified)
  * intent on to the {@link SipCallOptionHandler}, which will
  * ultimately start the call using the CallController.placeCall() API.
+ * (Calls that don't need a SIP option, as decided by the
+ * {@link OutgoingCallRouter}, skip that activity and are placed directly.)
  *
  * Emergency calls and calls where no number is present (like for a CDMA
  * "empty flash" or a nonexistent voicemail number) are exempt from being
@@ -117,6 +119,8 @@ public class OutgoingCallBroadcaster extends Activity
                 if (DBG) Log.v(TAG, "CALL already placed -- returning.");
                 return;
             }
+            CallLatencyRecorder.getOutgoingInstance().record(
+                    CallLatencyRecorder.STAGE_BROADCAST_DONE);
 
             // Once the NEW_OUTGOING_CALL broadcast is finished, the resultData
             // is used as the actual number to call. (If null, no call will be
@@ -142,7 +146,7 @@ public class OutgoingCallBroadcaster extends Activity
                     && (app.phone.isOtaSpNumber(number))) {
                 if (DBG) Log.v(TAG, "Call is active, a 2nd OTA call cancelled -- returning.");
                 return;
-            } else if (PhoneNumberUtils.isPotentialLocalEmergencyNumber(number, context)) {
+            } else if (EmergencyNumberMatcher.isPotentialLocalEmergencyNumber(number, context)) {
                 // Just like 3rd-party apps aren't allowed to place emergency
                 // calls via the ACTION_CALL intent, we also don't allow 3rd
                 // party apps to use the NEW_OUTGOING_CALL broadcast to rewrite
@@ -285,6 +289,18 @@ public class OutgoingCallBroadcaster extends Activity
         newIntent.putExtra(SUBSCRIPTION_KEY, mSubscription);
         PhoneUtils.checkAndCopyPhoneProviderExtras(intent, newIntent);
 
+        // Most calls don't need to pick a Phone type, or the user's help to
+        // do so: skip the SipCallOptionHandler activity for those, and
+        // place the call right away like it would.
+        OutgoingCallRouter router = OutgoingCallRouter.getInstance();
+        if ((router != null)
+                && (router.route(newIntent) == OutgoingCallRouter.ROUTE_PLACE_CALL)) {
+            if (DBG) Log.v(TAG, "startSipCallOptionHandler(): no SIP option needed, "
+                    + "calling placeCall: " + newIntent);
+            PhoneApp.getInstance().callController.placeCall(newIntent);
+            return;
+        }
+
         // Finally, launch the SipCallOptionHandler, with the copy of the
         // original CALL intent stashed away in the EXTRA_NEW_CALL_INTENT
         // extra.
@@ -403,6 +419,7 @@ public class OutgoingCallBroadcaster extends Activity
     }
 
     private void processIntent(Intent intent) {
+        CallLatencyRecorder.getOutgoingInstance().startCall();
         String action = intent.getAction();
         intent.putExtra(SUBSCRIPTION_KEY, mSubscription);
         Log.d(TAG, "outGoingcallBroadCaster action is"+ action);
@@ -445,9 +462,10 @@ public class OutgoingCallBroadcaster extends Activity
         // emergency number but might still result in an emergency call
         // with some networks.)
         final boolean isExactEmergencyNumber =
-                (number != null) && PhoneNumberUtils.isLocalEmergencyNumber(number, this);
+                (number != null) && EmergencyNumberMatcher.isLocalEmergencyNumber(number, this);
         final boolean isPotentialEmergencyNumber =
-                (number != null) && PhoneNumberUtils.isPotentialLocalEmergencyNumber(number, this);
+                (number != null)
+                && EmergencyNumberMatcher.isPotentialLocalEmergencyNumber(number, this);
         if (VDBG) {
             Log.v(TAG, "- Checking restrictions for number '" + number + "':");
             Log.v(TAG, "    isExactEmergencyNumber     = " + isExactEmergencyNumber);
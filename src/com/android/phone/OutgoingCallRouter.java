@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.Context;
+import android.content.Intent;
+import android.database.ContentObserver;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.sip.SipManager;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.provider.Settings;
+import android.telephony.PhoneNumberUtils;
+import android.util.Log;
+
+import com.android.phone.sip.SipProfileDb;
+import com.android.phone.sip.SipSharedPreferences;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides, in process, whether an outgoing call has to go through the
+ * SipCallOptionHandler activity, or can be placed right away.
+ *
+ * SipCallOptionHandler is only needed to pick a SipPhone or to show one
+ * of its dialogs; for a regular call with "Use Internet calling: only for
+ * Internet calls", or without any SIP account, the activity just calls
+ * CallController.placeCall().  route() makes the same decision as
+ * SipCallOptionHandler.onCreate(), from the SIP call option (cached until
+ * the setting changes) and the number of SIP profiles (kept in memory by
+ * SipProfileDb), and only asks the ConnectivityManager when the outcome
+ * depends on it.
+ */
+class OutgoingCallRouter {
+    private static final String LOG_TAG = "OutgoingCallRouter";
+
+    static final int ROUTE_PLACE_CALL = 0;
+    static final int ROUTE_SIP_OPTION_HANDLER = 1;
+
+    /** The state of the networks, only checked when the route depends on it */
+    interface Network {
+        /** @return true if SIP calls can go over the active data network */
+        boolean isConnected();
+        boolean isRadioOn();
+    }
+
+    private static OutgoingCallRouter sInstance;
+
+    private final Context mContext;
+    private final SipSharedPreferences mSipSharedPreferences;
+    private final SipProfileDb mSipProfileDb;
+    private final Network mNetwork = new Network() {
+        public boolean isConnected() {
+            return isNetworkConnected();
+        }
+
+        public boolean isRadioOn() {
+            return PhoneApp.getInstance().phoneMgr.isRadioOn();
+        }
+    };
+
+    // Read on the main thread, cleared by the settings observer
+    private String mCallOption;
+
+    // Guarded by this
+    private int mPlaced;
+    private int mHandled;
+
+    /**
+     * Initialize the singleton OutgoingCallRouter instance.
+     * This is only done once, at startup, from PhoneApp.onCreate().
+     */
+    static OutgoingCallRouter init(Context context) {
+        synchronized (OutgoingCallRouter.class) {
+            if (sInstance == null) {
+                sInstance = new OutgoingCallRouter(context);
+            } else {
+                Log.wtf(LOG_TAG, "init() called multiple times!  sInstance = " + sInstance);
+            }
+            return sInstance;
+        }
+    }
+
+    /** The singleton, or null if it hasn't been initialized. */
+    static OutgoingCallRouter getInstance() {
+        return sInstance;
+    }
+
+    private OutgoingCallRouter(Context context) {
+        mContext = context.getApplicationContext();
+        mSipSharedPreferences = new SipSharedPreferences(mContext);
+        mSipProfileDb = new SipProfileDb(mContext);
+        mContext.getContentResolver().registerContentObserver(
+                Settings.System.getUriFor(Settings.System.SIP_CALL_OPTIONS), false,
+                new ContentObserver(new Handler()) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        mCallOption = null;
+                    }
+                });
+        if (PhoneUtils.isVoipSupported()) {
+            // Load the SIP profiles ahead of the first SIP call, so that
+            // SipCallOptionHandler finds them in memory.
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                public void run() {
+                    mSipProfileDb.getProfileList();
+                }
+            });
+        }
+    }
+
+    /**
+     * Decides the route of an outgoing call.  Called on the main thread.
+     *
+     * @param callIntent  the CALL intent that will be passed to
+     *     CallController.placeCall(), see
+     *     OutgoingCallBroadcaster.startSipCallOptionHandler()
+     * @return ROUTE_PLACE_CALL or ROUTE_SIP_OPTION_HANDLER
+     */
+    int route(Intent callIntent) {
+        String scheme = callIntent.getData().getScheme();
+        int route;
+        if (!Constants.SCHEME_TEL.equals(scheme) && !Constants.SCHEME_SIP.equals(scheme)) {
+            route = ROUTE_PLACE_CALL;
+        } else {
+            // Same number as SipCallOptionHandler checks, which is the one
+            // from the original URI.
+            String number = PhoneNumberUtils.getNumberFromIntent(callIntent, mContext);
+            boolean isRegularCall = Constants.SCHEME_TEL.equals(scheme)
+                    && !PhoneNumberUtils.isUriNumber(number);
+            route = route(isRegularCall, PhoneUtils.isVoipSupported(),
+                    PhoneUtils.hasPhoneProviderExtras(callIntent), getSipCallOption(),
+                    mSipProfileDb.getProfilesCount(), mNetwork);
+        }
+        synchronized (this) {
+            if (route == ROUTE_PLACE_CALL) {
+                mPlaced++;
+            } else {
+                mHandled++;
+            }
+        }
+        CallLatencyRecorder.getOutgoingInstance().record(CallLatencyRecorder.STAGE_ROUTED);
+        return route;
+    }
+
+    /**
+     * The decision of SipCallOptionHandler.onCreate() for a tel: or sip:
+     * URI: ROUTE_PLACE_CALL where it calls setResultAndFinish() without
+     * a SIP profile to look up.
+     */
+    static int route(boolean isRegularCall, boolean voipSupported, boolean hasProviderExtras,
+            String callOption, int profilesCount, Network network) {
+        if (!isRegularCall) {
+            // Calls to SIP addresses need a SipPhone, or one of the dialogs
+            // saying why there isn't one.  If a provider rewrote the call,
+            // it goes over the default network though.
+            return (voipSupported && hasProviderExtras)
+                    ? ROUTE_PLACE_CALL : ROUTE_SIP_OPTION_HANDLER;
+        }
+        if (!voipSupported || hasProviderExtras) return ROUTE_PLACE_CALL;
+        if (Settings.System.SIP_ADDRESS_ONLY.equals(callOption)) return ROUTE_PLACE_CALL;
+
+        // "Always" uses a SIP account, "ask" lets the user pick one; both
+        // only when connected.
+        boolean askEachTime = Settings.System.SIP_ASK_ME_EACH_TIME.equals(callOption);
+        if (!askEachTime && profilesCount == 0) return ROUTE_PLACE_CALL;
+        if (!network.isConnected()) return ROUTE_PLACE_CALL;
+        if (askEachTime && network.isRadioOn()) return ROUTE_SIP_OPTION_HANDLER;
+        return (profilesCount > 0) ? ROUTE_SIP_OPTION_HANDLER : ROUTE_PLACE_CALL;
+    }
+
+    private String getSipCallOption() {
+        String option = mCallOption;
+        if (option == null) {
+            option = mSipSharedPreferences.getSipCallOption();
+            mCallOption = option;
+        }
+        return option;
+    }
+
+    // Same check as SipCallOptionHandler.isNetworkConnected()
+    private boolean isNetworkConnected() {
+        ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        if (cm != null) {
+            NetworkInfo ni = cm.getActiveNetworkInfo();
+            if ((ni == null) || !ni.isConnected()) return false;
+
+            return ((ni.getType() == ConnectivityManager.TYPE_WIFI)
+                    || !SipManager.isSipWifiOnly(mContext));
+        }
+        return false;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("OutgoingCallRouter: callOption=" + mCallOption + " placed=" + mPlaced
+                + " sipCallOptionHandler=" + mHandled);
+        CallLatencyRecorder.getOutgoingInstance().dump(pw);
+    }
+}
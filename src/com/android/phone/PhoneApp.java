@@ -152,6 +152,8 @@ public class PhoneApp extends Application implements AccelerometerListener.Orien
     Ringer ringer;
     BluetoothHandsfree mBtHandsfree;
     PhoneInterfaceManager phoneMgr;
+    // Shared by the binder services to run their requests on the main thread
+    final MainThreadBridge mainThreadBridge = new MainThreadBridge();
     CallManager mCM;
     int mBluetoothHeadsetState = BluetoothProfile.STATE_DISCONNECTED;
     int mBluetoothHeadsetAudioState = BluetoothHeadset.STATE_AUDIO_DISCONNECTED;
@@ -423,8 +425,9 @@ public class PhoneApp extends Application implements AccelerometerListener.Orien
     public void onCreate() {
         if (VDBG) Log.v(LOG_TAG, "onCreate()...");
         mContext = this;
+        final PhoneStartup startup = new PhoneStartup();
 
-        ContentResolver resolver = getContentResolver();
+        final ContentResolver resolver = getContentResolver();
 
         // Cache the "voice capable" flag.
         // This flag currently comes from a resource (which is
@@ -440,6 +443,7 @@ public class PhoneApp extends Application implements AccelerometerListener.Orien
             Log.v(LOG_TAG, "PhoneApp onCreate() DSDS Enabled!!!!");
             msApp = new MSimPhoneApp(this);
             msApp.onCreate();
+            startup.criticalPathDone();
         } else {
         if (phone == null) {
             Log.d(LOG_TAG, "non dsds PhoneApp:");
@@ -451,12 +455,14 @@ public class PhoneApp extends Application implements AccelerometerListener.Orien
 
             mCM = CallManager.getInstance();
             mCM.registerPhone(phone);
+            startup.mark("telephony");
 
             // Create the NotificationMgr singleton, which is used to display
             // status bar icons and control other status bar behavior.
             notificationMgr = NotificationMgr.init(this);
 
             phoneMgr = PhoneInterfaceManager.init(this, phone);
+            startup.mark("NotificationMgr, PhoneInterfaceManager");
 
             mHandler.sendEmptyMessage(EVENT_START_SIP_SERVICE);
 
@@ -477,8 +483,10 @@ public class PhoneApp extends Application implements AccelerometerListener.Orien
                 // Device is not bluetooth capable
                 mBtHandsfree = null;
             }
+            startup.mark("BluetoothHandsfree");
 
             ringer = Ringer.init(this);
+            startup.mark("Ringer");
 
             mReceiver = new PhoneAppBroadcastReceiver();
             mMediaButtonReceiver = new MediaButtonBroadcastReceiver();
@@ -519,12 +527,26 @@ public class PhoneApp extends Application implements AccelerometerListener.Orien
             // ...and also the InCallUiState instance, used by the CallController to
             // keep track of some "persistent state" of the in-call UI.
             inCallUiState = InCallUiState.init(this);
+            startup.mark("wake locks, CallController");
+
+            // Cache of resolved caller-ids, checked by startGetCallerInfo()
+            CallerInfoCache.init(this, mHandler);
+
+            // Single writer of the call log; replays its journal in the background
+            CallLogWriter.init(this);
+
+            // Compiled ECC list for the emergency number checks of the call paths
+            EmergencyNumberMatcher.init(this);
+
+            // Lets OutgoingCallBroadcaster skip the SipCallOptionHandler hop
+            OutgoingCallRouter.init(this);
 
             // Create the CallNotifer singleton, which handles
             // asynchronous events from the telephony layer (like
             // launching the incoming-call UI when an incoming call comes
             // in.)
             notifier = CallNotifier.init(this, phone, ringer, mBtHandsfree, new CallLogAsync());
+            startup.mark("CallNotifier");
 
             // register for ICC status
             IccCard sim = phone.getIccCard();
@@ -576,11 +598,14 @@ public class PhoneApp extends Application implements AccelerometerListener.Orien
             mediaButtonIntentFilter.setPriority(1);
             //
             registerReceiver(mMediaButtonReceiver, mediaButtonIntentFilter);
+            startup.mark("receivers");
 
             //set the default values for the preferences in the phone.
-            PreferenceManager.setDefaultValues(this, R.xml.network_setting, false);
-
-            PreferenceManager.setDefaultValues(this, R.xml.call_feature_setting, false);
+            // Kept inline: CallNotifier and the settings screens read them
+            // right away, and must see the defaults on first boot.
+            PreferenceManager.setDefaultValues(PhoneApp.this, R.xml.network_setting, false);
+            PreferenceManager.setDefaultValues(PhoneApp.this, R.xml.call_feature_setting, false);
+            startup.mark("default preferences");
 
             // Make sure the audio mode (along with some
             // audio-mode-related state of our own) is initialized
@@ -595,11 +620,26 @@ public class PhoneApp extends Application implements AccelerometerListener.Orien
             cdmaOtaInCallScreenUiState = new OtaUtils.CdmaOtaInCallScreenUiState();
         }
 
-        // XXX pre-load the SimProvider so that it's ready
-        resolver.getType(Uri.parse("content://icc/adn"));
-
         // start with the default value to set the mute state.
         mShouldRestoreMuteOnInCallResume = false;
+        startup.criticalPathDone();
+
+        // Resolve recent and starred callers ahead of their next call
+        final CallerInfoCache callerInfoCache = CallerInfoCache.getInstance();
+        if (callerInfoCache != null) {
+            startup.runInBackground("caller info prewarm", new Runnable() {
+                public void run() {
+                    callerInfoCache.prewarm();
+                }
+            });
+        }
+
+        // XXX pre-load the SimProvider so that it's ready
+        startup.runInBackground("icc adn", new Runnable() {
+            public void run() {
+                resolver.getType(Uri.parse("content://icc/adn"));
+            }
+        });
 
         // TODO: Register for Cdma Information Records
         // phone.registerCdmaInformationRecord(mHandler, EVENT_UNSOL_CDMA_INFO_RECORD, null);
@@ -609,20 +649,35 @@ public class PhoneApp extends Application implements AccelerometerListener.Orien
         // to BP at power up (BP does not need to make the TTY setting persistent storage).
         // This way, there is a single owner (i.e AP) for the TTY setting in the phone.
         if (mTtyEnabled) {
-            mPreferredTtyMode = android.provider.Settings.Secure.getInt(
-                    phone.getContext().getContentResolver(),
-                    android.provider.Settings.Secure.PREFERRED_TTY_MODE,
-                    Phone.TTY_MODE_OFF);
+            startup.runWhenIdle("tty", new Runnable() {
+                public void run() {
+                    int mode = android.provider.Settings.Secure.getInt(
+                            phone.getContext().getContentResolver(),
+                            android.provider.Settings.Secure.PREFERRED_TTY_MODE,
+                            Phone.TTY_MODE_OFF);
+                    if (mode != mPreferredTtyMode) {
+                        mPreferredTtyMode = mode;
+                        // A headset may have been plugged in before this ran
+                        mHandler.sendMessage(
+                                mHandler.obtainMessage(EVENT_TTY_PREFERRED_MODE_CHANGED, 0));
+                    }
+                }
+            });
         }
         // Read HAC settings and configure audio hardware
         if (getResources().getBoolean(R.bool.hac_enabled)) {
-            int hac = android.provider.Settings.System.getInt(phone.getContext().getContentResolver(),
-                                                              android.provider.Settings.System.HEARING_AID,
-                                                              0);
-            AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-            audioManager.setParameter(CallFeaturesSetting.HAC_KEY, hac != 0 ?
-                                      CallFeaturesSetting.HAC_VAL_ON :
-                                      CallFeaturesSetting.HAC_VAL_OFF);
+            startup.runInBackground("hac", new Runnable() {
+                public void run() {
+                    int hac = android.provider.Settings.System.getInt(
+                            phone.getContext().getContentResolver(),
+                            android.provider.Settings.System.HEARING_AID, 0);
+                    AudioManager audioManager =
+                            (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+                    audioManager.setParameter(CallFeaturesSetting.HAC_KEY, hac != 0 ?
+                                              CallFeaturesSetting.HAC_VAL_ON :
+                                              CallFeaturesSetting.HAC_VAL_OFF);
+                }
+            });
         }
       }
    }
@@ -1317,6 +1372,8 @@ public class PhoneApp extends Application implements AccelerometerListener.Orien
     protected void onMMIComplete(AsyncResult r) {
         if (VDBG) Log.d(LOG_TAG, "onMMIComplete()...");
         MmiCode mmiCode = (MmiCode) r.result;
+        // The code may have changed call waiting, CLIR or call forwarding
+        SsStateCache.invalidate(phone.getSubscription());
         PhoneUtils.displayMMIComplete(phone, getInstance(), mmiCode, null, null);
     }
 
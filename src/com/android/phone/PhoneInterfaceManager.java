@@ -20,13 +20,13 @@ package com.android.phone;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.AsyncResult;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
 import android.os.ServiceManager;
 import android.telephony.NeighboringCellInfo;
@@ -44,6 +44,8 @@ import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.telephony.CommandException;
 import com.android.internal.telephony.QosSpec;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -66,6 +68,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final int EVENT_UNSOL_OEM_HOOK_EXT_APP = 9;
     private static final int CMD_SET_TRANSMIT_POWER = 10;
     private static final int EVENT_SET_TRANSMIT_POWER_DONE = 11;
+    private static final int CMD_SUPPLY_PIN = 12;
+    private static final int EVENT_SUPPLY_PIN_DONE = 13;
 
     /** The singleton instance. */
     private static PhoneInterfaceManager sInstance;
@@ -74,54 +78,38 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     Phone mPhone;
     CallManager mCM;
     MainThreadHandler mMainThreadHandler;
-
-    /**
-     * A request object for use with {@link MainThreadHandler}. Requesters should wait() on the
-     * request after sending. The main thread will notify the request when it is complete.
-     */
-    private static final class MainThreadRequest {
-        /** The argument to use for the request */
-        public Object argument;
-        /** The result of the request that is run on the main thread */
-        public Object result;
-
-        public MainThreadRequest(Object argument) {
-            this.argument = argument;
-        }
-    }
+    MainThreadBridge.Channel mBridge;
 
     /**
      * A handler that processes messages on the main thread in the phone process. Since many
      * of the Phone calls are not thread safe this is needed to shuttle the requests from the
      * inbound binder threads to the main thread in the phone process.  The Binder thread
-     * may provide a {@link MainThreadRequest} object in the msg.obj field that they are waiting
-     * on, which will be notified when the operation completes and will contain the result of the
-     * request.
+     * may provide a {@link MainThreadBridge.Request} object in the msg.obj field that they are
+     * waiting on (see {@link MainThreadBridge.Channel#sendRequest}).
      *
-     * <p>If a MainThreadRequest object is provided in the msg.obj field,
-     * note that request.result must be set to something non-null for the calling thread to
-     * unblock.
+     * <p>If a MainThreadBridge.Request object is provided in the msg.obj field,
+     * note that mBridge.complete() must be called with a non-null result for the calling
+     * thread to unblock before its deadline.
      */
     protected class MainThreadHandler extends Handler {
         @Override
         public void handleMessage(Message msg) {
-            MainThreadRequest request;
+            MainThreadBridge.Request request;
             Message onCompleted;
             AsyncResult ar;
 
+            // Requests whose caller gave up already are dropped
+            if (!mBridge.start(msg)) return;
+
             switch (msg.what) {
                 case CMD_HANDLE_PIN_MMI:
-                    request = (MainThreadRequest) msg.obj;
-                    request.result = Boolean.valueOf(
-                            mPhone.handlePinMmi((String) request.argument));
-                    // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    request = (MainThreadBridge.Request) msg.obj;
+                    mBridge.complete(request, Boolean.valueOf(
+                            mPhone.handlePinMmi((String) request.arg1)));
                     break;
 
                 case CMD_HANDLE_NEIGHBORING_CELL:
-                    request = (MainThreadRequest) msg.obj;
+                    request = (MainThreadBridge.Request) msg.obj;
                     onCompleted = obtainMessage(EVENT_NEIGHBORING_CELL_DONE,
                             request);
                     mPhone.getNeighboringCids(onCompleted);
@@ -129,16 +117,12 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
                 case EVENT_NEIGHBORING_CELL_DONE:
                     ar = (AsyncResult) msg.obj;
-                    request = (MainThreadRequest) ar.userObj;
+                    request = (MainThreadBridge.Request) ar.userObj;
                     if (ar.exception == null && ar.result != null) {
-                        request.result = ar.result;
+                        mBridge.complete(request, ar.result);
                     } else {
                         // create an empty list to notify the waiting thread
-                        request.result = new ArrayList<NeighboringCellInfo>();
-                    }
-                    // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
+                        mBridge.complete(request, new ArrayList<NeighboringCellInfo>());
                     }
                     break;
 
@@ -151,7 +135,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     break;
 
                 case CMD_END_CALL:
-                    request = (MainThreadRequest) msg.obj;
+                    request = (MainThreadBridge.Request) msg.obj;
                     boolean hungUp = false;
                     int phoneType = mPhone.getPhoneType();
                     if (phoneType == Phone.PHONE_TYPE_CDMA) {
@@ -165,27 +149,19 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                         throw new IllegalStateException("Unexpected phone type: " + phoneType);
                     }
                     if (DBG) log("CMD_END_CALL: " + (hungUp ? "hung up!" : "no call to hang up"));
-                    request.result = hungUp;
-                    // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    mBridge.complete(request, hungUp);
                     break;
 
                 case CMD_INVOKE_OEM_RIL_REQUEST:
-                    request = (MainThreadRequest)msg.obj;
+                    request = (MainThreadBridge.Request) msg.obj;
                     onCompleted = obtainMessage(EVENT_INVOKE_OEM_RIL_REQUEST, request);
-                    mPhone.invokeOemRilRequestRaw((byte[])request.argument, onCompleted);
+                    mPhone.invokeOemRilRequestRaw((byte[])request.arg1, onCompleted);
                     break;
 
                 case EVENT_INVOKE_OEM_RIL_REQUEST:
                     ar = (AsyncResult)msg.obj;
-                    request = (MainThreadRequest)ar.userObj;
-                    request.result = ar;
-                    // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    request = (MainThreadBridge.Request) ar.userObj;
+                    mBridge.complete(request, ar);
                     break;
 
                 case EVENT_UNSOL_OEM_HOOK_EXT_APP:
@@ -194,25 +170,33 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     break;
 
                 case CMD_SET_TRANSMIT_POWER:
-                    request = (MainThreadRequest) msg.obj;
+                    request = (MainThreadBridge.Request) msg.obj;
                     onCompleted = obtainMessage(EVENT_SET_TRANSMIT_POWER_DONE, request);
-                    mPhone.setTransmitPower((Integer) request.argument, onCompleted);
+                    mPhone.setTransmitPower((Integer) request.arg1, onCompleted);
                     break;
 
                 case EVENT_SET_TRANSMIT_POWER_DONE:
                     boolean retStatus = false;
                     ar = (AsyncResult)msg.obj;
-                    request = (MainThreadRequest)ar.userObj;
+                    request = (MainThreadBridge.Request) ar.userObj;
 
                     if (ar.exception == null) {
                         retStatus = true;
                     }
-                    request.result = retStatus;
+                    mBridge.complete(request, retStatus);
+                    break;
 
-                    // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                case CMD_SUPPLY_PIN:
+                    request = (MainThreadBridge.Request) msg.obj;
+                    onCompleted = obtainMessage(EVENT_SUPPLY_PIN_DONE, request);
+                    supplyPinOrPuk(mPhone.getIccCard(), (String) request.arg1,
+                            (String) request.arg2, onCompleted);
+                    break;
+
+                case EVENT_SUPPLY_PIN_DONE:
+                    ar = (AsyncResult) msg.obj;
+                    request = (MainThreadBridge.Request) ar.userObj;
+                    mBridge.complete(request, getSupplyPinResult(ar));
                     break;
 
                 default:
@@ -224,29 +208,13 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     /**
      * Posts the specified command to be executed on the main thread,
-     * waits for the request to complete, and returns the result.
+     * waits for the request to complete, and returns the result; or
+     * failResult if it can't complete in time.
+     * @see MainThreadBridge.Channel#sendRequest
      * @see sendRequestAsync
      */
-    private Object sendRequest(int command, Object argument) {
-        if (Looper.myLooper() == mMainThreadHandler.getLooper()) {
-            throw new RuntimeException("This method will deadlock if called from the main thread.");
-        }
-
-        MainThreadRequest request = new MainThreadRequest(argument);
-        Message msg = mMainThreadHandler.obtainMessage(command, request);
-        msg.sendToTarget();
-
-        // Wait for the request to complete
-        synchronized (request) {
-            while (request.result == null) {
-                try {
-                    request.wait();
-                } catch (InterruptedException e) {
-                    // Do nothing, go back and wait until the request is complete
-                }
-            }
-        }
-        return request.result;
+    private Object sendRequest(int command, Object argument, Object failResult) {
+        return mBridge.sendRequest(command, argument, null, failResult);
     }
 
     public void broadcastUnsolOemHookIntent(byte[] payload) {
@@ -287,6 +255,16 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         mPhone = phone;
         mCM = PhoneApp.getInstance().mCM;
         mMainThreadHandler = new MainThreadHandler();
+        mBridge = app.mainThreadBridge.newChannel(LOG_TAG, mMainThreadHandler);
+        // A lost hang-up or MMI would be noticed by the user, and the SIM
+        // may have counted a PIN attempt already, so those are waited for.
+        // Deadlines otherwise: a RIL request.
+        mBridge.addReliableCommand(CMD_END_CALL, "endCall");
+        mBridge.addReliableCommand(CMD_HANDLE_PIN_MMI, "handlePinMmi");
+        mBridge.addReliableCommand(CMD_SUPPLY_PIN, "supplyPin");
+        mBridge.addCommand(CMD_HANDLE_NEIGHBORING_CELL, "getNeighboringCellInfo", 5000);
+        mBridge.addCommand(CMD_SET_TRANSMIT_POWER, "setTransmitPower", 5000);
+        mBridge.addCommand(CMD_INVOKE_OEM_RIL_REQUEST, "sendOemRilRequestRaw", 10000);
         Log.d(LOG_TAG, " Registering for UNSOL OEM HOOK Responses to deliver external apps");
         mPhone.setOnUnsolOemHookExtApp(mMainThreadHandler, EVENT_UNSOL_OEM_HOOK_EXT_APP, null);
         publish();
@@ -298,6 +276,33 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         ServiceManager.addService("phone", this);
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (mApp.mContext.checkCallingOrSelfPermission(android.Manifest.permission.DUMP)
+                != PackageManager.PERMISSION_GRANTED) {
+            pw.println("Permission Denial: can't dump Phone from pid="
+                    + Binder.getCallingPid()
+                    + ", uid=" + Binder.getCallingUid());
+            return;
+        }
+        CallerInfoCache callerInfoCache = CallerInfoCache.getInstance();
+        if (callerInfoCache != null) callerInfoCache.dump(pw);
+        Ringer ringer = mApp.getRinger();
+        if (ringer != null) ringer.dump(pw);
+        CallLatencyRecorder.getInstance().dump(pw);
+        CallLogWriter callLogWriter = CallLogWriter.getInstance();
+        if (callLogWriter != null) callLogWriter.dump(pw);
+        ToneEngine toneEngine = ToneEngine.getInstance();
+        if (toneEngine != null) toneEngine.dump(pw);
+        mApp.mainThreadBridge.dump(pw);
+        CallUiSnapshot.getStats().dump(pw);
+        EmergencyNumberMatcher emergencyNumberMatcher = EmergencyNumberMatcher.getInstance();
+        if (emergencyNumberMatcher != null) emergencyNumberMatcher.dump(pw);
+        OutgoingCallRouter outgoingCallRouter = OutgoingCallRouter.getInstance();
+        if (outgoingCallRouter != null) outgoingCallRouter.dump(pw);
+        SsQueryScheduler.dumpAll(pw);
+    }
+
     //
     // Implementation of the ITelephony interface.
     //
@@ -392,7 +397,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      */
     public boolean endCall() {
         enforceCallPermission();
-        return (Boolean) sendRequest(CMD_END_CALL, null);
+        return (Boolean) sendRequest(CMD_END_CALL, null, Boolean.FALSE);
     }
 
     public void answerRingingCall() {
@@ -488,9 +493,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     public int supplyPinReportResult(String pin) {
         enforceModifyPermission();
-        final UnlockSim checkSimPin = new UnlockSim(mPhone.getIccCard());
-        checkSimPin.start();
-        return checkSimPin.unlockSim(null, pin);
+        return (Integer) mBridge.sendRequest(CMD_SUPPLY_PIN, null, pin,
+                Phone.PIN_GENERAL_FAILURE);
     }
 
     public boolean supplyPuk(String puk, String pin) {
@@ -499,103 +503,43 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     public int supplyPukReportResult(String puk, String pin) {
         enforceModifyPermission();
-        final UnlockSim checkSimPuk = new UnlockSim(mPhone.getIccCard());
-        checkSimPuk.start();
-        return checkSimPuk.unlockSim(puk, pin);
+        return (Integer) mBridge.sendRequest(CMD_SUPPLY_PIN, puk, pin,
+                Phone.PIN_GENERAL_FAILURE);
     }
 
     /**
-     * Helper thread to turn async call to {@link SimCard#supplyPin} into
-     * a synchronous one.
+     * Use PIN or PUK to unlock SIM card
+     *
+     * If PUK is null, unlock SIM card with PIN
+     *
+     * If PUK is not null, unlock SIM card with PUK and set PIN code
+     *
+     * Called on the main thread; the result is sent to onComplete.
      */
-    private static class UnlockSim extends Thread {
-
-        private final IccCard mSimCard;
-
-        private boolean mDone = false;
-        private int mResult = Phone.PIN_RESULT_SUCCESS;
-
-        // For replies from SimCard interface
-        private Handler mHandler;
-
-        // For async handler to identify request type
-        private static final int SUPPLY_PIN_COMPLETE = 100;
-
-        public UnlockSim(IccCard simCard) {
-            mSimCard = simCard;
-        }
-
-        @Override
-        public void run() {
-            Looper.prepare();
-            synchronized (UnlockSim.this) {
-                mHandler = new Handler() {
-                    @Override
-                    public void handleMessage(Message msg) {
-                        AsyncResult ar = (AsyncResult) msg.obj;
-                        switch (msg.what) {
-                            case SUPPLY_PIN_COMPLETE:
-                                Log.d(LOG_TAG, "SUPPLY_PIN_COMPLETE");
-                                synchronized (UnlockSim.this) {
-                                    if (ar.exception != null) {
-                                        if (ar.exception instanceof CommandException &&
-                                                ((CommandException)(ar.exception)).getCommandError()
-                                                == CommandException.Error.PASSWORD_INCORRECT) {
-                                            mResult = Phone.PIN_PASSWORD_INCORRECT;
-                                        } else {
-                                            mResult = Phone.PIN_GENERAL_FAILURE;
-                                        }
-                                    } else {
-                                        mResult = Phone.PIN_RESULT_SUCCESS;
-                                    }
-                                    mDone = true;
-                                    UnlockSim.this.notifyAll();
-                                }
-                                break;
-                        }
-                    }
-                };
-                UnlockSim.this.notifyAll();
-            }
-            Looper.loop();
+    /* package */ static void supplyPinOrPuk(IccCard simCard, String puk, String pin,
+            Message onComplete) {
+        if (puk == null) {
+            simCard.supplyPin(pin, onComplete);
+        } else {
+            simCard.supplyPuk(puk, pin, onComplete);
         }
+    }
 
-        /*
-         * Use PIN or PUK to unlock SIM card
-         *
-         * If PUK is null, unlock SIM card with PIN
-         *
-         * If PUK is not null, unlock SIM card with PUK and set PIN code
-         */
-        synchronized int unlockSim(String puk, String pin) {
-
-            while (mHandler == null) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-            Message callback = Message.obtain(mHandler, SUPPLY_PIN_COMPLETE);
-
-            if (puk == null) {
-                mSimCard.supplyPin(pin, callback);
+    /**
+     * @return the Phone.PIN_* result of a supplyPinOrPuk() request
+     */
+    /* package */ static int getSupplyPinResult(AsyncResult ar) {
+        Log.d(LOG_TAG, "SUPPLY_PIN_COMPLETE");
+        if (ar.exception != null) {
+            if (ar.exception instanceof CommandException &&
+                    ((CommandException)(ar.exception)).getCommandError()
+                    == CommandException.Error.PASSWORD_INCORRECT) {
+                return Phone.PIN_PASSWORD_INCORRECT;
             } else {
-                mSimCard.supplyPuk(puk, pin, callback);
-            }
-
-            while (!mDone) {
-                try {
-                    Log.d(LOG_TAG, "wait for done");
-                    wait();
-                } catch (InterruptedException e) {
-                    // Restore the interrupted status
-                    Thread.currentThread().interrupt();
-                }
+                return Phone.PIN_GENERAL_FAILURE;
             }
-            Log.d(LOG_TAG, "done");
-            return mResult;
         }
+        return Phone.PIN_RESULT_SUCCESS;
     }
 
     public void updateServiceLocation() {
@@ -677,7 +621,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     public boolean handlePinMmi(String dialString) {
         enforceModifyPermission();
-        return (Boolean) sendRequest(CMD_HANDLE_PIN_MMI, dialString);
+        return (Boolean) sendRequest(CMD_HANDLE_PIN_MMI, dialString, Boolean.FALSE);
     }
 
     public void cancelMissedCallsNotification() {
@@ -743,7 +687,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
         try {
             cells = (ArrayList<NeighboringCellInfo>) sendRequest(
-                    CMD_HANDLE_NEIGHBORING_CELL, null);
+                    CMD_HANDLE_NEIGHBORING_CELL, null, new ArrayList<NeighboringCellInfo>());
         } catch (RuntimeException e) {
             Log.e(LOG_TAG, "getNeighboringCellInfo " + e);
         }
@@ -811,7 +755,9 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         // TODO: Check Permissions of the application
 
         try {
-            AsyncResult result = (AsyncResult)sendRequest(CMD_INVOKE_OEM_RIL_REQUEST, request);
+            AsyncResult result = (AsyncResult)sendRequest(CMD_INVOKE_OEM_RIL_REQUEST, request,
+                    new AsyncResult(null, null,
+                            new CommandException(CommandException.Error.GENERIC_FAILURE)));
             if(result.exception == null) {
                 returnValue = 0;
                 if (result.result != null) {
@@ -945,7 +891,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      */
     public boolean setTransmitPower(int powerLevel) {
         enforceModifyPermission();
-        return (Boolean) sendRequest(CMD_SET_TRANSMIT_POWER, powerLevel);
+        return (Boolean) sendRequest(CMD_SET_TRANSMIT_POWER, powerLevel, Boolean.FALSE);
     }
 
     /**
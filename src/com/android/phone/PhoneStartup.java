@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.AsyncTask;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Startup planner for the phone process.
+ *
+ * PhoneApp.onCreate() runs the steps needed to take a call (telephony,
+ * CallManager, Ringer, CallNotifier, ...) inline, and marks each of them
+ * with {@link #mark} so its duration is logged. Everything that is not
+ * needed for that is handed to the planner instead:
+ *   {@link #runInBackground}  starts right away on the AsyncTask thread
+ *                             pool, in parallel with the rest of onCreate()
+ *   {@link #runWhenIdle}      runs on the main thread once its message
+ *                             queue first goes idle
+ * {@link #criticalPathDone} records the time from the start of onCreate()
+ * until the process is ready to accept a call.
+ *
+ * Deferred initializers run in no particular order with respect to the
+ * rest of the startup, so only state that nothing reads early on may be
+ * set up there.
+ */
+class PhoneStartup {
+    private static final String LOG_TAG = "PhoneStartup";
+
+    /** One timed step of the startup */
+    static class Step {
+        final String name;
+        final String kind;
+        long millis = -1;
+
+        Step(String name, String kind) {
+            this.name = name;
+            this.kind = kind;
+        }
+    }
+
+    // Startup of this process, for the startup benchmark
+    private static PhoneStartup sInstance;
+
+    private final long mStartTime;
+    private long mLastMark;
+    private long mReadyMillis = -1;
+    private int mPending;
+    private final ArrayList<Step> mSteps = new ArrayList<Step>();
+
+    PhoneStartup() {
+        mStartTime = SystemClock.elapsedRealtime();
+        mLastMark = mStartTime;
+        sInstance = this;
+    }
+
+    /** The startup of the running process, or null before PhoneApp was created. */
+    static PhoneStartup getInstance() {
+        return sInstance;
+    }
+
+    /** Records the critical path work done since the previous mark. */
+    synchronized void mark(String name) {
+        long now = SystemClock.elapsedRealtime();
+        addStep(name, "critical").millis = now - mLastMark;
+        Log.i(LOG_TAG, "critical " + name + ": " + (now - mLastMark) + " ms");
+        mLastMark = now;
+    }
+
+    /** The process can take calls now; logs how long that took. */
+    synchronized void criticalPathDone() {
+        mReadyMillis = SystemClock.elapsedRealtime() - mStartTime;
+        Log.i(LOG_TAG, "ready for calls after " + mReadyMillis + " ms");
+    }
+
+    /** Runs the initializer on a background thread, starting now. */
+    void runInBackground(final String name, final Runnable initializer) {
+        final Step step = addStep(name, "background");
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runStep(step, initializer);
+            }
+        });
+    }
+
+    /** Runs the initializer on the main thread once it first goes idle. */
+    void runWhenIdle(final String name, final Runnable initializer) {
+        final Step step = addStep(name, "idle");
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            public boolean queueIdle() {
+                runStep(step, initializer);
+                return false;
+            }
+        });
+    }
+
+    /** Milliseconds from the start of onCreate() to criticalPathDone(), or -1. */
+    synchronized long getReadyMillis() {
+        return mReadyMillis;
+    }
+
+    /** True once every background and idle initializer has finished. */
+    synchronized boolean isDone() {
+        return mPending == 0;
+    }
+
+    /** Copies of the steps; a step that hasn't run yet has millis -1. */
+    synchronized ArrayList<Step> getSteps() {
+        ArrayList<Step> steps = new ArrayList<Step>(mSteps.size());
+        for (Step step : mSteps) {
+            Step copy = new Step(step.name, step.kind);
+            copy.millis = step.millis;
+            steps.add(copy);
+        }
+        return steps;
+    }
+
+    private synchronized Step addStep(String name, String kind) {
+        Step step = new Step(name, kind);
+        mSteps.add(step);
+        if (!"critical".equals(kind)) mPending++;
+        return step;
+    }
+
+    private void runStep(Step step, Runnable initializer) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            initializer.run();
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, step.name + " failed", e);
+        }
+        long millis = SystemClock.elapsedRealtime() - start;
+        synchronized (this) {
+            step.millis = millis;
+            mPending--;
+        }
+        Log.i(LOG_TAG, step.kind + " " + step.name + ": " + millis + " ms");
+    }
+}
@@ -36,6 +36,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
@@ -1298,6 +1299,9 @@ public class PhoneUtils {
 
         public CallerInfo currentInfo;
         public CallerInfoAsyncQuery asyncQuery;
+
+        /** When asyncQuery was started, for the CallerInfoCache statistics */
+        long queryStartTime;
     }
 
     /**
@@ -1438,7 +1442,22 @@ public class PhoneUtils {
                 if (cit.currentInfo.numberPresentation != Connection.PRESENTATION_ALLOWED) {
                     cit.isFinal = true;
                 } else {
+                    CallerInfoCache cache = CallerInfoCache.getInstance();
+                    CallerInfo cachedInfo = (cache != null) ? cache.get(number) : null;
+                    if (cachedInfo != null) {
+                        // Repeat caller: no query needed, so this behaves
+                        // as if the query had already completed.
+                        if (DBG) log("==> CallerInfo found in CallerInfoCache");
+                        cachedInfo.cnapName = cit.currentInfo.cnapName;
+                        cachedInfo.numberPresentation = cit.currentInfo.numberPresentation;
+                        cachedInfo.namePresentation = cit.currentInfo.namePresentation;
+                        cit.currentInfo = cachedInfo;
+                        cit.isFinal = true;
+                        c.setUserData(cachedInfo);
+                        return cit;
+                    }
                     if (DBG) log("==> Actually starting CallerInfoAsyncQuery.startQuery()...");
+                    cit.queryStartTime = SystemClock.elapsedRealtime();
                     cit.asyncQuery = CallerInfoAsyncQuery.startQuery(QUERY_TOKEN, context,
                             number, sCallerInfoQueryListener, c);
                     cit.asyncQuery.addQueryListener(QUERY_TOKEN, listener, cookie);
@@ -1552,6 +1571,13 @@ public class PhoneUtils {
             public void onQueryComplete(int token, Object cookie, CallerInfo ci) {
                 if (DBG) log("query complete, updating connection.userdata");
                 Connection conn = (Connection) cookie;
+                CallerInfoCache cache = CallerInfoCache.getInstance();
+                Object userData = conn.getUserData();
+                if (cache != null && userData instanceof CallerInfoToken
+                        && ((CallerInfoToken) userData).queryStartTime > 0) {
+                    cache.addQueryTime(SystemClock.elapsedRealtime()
+                            - ((CallerInfoToken) userData).queryStartTime);
+                }
 
                 // Added a check if CallerInfo is coming from ContactInfo or from Connection.
                 // If no ContactInfo, then we want to use CNAP information coming from network
@@ -1576,6 +1602,7 @@ public class PhoneUtils {
                     if (0 == ci.numberPresentation) {
                         ci.numberPresentation = conn.getNumberPresentation();
                     }
+                    if (cache != null) cache.put(conn.getAddress(), ci);
                 } else {
                     // No matching contact was found for this number.
                     // Return a new CallerInfo based solely on the CNAP
@@ -1990,7 +2017,7 @@ public class PhoneUtils {
                      event.getRepeatCount() == 0) {
                 Connection c = phone.getForegroundCall().getLatestConnection();
                 // If it is NOT an emg #, toggle the mute state. Otherwise, ignore the hook.
-                if (c != null && !PhoneNumberUtils.isLocalEmergencyNumber(
+                if (c != null && !EmergencyNumberMatcher.isLocalEmergencyNumber(
                          c.getAddress(), PhoneApp.getInstance().mContext)) {
                     if (getMute()) {
                         if (DBG) log("handleHeadsetHook: UNmuting...");
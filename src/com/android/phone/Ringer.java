@@ -16,10 +16,13 @@
 
 package com.android.phone;
 
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
 import android.media.AudioManager;
-import android.media.Ringtone;
-import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.IPowerManager;
@@ -33,8 +36,17 @@ import android.os.Vibrator;
 import android.util.Log;
 
 import com.android.internal.telephony.Phone;
+
+import java.io.PrintWriter;
+
 /**
  * Ringer manager for the Phone app.
+ *
+ * All the alerts for an incoming call (ringtone, vibration and attention
+ * light) are driven from one timeline, on the long-lived ringer thread.
+ * ring() and stopRing() only post to it, so the outputs start and stop
+ * together, and the time from each ring event until each output actually
+ * happened is recorded (see dump()).
  */
 public class Ringer {
     private static final String LOG_TAG = "Ringer";
@@ -42,27 +54,78 @@ public class Ringer {
             (PhoneApp.DBG_LEVEL >= 1) && (SystemProperties.getInt("ro.debuggable", 0) == 1);
 
     private static final int PLAY_RING_ONCE = 1;
+    private static final int RING_EVENT = 2;
     private static final int STOP_RING = 3;
+    private static final int RELEASE_RINGTONES = 4;
+    private static final int TRIM_RINGTONE_CACHE = 5;
+    private static final int VIBRATE_ONCE = 6;
+
+    // Outputs a RING_EVENT starts, in arg1
+    private static final int ALERT_RINGTONE = 1;
+    private static final int ALERT_VIBRATE = 2;
 
     private static final int VIBRATE_LENGTH = 1000; // ms
     private static final int PAUSE_LENGTH = 1000; // ms
 
+    // How long the last ringtone stays prepared after it stopped ringing
+    private static final long RINGTONE_IDLE_TIMEOUT_MS = 60 * 1000;
+
     /** The singleton instance. */
     private static Ringer sInstance;
 
     // Uri for the ringtone.
     Uri mCustomRingtoneUri;
 
-    Ringtone mRingtone;
+    RingtoneCache.PreparedRingtone mRingtone;
     Vibrator mVibrator = new Vibrator();
     IPowerManager mPowerManager;
-    volatile boolean mContinueVibrating;
-    VibratorThread mVibratorThread;
     Context mContext;
-    private Worker mRingThread;
-    private Handler mRingHandler;
+    // One ringer thread for the life of the process, so an incoming call
+    // doesn't have to wait for a thread to start.
+    private final Worker mRingThread;
+    private final Handler mRingHandler;
+    private final RingtoneCache mRingtoneCache;
+    // True from a ring() that will play the ringtone until stopRing()
+    private boolean mRingRequested;
+    // True from a ring() that started vibrating until stopRing()
+    private boolean mVibrating;
+
+    // Timeline state; only used on the ringer thread.  Times are uptime.
     private long mFirstRingEventTime = -1;
     private long mFirstRingStartTime = -1;
+    private boolean mVibrateScheduled;
+
+    // How late each output was; guarded by this
+    private final AlertTiming mRingtoneStart = new AlertTiming("ringtone start");
+    private final AlertTiming mRingJitter = new AlertTiming("ringtone");
+    private final AlertTiming mVibrateJitter = new AlertTiming("vibrate");
+    private final AlertTiming mLightJitter = new AlertTiming("attention light");
+
+    /** Count, average and maximum of how late an alert output happened */
+    private static class AlertTiming {
+        final String name;
+        int count;
+        long sum;
+        long max;
+        long last = -1;
+
+        AlertTiming(String name) {
+            this.name = name;
+        }
+
+        void add(long millis) {
+            count++;
+            sum += millis;
+            if (millis > max) max = millis;
+            last = millis;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": n=" + count + " avg=" + ((count > 0) ? sum / count : 0) + "ms"
+                    + " max=" + max + "ms last=" + last + "ms";
+        }
+    }
 
     /**
      * Initialize the singleton Ringer instance.
@@ -83,6 +146,36 @@ public class Ringer {
     private Ringer(Context context) {
         mContext = context;
         mPowerManager = IPowerManager.Stub.asInterface(ServiceManager.getService(Context.POWER_SERVICE));
+        mRingtoneCache = new RingtoneCache(context);
+        mRingThread = new Worker("ringer");
+        mRingHandler = new RingHandler(mRingThread.getLooper());
+
+        // A prepared custom ringtone keeps its file open, which would keep
+        // the storage it is on from being unmounted.
+        IntentFilter ejectFilter = new IntentFilter(Intent.ACTION_MEDIA_EJECT);
+        ejectFilter.addDataScheme("file");
+        context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                mRingHandler.sendEmptyMessage(RELEASE_RINGTONES);
+            }
+        }, ejectFilter);
+
+        // Give back the prepared ringtones when memory gets tight.
+        context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_MODERATE) {
+                    mRingHandler.sendEmptyMessage(TRIM_RINGTONE_CACHE);
+                }
+            }
+
+            public void onLowMemory() {
+                mRingHandler.sendEmptyMessage(TRIM_RINGTONE_CACHE);
+            }
+
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
     }
 
     /**
@@ -121,7 +214,8 @@ public class Ringer {
     private boolean isRingtonePlaying() {
         synchronized (this) {
             return (mRingtone != null && mRingtone.isPlaying()) ||
-                    (mRingHandler != null && mRingHandler.hasMessages(PLAY_RING_ONCE));
+                    mRingHandler.hasMessages(PLAY_RING_ONCE) ||
+                    (mRingRequested && mRingHandler.hasMessages(RING_EVENT));
         }
     }
 
@@ -132,64 +226,37 @@ public class Ringer {
      */
     private boolean isVibrating() {
         synchronized (this) {
-            return (mVibratorThread != null);
+            return mVibrating;
         }
     }
 
     /**
-     * Starts the ringtone and/or vibrator
+     * Starts the ringtone and/or vibrator, and the attention light.  This
+     * only decides which outputs to use; they are started by the ringer
+     * thread, timed from now.
      */
     void ring() {
         if (DBG) log("ring()...");
+        CallLatencyRecorder.getInstance().record(CallLatencyRecorder.STAGE_RING);
 
         synchronized (this) {
-            try {
-                if (PhoneApp.getInstance().showBluetoothIndication()) {
-                    mPowerManager.setAttentionLight(true, 0x000000ff);
-		} else {
-                    mPowerManager.setAttentionLight(true, 0x00ffffff);
-		}
-            } catch (RemoteException ex) {
-                // the other end of this binder call is in the system process.
-            }
-
-            if (shouldVibrate() && mVibratorThread == null) {
-                mContinueVibrating = true;
-                mVibratorThread = new VibratorThread();
+            int alerts = 0;
+            if (shouldVibrate() && !mVibrating) {
                 if (DBG) log("- starting vibrator...");
-                mVibratorThread.start();
+                mVibrating = true;
+                alerts |= ALERT_VIBRATE;
             }
             AudioManager audioManager =
                     (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
-
             if (audioManager.getStreamVolume(AudioManager.STREAM_RING) == 0) {
                 if (DBG) log("skipping ring because volume is zero");
-                return;
-            }
-
-            makeLooper();
-            if (mFirstRingEventTime < 0) {
-                mFirstRingEventTime = SystemClock.elapsedRealtime();
-                mRingHandler.sendEmptyMessage(PLAY_RING_ONCE);
             } else {
-                // For repeat rings, figure out by how much to delay
-                // the ring so that it happens the correct amount of
-                // time after the previous ring
-                if (mFirstRingStartTime > 0) {
-                    // Delay subsequent rings by the delta between event
-                    // and play time of the first ring
-                    if (DBG) {
-                        log("delaying ring by " + (mFirstRingStartTime - mFirstRingEventTime));
-                    }
-                    mRingHandler.sendEmptyMessageDelayed(PLAY_RING_ONCE,
-                            mFirstRingStartTime - mFirstRingEventTime);
-                } else {
-                    // We've gotten two ring events so far, but the ring
-                    // still hasn't started. Reset the event time to the
-                    // time of this event to maintain correct spacing.
-                    mFirstRingEventTime = SystemClock.elapsedRealtime();
-                }
+                mRingRequested = true;
+                alerts |= ALERT_RINGTONE;
             }
+            int lightColor = PhoneApp.getInstance().showBluetoothIndication()
+                    ? 0x000000ff : 0x00ffffff;
+            mRingHandler.sendMessage(mRingHandler.obtainMessage(RING_EVENT, alerts, lightColor));
         }
     }
 
@@ -200,51 +267,31 @@ public class Ringer {
 
     /**
      * Stops the ringtone and/or vibrator if any of these are actually
-     * ringing/vibrating.
+     * ringing/vibrating, and the attention light.  Nothing that was
+     * scheduled for the current call plays after this.
      */
     void stopRing() {
         synchronized (this) {
             if (DBG) log("stopRing()...");
 
-            try {
-                mPowerManager.setAttentionLight(false, 0x00000000);
-            } catch (RemoteException ex) {
-                // the other end of this binder call is in the system process.
-            }
+            mRingHandler.removeMessages(RING_EVENT);
+            mRingHandler.removeMessages(PLAY_RING_ONCE);
+            mRingHandler.removeMessages(VIBRATE_ONCE);
+            Message msg = mRingHandler.obtainMessage(STOP_RING);
+            msg.obj = mRingtone;
+            mRingHandler.sendMessage(msg);
 
-            if (mRingHandler != null) {
-                mRingHandler.removeCallbacksAndMessages(null);
-                Message msg = mRingHandler.obtainMessage(STOP_RING);
-                msg.obj = mRingtone;
-                mRingHandler.sendMessage(msg);
+            if (mRingRequested) {
                 PhoneUtils.setAudioMode();
-                mRingThread = null;
-                mRingHandler = null;
+                mRingRequested = false;
                 mRingtone = null;
-                mFirstRingEventTime = -1;
-                mFirstRingStartTime = -1;
             } else {
-                if (DBG) log("- stopRing: null mRingHandler!");
+                if (DBG) log("- stopRing: not ringing!");
             }
-
-            if (mVibratorThread != null) {
-                if (DBG) log("- stopRing: cleaning up vibrator thread...");
-                mContinueVibrating = false;
-                mVibratorThread = null;
-            }
-            // Also immediately cancel any vibration in progress.
-            mVibrator.cancel();
+            mVibrating = false;
         }
     }
 
-    private class VibratorThread extends Thread {
-        public void run() {
-            while (mContinueVibrating) {
-                mVibrator.vibrate(VIBRATE_LENGTH);
-                SystemClock.sleep(VIBRATE_LENGTH + PAUSE_LENGTH);
-            }
-        }
-    }
     private class Worker implements Runnable {
         private final Object mLock = new Object();
         private Looper mLooper;
@@ -282,7 +329,7 @@ public class Ringer {
 
     /**
      * Sets the ringtone uri in preparation for ringtone creation
-     * in makeLooper().  This uri is defaulted to the phone-wide
+     * on the ringer thread.  This uri is defaulted to the phone-wide
      * default ringtone.
      */
     void setCustomRingtoneUri (Uri uri) {
@@ -291,50 +338,153 @@ public class Ringer {
         }
     }
 
-    private void makeLooper() {
-        if (mRingThread == null) {
-            mRingThread = new Worker("ringer");
-            mRingHandler = new Handler(mRingThread.getLooper()) {
-                @Override
-                public void handleMessage(Message msg) {
-                    Ringtone r = null;
-                    switch (msg.what) {
-                        case PLAY_RING_ONCE:
-                            if (DBG) log("mRingHandler: PLAY_RING_ONCE...");
-                            if (mRingtone == null && !hasMessages(STOP_RING)) {
-                                // create the ringtone with the uri
-                                if (DBG) log("creating ringtone: " + mCustomRingtoneUri);
-                                r = RingtoneManager.getRingtone(mContext, mCustomRingtoneUri);
-                                synchronized (Ringer.this) {
-                                    if (!hasMessages(STOP_RING)) {
-                                        mRingtone = r;
-                                    }
-                                }
-                            }
-                            r = mRingtone;
-                            if (r != null && !hasMessages(STOP_RING) && !r.isPlaying()) {
-                                PhoneUtils.setAudioMode();
-                                r.play();
-                                synchronized (Ringer.this) {
-                                    if (mFirstRingStartTime < 0) {
-                                        mFirstRingStartTime = SystemClock.elapsedRealtime();
-                                    }
-                                }
+    void dump(PrintWriter pw) {
+        synchronized (this) {
+            pw.println("Ringer: first ring() of a call to its ringtone playing:");
+            pw.println("  " + mRingtoneStart);
+            pw.println("  output later than scheduled by the ring events:");
+            pw.println("  " + mRingJitter);
+            pw.println("  " + mVibrateJitter);
+            pw.println("  " + mLightJitter);
+        }
+        mRingtoneCache.dump(pw);
+    }
+
+    /** Time from ring() until the ringtone of the last call started, or -1. */
+    synchronized long getLastRingLatencyMillis() {
+        return mRingtoneStart.last;
+    }
+
+    private void setAttentionLight(boolean on, int color) {
+        try {
+            mPowerManager.setAttentionLight(on, color);
+        } catch (RemoteException ex) {
+            // the other end of this binder call is in the system process.
+        }
+    }
+
+    private class RingHandler extends Handler {
+        RingHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            RingtoneCache.PreparedRingtone r = null;
+            // Scheduled time on the timeline; msg is recycled after this.
+            final long when = msg.getWhen();
+            switch (msg.what) {
+                case RING_EVENT:
+                    if (DBG) log("mRingHandler: RING_EVENT...");
+                    setAttentionLight(true, msg.arg2);
+                    synchronized (Ringer.this) {
+                        mLightJitter.add(SystemClock.uptimeMillis() - when);
+                    }
+                    if ((msg.arg1 & ALERT_VIBRATE) != 0 && !mVibrateScheduled) {
+                        mVibrateScheduled = true;
+                        sendMessageAtTime(obtainMessage(VIBRATE_ONCE), when);
+                    }
+                    if ((msg.arg1 & ALERT_RINGTONE) != 0) {
+                        scheduleRing(when);
+                    }
+                    break;
+                case VIBRATE_ONCE:
+                    mVibrator.vibrate(VIBRATE_LENGTH);
+                    synchronized (Ringer.this) {
+                        mVibrateJitter.add(SystemClock.uptimeMillis() - when);
+                    }
+                    // Keep to the timeline, however late this one was
+                    sendMessageAtTime(obtainMessage(VIBRATE_ONCE),
+                            when + VIBRATE_LENGTH + PAUSE_LENGTH);
+                    break;
+                case PLAY_RING_ONCE:
+                    if (DBG) log("mRingHandler: PLAY_RING_ONCE...");
+                    if (mRingtone == null && !hasMessages(STOP_RING)) {
+                        // get the ringtone for the uri, prepared if it's cached
+                        if (DBG) log("getting ringtone: " + mCustomRingtoneUri);
+                        r = mRingtoneCache.get(mCustomRingtoneUri);
+                        boolean stopped;
+                        synchronized (Ringer.this) {
+                            stopped = hasMessages(STOP_RING);
+                            if (!stopped) {
+                                mRingtone = r;
                             }
-                            break;
-                        case STOP_RING:
-                            if (DBG) log("mRingHandler: STOP_RING...");
-                            r = (Ringtone) msg.obj;
-                            if (r != null) {
-                                r.stop();
-                            } else {
-                                if (DBG) log("- STOP_RING with null ringtone!  msg = " + msg);
+                        }
+                        if (stopped) {
+                            mRingtoneCache.done(r);
+                        }
+                    }
+                    r = mRingtone;
+                    if (r != null && !hasMessages(STOP_RING) && !r.isPlaying()) {
+                        PhoneUtils.setAudioMode();
+                        r.play();
+                        long now = SystemClock.uptimeMillis();
+                        synchronized (Ringer.this) {
+                            mRingJitter.add(now - when);
+                            if (mFirstRingStartTime < 0) {
+                                mFirstRingStartTime = now;
+                                mRingtoneStart.add(now - mFirstRingEventTime);
+                                if (DBG) log("ringtone started " + (now - mFirstRingEventTime)
+                                        + " ms after ring()");
                             }
-                            getLooper().quit();
-                            break;
+                        }
                     }
-                }
-            };
+                    break;
+                case STOP_RING:
+                    if (DBG) log("mRingHandler: STOP_RING...");
+                    // Drop what a RING_EVENT that was running meanwhile scheduled
+                    removeMessages(PLAY_RING_ONCE);
+                    removeMessages(VIBRATE_ONCE);
+                    mVibrator.cancel();
+                    setAttentionLight(false, 0x00000000);
+                    mVibrateScheduled = false;
+                    mFirstRingEventTime = -1;
+                    mFirstRingStartTime = -1;
+
+                    r = (RingtoneCache.PreparedRingtone) msg.obj;
+                    if (r != null) {
+                        // A cached ringtone stays prepared for a while, in
+                        // case another call follows.
+                        mRingtoneCache.done(r);
+                    } else {
+                        if (DBG) log("- STOP_RING with null ringtone!  msg = " + msg);
+                    }
+                    removeMessages(TRIM_RINGTONE_CACHE);
+                    sendEmptyMessageDelayed(TRIM_RINGTONE_CACHE, RINGTONE_IDLE_TIMEOUT_MS);
+                    break;
+                case RELEASE_RINGTONES:
+                    synchronized (Ringer.this) {
+                        r = mRingtone;
+                    }
+                    mRingtoneCache.clear(r);
+                    break;
+                case TRIM_RINGTONE_CACHE:
+                    synchronized (Ringer.this) {
+                        r = mRingtone;
+                    }
+                    mRingtoneCache.trim(r);
+                    break;
+            }
+        }
+
+        /** Schedules the ringtone for the ring event at the given time. */
+        private void scheduleRing(long eventTime) {
+            if (mFirstRingEventTime < 0) {
+                mFirstRingEventTime = eventTime;
+                sendMessageAtTime(obtainMessage(PLAY_RING_ONCE), eventTime);
+            } else if (mFirstRingStartTime > 0) {
+                // For repeat rings, keep the delta between event and play
+                // time of the first ring, so that each ring happens the
+                // correct amount of time after the previous one.
+                long delay = mFirstRingStartTime - mFirstRingEventTime;
+                if (DBG) log("delaying ring by " + delay);
+                sendMessageAtTime(obtainMessage(PLAY_RING_ONCE), eventTime + delay);
+            } else {
+                // We've gotten two ring events so far, but the ring
+                // still hasn't started. Reset the event time to the
+                // time of this event to maintain correct spacing.
+                mFirstRingEventTime = eventTime;
+            }
         }
     }
 
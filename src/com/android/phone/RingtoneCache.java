@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.media.Ringtone;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the last prepared ringtone, used by the Ringer.
+ *
+ * Most of the time between an incoming call and the first ring goes into
+ * setting up a MediaPlayer for the ringtone: resolving the default
+ * ringtone, opening the file and preparing the decoder.  The ringtone
+ * played last is kept prepared here.  Stopping it only rewinds it, so a
+ * call that soon follows with the same ringtone starts playing right away.
+ *
+ * A prepared player holds a mediaserver decoder and an open file, which
+ * for a custom ringtone on external storage keeps it from being unmounted.
+ * So at most MAX_ENTRIES players are kept, whose sources add up to at most
+ * MAX_BYTES; bigger ringtones are played uncached.  Ringtones that can't
+ * be opened here are played through RingtoneManager, also uncached.
+ * {@link #trim} releases everything not in use; the Ringer calls it once
+ * the ringer has been idle for a while and under memory pressure.
+ * {@link #clear} also lets go of the ringtone in use, for media eject.
+ *
+ * Only used from the ringer thread, except for {@link #dump}.
+ */
+class RingtoneCache {
+    private static final String LOG_TAG = "RingtoneCache";
+    private static final boolean DBG =
+            (PhoneApp.DBG_LEVEL >= 1) && (SystemProperties.getInt("ro.debuggable", 0) == 1);
+
+    /** Only the ringtone of the current or last call */
+    static final int MAX_ENTRIES = 1;
+
+    /** Budget for the sizes of the cached ringtone files */
+    static final long MAX_BYTES = 2 * 1024 * 1024;
+
+    /**
+     * A ringtone handed out by the cache: a prepared MediaPlayer, or a
+     * Ringtone from RingtoneManager when the uri couldn't be opened here.
+     * isPlaying() may be called from any thread.
+     */
+    static class PreparedRingtone {
+        final Uri uri;
+        final long bytes;
+        private MediaPlayer mPlayer;
+        private Ringtone mRingtone;
+
+        private PreparedRingtone(Uri uri, long bytes, MediaPlayer player) {
+            this.uri = uri;
+            this.bytes = bytes;
+            mPlayer = player;
+        }
+
+        private PreparedRingtone(Uri uri, Ringtone ringtone) {
+            this.uri = uri;
+            this.bytes = 0;
+            mRingtone = ringtone;
+        }
+
+        synchronized void play() {
+            if (mPlayer != null) {
+                mPlayer.start();
+            } else if (mRingtone != null) {
+                mRingtone.play();
+            }
+        }
+
+        synchronized boolean isPlaying() {
+            if (mPlayer != null) return mPlayer.isPlaying();
+            return mRingtone != null && mRingtone.isPlaying();
+        }
+
+        /** Stops playing.  A prepared player is rewound, ready to play again. */
+        synchronized void stop() {
+            if (mPlayer != null) {
+                if (mPlayer.isPlaying()) mPlayer.pause();
+                mPlayer.seekTo(0);
+            } else if (mRingtone != null) {
+                mRingtone.stop();
+            }
+        }
+
+        synchronized void release() {
+            if (mPlayer != null) {
+                mPlayer.release();
+                mPlayer = null;
+            }
+            if (mRingtone != null) {
+                mRingtone.stop();
+                mRingtone = null;
+            }
+        }
+    }
+
+    private final Context mContext;
+
+    // Keyed by the actual ringtone uri, with the default ringtone resolved.
+    // Access ordered, so the eldest entry is the least recently used one.
+    private final LinkedHashMap<Uri, PreparedRingtone> mEntries =
+            new LinkedHashMap<Uri, PreparedRingtone>(MAX_ENTRIES, 0.75f, true);
+    private long mBytes;
+
+    private int mHits;
+    private int mMisses;
+    private int mUncached;
+    private int mTrims;
+
+    RingtoneCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns the ringtone for the uri, prepared and ready to play, or null
+     * if there's nothing to play.  Hand it back with {@link #done} once it
+     * has been stopped.
+     */
+    synchronized PreparedRingtone get(Uri uri) {
+        Uri actual = resolve(uri);
+        PreparedRingtone r = (actual != null) ? mEntries.get(actual) : null;
+        if (r != null) {
+            mHits++;
+            return r;
+        }
+        mMisses++;
+
+        r = (actual != null) ? prepare(actual) : null;
+        if (r == null) {
+            mUncached++;
+            Ringtone ringtone = RingtoneManager.getRingtone(mContext, uri);
+            return (ringtone != null) ? new PreparedRingtone(uri, ringtone) : null;
+        }
+        if (r.bytes < 0 || r.bytes > MAX_BYTES) {
+            if (DBG) log("not caching " + actual + ", " + r.bytes + " bytes");
+            mUncached++;
+            return r;
+        }
+        mEntries.put(actual, r);
+        mBytes += r.bytes;
+        evict(r);
+        return r;
+    }
+
+    /** Stops a ringtone got from get(); it is released unless it is cached. */
+    synchronized void done(PreparedRingtone r) {
+        if (r == null) return;
+        r.stop();
+        if (!mEntries.containsValue(r)) r.release();
+    }
+
+    /** Releases every cached ringtone except the one in use, if any. */
+    synchronized void trim(PreparedRingtone inUse) {
+        if (DBG) log("trim: " + mEntries.size() + " entries, " + mBytes + " bytes");
+        Iterator<PreparedRingtone> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            PreparedRingtone r = it.next();
+            if (r == inUse) continue;
+            it.remove();
+            mBytes -= r.bytes;
+            r.release();
+        }
+        mTrims++;
+    }
+
+    /**
+     * Drops every cached ringtone.  The one in use, if any, is released
+     * once it is handed back with {@link #done}.
+     */
+    synchronized void clear(PreparedRingtone inUse) {
+        if (DBG) log("clear: " + mEntries.size() + " entries");
+        for (PreparedRingtone r : mEntries.values()) {
+            if (r != inUse) r.release();
+        }
+        mEntries.clear();
+        mBytes = 0;
+        mTrims++;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("RingtoneCache: entries=" + mEntries.size() + "/" + MAX_ENTRIES
+                + " bytes=" + mBytes + "/" + MAX_BYTES
+                + " hits=" + mHits + " misses=" + mMisses
+                + " uncached=" + mUncached + " trims=" + mTrims);
+    }
+
+    synchronized int getHits() {
+        return mHits;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /** Drops the least recently used entries, but not keep, until within bounds. */
+    private void evict(PreparedRingtone keep) {
+        Iterator<Map.Entry<Uri, PreparedRingtone>> it = mEntries.entrySet().iterator();
+        while ((mEntries.size() > MAX_ENTRIES || mBytes > MAX_BYTES) && it.hasNext()) {
+            PreparedRingtone r = it.next().getValue();
+            if (r == keep) continue;
+            if (DBG) log("evicting " + r.uri);
+            it.remove();
+            mBytes -= r.bytes;
+            r.release();
+        }
+    }
+
+    /** The uri actually played; the default ringtone uris point to another one. */
+    private Uri resolve(Uri uri) {
+        if (uri != null && RingtoneManager.isDefault(uri)) {
+            return RingtoneManager.getActualDefaultRingtoneUri(mContext,
+                    RingtoneManager.getDefaultType(uri));
+        }
+        return uri;
+    }
+
+    /** Opens and prepares a player for the uri, or returns null if that fails. */
+    private PreparedRingtone prepare(Uri uri) {
+        MediaPlayer player = new MediaPlayer();
+        AssetFileDescriptor afd = null;
+        try {
+            afd = mContext.getContentResolver().openAssetFileDescriptor(uri, "r");
+            if (afd == null) {
+                player.release();
+                return null;
+            }
+            if (afd.getDeclaredLength() < 0) {
+                player.setDataSource(afd.getFileDescriptor());
+            } else {
+                player.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(),
+                        afd.getDeclaredLength());
+            }
+            player.setAudioStreamType(AudioManager.STREAM_RING);
+            player.prepare();
+            return new PreparedRingtone(uri, afd.getLength(), player);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Couldn't prepare ringtone " + uri, e);
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Couldn't prepare ringtone " + uri, e);
+        } catch (IllegalStateException e) {
+            Log.w(LOG_TAG, "Couldn't prepare ringtone " + uri, e);
+        } catch (SecurityException e) {
+            Log.w(LOG_TAG, "Couldn't prepare ringtone " + uri, e);
+        } finally {
+            if (afd != null) {
+                try {
+                    afd.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        player.release();
+        return null;
+    }
+
+    private static void log(String msg) {
+        Log.d(LOG_TAG, msg);
+    }
+}
@@ -35,6 +35,7 @@ import android.net.Uri;
 import android.net.sip.SipException;
 import android.net.sip.SipManager;
 import android.net.sip.SipProfile;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.SystemProperties;
 import android.provider.Settings;
@@ -88,6 +89,8 @@ public class SipCallOptionHandler extends Activity implements
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        CallLatencyRecorder.getOutgoingInstance().record(
+                CallLatencyRecorder.STAGE_SIP_OPTION_HANDLER);
 
         Intent intent = getIntent();
         String action = intent.getAction();
@@ -199,7 +202,7 @@ public class SipCallOptionHandler extends Activity implements
             // If there is no sip profile and it is a regular call, then we
             // should use pstn network instead.
             if ((mSipProfileDb.getProfilesCount() > 0) || !isRegularCall) {
-                startGetPrimarySipPhoneThread();
+                getPrimarySipPhone();
                 return;
             } else {
                 mUseSipPhone = false;
@@ -315,7 +318,7 @@ public class SipCallOptionHandler extends Activity implements
             if (DBG) Log.v(TAG, "User pick phone " + selection);
             if (selection.equals(getString(R.string.internet_phone))) {
                 mUseSipPhone = true;
-                startGetPrimarySipPhoneThread();
+                getPrimarySipPhone();
                 return;
             }
         } else if (dialog == mDialogs[DIALOG_SELECT_OUTGOING_SIP_PHONE]) {
@@ -369,34 +372,30 @@ public class SipCallOptionHandler extends Activity implements
     }
 
     private void setResultAndFinish() {
-        runOnUiThread(new Runnable() {
-            public void run() {
-                if (mOutgoingSipProfile != null) {
-                    if (!isNetworkConnected()) {
-                        showDialog(DIALOG_NO_INTERNET_ERROR);
-                        return;
-                    }
-                    if (DBG) Log.v(TAG, "primary SIP URI is " +
-                            mOutgoingSipProfile.getUriString());
-                    createSipPhoneIfNeeded(mOutgoingSipProfile);
-                    mIntent.putExtra(OutgoingCallBroadcaster.EXTRA_SIP_PHONE_URI,
-                            mOutgoingSipProfile.getUriString());
-                    if (mMakePrimary) {
-                        mSipSharedPreferences.setPrimaryAccount(
-                                mOutgoingSipProfile.getUriString());
-                    }
-                }
-
-                if (mUseSipPhone && mOutgoingSipProfile == null) {
-                    showDialog(DIALOG_START_SIP_SETTINGS);
-                    return;
-                } else {
-                    // Woo hoo -- it's finally OK to initiate the outgoing call!
-                    PhoneApp.getInstance().callController.placeCall(mIntent);
-                }
-                finish();
+        if (mOutgoingSipProfile != null) {
+            if (!isNetworkConnected()) {
+                showDialog(DIALOG_NO_INTERNET_ERROR);
+                return;
+            }
+            if (DBG) Log.v(TAG, "primary SIP URI is " +
+                    mOutgoingSipProfile.getUriString());
+            createSipPhoneIfNeeded(mOutgoingSipProfile);
+            mIntent.putExtra(OutgoingCallBroadcaster.EXTRA_SIP_PHONE_URI,
+                    mOutgoingSipProfile.getUriString());
+            if (mMakePrimary) {
+                mSipSharedPreferences.setPrimaryAccount(
+                        mOutgoingSipProfile.getUriString());
             }
-        });
+        }
+
+        if (mUseSipPhone && mOutgoingSipProfile == null) {
+            showDialog(DIALOG_START_SIP_SETTINGS);
+            return;
+        } else {
+            // Woo hoo -- it's finally OK to initiate the outgoing call!
+            PhoneApp.getInstance().callController.placeCall(mIntent);
+        }
+        finish();
     }
 
     private boolean isNetworkConnected() {
@@ -412,37 +411,39 @@ public class SipCallOptionHandler extends Activity implements
         return false;
     }
 
-    private void startGetPrimarySipPhoneThread() {
-        new Thread(new Runnable() {
-            public void run() {
-                getPrimarySipPhone();
+    // Once OutgoingCallRouter has preloaded the profiles they are held in
+    // memory by SipProfileDb, indexed by URI, so the lookup is cheap enough
+    // for the UI thread. Until then they are read in the background.
+    private void getPrimarySipPhone() {
+        if (mSipProfileDb.isLoaded()) {
+            onPrimarySipPhoneLoaded();
+            return;
+        }
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                mSipProfileDb.getProfileList();
+                return null;
             }
-        }).start();
+
+            @Override
+            protected void onPostExecute(Void result) {
+                if (!isFinishing()) onPrimarySipPhoneLoaded();
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
-    private void getPrimarySipPhone() {
+    private void onPrimarySipPhoneLoaded() {
         String primarySipUri = mSipSharedPreferences.getPrimaryAccount();
 
-        mOutgoingSipProfile = getPrimaryFromExistingProfiles(primarySipUri);
+        mOutgoingSipProfile = mSipProfileDb.getProfileByUri(primarySipUri);
         if (mOutgoingSipProfile == null) {
-            if ((mProfileList != null) && (mProfileList.size() > 0)) {
-                runOnUiThread(new Runnable() {
-                    public void run() {
-                        showDialog(DIALOG_SELECT_OUTGOING_SIP_PHONE);
-                    }
-                });
+            mProfileList = mSipProfileDb.getProfileList();
+            if (mProfileList.size() > 0) {
+                showDialog(DIALOG_SELECT_OUTGOING_SIP_PHONE);
                 return;
             }
         }
         setResultAndFinish();
     }
-
-    private SipProfile getPrimaryFromExistingProfiles(String primarySipUri) {
-        mProfileList = mSipProfileDb.retrieveSipProfileList();
-        if (mProfileList == null) return null;
-        for (SipProfile p : mProfileList) {
-            if (p.getUriString().equals(primarySipUri)) return p;
-        }
-        return null;
-    }
 }
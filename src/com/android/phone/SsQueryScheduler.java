@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sends the supplementary service queries (call forwarding, call waiting,
+ * CLIR) of the call settings screens for one subscription.
+ *
+ * The screens used to send one query and wait for its answer before
+ * sending the next.  Here the queries of a screen are queued as a
+ * {@link Batch}, and up to config_max_concurrent_ss_queries of them are
+ * outstanding at the RIL at once; the next one is sent as soon as an
+ * answer comes back.  Queries a screen hasn't sent yet are dropped when
+ * it goes away.  Each screen calls Batch.onQueryDone() on the batch that
+ * sent the query for every answer, as the preferences report them through
+ * onFinished().  A query not answered within QUERY_TIMEOUT_MILLIS gives
+ * its place up, so that a lost answer can't hold it forever.
+ *
+ * dump() prints, per screen, how long it took until every query of a
+ * batch was answered.
+ */
+class SsQueryScheduler {
+    private static final String LOG_TAG = "SsQueryScheduler";
+    private static final boolean DBG = (PhoneApp.DBG_LEVEL >= 2);
+
+    /** How long a query sent to the RIL holds its place at most */
+    static final long QUERY_TIMEOUT_MILLIS = 60 * 1000;
+
+    // Guarded by SsQueryScheduler.class
+    private static final SparseArray<SsQueryScheduler> sInstances =
+            new SparseArray<SsQueryScheduler>();
+
+    /**
+     * The queries of one screen.  All methods are called on the main
+     * thread.
+     */
+    final class Batch {
+        private final String mName;
+        private final long mStartTime = SystemClock.uptimeMillis();
+        private int mUnanswered;
+        private boolean mCanceled;
+
+        private Batch(String name) {
+            mName = name;
+        }
+
+        /**
+         * Queues a query; query.run() sends it to the Phone, and the
+         * screen calls {@link #onQueryDone} once it has handled the answer.
+         */
+        void submit(Runnable query) {
+            synchronized (SsQueryScheduler.this) {
+                if (mCanceled) return;
+                mUnanswered++;
+                mPending.add(new Query(this, query));
+            }
+            startQueries();
+        }
+
+        /** The answer to one of the queries sent for this batch has been handled. */
+        void onQueryDone() {
+            synchronized (SsQueryScheduler.this) {
+                if (!removeQuery(mRunning, this)) return;
+                if (--mUnanswered == 0 && !mCanceled) {
+                    long millis = SystemClock.uptimeMillis() - mStartTime;
+                    getStats(mName).populated(millis);
+                    if (DBG) Log.d(LOG_TAG, mName + " populated in " + millis + " ms");
+                }
+            }
+            startQueries();
+        }
+
+        /**
+         * Drops the queries of this batch, e.g. because the screen is going
+         * away or gave up after an error.  The places of the ones already
+         * sent are given to the next batches; their answers are ignored.
+         */
+        void cancel() {
+            synchronized (SsQueryScheduler.this) {
+                if (mCanceled) return;
+                mCanceled = true;
+                if (mUnanswered == 0) return;
+                removeQueries(mPending, this);
+                removeQueries(mRunning, this);
+                mUnanswered = 0;
+                getStats(mName).canceled++;
+            }
+            startQueries();
+        }
+    }
+
+    private static final class Query {
+        final Batch batch;
+        final Runnable query;
+        long sentTime;
+
+        Query(Batch batch, Runnable query) {
+            this.batch = batch;
+            this.query = query;
+        }
+    }
+
+    private static final class Stats {
+        int populated;
+        int canceled;
+        int timedOut;
+        long totalMillis;
+        long maxMillis;
+
+        void populated(long millis) {
+            populated++;
+            totalMillis += millis;
+            if (millis > maxMillis) maxMillis = millis;
+        }
+    }
+
+    private final int mSubscription;
+    private final int mMaxConcurrent;
+    private final long mTimeoutMillis;
+
+    // Guarded by this
+    private final ArrayList<Query> mPending = new ArrayList<Query>();
+    private final ArrayList<Query> mRunning = new ArrayList<Query>();
+    private final HashMap<String, Stats> mStats = new HashMap<String, Stats>();
+
+    /** The scheduler of the given subscription. */
+    static SsQueryScheduler getInstance(Context context, int subscription) {
+        synchronized (SsQueryScheduler.class) {
+            SsQueryScheduler scheduler = sInstances.get(subscription);
+            if (scheduler == null) {
+                scheduler = new SsQueryScheduler(subscription, context.getResources().getInteger(
+                        R.integer.config_max_concurrent_ss_queries));
+                sInstances.put(subscription, scheduler);
+            }
+            return scheduler;
+        }
+    }
+
+    SsQueryScheduler(int subscription, int maxConcurrent) {
+        this(subscription, maxConcurrent, QUERY_TIMEOUT_MILLIS);
+    }
+
+    SsQueryScheduler(int subscription, int maxConcurrent, long timeoutMillis) {
+        mSubscription = subscription;
+        mMaxConcurrent = Math.max(1, maxConcurrent);
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /** Starts a batch of queries for a screen, named for the stats. */
+    Batch newBatch(String name) {
+        return new Batch(name);
+    }
+
+    private void startQueries() {
+        while (true) {
+            Query next;
+            synchronized (this) {
+                if (mPending.isEmpty()) return;
+                if (mRunning.size() >= mMaxConcurrent) {
+                    if (!expireQuery()) return;
+                }
+                next = mPending.remove(0);
+                next.sentTime = SystemClock.uptimeMillis();
+                mRunning.add(next);
+            }
+            next.query.run();
+        }
+    }
+
+    // Gives up the place of the oldest query sent, if it has been waiting
+    // for its answer longer than the timeout.  Called with the lock held.
+    private boolean expireQuery() {
+        Query oldest = mRunning.get(0);
+        if (SystemClock.uptimeMillis() - oldest.sentTime < mTimeoutMillis) return false;
+        Log.w(LOG_TAG, oldest.batch.mName + ": no answer after " + mTimeoutMillis + " ms");
+        mRunning.remove(0);
+        oldest.batch.mUnanswered--;
+        getStats(oldest.batch.mName).timedOut++;
+        return true;
+    }
+
+    private static boolean removeQuery(ArrayList<Query> queries, Batch batch) {
+        for (int i = 0; i < queries.size(); i++) {
+            if (queries.get(i).batch == batch) {
+                queries.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int removeQueries(ArrayList<Query> queries, Batch batch) {
+        int removed = 0;
+        for (int i = queries.size() - 1; i >= 0; i--) {
+            if (queries.get(i).batch == batch) {
+                queries.remove(i);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private Stats getStats(String name) {
+        Stats stats = mStats.get(name);
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(name, stats);
+        }
+        return stats;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("SS queries, subscription " + mSubscription + ": max=" + mMaxConcurrent
+                + " running=" + mRunning.size() + " pending=" + mPending.size());
+        for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+            Stats stats = entry.getValue();
+            pw.println("  " + entry.getKey() + ": populated=" + stats.populated
+                    + " canceled=" + stats.canceled + " timedOut=" + stats.timedOut + " avg="
+                    + ((stats.populated > 0) ? stats.totalMillis / stats.populated : 0)
+                    + "ms max=" + stats.maxMillis + "ms");
+        }
+    }
+
+    static void dumpAll(PrintWriter pw) {
+        synchronized (SsQueryScheduler.class) {
+            for (int i = 0; i < sInstances.size(); i++) {
+                sInstances.valueAt(i).dump(pw);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.telephony.Phone;
+
+/**
+ * The supplementary service state (call waiting, CLIR, call forwarding)
+ * last read from the network for one subscription, so that the call
+ * settings screens can show it as soon as they open.
+ *
+ * A state younger than TTL_MILLIS is shown without asking the network;
+ * an older one is shown while the preference reads it again in the
+ * background.  Each successful read replaces the state, including the
+ * read the preferences do after a set, and a failed read drops it.  The
+ * call forwarding states are also dropped on a call forwarding indication
+ * (see CallNotifier.onCfiChanged()) or when another screen changes call
+ * forwarding, and all of them when an MMI code completes (see
+ * PhoneApp.onMMIComplete()) or the SIM changes.
+ *
+ * Used on the main thread only.
+ */
+class SsStateCache {
+    private static final String LOG_TAG = "SsStateCache";
+    private static final boolean DBG = (PhoneApp.DBG_LEVEL >= 2);
+
+    static final long TTL_MILLIS = 10 * 60 * 1000;
+
+    /** Key of the call waiting state, an int[] from Phone.getCallWaiting() */
+    static final int KEY_CALL_WAITING = -1;
+    /** Key of the CLIR state, an int[] from Phone.getOutgoingCallerIdDisplay() */
+    static final int KEY_CLIR = -2;
+    // Call forwarding states, CallForwardInfo[] from
+    // Phone.getCallForwardingOption(), are keyed by their CF_REASON_*.
+
+    private static final SparseArray<SsStateCache> sInstances = new SparseArray<SsStateCache>();
+
+    private static final class Entry {
+        final Object state;
+        final long time;
+
+        Entry(Object state, long time) {
+            this.state = state;
+            this.time = time;
+        }
+    }
+
+    private final SparseArray<Entry> mEntries = new SparseArray<Entry>();
+    private String mIccId;
+
+    /** The cache of the given subscription. */
+    static SsStateCache getInstance(int subscription) {
+        SsStateCache cache = sInstances.get(subscription);
+        if (cache == null) {
+            cache = new SsStateCache();
+            sInstances.put(subscription, cache);
+        }
+        return cache;
+    }
+
+    /** Drops the call forwarding states of the given subscription. */
+    static void invalidateCallForwarding(int subscription) {
+        SsStateCache cache = sInstances.get(subscription);
+        if (cache != null) cache.removeCallForwarding();
+    }
+
+    /** Drops all the states of the given subscription. */
+    static void invalidate(int subscription) {
+        SsStateCache cache = sInstances.get(subscription);
+        if (cache != null) cache.mEntries.clear();
+    }
+
+    /**
+     * @param phone  the phone of the subscription, to tell if the SIM
+     *     changed since the state was read
+     * @return the state last read for the key, or null if there is none
+     */
+    Object get(Phone phone, int key) {
+        return get(phone.getIccSerialNumber(), key);
+    }
+
+    /** @return true if the state for the key was read less than TTL_MILLIS ago */
+    boolean isFresh(int key) {
+        return isFresh(key, SystemClock.elapsedRealtime());
+    }
+
+    /** Stores a state successfully read from the network. */
+    void put(Phone phone, int key, Object state) {
+        put(phone.getIccSerialNumber(), key, state, SystemClock.elapsedRealtime());
+    }
+
+    Object get(String iccId, int key) {
+        checkSim(iccId);
+        Entry entry = mEntries.get(key);
+        return (entry != null) ? entry.state : null;
+    }
+
+    boolean isFresh(int key, long now) {
+        Entry entry = mEntries.get(key);
+        return (entry != null) && (now - entry.time < TTL_MILLIS);
+    }
+
+    void put(String iccId, int key, Object state, long time) {
+        checkSim(iccId);
+        mEntries.put(key, new Entry(state, time));
+    }
+
+    void remove(int key) {
+        mEntries.remove(key);
+    }
+
+    void removeCallForwarding() {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            if (mEntries.keyAt(i) >= 0) mEntries.removeAt(i);
+        }
+    }
+
+    // The states belong to the SIM they were read with.
+    private void checkSim(String iccId) {
+        if (!TextUtils.equals(iccId, mIccId)) {
+            if (DBG && mEntries.size() > 0) Log.d(LOG_TAG, "SIM changed, dropping SS states");
+            mEntries.clear();
+            mIccId = iccId;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.media.ToneGenerator;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Plays the in-call tones (busy, congestion, call ended, the CDMA tones,
+ * call waiting, ringback...) for CallNotifier, one at a time.
+ *
+ * All tones are played from one long-lived thread, with ToneGenerators
+ * that are kept per stream and volume: while the phone is in use (see
+ * {@link #setKeepWarm}), and for IDLE_RELEASE_MS after the last tone.
+ * So a tone on disconnect doesn't need a new thread or a new native
+ * ToneGenerator.
+ *
+ * A tone of higher priority pre-empts the one playing; a pre-empted tone
+ * that plays until stopped resumes afterwards, a timed one is dropped.
+ * Other tones wait their turn by priority, but timed tones that waited
+ * longer than MAX_WAIT_MS are dropped, being out of date by then.
+ */
+class ToneEngine {
+    private static final String LOG_TAG = "ToneEngine";
+    private static final boolean DBG =
+            (PhoneApp.DBG_LEVEL >= 1) && (SystemProperties.getInt("ro.debuggable", 0) == 1);
+
+    /** Informational tones, like voice privacy or auto redial */
+    static final int PRIORITY_INFO = 0;
+    /** Tones while a call is set up or waiting: ringback, call waiting */
+    static final int PRIORITY_CALL_PROGRESS = 1;
+    /** Tones telling why a call ended: busy, congestion, call ended... */
+    static final int PRIORITY_CALL_END = 2;
+
+    /** Duration of a tone that plays until stop() */
+    static final int UNTIL_STOPPED = -1;
+
+    // Buffer time (in msec) to add on to tone timeout value.
+    // Needed mainly when the timeout value for a tone is the
+    // exact duration of the tone itself.
+    private static final int TONE_TIMEOUT_BUFFER = 20;
+
+    static final long MAX_WAIT_MS = 2000;
+    static final long IDLE_RELEASE_MS = 10000;
+
+    private static final int EVENT_PLAY = 1;
+    private static final int EVENT_STOP = 2;
+    private static final int EVENT_TONE_DONE = 3;
+    private static final int EVENT_RELEASE_IDLE = 4;
+    private static final int EVENT_KEEP_WARM = 5;
+    private static final int EVENT_PREWARM = 6;
+
+    /** One tone to play */
+    static class Request {
+        final int toneType;
+        final int stream;
+        final int volume;
+        final int priority;
+        final int durationMillis;
+        private final Handler mDoneHandler;
+        private final Runnable mOnDone;
+        private long mRequestTime;
+        private boolean mStarted;
+
+        /**
+         * @param toneType  the ToneGenerator tone
+         * @param durationMillis  how long to play it, or UNTIL_STOPPED
+         * @param onDone  posted to doneHandler once the tone has played,
+         *                or was stopped or dropped; may be null
+         */
+        Request(int toneType, int stream, int volume, int priority, int durationMillis,
+                Handler doneHandler, Runnable onDone) {
+            this.toneType = toneType;
+            this.stream = stream;
+            this.volume = volume;
+            this.priority = priority;
+            this.durationMillis = durationMillis;
+            mDoneHandler = doneHandler;
+            mOnDone = onDone;
+        }
+    }
+
+    private static ToneEngine sInstance;
+
+    private final Handler mHandler;
+
+    // Only used on the engine thread
+    private Request mCurrent;
+    private final ArrayList<Request> mQueue = new ArrayList<Request>();
+    private final SparseArray<ToneGenerator> mGenerators = new SparseArray<ToneGenerator>();
+    private boolean mKeepWarm;
+
+    // Guarded by this
+    private int mPlayed;
+    private int mPreempted;
+    private int mDropped;
+    private int mGeneratorsCreated;
+    private long mStartMillis;
+    private long mMaxStartMillis;
+    private long mLastStartMillis = -1;
+
+    /**
+     * Initialize the singleton ToneEngine instance.  This is only done
+     * once, from CallNotifier's constructor.
+     */
+    static ToneEngine init() {
+        synchronized (ToneEngine.class) {
+            if (sInstance == null) {
+                sInstance = new ToneEngine();
+            } else {
+                Log.wtf(LOG_TAG, "init() called multiple times!  sInstance = " + sInstance);
+            }
+            return sInstance;
+        }
+    }
+
+    /** The singleton, or null if it hasn't been initialized. */
+    static ToneEngine getInstance() {
+        return sInstance;
+    }
+
+    private ToneEngine() {
+        HandlerThread thread = new HandlerThread(LOG_TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case EVENT_PLAY:
+                        handlePlay((Request) msg.obj);
+                        break;
+                    case EVENT_STOP:
+                        handleStop((Request) msg.obj);
+                        break;
+                    case EVENT_TONE_DONE:
+                        handleToneDone((Request) msg.obj);
+                        break;
+                    case EVENT_RELEASE_IDLE:
+                        releaseGenerators();
+                        break;
+                    case EVENT_KEEP_WARM:
+                        mKeepWarm = (msg.arg1 != 0);
+                        if (mKeepWarm) {
+                            removeMessages(EVENT_RELEASE_IDLE);
+                        } else if (mCurrent == null) {
+                            sendEmptyMessageDelayed(EVENT_RELEASE_IDLE, IDLE_RELEASE_MS);
+                        }
+                        break;
+                    case EVENT_PREWARM:
+                        getGenerator(msg.arg1, msg.arg2);
+                        break;
+                }
+            }
+        };
+    }
+
+    /** Queues the tone. */
+    void play(Request request) {
+        request.mRequestTime = SystemClock.uptimeMillis();
+        mHandler.obtainMessage(EVENT_PLAY, request).sendToTarget();
+    }
+
+    /** Stops the tone, or drops it if it hasn't started yet. */
+    void stop(Request request) {
+        mHandler.obtainMessage(EVENT_STOP, request).sendToTarget();
+    }
+
+    /**
+     * Whether to keep the ToneGenerators even when no tone is playing;
+     * set while the phone is in use, so the tones at the end of a call
+     * start right away.
+     */
+    void setKeepWarm(boolean keepWarm) {
+        mHandler.obtainMessage(EVENT_KEEP_WARM, keepWarm ? 1 : 0, 0).sendToTarget();
+    }
+
+    /** Creates the ToneGenerator for the stream and volume ahead of the first tone. */
+    void prewarm(int stream, int volume) {
+        mHandler.obtainMessage(EVENT_PREWARM, stream, volume).sendToTarget();
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("ToneEngine: played=" + mPlayed + " preempted=" + mPreempted
+                + " dropped=" + mDropped + " generatorsCreated=" + mGeneratorsCreated);
+        pw.println("  request to tone start: avg="
+                + ((mPlayed > 0) ? mStartMillis / mPlayed : 0) + "ms"
+                + " max=" + mMaxStartMillis + "ms");
+    }
+
+    synchronized int getPlayed() {
+        return mPlayed;
+    }
+
+    /** Time from play() until the last tone started, or -1. */
+    synchronized long getLastStartMillis() {
+        return mLastStartMillis;
+    }
+
+    private void handlePlay(Request request) {
+        mHandler.removeMessages(EVENT_RELEASE_IDLE);
+        if (mCurrent == null) {
+            start(request);
+        } else if (request.priority > mCurrent.priority) {
+            Request preempted = mCurrent;
+            if (DBG) log("tone " + request.toneType + " pre-empts " + preempted.toneType);
+            mHandler.removeMessages(EVENT_TONE_DONE, preempted);
+            stopGenerator(preempted);
+            mCurrent = null;
+            synchronized (this) {
+                mPreempted++;
+            }
+            if (preempted.durationMillis == UNTIL_STOPPED) {
+                enqueue(preempted);
+            } else {
+                finish(preempted);
+            }
+            start(request);
+        } else {
+            enqueue(request);
+        }
+    }
+
+    private void handleStop(Request request) {
+        if (request == mCurrent) {
+            mHandler.removeMessages(EVENT_TONE_DONE, request);
+            stopGenerator(request);
+            mCurrent = null;
+            finish(request);
+            next();
+        } else if (mQueue.remove(request)) {
+            finish(request);
+        }
+    }
+
+    private void handleToneDone(Request request) {
+        if (request != mCurrent) return;
+        stopGenerator(request);
+        mCurrent = null;
+        finish(request);
+        next();
+    }
+
+    // Queued after the requests of the same or higher priority
+    private void enqueue(Request request) {
+        int i = 0;
+        while (i < mQueue.size() && mQueue.get(i).priority >= request.priority) i++;
+        mQueue.add(i, request);
+    }
+
+    private void next() {
+        long now = SystemClock.uptimeMillis();
+        while (!mQueue.isEmpty()) {
+            Request request = mQueue.remove(0);
+            if (request.durationMillis != UNTIL_STOPPED && !request.mStarted
+                    && now - request.mRequestTime > MAX_WAIT_MS) {
+                if (DBG) log("dropping stale tone " + request.toneType);
+                synchronized (this) {
+                    mDropped++;
+                }
+                finish(request);
+                continue;
+            }
+            start(request);
+            if (mCurrent != null) return;
+        }
+        if (!mKeepWarm) mHandler.sendEmptyMessageDelayed(EVENT_RELEASE_IDLE, IDLE_RELEASE_MS);
+    }
+
+    private void start(Request request) {
+        ToneGenerator generator = getGenerator(request.stream, request.volume);
+        if (generator == null) {
+            finish(request);
+            next();
+            return;
+        }
+        generator.startTone(request.toneType);
+        mCurrent = request;
+        if (!request.mStarted) {
+            request.mStarted = true;
+            long millis = SystemClock.uptimeMillis() - request.mRequestTime;
+            synchronized (this) {
+                mPlayed++;
+                mStartMillis += millis;
+                if (millis > mMaxStartMillis) mMaxStartMillis = millis;
+                mLastStartMillis = millis;
+            }
+            if (DBG) log("tone " + request.toneType + " started after " + millis + " ms");
+        }
+        if (request.durationMillis != UNTIL_STOPPED) {
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(EVENT_TONE_DONE, request),
+                    request.durationMillis + TONE_TIMEOUT_BUFFER);
+        }
+    }
+
+    private void finish(Request request) {
+        if (request.mOnDone != null) {
+            request.mDoneHandler.post(request.mOnDone);
+        }
+    }
+
+    private void stopGenerator(Request request) {
+        ToneGenerator generator = mGenerators.get(key(request.stream, request.volume));
+        if (generator != null) generator.stopTone();
+    }
+
+    // If the ToneGenerator creation fails, just continue without it.  It is
+    // a local audio signal, and is not as important.
+    private ToneGenerator getGenerator(int stream, int volume) {
+        int key = key(stream, volume);
+        ToneGenerator generator = mGenerators.get(key);
+        if (generator == null) {
+            try {
+                generator = new ToneGenerator(stream, volume);
+            } catch (RuntimeException e) {
+                Log.w(LOG_TAG, "Exception caught while creating ToneGenerator: " + e);
+                return null;
+            }
+            mGenerators.put(key, generator);
+            synchronized (this) {
+                mGeneratorsCreated++;
+            }
+        }
+        return generator;
+    }
+
+    private void releaseGenerators() {
+        if (mCurrent != null || mKeepWarm) return;
+        if (DBG) log("releasing " + mGenerators.size() + " ToneGenerators");
+        for (int i = 0; i < mGenerators.size(); i++) {
+            mGenerators.valueAt(i).release();
+        }
+        mGenerators.clear();
+    }
+
+    private static int key(int stream, int volume) {
+        return (stream << 8) | volume;
+    }
+
+    private static void log(String msg) {
+        Log.d(LOG_TAG, msg);
+    }
+}
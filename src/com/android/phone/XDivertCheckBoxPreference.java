@@ -129,6 +129,9 @@ public class XDivertCheckBoxPreference extends CheckBoxPreference {
     @Override
     protected void onClick() {
         super.onClick();
+        // Changes CFNRc and call waiting on both subscriptions
+        SsStateCache.invalidate(SUB1);
+        SsStateCache.invalidate(SUB2);
 
         processStartDialog(START, false);
         Log.d(LOG_TAG,"onClick mXdivertStatus = " + mXdivertStatus);
@@ -20,91 +20,349 @@ import com.android.internal.os.AtomicFile;
 
 import android.content.Context;
 import android.net.sip.SipProfile;
+import android.os.Parcel;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Utility class that helps perform operations on the SipProfile database.
+ *
+ * All profiles are kept in a single versioned binary file. The file is
+ * read once per process; after that the profile list is served from an
+ * immutable in-memory snapshot. Updates copy the snapshot, write the
+ * file and then publish the new snapshot, so readers never wait for a
+ * writer. Each snapshot is indexed by profile URI and profile name, so a
+ * profile is looked up without walking the list. Profiles from the old
+ * one-directory-per-profile format are migrated into the file the first
+ * time it is loaded. Readers get copies of the profiles, never the
+ * snapshot's own objects.
+ *
+ * A profiles file that can't be read is never cached nor written over:
+ * readers see no profiles and try again on the next access, and updates
+ * fail.
  */
 public class SipProfileDb {
     private static final String TAG = SipProfileDb.class.getSimpleName();
 
     private static final String PROFILES_DIR = "/profiles/";
     private static final String PROFILE_OBJ_FILE = ".pobj";
+    private static final String PROFILES_FILE = "sip_profiles.db";
+
+    private static final int STORE_MAGIC = 0x53495050; // "SIPP"
+    private static final int STORE_VERSION = 1;
+
+    // Loaded profile snapshots by profiles file path. The snapshots are
+    // never modified once published; writers replace them under
+    // synchronized(SipProfileDb.class).
+    private static final ConcurrentHashMap<String, Snapshot> sProfiles =
+            new ConcurrentHashMap<String, Snapshot>();
+
+    private static final class Snapshot {
+        final List<SipProfile> profiles;
+        final HashMap<String, SipProfile> byUri = new HashMap<String, SipProfile>();
+        final HashMap<String, SipProfile> byName = new HashMap<String, SipProfile>();
+
+        /** @param profiles  an unmodifiable list */
+        Snapshot(List<SipProfile> profiles) {
+            this.profiles = profiles;
+            for (SipProfile p : profiles) {
+                byUri.put(p.getUriString(), p);
+                byName.put(p.getProfileName(), p);
+            }
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(Collections.<SipProfile>emptyList());
 
     private String mProfilesDirectory;
+    private File mProfilesFile;
     private SipSharedPreferences mSipSharedPreferences;
-    private int mProfilesCount = -1;
 
     public SipProfileDb(Context context) {
-        mProfilesDirectory = context.getFilesDir().getAbsolutePath()
-                + PROFILES_DIR;
+        this(context, context.getFilesDir().getAbsolutePath());
+    }
+
+    /** For tests: keep the profiles under the given directory. */
+    SipProfileDb(Context context, String filesDirectory) {
+        mProfilesDirectory = filesDirectory + PROFILES_DIR;
+        mProfilesFile = new File(filesDirectory, PROFILES_FILE);
         mSipSharedPreferences = new SipSharedPreferences(context);
     }
 
     public void deleteProfile(SipProfile p) {
         synchronized(SipProfileDb.class) {
-            deleteProfile(new File(mProfilesDirectory + p.getProfileName()));
-            if (mProfilesCount < 0) retrieveSipProfileListInternal();
-            mSipSharedPreferences.setProfilesCount(--mProfilesCount);
+            try {
+                Snapshot snapshot = loadSnapshot();
+                if (!snapshot.byName.containsKey(p.getProfileName())) return;
+                List<SipProfile> profiles = new ArrayList<SipProfile>(snapshot.profiles);
+                if (removeProfile(profiles, p.getProfileName())) publish(profiles);
+            } catch (IOException e) {
+                Log.e(TAG, "deleteProfile()", e);
+            }
         }
     }
 
-    private void deleteProfile(File file) {
-        if (file.isDirectory()) {
-            for (File child : file.listFiles()) deleteProfile(child);
+    public void saveProfile(SipProfile p) throws IOException {
+        synchronized(SipProfileDb.class) {
+            List<SipProfile> profiles = new ArrayList<SipProfile>(loadSnapshot().profiles);
+            removeProfile(profiles, p.getProfileName());
+            profiles.add(p);
+            publish(profiles);
         }
-        file.delete();
     }
 
-    public void saveProfile(SipProfile p) throws IOException {
+    /** Whether the profiles are in memory, so that lookups won't touch storage. */
+    public boolean isLoaded() {
+        return sProfiles.containsKey(mProfilesFile.getPath());
+    }
+
+    public int getProfilesCount() {
+        Snapshot snapshot = sProfiles.get(mProfilesFile.getPath());
+        return (snapshot == null) ?
+                mSipSharedPreferences.getProfilesCount() : snapshot.profiles.size();
+    }
+
+    /**
+     * Returns a new, modifiable list of copies of all profiles. Only the
+     * first call in the process reads storage.
+     */
+    public List<SipProfile> retrieveSipProfileList() {
+        return Collections.synchronizedList(copyProfiles());
+    }
+
+    /** Returns an unmodifiable list of copies of all profiles. */
+    public List<SipProfile> getProfileList() {
+        return Collections.unmodifiableList(copyProfiles());
+    }
+
+    /** Returns a copy of the profile with the given URI string, or null. */
+    public SipProfile getProfileByUri(String uriString) {
+        return copy(getSnapshot().byUri.get(uriString));
+    }
+
+    /** Returns a copy of the profile with the given profile name, or null. */
+    public SipProfile getProfileByName(String profileName) {
+        return copy(getSnapshot().byName.get(profileName));
+    }
+
+    /** Drops the in-memory snapshot so the next access reads storage. */
+    void clearCache() {
+        sProfiles.remove(mProfilesFile.getPath());
+    }
+
+    // The snapshot's profiles are shared by the whole process and SipProfile
+    // has setters, so callers only ever get copies.
+    private ArrayList<SipProfile> copyProfiles() {
+        List<SipProfile> profiles = getSnapshot().profiles;
+        ArrayList<SipProfile> copies = new ArrayList<SipProfile>(profiles.size());
+        for (SipProfile p : profiles) copies.add(copy(p));
+        return copies;
+    }
+
+    private static SipProfile copy(SipProfile p) {
+        if (p == null) return null;
+        Parcel parcel = Parcel.obtain();
+        try {
+            p.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return SipProfile.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /** The current snapshot, or no profiles if the profiles file can't be read. */
+    private Snapshot getSnapshot() {
+        try {
+            return loadSnapshot();
+        } catch (IOException e) {
+            Log.e(TAG, "load profiles", e);
+            return EMPTY;
+        }
+    }
+
+    private Snapshot loadSnapshot() throws IOException {
+        Snapshot snapshot = sProfiles.get(mProfilesFile.getPath());
+        if (snapshot != null) return snapshot;
         synchronized(SipProfileDb.class) {
-            if (mProfilesCount < 0) retrieveSipProfileListInternal();
-            File f = new File(mProfilesDirectory + p.getProfileName());
-            if (!f.exists()) f.mkdirs();
-            AtomicFile atomicFile =
-                    new AtomicFile(new File(f, PROFILE_OBJ_FILE));
-            FileOutputStream fos = null;
-            ObjectOutputStream oos = null;
+            snapshot = sProfiles.get(mProfilesFile.getPath());
+            if (snapshot == null) {
+                snapshot = new Snapshot(load());
+                sProfiles.put(mProfilesFile.getPath(), snapshot);
+                mSipSharedPreferences.setProfilesCount(snapshot.profiles.size());
+            }
+            return snapshot;
+        }
+    }
+
+    private static boolean removeProfile(List<SipProfile> profiles, String profileName) {
+        for (int i = 0; i < profiles.size(); i++) {
+            if (profiles.get(i).getProfileName().equals(profileName)) {
+                profiles.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Writes the profiles to storage, then makes them the current snapshot. */
+    private void publish(List<SipProfile> profiles) throws IOException {
+        writeProfiles(profiles);
+        sProfiles.put(mProfilesFile.getPath(),
+                new Snapshot(Collections.unmodifiableList(profiles)));
+        mSipSharedPreferences.setProfilesCount(profiles.size());
+    }
+
+    private List<SipProfile> load() throws IOException {
+        // AtomicFile falls back to the backup left by an interrupted write,
+        // so only go for the legacy profiles if neither file is there.
+        try {
+            return Collections.unmodifiableList(readProfiles());
+        } catch (FileNotFoundException e) {
+            // not written yet
+        }
+
+        // First start after an upgrade: move the per-profile files over.
+        // Only the directories of the profiles read are deleted, so one
+        // that couldn't be read is still there to recover by hand.
+        List<SipProfile> profiles = readLegacyProfiles();
+        if (!profiles.isEmpty()) {
             try {
-                fos = atomicFile.startWrite();
-                oos = new ObjectOutputStream(fos);
-                oos.writeObject(p);
-                oos.flush();
-                mSipSharedPreferences.setProfilesCount(++mProfilesCount);
-                atomicFile.finishWrite(fos);
+                writeProfiles(profiles);
+                File root = new File(mProfilesDirectory);
+                for (SipProfile p : profiles) {
+                    deleteFile(new File(root, p.getProfileName()));
+                }
+                if (!root.delete()) Log.w(TAG, "kept profiles that couldn't be migrated");
+                Log.i(TAG, "migrated " + profiles.size() + " profiles");
             } catch (IOException e) {
-                atomicFile.failWrite(fos);
-                throw e;
-            } finally {
-                if (oos != null) oos.close();
+                // Keep the legacy files and try again next time.
+                Log.e(TAG, "migrate profiles", e);
             }
         }
+        return Collections.unmodifiableList(profiles);
     }
 
-    public int getProfilesCount() {
-        return (mProfilesCount < 0) ?
-                mSipSharedPreferences.getProfilesCount() : mProfilesCount;
+    private ArrayList<SipProfile> readProfiles() throws IOException {
+        AtomicFile atomicFile = new AtomicFile(mProfilesFile);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(atomicFile.openRead()));
+            if (in.readInt() != STORE_MAGIC) throw new IOException("bad magic");
+            int version = in.readInt();
+            if (version != STORE_VERSION) {
+                throw new IOException("unknown version " + version);
+            }
+            int count = in.readInt();
+            ArrayList<SipProfile> profiles = new ArrayList<SipProfile>(count);
+            for (int i = 0; i < count; i++) {
+                SipProfile p = readProfile(in);
+                if (p != null) profiles.add(p);
+            }
+            return profiles;
+        } finally {
+            if (in != null) in.close();
+        }
     }
 
-    public List<SipProfile> retrieveSipProfileList() {
-        synchronized(SipProfileDb.class) {
-            return retrieveSipProfileListInternal();
+    private void writeProfiles(List<SipProfile> profiles) throws IOException {
+        AtomicFile atomicFile = new AtomicFile(mProfilesFile);
+        FileOutputStream fos = null;
+        try {
+            fos = atomicFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(STORE_MAGIC);
+            out.writeInt(STORE_VERSION);
+            out.writeInt(profiles.size());
+            for (SipProfile p : profiles) {
+                writeProfile(out, p);
+            }
+            out.flush();
+            atomicFile.finishWrite(fos);
+        } catch (IOException e) {
+            atomicFile.failWrite(fos);
+            throw e;
         }
     }
 
-    private List<SipProfile> retrieveSipProfileListInternal() {
-        List<SipProfile> sipProfileList = Collections.synchronizedList(
-                new ArrayList<SipProfile>());
+    private static void writeProfile(DataOutputStream out, SipProfile p) throws IOException {
+        writeString(out, p.getUserName());
+        writeString(out, p.getSipDomain());
+        writeString(out, p.getProfileName());
+        writeString(out, p.getPassword());
+        writeString(out, p.getProxyAddress());
+        writeString(out, p.getProtocol());
+        writeString(out, p.getDisplayName());
+        writeString(out, p.getAuthUserName());
+        out.writeInt(p.getPort());
+        out.writeBoolean(p.getSendKeepAlive());
+        out.writeBoolean(p.getAutoRegistration());
+        out.writeInt(p.getCallingUid());
+    }
+
+    /** Returns null if the stored fields no longer make a valid profile. */
+    private static SipProfile readProfile(DataInputStream in) throws IOException {
+        String userName = readString(in);
+        String domain = readString(in);
+        String profileName = readString(in);
+        String password = readString(in);
+        String proxyAddress = readString(in);
+        String protocol = readString(in);
+        String displayName = readString(in);
+        String authUserName = readString(in);
+        int port = in.readInt();
+        boolean sendKeepAlive = in.readBoolean();
+        boolean autoRegistration = in.readBoolean();
+        int callingUid = in.readInt();
+        try {
+            SipProfile p = new SipProfile.Builder(userName, domain)
+                    .setProfileName(profileName)
+                    .setPassword(password)
+                    .setOutboundProxy(proxyAddress)
+                    .setProtocol(protocol)
+                    .setDisplayName(displayName)
+                    .setPort(port)
+                    .setSendKeepAlive(sendKeepAlive)
+                    .setAutoRegistration(autoRegistration)
+                    .setAuthUserName(authUserName)
+                    .build();
+            p.setCallingUid(callingUid);
+            return p;
+        } catch (ParseException e) {
+            Log.w(TAG, "read a profile: " + e);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "read a profile: " + e);
+        }
+        return null;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /** Reads the profiles stored one directory per profile by older releases. */
+    ArrayList<SipProfile> readLegacyProfiles() {
+        ArrayList<SipProfile> sipProfileList = new ArrayList<SipProfile>();
 
         File root = new File(mProfilesDirectory);
         String[] dirs = root.list();
@@ -122,8 +380,6 @@ public class SipProfileDb {
                 Log.e(TAG, "retrieveProfileListFromStorage()", e);
             }
         }
-        mProfilesCount = sipProfileList.size();
-        mSipSharedPreferences.setProfilesCount(mProfilesCount);
         return sipProfileList;
     }
 
@@ -141,4 +397,11 @@ public class SipProfileDb {
         }
         return null;
     }
+
+    private void deleteFile(File file) {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) deleteFile(child);
+        }
+        file.delete();
+    }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+// Test suite for the blurred contact photo cache in BitmapUtils, plus a
+// benchmark of the box blur against the original gaussian filter.
+// See AndroidManifest.xml how to run these tests.
+public class BitmapUtilsTest extends AndroidTestCase {
+    private static final String TAG = "BitmapUtilsTest";
+
+    private static final Uri CONTACT = Uri.parse("content://com.android.contacts/contacts/7");
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        BitmapUtils.clearBlurCache();
+    }
+
+    @SmallTest
+    public void testSolidColorIsUnchanged() throws Exception {
+        Bitmap photo = createPhoto(0xff336699, 0xff336699);
+        Bitmap blurred = BitmapUtils.createBlurredBitmap(photo);
+        assertEquals(128, blurred.getWidth());
+        assertEquals(128, blurred.getHeight());
+        assertEquals(0xff336699, blurred.getPixel(5, 100));
+        assertFalse(photo.isRecycled());
+    }
+
+    @SmallTest
+    public void testCloseToGaussianBlur() throws Exception {
+        Bitmap photo = createPhoto(0xff000000, 0xffffffff);
+        Bitmap box = BitmapUtils.createBlurredBitmap(photo);
+        Bitmap gaussian = BitmapUtils.gaussianBlur(
+                Bitmap.createScaledBitmap(photo, 128, 128, true));
+        for (int y = 0; y < 128; y += 3) {
+            for (int x = 0; x < 128; x += 3) {
+                int delta = Math.abs((box.getPixel(x, y) & 0xff)
+                        - (gaussian.getPixel(x, y) & 0xff));
+                assertTrue("pixel " + x + "," + y + " off by " + delta, delta <= 16);
+            }
+        }
+    }
+
+    @SmallTest
+    public void testCacheHitAndPhotoChange() throws Exception {
+        Bitmap photo = createPhoto(0xff000000, 0xffffffff);
+        int misses = BitmapUtils.getBlurCacheMisses();
+        Bitmap first = BitmapUtils.getBlurredBitmap(7, CONTACT, photo);
+        assertSame(first, BitmapUtils.getBlurredBitmap(7, CONTACT, photo.copy(photo.getConfig(),
+                false)));
+        assertEquals(misses + 1, BitmapUtils.getBlurCacheMisses());
+
+        // Same contact, new photo: blurred again
+        Bitmap changed = BitmapUtils.getBlurredBitmap(7, CONTACT, createPhoto(0xffff0000,
+                0xff00ff00));
+        assertNotSame(first, changed);
+        assertEquals(misses + 2, BitmapUtils.getBlurCacheMisses());
+    }
+
+    @LargeTest
+    public void testBlurBenchmark() throws Exception {
+        final int runs = 200;
+        Bitmap photo = createPhoto(0xff102030, 0xffe0d0c0);
+
+        Debug.startAllocCounting();
+        int before = Debug.getThreadAllocCount();
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < runs; i++) {
+            BitmapUtils.gaussianBlur(Bitmap.createScaledBitmap(photo, 128, 128, true));
+        }
+        long gaussian = SystemClock.elapsedRealtime() - start;
+        int gaussianAllocs = Debug.getThreadAllocCount() - before;
+
+        before = Debug.getThreadAllocCount();
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < runs; i++) {
+            BitmapUtils.createBlurredBitmap(photo);
+        }
+        long box = SystemClock.elapsedRealtime() - start;
+        int boxAllocs = Debug.getThreadAllocCount() - before;
+
+        before = Debug.getThreadAllocCount();
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < runs; i++) {
+            BitmapUtils.getBlurredBitmap(7, CONTACT, photo);
+        }
+        long cached = SystemClock.elapsedRealtime() - start;
+        int cachedAllocs = Debug.getThreadAllocCount() - before;
+        Debug.stopAllocCounting();
+
+        Log.i(TAG, runs + " blurs: gaussian " + gaussian + " ms, "
+                + ((float) gaussianAllocs / runs) + " allocs/blur; box " + box + " ms, "
+                + ((float) boxAllocs / runs) + " allocs/blur; cached " + cached + " ms, "
+                + ((float) cachedAllocs / runs) + " allocs/blur");
+    }
+
+    // HELPERS
+
+    // 96x96 contact thumbnail, left half one color and right half the other
+    private static Bitmap createPhoto(int left, int right) {
+        Bitmap photo = Bitmap.createBitmap(96, 96, Bitmap.Config.ARGB_8888);
+        for (int y = 0; y < 96; y++) {
+            for (int x = 0; x < 96; x++) {
+                photo.setPixel(x, y, x < 48 ? left : right);
+            }
+        }
+        return photo;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.PhoneLookup;
+import android.provider.ContactsContract.RawContacts;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Checks the batched caller id resolution used by AT+CPBR for the call log
+// phonebooks against the contacts provider, and compares its latency with
+// the per-row PhoneLookup query it replaced. See AndroidManifest.xml how to run these tests.
+public class BluetoothCallerIdResolverTest extends AndroidTestCase {
+    private static final String TAG = "BluetoothCallerIdResolverTest";
+
+    @SmallTest
+    public void testNormalizeSkipsUnknownNumbers() throws Exception {
+        assertNull(BluetoothCallerIdResolver.normalize(null));
+        assertNull(BluetoothCallerIdResolver.normalize(""));
+        assertNull(BluetoothCallerIdResolver.normalize("-1"));
+        assertEquals("+16505551212", BluetoothCallerIdResolver.normalize(" +1 (650) 555-1212 "));
+    }
+
+    @SmallTest
+    public void testResolveEmptyBatchDoesNotQuery() throws Exception {
+        HashMap<String, BluetoothCallerIdResolver.CallerId> result =
+                BluetoothCallerIdResolver.resolve(null, Arrays.asList(null, "", "-1"));
+        assertTrue(result.isEmpty());
+    }
+
+    @SmallTest
+    public void testSelectionHasOneArgumentPerNumber() throws Exception {
+        assertEquals("PHONE_NUMBERS_EQUAL(data1, ?)",
+                BluetoothCallerIdResolver.buildSelection(1));
+        assertEquals("PHONE_NUMBERS_EQUAL(data1, ?) OR PHONE_NUMBERS_EQUAL(data1, ?)",
+                BluetoothCallerIdResolver.buildSelection(2));
+    }
+
+    @LargeTest
+    public void testResolvesLargeBatch() throws Exception {
+        ContentResolver resolver = getContext().getContentResolver();
+        Uri rawContact = insertContact(resolver, "Resolver Test", "(650) 555-0500");
+        try {
+            ArrayList<String> numbers = new ArrayList<String>(1000);
+            for (int i = 0; i < 1000; i++) {
+                numbers.add(String.format("+1650555%04d", i));
+            }
+            HashMap<String, BluetoothCallerIdResolver.CallerId> result =
+                    BluetoothCallerIdResolver.resolve(resolver, numbers);
+            BluetoothCallerIdResolver.CallerId id = result.get("+16505550500");
+            assertNotNull(id);
+            assertEquals("Resolver Test", id.name);
+            assertEquals(Phone.TYPE_MOBILE, id.type);
+        } finally {
+            resolver.delete(rawContact.buildUpon().appendQueryParameter(
+                    ContactsContract.CALLER_IS_SYNCADAPTER, "true").build(), null, null);
+        }
+    }
+
+    @LargeTest
+    public void testCpbrLatency100() throws Exception {
+        benchmark(100);
+    }
+
+    @LargeTest
+    public void testCpbrLatency500() throws Exception {
+        benchmark(500);
+    }
+
+    // HELPERS
+
+    /** Inserts a contact with one mobile number and returns its raw contact. */
+    private Uri insertContact(ContentResolver resolver, String name, String number)
+            throws Exception {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        ops.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                .withValue(RawContacts.ACCOUNT_TYPE, null)
+                .withValue(RawContacts.ACCOUNT_NAME, null)
+                .build());
+        ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                .withValueBackReference(Data.RAW_CONTACT_ID, 0)
+                .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                .withValue(StructuredName.DISPLAY_NAME, name)
+                .build());
+        ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                .withValueBackReference(Data.RAW_CONTACT_ID, 0)
+                .withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE)
+                .withValue(Phone.NUMBER, number)
+                .withValue(Phone.TYPE, Phone.TYPE_MOBILE)
+                .build());
+        long id = ContentUris.parseId(
+                resolver.applyBatch(ContactsContract.AUTHORITY, ops)[0].uri);
+        return ContentUris.withAppendedId(RawContacts.CONTENT_URI, id);
+    }
+
+    /**
+     * Resolves the numbers of the newest call log entries both ways and
+     * logs the time each takes.
+     */
+    private void benchmark(int entries) {
+        ContentResolver resolver = getContext().getContentResolver();
+        ArrayList<String> numbers = new ArrayList<String>(entries);
+        Cursor c = resolver.query(Calls.CONTENT_URI, new String[] {Calls.NUMBER},
+                null, null, Calls.DEFAULT_SORT_ORDER + " LIMIT " + entries);
+        assertNotNull(c);
+        try {
+            while (c.moveToNext()) {
+                numbers.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        int perRowResolved = 0;
+        for (String number : numbers) {
+            if (BluetoothCallerIdResolver.normalize(number) == null) continue;
+            Cursor lookup = resolver.query(
+                    Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, number),
+                    new String[] {PhoneLookup.DISPLAY_NAME}, null, null, null);
+            if (lookup != null) {
+                if (lookup.moveToFirst()) perRowResolved++;
+                lookup.close();
+            }
+        }
+        long perRow = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        HashMap<String, BluetoothCallerIdResolver.CallerId> batched =
+                BluetoothCallerIdResolver.resolve(resolver, numbers);
+        long batch = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "CPBR " + entries + " entries (" + numbers.size() + " in call log): "
+                + "per-row lookup " + perRow + " ms (" + perRowResolved + " names), "
+                + "batched " + batch + " ms (" + batched.size() + " distinct names)");
+    }
+}
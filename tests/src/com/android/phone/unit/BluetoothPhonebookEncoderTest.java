@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.internal.telephony.GsmAlphabet;
+
+// Test suite for the +CPBR entry encoder used by BluetoothAtPhonebook,
+// plus a microbenchmark of throughput and allocations per entry.
+// See AndroidManifest.xml how to run these tests.
+public class BluetoothPhonebookEncoderTest extends AndroidTestCase {
+    private static final String TAG = "BluetoothPhonebookEncoderTest";
+
+    private BluetoothPhonebookEncoder mEncoder;
+    private StringBuilder mBuffer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mEncoder = new BluetoothPhonebookEncoder();
+        mBuffer = new StringBuilder(128);
+    }
+
+    @SmallTest
+    public void testNumberIsTrimmedStrippedAndTruncated() throws Exception {
+        BluetoothPhonebookEncoder.appendNumber(mBuffer, "  +1 (650) 555-1212  ");
+        assertEquals("+16505551212", mBuffer.toString());
+
+        mBuffer.setLength(0);
+        BluetoothPhonebookEncoder.appendNumber(mBuffer, "1234567890-1234567890-1234567890-123");
+        assertEquals("123456789012345678901234567890", mBuffer.toString());
+    }
+
+    @SmallTest
+    public void testNameIsTrimmedAndTruncated() throws Exception {
+        BluetoothPhonebookEncoder.appendName(mBuffer, "  A very long contact name that overflows ");
+        assertEquals("A very long contact name tha", mBuffer.toString());
+    }
+
+    @SmallTest
+    public void testGsmMatchesGsmAlphabet() throws Exception {
+        mEncoder.setCharacterSet("GSM");
+        String name = "Jörg Müller {work} été [1]";
+        mEncoder.appendEncoded(mBuffer, name);
+        assertEquals(new String(GsmAlphabet.stringToGsm8BitPacked(name)), mBuffer.toString());
+    }
+
+    @SmallTest
+    public void testIraReplacesNonAscii() throws Exception {
+        mEncoder.setCharacterSet("IRA");
+        mEncoder.appendEncoded(mBuffer, "François");
+        assertEquals("Fran?ois", mBuffer.toString());
+    }
+
+    @SmallTest
+    public void testCpbrEntry() throws Exception {
+        mEncoder.setCharacterSet("UTF-8");
+        mEncoder.appendCpbrEntry(mBuffer, 3, "5551212", 129, "Bob/M");
+        assertEquals("+CPBR: 3,\"5551212\",129,\"Bob/M\"", mBuffer.toString());
+    }
+
+    @LargeTest
+    public void testGsmEncoderBenchmark() throws Exception {
+        final int entries = 10000;
+        final String name = "Jörg Müller {work}/M";
+        mEncoder.setCharacterSet("GSM");
+
+        // Warm up, so buffer growth is not counted
+        mEncoder.appendCpbrEntry(mBuffer, entries, "+16505551212", 145, name);
+
+        Debug.startAllocCounting();
+        int before = Debug.getThreadAllocCount();
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 1; i <= entries; i++) {
+            mBuffer.setLength(0);
+            mEncoder.appendCpbrEntry(mBuffer, i, "+16505551212", 145, name);
+        }
+        long encoder = SystemClock.elapsedRealtime() - start;
+        int encoderAllocs = Debug.getThreadAllocCount() - before;
+
+        String line = null;
+        before = Debug.getThreadAllocCount();
+        start = SystemClock.elapsedRealtime();
+        for (int i = 1; i <= entries; i++) {
+            String gsm = new String(GsmAlphabet.stringToGsm8BitPacked(name));
+            line = "+CPBR: " + i + ",\"" + "+16505551212" + "\"," + 145 + ",\"" + gsm + "\"";
+        }
+        long legacy = SystemClock.elapsedRealtime() - start;
+        int legacyAllocs = Debug.getThreadAllocCount() - before;
+        Debug.stopAllocCounting();
+        assertEquals(line, mBuffer.toString());
+
+        Log.i(TAG, entries + " GSM entries: encoder " + encoder + " ms, "
+                + ((float) encoderAllocs / entries) + " allocs/entry; legacy " + legacy + " ms, "
+                + ((float) legacyAllocs / entries) + " allocs/entry");
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+// Test suite for the incoming call latency timeline.
+// See AndroidManifest.xml how to run these tests.
+public class CallLatencyRecorderTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testStagesAreTimedFromRingingConnection() throws Exception {
+        CallLatencyRecorder recorder = new CallLatencyRecorder(16);
+        recorder.startCall(1000);
+        recorder.record(CallLatencyRecorder.STAGE_RING, 1120);
+        // Repeat rings don't count again
+        recorder.record(CallLatencyRecorder.STAGE_RING, 4000);
+        recorder.startCall(10000);
+        recorder.record(CallLatencyRecorder.STAGE_RING, 10080);
+
+        long[] millis = recorder.getStageMillis(CallLatencyRecorder.STAGE_RING);
+        assertEquals(2, millis.length);
+        assertEquals(80, millis[0]);
+        assertEquals(120, millis[1]);
+    }
+
+    @SmallTest
+    public void testLateStagesAreIgnored() throws Exception {
+        CallLatencyRecorder recorder = new CallLatencyRecorder(16);
+        recorder.startCall(0);
+        recorder.record(CallLatencyRecorder.STAGE_SCREEN_RESUME,
+                CallLatencyRecorder.MAX_CALL_MILLIS + 1);
+        assertEquals(0, recorder.getStageMillis(CallLatencyRecorder.STAGE_SCREEN_RESUME).length);
+    }
+
+    @SmallTest
+    public void testOverwrittenCallsAreDropped() throws Exception {
+        CallLatencyRecorder recorder = new CallLatencyRecorder(4);
+        for (int call = 0; call < 3; call++) {
+            recorder.startCall(call * 1000);
+            recorder.record(CallLatencyRecorder.STAGE_SHOW_INCOMING, call * 1000 + 50 + call);
+        }
+        // The buffer only still has the start of the last two calls
+        long[] millis = recorder.getStageMillis(CallLatencyRecorder.STAGE_SHOW_INCOMING);
+        assertEquals(2, millis.length);
+        assertEquals(51, millis[0]);
+        assertEquals(52, millis[1]);
+    }
+
+    @SmallTest
+    public void testPercentile() throws Exception {
+        long[] sorted = new long[100];
+        for (int i = 0; i < sorted.length; i++) sorted[i] = i + 1;
+        assertEquals(50, CallLatencyRecorder.percentile(sorted, 50));
+        assertEquals(99, CallLatencyRecorder.percentile(sorted, 99));
+        assertEquals(100, CallLatencyRecorder.percentile(sorted, 100));
+        assertEquals(-1, CallLatencyRecorder.percentile(new long[0], 50));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.content.ContentValues;
+import android.provider.CallLog.Calls;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.CallerInfo;
+import com.android.internal.telephony.Connection;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+// Test suite for the journal and the rows of the call log writer.
+// See AndroidManifest.xml how to run these tests.
+public class CallLogWriterTest extends AndroidTestCase {
+    private File mJournal;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mJournal = new File(getContext().getCacheDir(), "call_log_journal_test");
+        mJournal.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mJournal.delete();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testJournalRoundTrip() throws Exception {
+        ArrayList<CallLogWriter.Entry> entries = new ArrayList<CallLogWriter.Entry>();
+        entries.add(createEntry("6505551212", 1000L));
+        CallLogWriter.appendJournal(mJournal, entries);
+        entries.clear();
+        entries.add(new CallLogWriter.Entry(null, null, Connection.PRESENTATION_RESTRICTED,
+                Calls.INCOMING_TYPE, 2000L, 0));
+        CallLogWriter.appendJournal(mJournal, entries);
+
+        ArrayList<CallLogWriter.Entry> read = CallLogWriter.readJournal(mJournal);
+        assertEquals(2, read.size());
+        CallLogWriter.Entry first = read.get(0);
+        assertEquals("6505551212", first.number);
+        assertEquals(Calls.MISSED_TYPE, first.callType);
+        assertEquals(1000L, first.timestamp);
+        assertEquals(42, first.durationInSec);
+        assertEquals("Test Caller", first.ci.name);
+        assertEquals(7L, first.ci.person_id);
+        assertNull(first.ci.numberLabel);
+        assertNull(read.get(1).ci);
+        assertNull(read.get(1).number);
+    }
+
+    @SmallTest
+    public void testTruncatedRecordIsIgnored() throws Exception {
+        ArrayList<CallLogWriter.Entry> entries = new ArrayList<CallLogWriter.Entry>();
+        entries.add(createEntry("6505551212", 1000L));
+        entries.add(createEntry("6505551213", 2000L));
+        CallLogWriter.appendJournal(mJournal, entries);
+
+        RandomAccessFile file = new RandomAccessFile(mJournal, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        ArrayList<CallLogWriter.Entry> read = CallLogWriter.readJournal(mJournal);
+        assertEquals(1, read.size());
+        assertEquals("6505551212", read.get(0).number);
+    }
+
+    @SmallTest
+    public void testValuesMatchCallsAddCall() throws Exception {
+        ContentValues values = CallLogWriter.toValues(createEntry("6505551212", 1000L));
+        assertEquals("6505551212", values.getAsString(Calls.NUMBER));
+        assertEquals(0, values.getAsInteger(Calls.IS_READ).intValue());
+        assertEquals("Test Caller", values.getAsString(Calls.CACHED_NAME));
+
+        CallLogWriter.Entry payphone = new CallLogWriter.Entry(null, "",
+                Connection.PRESENTATION_PAYPHONE, Calls.INCOMING_TYPE, 1000L, 0);
+        values = CallLogWriter.toValues(payphone);
+        assertEquals(CallerInfo.PAYPHONE_NUMBER, values.getAsString(Calls.NUMBER));
+        assertFalse(values.containsKey(Calls.IS_READ));
+        assertFalse(values.containsKey(Calls.CACHED_NAME));
+
+        CallerInfo ci = new CallerInfo();
+        ci.name = "Withheld Caller";
+        CallLogWriter.Entry restricted = new CallLogWriter.Entry(ci, "6505551212",
+                Connection.PRESENTATION_RESTRICTED, Calls.INCOMING_TYPE, 1000L, 0);
+        values = CallLogWriter.toValues(restricted);
+        assertEquals(CallerInfo.PRIVATE_NUMBER, values.getAsString(Calls.NUMBER));
+        assertEquals("", values.getAsString(Calls.CACHED_NAME));
+    }
+
+    @SmallTest
+    public void testRetryDelayBacksOff() throws Exception {
+        assertEquals(2 * CallLogWriter.BATCH_DELAY_MS, CallLogWriter.retryDelay(1));
+        assertEquals(4 * CallLogWriter.BATCH_DELAY_MS, CallLogWriter.retryDelay(2));
+        assertEquals(CallLogWriter.MAX_RETRY_DELAY_MS, CallLogWriter.retryDelay(100));
+    }
+
+    private static CallLogWriter.Entry createEntry(String number, long timestamp) {
+        CallerInfo ci = new CallerInfo();
+        ci.name = "Test Caller";
+        ci.person_id = 7;
+        ci.phoneNumber = number;
+        return new CallLogWriter.Entry(ci, number, Connection.PRESENTATION_ALLOWED,
+                Calls.MISSED_TYPE, timestamp, 42);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.Call;
+import com.android.internal.telephony.Connection;
+import com.android.internal.telephony.Phone;
+import com.android.phone.InCallUiState.InCallScreenMode;
+import com.android.phone.InCallUiState.ProgressIndicationType;
+
+// Test suite for the widgets the in-call screen updates on a change.
+// See AndroidManifest.xml how to run these tests.
+public class CallUiSnapshotTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testNoPreviousSnapshotUpdatesAll() throws Exception {
+        assertEquals(CallUiSnapshot.UPDATE_ALL,
+                snapshot(Phone.State.OFFHOOK, Call.State.ACTIVE, Call.State.IDLE, false, 0)
+                        .diff(null));
+    }
+
+    @SmallTest
+    public void testSameStateUpdatesNothing() throws Exception {
+        CallUiSnapshot previous =
+                snapshot(Phone.State.OFFHOOK, Call.State.ACTIVE, Call.State.HOLDING, false, 0);
+        CallUiSnapshot current =
+                snapshot(Phone.State.OFFHOOK, Call.State.ACTIVE, Call.State.HOLDING, false, 0);
+        assertEquals(0, current.diff(previous));
+    }
+
+    @SmallTest
+    public void testSwapUpdatesCallWidgetsOnly() throws Exception {
+        CallUiSnapshot previous =
+                snapshot(Phone.State.OFFHOOK, Call.State.ACTIVE, Call.State.HOLDING, false, 0);
+        CallUiSnapshot current =
+                snapshot(Phone.State.OFFHOOK, Call.State.HOLDING, Call.State.ACTIVE, false, 0);
+        int updates = current.diff(previous);
+        assertTrue((updates & CallUiSnapshot.UPDATE_CALL_CARD) != 0);
+        assertTrue((updates & CallUiSnapshot.UPDATE_TOUCH_UI) != 0);
+        assertEquals(0, updates & CallUiSnapshot.UPDATE_DIALPAD);
+        assertEquals(0, updates & CallUiSnapshot.UPDATE_PROGRESS);
+        assertEquals(0, updates & CallUiSnapshot.UPDATE_PROVIDER_OVERLAY);
+    }
+
+    @SmallTest
+    public void testDialpadAndAudioUpdateTouchUi() throws Exception {
+        CallUiSnapshot previous =
+                snapshot(Phone.State.OFFHOOK, Call.State.ACTIVE, Call.State.IDLE, false, 0);
+        CallUiSnapshot current =
+                snapshot(Phone.State.OFFHOOK, Call.State.ACTIVE, Call.State.IDLE, true, 0);
+        assertEquals(CallUiSnapshot.UPDATE_TOUCH_UI | CallUiSnapshot.UPDATE_DIALPAD,
+                current.diff(previous));
+
+        current = snapshot(Phone.State.OFFHOOK, Call.State.ACTIVE, Call.State.IDLE, false,
+                CallUiSnapshot.AUDIO_MUTE);
+        assertEquals(CallUiSnapshot.UPDATE_TOUCH_UI, current.diff(previous));
+    }
+
+    private static CallUiSnapshot snapshot(Phone.State phoneState, Call.State fgState,
+            Call.State bgState, boolean dialpadOpened, int audioState) {
+        return new CallUiSnapshot(phoneState, Phone.PHONE_TYPE_GSM, InCallScreenMode.NORMAL,
+                null, callInfo(fgState), callInfo(bgState), CallUiSnapshot.CallInfo.IDLE,
+                ProgressIndicationType.NONE, false, null, dialpadOpened, audioState);
+    }
+
+    private static CallUiSnapshot.CallInfo callInfo(Call.State state) {
+        return new CallUiSnapshot.CallInfo(state, new Connection[0], new Call.State[0],
+                new Connection.PostDialState[0], new String[0]);
+    }
+}
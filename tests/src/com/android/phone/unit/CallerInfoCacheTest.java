@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.CallerInfo;
+
+// Test suite for the caller-info cache used by PhoneUtils.startGetCallerInfo().
+// Runs against the phone process's own cache, with a number no contact has.
+// See AndroidManifest.xml how to run these tests.
+public class CallerInfoCacheTest extends AndroidTestCase {
+    private static final String NUMBER = "+1 (555) 010-9999";
+
+    private CallerInfoCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = CallerInfoCache.getInstance();
+        assertNotNull(mCache);
+        mCache.clear();
+    }
+
+    @SmallTest
+    public void testKeyStripsSeparators() throws Exception {
+        assertEquals("+15550109999", CallerInfoCache.key(NUMBER));
+        assertNull(CallerInfoCache.key(""));
+        assertNull(CallerInfoCache.key(null));
+    }
+
+    @SmallTest
+    public void testHitReturnsCopy() throws Exception {
+        CallerInfo ci = createContact();
+        mCache.put(NUMBER, ci);
+
+        int hits = mCache.getHits();
+        CallerInfo cached = mCache.get("+15550109999");
+        assertNotNull(cached);
+        assertNotSame(ci, cached);
+        assertEquals("Test Caller", cached.name);
+        assertEquals(hits + 1, mCache.getHits());
+
+        cached.name = "changed";
+        assertEquals("Test Caller", mCache.get(NUMBER).name);
+    }
+
+    @SmallTest
+    public void testOnlyContactsAreCached() throws Exception {
+        CallerInfo ci = createContact();
+        ci.contactExists = false;
+        mCache.put(NUMBER, ci);
+
+        int misses = mCache.getMisses();
+        assertNull(mCache.get(NUMBER));
+        assertEquals(misses + 1, mCache.getMisses());
+    }
+
+    @SmallTest
+    public void testInvalidateKeepsServingUntilRefilled() throws Exception {
+        mCache.put(NUMBER, createContact());
+        mCache.invalidate();
+        assertEquals("Test Caller", mCache.get(NUMBER).name);
+        mCache.clear();
+        assertNull(mCache.get(NUMBER));
+    }
+
+    private static CallerInfo createContact() {
+        CallerInfo ci = new CallerInfo();
+        ci.name = "Test Caller";
+        ci.phoneNumber = NUMBER;
+        ci.contactExists = true;
+        return ci;
+    }
+}
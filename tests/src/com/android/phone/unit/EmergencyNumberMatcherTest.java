@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.telephony.PhoneNumberUtils;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+// Test suite for the compiled ECC list, checked against the way
+// PhoneNumberUtils matches the ril.ecclist property, and benchmark of a
+// lookup against PhoneNumberUtils.
+// See AndroidManifest.xml how to run these tests.
+public class EmergencyNumberMatcherTest extends AndroidTestCase {
+    private static final String TAG = "EmergencyNumberMatcherTest";
+
+    private static final String ECC_LIST = "112,911,08,000,110,118,119,999,*911,#911";
+    private static final String[] NUMBERS = {
+        "112", "911", "9111234", "91", "08", "0800", "999", "(999)", "9-1-1", "+911", "++911",
+        "911,1234", "911;1234", "*911", "#911", "N11", "6505551212", "", "911@example.com",
+        "911%40example.com", "1 1 2", "000"
+    };
+
+    @SmallTest
+    public void testMatchesLikePhoneNumberUtils() throws Exception {
+        EmergencyNumberMatcher.Trie trie = new EmergencyNumberMatcher.Trie(ECC_LIST);
+        for (String number : NUMBERS) {
+            assertEquals(number, reference(number, ECC_LIST, false), trie.matches(number, false));
+            assertEquals(number, reference(number, ECC_LIST, true), trie.matches(number, true));
+        }
+        assertFalse(trie.matches(null, true));
+    }
+
+    @SmallTest
+    public void testEmptyEntryIsKept() throws Exception {
+        // "".startsWith("") like String.split() keeps the empty entry
+        EmergencyNumberMatcher.Trie trie = new EmergencyNumberMatcher.Trie("112,,911");
+        assertTrue(trie.matches("6505551212", true));
+        assertFalse(trie.matches("6505551212", false));
+        assertTrue(trie.matches("-", false));
+    }
+
+    @LargeTest
+    public void testLookupBenchmark() throws Exception {
+        final int runs = 10000;
+        EmergencyNumberMatcher.Trie trie = new EmergencyNumberMatcher.Trie(ECC_LIST);
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < runs; i++) {
+            PhoneNumberUtils.isPotentialLocalEmergencyNumber("650-555-1212", getContext());
+        }
+        long framework = SystemClock.elapsedRealtime() - start;
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < runs; i++) {
+            trie.matches("650-555-1212", true);
+        }
+        long compiled = SystemClock.elapsedRealtime() - start;
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertEquals(0, allocations);
+        Log.i(TAG, "isPotentialLocalEmergencyNumber, " + runs + " lookups: PhoneNumberUtils "
+                + (framework * 1000 / runs) + " us per lookup, compiled list "
+                + (compiled * 1000 / runs) + " us per lookup, " + allocations + " allocations");
+    }
+
+    // How PhoneNumberUtils.isEmergencyNumberInternal() checks an ecclist
+    private static boolean reference(String number, String eccList, boolean prefix) {
+        if (PhoneNumberUtils.isUriNumber(number)) return false;
+        number = PhoneNumberUtils.extractNetworkPortionAlt(number);
+        for (String emergencyNum : eccList.split(",")) {
+            if (prefix ? number.startsWith(emergencyNum) : number.equals(emergencyNum)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
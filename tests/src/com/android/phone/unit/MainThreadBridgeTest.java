@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Test suite for the deadlines and the in-flight limit of the requests
+// to the phone process's main thread, and the reliable commands exempt
+// from both.
+// See AndroidManifest.xml how to run these tests.
+public class MainThreadBridgeTest extends AndroidTestCase {
+    private static final int CMD_ECHO = 1;
+    private static final int CMD_BLOCK = 2;
+    private static final int CMD_HOLD = 3;
+    private static final int CMD_RELIABLE = 4;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private MainThreadBridge.Channel mBridge;
+    private final AtomicInteger mRun = new AtomicInteger();
+    private final CountDownLatch mUnblock = new CountDownLatch(1);
+    // Counted down for each CMD_HOLD request, which is never completed
+    private final CountDownLatch mHeld = new CountDownLatch(2);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("MainThreadBridgeTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (!mBridge.start(msg)) return;
+                MainThreadBridge.Request request = (MainThreadBridge.Request) msg.obj;
+                mRun.incrementAndGet();
+                if (msg.what == CMD_HOLD) {
+                    mHeld.countDown();
+                    return;
+                }
+                if (msg.what == CMD_BLOCK) {
+                    try {
+                        mUnblock.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        // Complete anyway
+                    }
+                }
+                mBridge.complete(request, request.arg1);
+            }
+        };
+        mBridge = new MainThreadBridge(2).newChannel("test", mHandler);
+        mBridge.addCommand(CMD_ECHO, "echo", 100);
+        mBridge.addCommand(CMD_BLOCK, "block", 100);
+        mBridge.addCommand(CMD_HOLD, "hold", 5000);
+        mBridge.addReliableCommand(CMD_RELIABLE, "reliable");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mUnblock.countDown();
+        mThread.quit();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testRequestReturnsResult() throws Exception {
+        assertEquals("hello", mBridge.sendRequest(CMD_ECHO, "hello", null, "failed"));
+        assertEquals(1, mRun.get());
+    }
+
+    @SmallTest
+    public void testLateRequestFailsAndIsDropped() throws Exception {
+        long start = SystemClock.uptimeMillis();
+        assertEquals("failed", mBridge.sendRequest(CMD_BLOCK, "blocked", null, "failed"));
+        assertTrue(SystemClock.uptimeMillis() - start < 1000);
+
+        // Queued behind the blocked request until after its deadline
+        assertEquals("failed", mBridge.sendRequest(CMD_ECHO, "queued", null, "failed"));
+        mUnblock.countDown();
+        assertEquals("hello", mBridge.sendRequest(CMD_ECHO, "hello", null, "failed"));
+        assertEquals(2, mRun.get());
+    }
+
+    @SmallTest
+    public void testRequestsOverInFlightLimitFailRightAway() throws Exception {
+        holdInFlightRequests();
+
+        long start = SystemClock.uptimeMillis();
+        assertEquals("rejected", mBridge.sendRequest(CMD_ECHO, "hello", null, "rejected"));
+        assertTrue(SystemClock.uptimeMillis() - start < 50);
+    }
+
+    @SmallTest
+    public void testReliableRequestIsNeitherRejectedNorAbandoned() throws Exception {
+        holdInFlightRequests();
+        assertEquals("hello", mBridge.sendRequest(CMD_RELIABLE, "hello", null, "failed"));
+
+        // Still answered when the main thread is busy past every deadline
+        mHandler.post(new Runnable() {
+            public void run() {
+                try {
+                    mUnblock.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Go on anyway
+                }
+            }
+        });
+        new Thread() {
+            public void run() {
+                SystemClock.sleep(200);
+                mUnblock.countDown();
+            }
+        }.start();
+        assertEquals("late", mBridge.sendRequest(CMD_RELIABLE, "late", null, "failed"));
+    }
+
+    // Leaves two requests in flight, which is the limit, until tearDown()
+    private void holdInFlightRequests() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            new Thread() {
+                public void run() {
+                    mBridge.sendRequest(CMD_HOLD, "held", null, "failed");
+                }
+            }.start();
+        }
+        assertTrue(mHeld.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract.PhoneLookup;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+// Benchmark of naming the unread missed calls found at startup: one
+// PhoneLookup query per call, as NotificationMgr used to do, against the
+// batched NotificationMgr.resolveNames(), for 1, 50 and 500 missed calls.
+// See AndroidManifest.xml how to run these tests.
+public class MissedCallNamesTest extends AndroidTestCase {
+    private static final String TAG = "MissedCallNamesTest";
+
+    @SmallTest
+    public void testUnknownNumbersStayUnnamed() throws Exception {
+        ArrayList<NotificationMgr.NotificationInfo> calls = createCalls(3);
+        calls.get(1).number = null;
+        NotificationMgr.resolveNames(getContext().getContentResolver(), calls);
+        assertNull(calls.get(1).name);
+    }
+
+    @LargeTest
+    public void testRebuild1() throws Exception {
+        benchmark(1);
+    }
+
+    @LargeTest
+    public void testRebuild50() throws Exception {
+        benchmark(50);
+    }
+
+    @LargeTest
+    public void testRebuild500() throws Exception {
+        benchmark(500);
+    }
+
+    // HELPERS
+
+    private void benchmark(int count) {
+        ContentResolver resolver = getContext().getContentResolver();
+        ArrayList<NotificationMgr.NotificationInfo> calls = createCalls(count);
+
+        long start = SystemClock.elapsedRealtime();
+        for (NotificationMgr.NotificationInfo n : calls) {
+            Cursor cursor = resolver.query(
+                    Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, n.number),
+                    NotificationMgr.PHONES_PROJECTION, null, null, PhoneLookup.NUMBER);
+            if (cursor != null) {
+                if (cursor.moveToFirst()) n.name = cursor.getString(1);
+                cursor.close();
+            }
+        }
+        long perCall = SystemClock.elapsedRealtime() - start;
+
+        calls = createCalls(count);
+        start = SystemClock.elapsedRealtime();
+        NotificationMgr.resolveNames(resolver, calls);
+        long batched = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, count + " missed calls: per-call lookup " + perCall + " ms and " + count
+                + " notifications; batched " + batched + " ms and 1 notification");
+    }
+
+    private static ArrayList<NotificationMgr.NotificationInfo> createCalls(int count) {
+        ArrayList<NotificationMgr.NotificationInfo> calls =
+                new ArrayList<NotificationMgr.NotificationInfo>(count);
+        for (int i = 0; i < count; i++) {
+            NotificationMgr.NotificationInfo n = new NotificationMgr.NotificationInfo();
+            n.number = "650555" + (1000 + i);
+            n.date = 1000000L - i;
+            calls.add(n);
+        }
+        return calls;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.provider.Settings;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+// Test suite for the outgoing calls that can skip SipCallOptionHandler.
+// See AndroidManifest.xml how to run these tests.
+public class OutgoingCallRouterTest extends AndroidTestCase {
+    private static final int PLACE = OutgoingCallRouter.ROUTE_PLACE_CALL;
+    private static final int HANDLER = OutgoingCallRouter.ROUTE_SIP_OPTION_HANDLER;
+
+    private static class FakeNetwork implements OutgoingCallRouter.Network {
+        boolean connected;
+        boolean radioOn = true;
+        int checks;
+
+        public boolean isConnected() {
+            checks++;
+            return connected;
+        }
+
+        public boolean isRadioOn() {
+            return radioOn;
+        }
+    }
+
+    private final FakeNetwork mNetwork = new FakeNetwork();
+
+    @SmallTest
+    public void testRegularCallWithoutSipIsPlacedWithoutNetworkCheck() throws Exception {
+        mNetwork.connected = true;
+        assertEquals(PLACE, route(true, Settings.System.SIP_ADDRESS_ONLY, 1));
+        assertEquals(PLACE, route(true, Settings.System.SIP_ALWAYS, 0));
+        assertEquals(0, mNetwork.checks);
+    }
+
+    @SmallTest
+    public void testSipOptionsNeedHandlerWhenConnected() throws Exception {
+        mNetwork.connected = true;
+        assertEquals(HANDLER, route(true, Settings.System.SIP_ALWAYS, 1));
+        assertEquals(HANDLER, route(true, Settings.System.SIP_ASK_ME_EACH_TIME, 0));
+        mNetwork.radioOn = false;
+        assertEquals(PLACE, route(true, Settings.System.SIP_ASK_ME_EACH_TIME, 0));
+        assertEquals(HANDLER, route(true, Settings.System.SIP_ASK_ME_EACH_TIME, 1));
+
+        mNetwork.connected = false;
+        assertEquals(PLACE, route(true, Settings.System.SIP_ALWAYS, 1));
+        assertEquals(PLACE, route(true, Settings.System.SIP_ASK_ME_EACH_TIME, 1));
+    }
+
+    @SmallTest
+    public void testSipAddressNeedsHandler() throws Exception {
+        assertEquals(HANDLER, route(false, Settings.System.SIP_ADDRESS_ONLY, 0));
+        assertEquals(HANDLER, OutgoingCallRouter.route(false, false, true,
+                Settings.System.SIP_ADDRESS_ONLY, 1, mNetwork));
+        assertEquals(PLACE, OutgoingCallRouter.route(false, true, true,
+                Settings.System.SIP_ADDRESS_ONLY, 1, mNetwork));
+    }
+
+    @SmallTest
+    public void testNoVoipOrProviderPlacesRegularCall() throws Exception {
+        mNetwork.connected = true;
+        assertEquals(PLACE, OutgoingCallRouter.route(true, false, false,
+                Settings.System.SIP_ALWAYS, 1, mNetwork));
+        assertEquals(PLACE, OutgoingCallRouter.route(true, true, true,
+                Settings.System.SIP_ALWAYS, 1, mNetwork));
+    }
+
+    private int route(boolean isRegularCall, String callOption, int profilesCount) {
+        return OutgoingCallRouter.route(isRegularCall, true, false, callOption, profilesCount,
+                mNetwork);
+    }
+}
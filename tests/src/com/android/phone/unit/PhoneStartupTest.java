@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+// Cold start benchmark of the phone process. The instrumentation restarts
+// the phone process before running, so the startup recorded by
+// PhoneStartup is a cold one: this reports the time until the process was
+// ready to accept a call and what each initializer cost.
+// See AndroidManifest.xml how to run these tests.
+public class PhoneStartupTest extends AndroidTestCase {
+    private static final String TAG = "PhoneStartupTest";
+
+    private static final long DEFERRED_TIMEOUT_MS = 10000;
+
+    @LargeTest
+    public void testColdStartBenchmark() throws Exception {
+        PhoneStartup startup = PhoneStartup.getInstance();
+        assertNotNull(startup);
+        long ready = startup.getReadyMillis();
+        assertTrue(ready >= 0);
+
+        // Let the background and idle initializers finish
+        long deadline = SystemClock.elapsedRealtime() + DEFERRED_TIMEOUT_MS;
+        while (!startup.isDone() && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(startup.isDone());
+
+        long critical = 0;
+        long deferred = 0;
+        for (PhoneStartup.Step step : startup.getSteps()) {
+            Log.i(TAG, step.kind + " " + step.name + ": " + step.millis + " ms");
+            if ("critical".equals(step.kind)) {
+                critical += step.millis;
+            } else {
+                deferred += step.millis;
+            }
+        }
+        Log.i(TAG, "ready for calls after " + ready + " ms; marked critical steps " + critical
+                + " ms; moved off the critical path " + deferred + " ms");
+    }
+}
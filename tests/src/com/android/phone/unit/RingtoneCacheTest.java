@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.media.Ringtone;
+import android.media.RingtoneManager;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+// Test suite and benchmark of the prepared-ringtone cache used by Ringer.
+// The benchmark compares the time until the default ringtone is playing:
+// through RingtoneManager, as Ringer used to do for every call, and from
+// the cache, once cold and once prepared. Each ringtone is stopped as soon
+// as it plays. The latency of real calls is in "dumpsys phone".
+// See AndroidManifest.xml how to run these tests.
+public class RingtoneCacheTest extends AndroidTestCase {
+    private static final String TAG = "RingtoneCacheTest";
+
+    private static final int RUNS = 5;
+    private static final long PLAY_TIMEOUT_MS = 2000;
+
+    private RingtoneCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new RingtoneCache(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.trim(null);
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testSecondGetIsHit() throws Exception {
+        RingtoneCache.PreparedRingtone r = mCache.get(Settings.System.DEFAULT_RINGTONE_URI);
+        if (r == null || mCache.size() == 0) return;  // no default ringtone on this device
+        mCache.done(r);
+
+        int hits = mCache.getHits();
+        assertSame(r, mCache.get(Settings.System.DEFAULT_RINGTONE_URI));
+        assertEquals(hits + 1, mCache.getHits());
+        mCache.done(r);
+    }
+
+    @SmallTest
+    public void testTrimKeepsRingtoneInUse() throws Exception {
+        RingtoneCache.PreparedRingtone r = mCache.get(Settings.System.DEFAULT_RINGTONE_URI);
+        if (r == null || mCache.size() == 0) return;
+        mCache.trim(r);
+        assertEquals(1, mCache.size());
+        mCache.done(r);
+        mCache.trim(null);
+        assertEquals(0, mCache.size());
+    }
+
+    @SmallTest
+    public void testClearDropsRingtoneInUse() throws Exception {
+        RingtoneCache.PreparedRingtone r = mCache.get(Settings.System.DEFAULT_RINGTONE_URI);
+        if (r == null || mCache.size() == 0) return;
+        mCache.clear(r);
+        assertEquals(0, mCache.size());
+        mCache.done(r);
+        assertNotSame(r, mCache.get(Settings.System.DEFAULT_RINGTONE_URI));
+    }
+
+    @LargeTest
+    public void testTimeToRingBenchmark() throws Exception {
+        long ringtoneManager = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            Ringtone r = RingtoneManager.getRingtone(getContext(),
+                    Settings.System.DEFAULT_RINGTONE_URI);
+            if (r == null) return;
+            r.play();
+            waitForPlaying(r, null);
+            ringtoneManager += SystemClock.elapsedRealtime() - start;
+            r.stop();
+        }
+
+        long cold = 0;
+        long warm = 0;
+        for (int i = 0; i < RUNS; i++) {
+            mCache.trim(null);
+            cold += timeToRing();
+            warm += timeToRing();
+        }
+
+        Log.i(TAG, "ring to playing, average of " + RUNS + ": RingtoneManager "
+                + (ringtoneManager / RUNS) + " ms; cache cold " + (cold / RUNS)
+                + " ms; cache prepared " + (warm / RUNS) + " ms");
+    }
+
+    // HELPERS
+
+    private long timeToRing() {
+        long start = SystemClock.elapsedRealtime();
+        RingtoneCache.PreparedRingtone r = mCache.get(Settings.System.DEFAULT_RINGTONE_URI);
+        assertNotNull(r);
+        r.play();
+        waitForPlaying(null, r);
+        long millis = SystemClock.elapsedRealtime() - start;
+        mCache.done(r);
+        return millis;
+    }
+
+    private static void waitForPlaying(Ringtone ringtone, RingtoneCache.PreparedRingtone r) {
+        long deadline = SystemClock.elapsedRealtime() + PLAY_TIMEOUT_MS;
+        while (SystemClock.elapsedRealtime() < deadline) {
+            if ((ringtone != null) ? ringtone.isPlaying() : r.isPlaying()) return;
+            SystemClock.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone.sip;
+
+import android.net.sip.SipProfile;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+// Test suite for the single file SIP profile store, its lookups by URI
+// and profile name, and the migration of the old one-directory-per-profile
+// files, plus a benchmark loading 1, 10 and 100 profiles.
+// See AndroidManifest.xml how to run these tests.
+public class SipProfileDbTest extends AndroidTestCase {
+    private static final String TAG = "SipProfileDbTest";
+
+    private File mDir;
+    private SipProfileDb mDb;
+    private int mSavedCount;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSavedCount = new SipSharedPreferences(getContext()).getProfilesCount();
+        mDir = new File(getContext().getCacheDir(), TAG);
+        deleteAll(mDir);
+        mDir.mkdirs();
+        mDb = new SipProfileDb(getContext(), mDir.getAbsolutePath());
+        mDb.clearCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.clearCache();
+        deleteAll(mDir);
+        new SipSharedPreferences(getContext()).setProfilesCount(mSavedCount);
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testSaveReplaceAndDelete() throws Exception {
+        mDb.saveProfile(createProfile(1, false));
+        mDb.saveProfile(createProfile(2, false));
+        mDb.saveProfile(createProfile(1, true));
+        assertEquals(2, mDb.getProfilesCount());
+
+        // Read back from storage, not from the snapshot
+        mDb.clearCache();
+        List<SipProfile> profiles = mDb.retrieveSipProfileList();
+        assertEquals(2, profiles.size());
+        SipProfile p = profiles.get(1);
+        assertEquals("user1@example.com", p.getProfileName());
+        assertEquals("secret1", p.getPassword());
+        assertEquals("TCP", p.getProtocol());
+        assertEquals(5070, p.getPort());
+        assertTrue(p.getAutoRegistration());
+
+        mDb.deleteProfile(p);
+        mDb.clearCache();
+        assertEquals(1, mDb.retrieveSipProfileList().size());
+    }
+
+    @SmallTest
+    public void testLookupByUriAndName() throws Exception {
+        SipProfile p1 = createProfile(1, false);
+        mDb.saveProfile(p1);
+        mDb.saveProfile(createProfile(2, false));
+        assertEquals("user1@example.com",
+                mDb.getProfileByUri(p1.getUriString()).getProfileName());
+        assertEquals(p1.getUriString(),
+                mDb.getProfileByName("user1@example.com").getUriString());
+        assertNull(mDb.getProfileByUri(null));
+
+        mDb.deleteProfile(p1);
+        assertNull(mDb.getProfileByUri(p1.getUriString()));
+        assertNull(mDb.getProfileByName("user1@example.com"));
+        assertEquals(1, mDb.getProfileList().size());
+
+        // Index rebuilt from storage
+        mDb.clearCache();
+        assertNotNull(mDb.getProfileByName("user2@example.com"));
+    }
+
+    @SmallTest
+    public void testIsLoaded() throws Exception {
+        mDb.saveProfile(createProfile(1, false));
+        assertTrue(mDb.isLoaded());
+        mDb.clearCache();
+        assertFalse(mDb.isLoaded());
+        mDb.getProfileByUri(null);
+        assertTrue(mDb.isLoaded());
+    }
+
+    @SmallTest
+    public void testReturnedListIsACopy() throws Exception {
+        mDb.saveProfile(createProfile(1, false));
+        mDb.retrieveSipProfileList().clear();
+        assertEquals(1, mDb.retrieveSipProfileList().size());
+    }
+
+    @SmallTest
+    public void testMigratesLegacyProfiles() throws Exception {
+        writeLegacyProfiles(3);
+        assertEquals(3, mDb.retrieveSipProfileList().size());
+        assertFalse(new File(mDir, "profiles").exists());
+
+        mDb.clearCache();
+        assertEquals(3, mDb.retrieveSipProfileList().size());
+    }
+
+    @SmallTest
+    public void testReadersGetCopies() throws Exception {
+        SipProfile p1 = createProfile(1, false);
+        mDb.saveProfile(p1);
+        mDb.getProfileByUri(p1.getUriString()).setCallingUid(12345);
+        mDb.retrieveSipProfileList().get(0).setCallingUid(12345);
+        assertTrue(mDb.getProfileByName("user1@example.com").getCallingUid() != 12345);
+        assertTrue(mDb.getProfileList().get(0).getCallingUid() != 12345);
+    }
+
+    @SmallTest
+    public void testReadsBackupOfInterruptedWrite() throws Exception {
+        mDb.saveProfile(createProfile(1, false));
+        mDb.saveProfile(createProfile(2, false));
+        File file = new File(mDir, "sip_profiles.db");
+        assertTrue(file.renameTo(new File(mDir, "sip_profiles.db.bak")));
+        mDb.clearCache();
+
+        assertEquals(2, mDb.retrieveSipProfileList().size());
+        mDb.saveProfile(createProfile(3, false));
+        mDb.clearCache();
+        assertEquals(3, mDb.retrieveSipProfileList().size());
+    }
+
+    @SmallTest
+    public void testUnreadableFileIsNotOverwritten() throws Exception {
+        mDb.saveProfile(createProfile(1, false));
+        File file = new File(mDir, "sip_profiles.db");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] { 1, 2, 3, 4 });
+        out.close();
+        mDb.clearCache();
+
+        assertEquals(0, mDb.getProfileList().size());
+        try {
+            mDb.saveProfile(createProfile(2, false));
+            fail("saved over an unreadable profiles file");
+        } catch (IOException e) {
+            // expected
+        }
+        mDb.deleteProfile(createProfile(1, false));
+        assertEquals(4, file.length());
+    }
+
+    @SmallTest
+    public void testKeepsLegacyProfilesNotMigrated() throws Exception {
+        writeLegacyProfiles(2);
+        File broken = new File(mDir, "profiles/broken@example.com");
+        broken.mkdirs();
+        FileOutputStream out = new FileOutputStream(new File(broken, ".pobj"));
+        out.write(new byte[] { 1, 2, 3, 4 });
+        out.close();
+
+        assertEquals(2, mDb.retrieveSipProfileList().size());
+        assertTrue(broken.exists());
+        assertFalse(new File(mDir, "profiles/user0@example.com").exists());
+    }
+
+    @LargeTest
+    public void testLoadBenchmark() throws Exception {
+        benchmark(1);
+        benchmark(10);
+        benchmark(100);
+    }
+
+    // HELPERS
+
+    private void benchmark(int count) throws Exception {
+        final int runs = 20;
+        deleteAll(mDir);
+        mDir.mkdirs();
+        mDb.clearCache();
+        writeLegacyProfiles(count);
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < runs; i++) {
+            mDb.readLegacyProfiles();
+        }
+        long legacy = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        mDb.retrieveSipProfileList();
+        long migrate = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < runs; i++) {
+            mDb.clearCache();
+            mDb.retrieveSipProfileList();
+        }
+        long binary = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < runs; i++) {
+            mDb.retrieveSipProfileList();
+        }
+        long cached = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, count + " profiles: legacy " + ((float) legacy / runs) + " ms, migration "
+                + migrate + " ms, binary " + ((float) binary / runs) + " ms, cached "
+                + ((float) cached / runs) + " ms per load");
+    }
+
+    private void writeLegacyProfiles(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            SipProfile p = createProfile(i, false);
+            File dir = new File(mDir, "profiles/" + p.getProfileName());
+            dir.mkdirs();
+            ObjectOutputStream oos = new ObjectOutputStream(
+                    new FileOutputStream(new File(dir, ".pobj")));
+            oos.writeObject(p);
+            oos.close();
+        }
+    }
+
+    private static SipProfile createProfile(int i, boolean tcp) throws Exception {
+        return new SipProfile.Builder("user" + i, "example.com")
+                .setProfileName("user" + i + "@example.com")
+                .setPassword("secret" + i)
+                .setProtocol(tcp ? "TCP" : "UDP")
+                .setDisplayName("User " + i)
+                .setPort(tcp ? 5070 : 5060)
+                .setAutoRegistration(tcp)
+                .build();
+    }
+
+    private static void deleteAll(File file) {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) deleteAll(child);
+        }
+        file.delete();
+    }
+}
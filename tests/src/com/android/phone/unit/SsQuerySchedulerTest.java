@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+// Test suite for the concurrency limit and the cancellation of the
+// supplementary service queries of the call settings screens.
+// See AndroidManifest.xml how to run these tests.
+public class SsQuerySchedulerTest extends AndroidTestCase {
+    private int mSent;
+
+    @SmallTest
+    public void testSendsUpToLimitThenOnePerAnswer() throws Exception {
+        SsQueryScheduler scheduler = new SsQueryScheduler(0, 2);
+        SsQueryScheduler.Batch batch = scheduler.newBatch("cf");
+        for (int i = 0; i < 4; i++) batch.submit(mQuery);
+        assertEquals(2, mSent);
+
+        batch.onQueryDone();
+        assertEquals(3, mSent);
+        batch.onQueryDone();
+        batch.onQueryDone();
+        assertEquals(4, mSent);
+        batch.onQueryDone();
+        assertTrue(dump(scheduler).contains("cf: populated=1 canceled=0"));
+    }
+
+    @SmallTest
+    public void testCancelDropsQueriesAndGivesUpPlaces() throws Exception {
+        SsQueryScheduler scheduler = new SsQueryScheduler(0, 1);
+        SsQueryScheduler.Batch batch = scheduler.newBatch("cf");
+        for (int i = 0; i < 3; i++) batch.submit(mQuery);
+        batch.cancel();
+        batch.submit(mQuery);
+        assertEquals(1, mSent);
+
+        SsQueryScheduler.Batch next = scheduler.newBatch("cw");
+        next.submit(mQuery);
+        next.submit(mQuery);
+        assertEquals(2, mSent);
+
+        // A late answer to the canceled batch doesn't free the place of another
+        batch.onQueryDone();
+        assertEquals(2, mSent);
+        next.onQueryDone();
+        assertEquals(3, mSent);
+        next.onQueryDone();
+        assertTrue(dump(scheduler).contains("cf: populated=0 canceled=1"));
+        assertTrue(dump(scheduler).contains("cw: populated=1 canceled=0"));
+    }
+
+    @SmallTest
+    public void testUnansweredQueryGivesUpItsPlace() throws Exception {
+        SsQueryScheduler scheduler = new SsQueryScheduler(0, 1, 0);
+        SsQueryScheduler.Batch batch = scheduler.newBatch("cf");
+        batch.submit(mQuery);
+        batch.submit(mQuery);
+        assertEquals(2, mSent);
+        batch.onQueryDone();
+        assertTrue(dump(scheduler).contains("cf: populated=1 canceled=0 timedOut=1"));
+    }
+
+    private final Runnable mQuery = new Runnable() {
+        public void run() {
+            mSent++;
+        }
+    };
+
+    private static String dump(SsQueryScheduler scheduler) {
+        StringWriter out = new StringWriter();
+        scheduler.dump(new PrintWriter(out));
+        return out.toString();
+    }
+}
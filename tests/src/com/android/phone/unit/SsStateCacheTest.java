@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.CallForwardInfo;
+import com.android.internal.telephony.CommandsInterface;
+
+// Test suite for the expiry and the invalidation of the cached
+// supplementary service states.
+// See AndroidManifest.xml how to run these tests.
+public class SsStateCacheTest extends AndroidTestCase {
+    private static final String ICCID = "8901260000000000001";
+
+    @SmallTest
+    public void testStateExpires() throws Exception {
+        SsStateCache cache = new SsStateCache();
+        int[] cw = { 1, 1 };
+        cache.put(ICCID, SsStateCache.KEY_CALL_WAITING, cw, 1000);
+        assertSame(cw, cache.get(ICCID, SsStateCache.KEY_CALL_WAITING));
+        long expiry = 1000 + SsStateCache.TTL_MILLIS;
+        assertTrue(cache.isFresh(SsStateCache.KEY_CALL_WAITING, expiry - 1));
+
+        // Still shown when stale, while it is read again
+        assertFalse(cache.isFresh(SsStateCache.KEY_CALL_WAITING, expiry));
+        assertSame(cw, cache.get(ICCID, SsStateCache.KEY_CALL_WAITING));
+        assertFalse(cache.isFresh(SsStateCache.KEY_CLIR, 1000));
+    }
+
+    @SmallTest
+    public void testCallForwardingInvalidationKeepsOtherStates() throws Exception {
+        SsStateCache cache = new SsStateCache();
+        cache.put(ICCID, SsStateCache.KEY_CLIR, new int[] { 0, 1 }, 1000);
+        cache.put(ICCID, CommandsInterface.CF_REASON_UNCONDITIONAL, new CallForwardInfo[0], 1000);
+        cache.put(ICCID, CommandsInterface.CF_REASON_BUSY, new CallForwardInfo[0], 1000);
+        cache.removeCallForwarding();
+        assertNull(cache.get(ICCID, CommandsInterface.CF_REASON_UNCONDITIONAL));
+        assertNull(cache.get(ICCID, CommandsInterface.CF_REASON_BUSY));
+        assertNotNull(cache.get(ICCID, SsStateCache.KEY_CLIR));
+    }
+
+    @SmallTest
+    public void testSimSwapDropsStates() throws Exception {
+        SsStateCache cache = new SsStateCache();
+        cache.put(ICCID, SsStateCache.KEY_CLIR, new int[] { 0, 1 }, 1000);
+        assertNull(cache.get("8901260000000000002", SsStateCache.KEY_CLIR));
+        assertNull(cache.get(ICCID, SsStateCache.KEY_CLIR));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.media.AudioManager;
+import android.media.ToneGenerator;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Benchmark of the time from requesting a call ended tone to the tone
+// starting: a new thread and ToneGenerator per tone, as CallNotifier used
+// to do, against the phone process's ToneEngine, cold and then warm.
+// See AndroidManifest.xml how to run these tests.
+public class ToneEngineTest extends AndroidTestCase {
+    private static final String TAG = "ToneEngineTest";
+
+    private static final int RUNS = 10;
+    private static final int TONE_LENGTH_MS = 50;
+    private static final int VOLUME = 10;
+
+    @LargeTest
+    public void testToneStartBenchmark() throws Exception {
+        ToneEngine engine = ToneEngine.getInstance();
+        assertNotNull(engine);
+
+        long perTone = 0;
+        for (int i = 0; i < RUNS; i++) {
+            final long[] started = new long[1];
+            final long start = SystemClock.uptimeMillis();
+            Thread thread = new Thread() {
+                public void run() {
+                    ToneGenerator generator =
+                            new ToneGenerator(AudioManager.STREAM_VOICE_CALL, VOLUME);
+                    generator.startTone(ToneGenerator.TONE_PROP_PROMPT);
+                    started[0] = SystemClock.uptimeMillis();
+                    SystemClock.sleep(TONE_LENGTH_MS);
+                    generator.stopTone();
+                    generator.release();
+                }
+            };
+            thread.start();
+            thread.join();
+            perTone += started[0] - start;
+        }
+
+        HandlerThread doneThread = new HandlerThread(TAG);
+        doneThread.start();
+        Handler doneHandler = new Handler(doneThread.getLooper());
+        long engineCold = -1;
+        long engineWarm = 0;
+        for (int i = 0; i <= RUNS; i++) {
+            final CountDownLatch done = new CountDownLatch(1);
+            engine.play(new ToneEngine.Request(ToneGenerator.TONE_PROP_PROMPT,
+                    AudioManager.STREAM_VOICE_CALL, VOLUME, ToneEngine.PRIORITY_INFO,
+                    TONE_LENGTH_MS, doneHandler, new Runnable() {
+                        public void run() {
+                            done.countDown();
+                        }
+                    }));
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            if (i == 0) {
+                engineCold = engine.getLastStartMillis();
+            } else {
+                engineWarm += engine.getLastStartMillis();
+            }
+        }
+        doneThread.quit();
+
+        Log.i(TAG, "request to tone start, average of " + RUNS + ": thread and ToneGenerator"
+                + " per tone " + (perTone / RUNS) + " ms; ToneEngine first " + engineCold
+                + " ms, then " + (engineWarm / RUNS) + " ms");
+    }
+}